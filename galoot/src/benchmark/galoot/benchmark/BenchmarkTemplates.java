@@ -0,0 +1,195 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.benchmark;
+
+import galoot.Context;
+import galoot.PluginRegistry;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * The templates and context shared by the benchmarks. Each kind of template
+ * stresses one part of rendering.
+ */
+final class BenchmarkTemplates
+{
+    static final String SMALL = "<h1>{{ title }}</h1>{% if user %}Hello "
+            + "{{ user.name|title }}{% endif %}{% for i in items %}<li>{{ i }}"
+            + "</li>{% endfor %}";
+
+    static final String VARIABLES = StringUtils.repeat(
+            "<p>{{ title }} {{ user.name }} {{ user.email }} {{ user.id }}</p>\n",
+            50);
+
+    static final String LOOPS = "<table>{% for row in rows %}<tr>{% for cell in "
+            + "row %}<td class=\"{% if forloop.first %}first{% endif %}\">"
+            + "{{ cell }}</td>{% endfor %}</tr>\n{% endfor %}</table>";
+
+    static final String MACROS = "{% macro cell(value, cls) %}<td class=\""
+            + "{{ cls }}\">{{ value }}</td>{% endmacro %}<table>{% for i in "
+            + "items %}<tr>{{ cell(i, \"a\") }}{{ cell(title, \"b\") }}</tr>"
+            + "{% endfor %}</table>";
+
+    static final String FILTERS = "{% for i in items %}{{ i|upper }} "
+            + "{{ i|lower|title }} {{ title|wordcount }} {{ i|default:\"x\" }} "
+            + "{{ i|length }}\n{% endfor %}{{ items|length }}";
+
+    static final String INCLUDES = "{% for i in items %}{% include "
+            + "\"bench-item.txt\" %}{% endfor %}";
+
+    static final String EXTENDS = "{% extends \"bench-child.txt\" %}"
+            + "{% block content %}{% for i in items %}<li>{{ i }}</li>"
+            + "{% endfor %}{{ block.super }}{% endblock %}";
+
+    // ! a large generated page: mostly markup, with the odd tag
+    static final String GENERATED = StringUtils.repeat(
+            "<div class=\"row\">\n  <span class=\"label\">Name</span>\n"
+                    + "  <span class=\"value\">{{ user.name }}</span>\n"
+                    + "  <p>Lorem ipsum dolor sit amet, consectetur adipiscing"
+                    + " elit, sed do eiusmod tempor incididunt ut labore.</p>\n"
+                    + "  {% if user.id %}<a href=\"/users/{{ user.id }}\">"
+                    + "profile</a>{% endif %}\n</div>\n", 2000);
+
+    private static final String BASE = "<html><head><title>{% block title %}"
+            + "{{ title }}{% endblock %}</title></head><body>{% block header %}"
+            + "<h1>{{ title }}</h1>{% endblock %}{% block content %}{% endblock %}"
+            + "{% block footer %}<p>footer</p>{% endblock %}</body></html>";
+
+    private static final String CHILD = "{% extends \"bench-base.txt\" %}"
+            + "{% block header %}<h1>{{ user.name }}</h1>{% endblock %}"
+            + "{% block content %}<p>child</p>{% endblock %}";
+
+    private static final String ITEM = "<li>{{ i }} of {{ title }}</li>\n";
+
+    private BenchmarkTemplates()
+    {
+    }
+
+    /**
+     * @param kind
+     *            one of small, variables, loops, macros, filters, includes,
+     *            extends, generated
+     * @return the template text
+     */
+    static String getTemplate(String kind)
+    {
+        if ("small".equals(kind))
+            return SMALL;
+        if ("variables".equals(kind))
+            return VARIABLES;
+        if ("loops".equals(kind))
+            return LOOPS;
+        if ("macros".equals(kind))
+            return MACROS;
+        if ("filters".equals(kind))
+            return FILTERS;
+        if ("includes".equals(kind))
+            return INCLUDES;
+        if ("extends".equals(kind))
+            return EXTENDS;
+        if ("generated".equals(kind))
+            return GENERATED;
+        throw new IllegalArgumentException("Unknown template: " + kind);
+    }
+
+    /**
+     * Returns the text of samples/bigtest.txt, without its load tag, which
+     * names a filter plugin that no longer exists.
+     * 
+     * @return
+     * @throws IOException
+     */
+    static String getBigTest() throws IOException
+    {
+        File file = new File(System.getProperty("galoot.samples", "samples"),
+                "bigtest.txt");
+        StringBuilder text = new StringBuilder();
+        for (Object line : FileUtils.readLines(file))
+            if (!((String) line).startsWith("{% load"))
+                text.append(line).append('\n');
+        return text.toString();
+    }
+
+    /**
+     * Writes the templates that are included and extended to a temporary
+     * directory, and adds it to the include paths.
+     * 
+     * @return the directory, to pass to {@link #removeIncludeDirectory(File)}
+     * @throws IOException
+     */
+    static File createIncludeDirectory() throws IOException
+    {
+        File dir = File.createTempFile("galoot-bench", "");
+        FileUtils.forceDelete(dir);
+        FileUtils.forceMkdir(dir);
+        FileUtils.writeStringToFile(new File(dir, "bench-base.txt"), BASE);
+        FileUtils.writeStringToFile(new File(dir, "bench-child.txt"), CHILD);
+        FileUtils.writeStringToFile(new File(dir, "bench-item.txt"), ITEM);
+        PluginRegistry.getInstance().addTemplateIncludePath(
+                dir.getAbsolutePath());
+        return dir;
+    }
+
+    static void removeIncludeDirectory(File dir) throws IOException
+    {
+        PluginRegistry.getInstance().removeTemplateIncludePath(
+                dir.getAbsolutePath());
+        FileUtils.deleteDirectory(dir);
+    }
+
+    /**
+     * @return the variables the templates refer to
+     */
+    static Context newContext()
+    {
+        Map<String, Object> user = new HashMap<String, Object>();
+        user.put("name", "tom zellman");
+        user.put("email", "tom@example.com");
+        user.put("id", 42);
+
+        List<String> items = new ArrayList<String>();
+        for (int i = 0; i < 100; ++i)
+            items.add("Item " + i);
+
+        List<List<Integer>> rows = new ArrayList<List<Integer>>();
+        for (int i = 0; i < 100; ++i)
+        {
+            List<Integer> row = new ArrayList<Integer>();
+            for (int j = 0; j < 10; ++j)
+                row.add(i * 10 + j);
+            rows.add(row);
+        }
+
+        Context context = new Context();
+        context.putVariable("title", "Galoot Benchmark");
+        context.putVariable("user", user);
+        context.putVariable("items", items);
+        context.putVariable("rows", rows);
+        return context;
+    }
+}
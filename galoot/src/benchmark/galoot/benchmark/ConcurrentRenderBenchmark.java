@@ -0,0 +1,93 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.benchmark;
+
+import galoot.Context;
+import galoot.Template;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One shared Template rendered by as many threads as there are processors,
+ * each with its own context, to find contention in the shared caches (inline
+ * caches, the template cache, the filter and render metrics).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(Threads.MAX)
+@Fork(1)
+public class ConcurrentRenderBenchmark
+{
+    @Param( { "filters", "extends" })
+    public String template;
+
+    private File includeDirectory;
+
+    private Template shared;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        includeDirectory = BenchmarkTemplates.createIncludeDirectory();
+        shared = new Template(BenchmarkTemplates.getTemplate(template));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        BenchmarkTemplates.removeIncludeDirectory(includeDirectory);
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadContext
+    {
+        Context context;
+
+        @Setup
+        public void setUp()
+        {
+            context = BenchmarkTemplates.newContext();
+        }
+    }
+
+    @Benchmark
+    public String render(ThreadContext state) throws Exception
+    {
+        return shared.render(state.context);
+    }
+}
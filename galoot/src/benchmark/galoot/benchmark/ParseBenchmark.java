@@ -0,0 +1,112 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.benchmark;
+
+import galoot.Template;
+import galoot.TemplateLexer;
+import galoot.lexer.Lexer;
+import galoot.node.EOF;
+import galoot.node.Start;
+import galoot.node.Token;
+import galoot.parser.Parser;
+
+import java.io.PushbackReader;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lexing, parsing, and parsing plus compiling (what constructing a Template
+ * does) small templates, samples/bigtest.txt and a large generated template.
+ * Lexing and parsing are measured both with the generated lexer reading a
+ * PushbackReader, and with the {@link TemplateLexer} Template uses.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark
+{
+    @Param( { "small", "loops", "macros", "bigtest", "generated" })
+    public String template;
+
+    private String text;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        text = "bigtest".equals(template) ? BenchmarkTemplates.getBigTest()
+                : BenchmarkTemplates.getTemplate(template);
+    }
+
+    @Benchmark
+    public int lex() throws Exception
+    {
+        Lexer lexer = new Lexer(new PushbackReader(new StringReader(text), 1024));
+        int tokens = 0;
+        for (Token token = lexer.next(); !(token instanceof EOF); token = lexer
+                .next())
+            ++tokens;
+        return tokens;
+    }
+
+    @Benchmark
+    public int lexScanning() throws Exception
+    {
+        Lexer lexer = new TemplateLexer(text);
+        int tokens = 0;
+        for (Token token = lexer.next(); !(token instanceof EOF); token = lexer
+                .next())
+            ++tokens;
+        return tokens;
+    }
+
+    @Benchmark
+    public Start parse() throws Exception
+    {
+        return new Parser(new Lexer(new PushbackReader(new StringReader(text),
+                1024))).parse();
+    }
+
+    @Benchmark
+    public Start parseScanning() throws Exception
+    {
+        return new Parser(new TemplateLexer(text)).parse();
+    }
+
+    @Benchmark
+    public Template compile() throws Exception
+    {
+        return new Template(text);
+    }
+}
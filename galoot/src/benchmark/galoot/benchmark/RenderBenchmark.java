@@ -0,0 +1,94 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.benchmark;
+
+import galoot.Context;
+import galoot.ContextStack;
+import galoot.Template;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rendering templates that are heavy in one kind of tag each, to a String.
+ * The template is rendered well past the point where its render tree is
+ * replaced by bytecode, so this measures the steady state.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RenderBenchmark
+{
+    @Param( { "variables", "loops", "macros", "filters", "includes",
+            "extends" })
+    public String template;
+
+    private File includeDirectory;
+
+    private Template compiled;
+
+    private Context context;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        includeDirectory = BenchmarkTemplates.createIncludeDirectory();
+        compiled = new Template(BenchmarkTemplates.getTemplate(template));
+        context = BenchmarkTemplates.newContext();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        BenchmarkTemplates.removeIncludeDirectory(includeDirectory);
+    }
+
+    @Benchmark
+    public String render() throws Exception
+    {
+        return compiled.render(context);
+    }
+
+    /**
+     * The same template, rendered by walking its syntax tree.
+     */
+    @Benchmark
+    public String interpret() throws Exception
+    {
+        return compiled.interpretDocument(new ContextStack(context))
+                .evaluateAsString();
+    }
+}
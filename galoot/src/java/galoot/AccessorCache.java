@@ -0,0 +1,235 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Caches how members of a class are read, for the dot syntax of variables
+ * (e.g. {{ user.name }}).
+ * 
+ * A member is resolved the same way {@link TemplateUtils#evaluateObject}
+ * always has: as a public field or no-argument method with the member's name,
+ * then as a field or method with the getter name (e.g. "getName"). The result
+ * is cached per class and member name, including the fact that a class has no
+ * such member, so repeated lookups do no reflection and throw no exceptions.
+ */
+public final class AccessorCache
+{
+    private static final MethodType ACCESSOR_TYPE = MethodType.methodType(
+            Object.class, Object.class);
+
+    private static final ClassValue<ConcurrentMap<String, Accessor>> accessors = new ClassValue<ConcurrentMap<String, Accessor>>()
+    {
+        @Override
+        protected ConcurrentMap<String, Accessor> computeValue(Class<?> type)
+        {
+            return new ConcurrentHashMap<String, Accessor>();
+        }
+    };
+
+    private AccessorCache()
+    {
+    }
+
+    /**
+     * Returns the accessor for the given member of the given class.
+     * 
+     * @param type
+     * @param memberName
+     * @return the accessor, which may find nothing; never null
+     */
+    public static Accessor getAccessor(Class<?> type, String memberName)
+    {
+        ConcurrentMap<String, Accessor> members = accessors.get(type);
+        Accessor accessor = members.get(memberName);
+        if (accessor == null)
+        {
+            accessor = new Accessor(type, memberName);
+            Accessor existing = members.putIfAbsent(memberName, accessor);
+            if (existing != null)
+                accessor = existing;
+        }
+        return accessor;
+    }
+
+    /**
+     * Returns a handle of type (Object)Object that reads the public field, or
+     * calls the public no-argument method, with the given name. Returns null
+     * if there is no such member, or it is not accessible.
+     */
+    private static MethodHandle findHandle(Class<?> type, String name)
+    {
+        MethodHandle handle = findField(type, name);
+        return handle != null ? handle : findMethod(type, name);
+    }
+
+    private static MethodHandle findField(Class<?> type, String name)
+    {
+        try
+        {
+            Field field = type.getField(name);
+            MethodHandle handle = MethodHandles.publicLookup()
+                    .unreflectGetter(field);
+            if (Modifier.isStatic(field.getModifiers()))
+                handle = MethodHandles.dropArguments(handle, 0, Object.class);
+            return handle.asType(ACCESSOR_TYPE);
+        }
+        catch (NoSuchFieldException e)
+        {
+            return null;
+        }
+        catch (IllegalAccessException e)
+        {
+            // Field.get() would have failed too
+            return null;
+        }
+    }
+
+    private static MethodHandle findMethod(Class<?> type, String name)
+    {
+        try
+        {
+            Method method = type.getMethod(name);
+            MethodHandle handle = MethodHandles.publicLookup()
+                    .unreflect(method);
+            if (Modifier.isStatic(method.getModifiers()))
+                handle = MethodHandles.dropArguments(handle, 0, Object.class);
+            return handle.asType(ACCESSOR_TYPE);
+        }
+        catch (NoSuchMethodException e)
+        {
+            return null;
+        }
+        catch (IllegalAccessException e)
+        {
+            // Method.invoke() would have failed too
+            return null;
+        }
+    }
+
+    /**
+     * Reads one member of the objects of a single class.
+     */
+    public static final class Accessor
+    {
+        // ! returned by get() when the object has no such member
+        public static final Object NOT_FOUND = new Object();
+
+        private final String memberName;
+
+        private final MethodHandle direct;
+
+        // ! true if the direct member is a field, rather than a method
+        private final boolean directIsField;
+
+        private final MethodHandle getter;
+
+        Accessor(Class<?> type, String memberName)
+        {
+            this.memberName = memberName;
+            MethodHandle field = findField(type, memberName);
+            direct = field != null ? field : findMethod(type, memberName);
+            directIsField = field != null;
+            getter = memberName.length() == 0 ? null : findHandle(type, "get"
+                    + memberName.substring(0, 1).toUpperCase()
+                    + memberName.substring(1));
+        }
+
+        /**
+         * @return true iff the class has no such member
+         */
+        public boolean isEmpty()
+        {
+            return direct == null && getter == null;
+        }
+
+        /**
+         * Reads the member from the given object, which must be an instance of
+         * the accessor's class.
+         * 
+         * @param object
+         * @return the member's value, or NOT_FOUND if it couldn't be read;
+         *         errors thrown by the member are rethrown
+         */
+        public Object get(Object object)
+        {
+            if (direct != null)
+            {
+                try
+                {
+                    Object value = direct.invokeExact(object);
+                    if (!directIsField || value == null)
+                        return value;
+
+                    // after a field, the getter name has always been tried
+                    // on the field's value as well
+                    Accessor next = getAccessor(value.getClass(), memberName);
+                    if (next.getter == null)
+                        return value;
+                    try
+                    {
+                        return next.getter.invokeExact(value);
+                    }
+                    catch (Error e)
+                    {
+                        throw e;
+                    }
+                    catch (Throwable t)
+                    {
+                        return value;
+                    }
+                }
+                catch (Error e)
+                {
+                    throw e;
+                }
+                catch (Throwable t)
+                {
+                    // try the getter
+                }
+            }
+            if (getter != null)
+            {
+                try
+                {
+                    return getter.invokeExact(object);
+                }
+                catch (Error e)
+                {
+                    throw e;
+                }
+                catch (Throwable t)
+                {
+                    // a failed lookup, like a missing member
+                }
+            }
+            return NOT_FOUND;
+        }
+    }
+
+}
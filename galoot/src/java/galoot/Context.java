@@ -22,12 +22,39 @@ package galoot;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
+/**
+ * A single frame of variables and macros.
+ * 
+ * Contexts created by the application keep their variables in a map. The
+ * frames a {@link ContextStack} pushes for tags like for and with keep
+ * variables whose names have a slot (see {@link VariableSlots}) in small
+ * arrays instead, and are reused once popped. The maps are only created when
+ * something is put in them.
+ */
 public class Context
 {
+    // ! returned by lookup() for variables that aren't in this context
+    static final Object MISSING = new Object();
+
+    // ! created on demand
     protected Map<String, Object> contextMap;
 
+    // ! created on demand
     protected Map<String, Macro> macroMap;
 
+    // ! true once a variable whose name contains a dot has been put
+    protected boolean dottedNames;
+
+    // ! true if this is a frame pushed (and reused) by a ContextStack
+    private final boolean stackFrame;
+
+    // ! the slotted variables of a stack frame
+    private int[] slots;
+
+    private Object[] slotValues;
+
+    private int slotCount;
+
     public Context()
     {
         this(null);
@@ -35,15 +62,116 @@ public class Context
 
     public Context(Map<String, Object> initialContents)
     {
-        contextMap = new LinkedHashMap<String, Object>();
-        macroMap = new LinkedHashMap<String, Macro>();
+        stackFrame = false;
         if (initialContents != null)
             add(initialContents);
     }
 
+    /**
+     * Creates a frame for a ContextStack.
+     */
+    Context(boolean stackFrame)
+    {
+        this.stackFrame = stackFrame;
+        if (stackFrame)
+        {
+            slots = new int[4];
+            slotValues = new Object[4];
+        }
+    }
+
     public void putVariable(String key, Object value)
     {
-        contextMap.put(key, value);
+        putVariable(stackFrame ? VariableSlots.findSlot(key) : -1, key, value);
+    }
+
+    /**
+     * Puts a variable whose slot is already known.
+     * 
+     * @param slot
+     *            the slot of the key, or -1 if it has none
+     * @param key
+     * @param value
+     */
+    void putVariable(int slot, String key, Object value)
+    {
+        if (!dottedNames && key != null && key.indexOf('.') >= 0)
+            dottedNames = true;
+
+        if (slot >= 0 && stackFrame)
+        {
+            int i = indexOf(slot);
+            if (i < 0)
+            {
+                if (slotCount == slots.length)
+                    grow();
+                i = slotCount++;
+                slots[i] = slot;
+            }
+            slotValues[i] = value;
+            // put before the name had a slot
+            if (contextMap != null)
+                contextMap.remove(key);
+        }
+        else
+        {
+            if (contextMap == null)
+                contextMap = new LinkedHashMap<String, Object>();
+            contextMap.put(key, value);
+        }
+    }
+
+    /**
+     * Returns the variable, or {@link #MISSING} if it is not in this context.
+     * A variable can be in the context and be null.
+     * 
+     * @param slot
+     *            the slot of the key, or -1 if it has none
+     * @param key
+     * @return
+     */
+    Object lookup(int slot, String key)
+    {
+        if (slot >= 0)
+        {
+            for (int i = 0; i < slotCount; ++i)
+                if (slots[i] == slot)
+                    return slotValues[i];
+        }
+        if (contextMap == null)
+            return MISSING;
+        Object value = contextMap.get(key);
+        if (value == null && !contextMap.containsKey(key))
+            return MISSING;
+        return value;
+    }
+
+    private int indexOf(int slot)
+    {
+        for (int i = 0; i < slotCount; ++i)
+            if (slots[i] == slot)
+                return i;
+        return -1;
+    }
+
+    private void grow()
+    {
+        int length = slots.length * 2;
+        int[] newSlots = new int[length];
+        Object[] newValues = new Object[length];
+        System.arraycopy(slots, 0, newSlots, 0, slotCount);
+        System.arraycopy(slotValues, 0, newValues, 0, slotCount);
+        slots = newSlots;
+        slotValues = newValues;
+    }
+
+    /**
+     * @return true if any variable put into this context had a dot in its
+     *         name, e.g. "block.super"
+     */
+    public boolean hasDottedNames()
+    {
+        return dottedNames;
     }
 
     /**
@@ -54,32 +182,48 @@ public class Context
      */
     protected void putMacro(String key, Macro value)
     {
+        if (macroMap == null)
+            macroMap = new LinkedHashMap<String, Macro>();
         macroMap.put(key, value);
     }
 
     public Object getVariable(String key)
     {
-        return contextMap.get(key);
+        Object value = lookup(stackFrame ? VariableSlots.findSlot(key) : -1,
+                key);
+        return value != MISSING ? value : null;
     }
 
     public Macro getMacro(String key)
     {
-        return macroMap.get(key);
+        return macroMap != null ? macroMap.get(key) : null;
     }
 
     public boolean hasVariable(String key)
     {
-        return contextMap.containsKey(key);
+        return lookup(stackFrame ? VariableSlots.findSlot(key) : -1, key)
+                != MISSING;
     }
 
     public boolean hasMacro(String key)
     {
-        return macroMap.containsKey(key);
+        return macroMap != null && macroMap.containsKey(key);
     }
 
     public Object removeVariable(String key)
     {
-        return contextMap.remove(key);
+        int slot = stackFrame ? VariableSlots.findSlot(key) : -1;
+        int i = slot >= 0 ? indexOf(slot) : -1;
+        if (i >= 0)
+        {
+            Object value = slotValues[i];
+            --slotCount;
+            slots[i] = slots[slotCount];
+            slotValues[i] = slotValues[slotCount];
+            slotValues[slotCount] = null;
+            return value;
+        }
+        return contextMap != null ? contextMap.remove(key) : null;
     }
 
     public void add(Map<String, Object> map)
@@ -89,4 +233,27 @@ public class Context
                 putVariable(key, map.get(key));
     }
 
+    /**
+     * @return true if this is a frame pushed by a ContextStack
+     */
+    boolean isStackFrame()
+    {
+        return stackFrame;
+    }
+
+    /**
+     * Empties the frame, so it can be reused.
+     */
+    void clear()
+    {
+        for (int i = 0; i < slotCount; ++i)
+            slotValues[i] = null;
+        slotCount = 0;
+        if (contextMap != null)
+            contextMap.clear();
+        if (macroMap != null)
+            macroMap.clear();
+        dottedNames = false;
+    }
+
 }
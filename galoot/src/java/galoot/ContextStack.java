@@ -19,21 +19,42 @@
  */
 package galoot;
 
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
 
 /**
- * The context class is a glorified map of variables/objects. It has in internal
- * stack, which corresponds to the context depth.
+ * A stack of contexts, searched from the top down when looking up variables.
  * 
+ * The stack is array-backed. Frames pushed by the stack itself and popped with
+ * {@link #popFrame()} are reused, so pushing and popping allocates nothing
+ * once the stack has been as deep before. Compiled templates refer to variables by slot (see
+ * {@link VariableSlots}), which the frames compare instead of hashing names.
  */
 public class ContextStack
 {
-    protected LinkedList<Context> contextStack;
+    // ! stands in for a null lazy value, which a ConcurrentMap can't hold
+    private static final Object NULL = new Object();
+
+    // ! the frames, bottom first; frames past the top are kept for reuse
+    protected Context[] frames;
+
+    // ! the number of frames on the stack
+    protected int depth;
 
     protected FilterMap filterMap;
 
+    // ! the Futures of the Suppliers resolved so far, shared with forks
+    protected final ConcurrentMap<Object, Object> lazyValues;
+
     public ContextStack()
     {
         this(new Context());
@@ -41,10 +62,11 @@ public class ContextStack
 
     public ContextStack(Context initialContext)
     {
-        contextStack = new LinkedList<Context>();
-        contextStack.addFirst(initialContext != null ? initialContext
-                : new Context()); // initialize it
+        frames = new Context[8];
+        frames[depth++] = initialContext != null ? initialContext
+                : new Context(); // initialize it
         filterMap = new FilterMap();
+        lazyValues = new ConcurrentHashMap<Object, Object>();
     }
 
     public ContextStack(Map<String, Object> initialContents)
@@ -53,6 +75,36 @@ public class ContextStack
         add(initialContents);
     }
 
+    /**
+     * Creates a stack that sees the frames of the given one, with a frame of
+     * its own pushed on top.
+     */
+    protected ContextStack(ContextStack parent)
+    {
+        frames = new Context[Math.max(8, parent.depth * 2)];
+        System.arraycopy(parent.frames, 0, frames, 0, parent.depth);
+        depth = parent.depth;
+        filterMap = parent.filterMap;
+        lazyValues = parent.lazyValues;
+        push();
+    }
+
+    /**
+     * Returns a stack for rendering part of a template on another thread. The
+     * fork sees the variables, macros and filters of this stack, and shares
+     * its frames with it, but writes only to frames it pushed itself.
+     * 
+     * The frames of this stack (and its filters) must not change while the
+     * fork is in use; frames pushed onto this stack after forking are not
+     * shared.
+     * 
+     * @return the fork
+     */
+    public ContextStack fork()
+    {
+        return new ContextStack(this);
+    }
+
     public FilterMap getFilterMap()
     {
         return filterMap;
@@ -63,17 +115,45 @@ public class ContextStack
      */
     public void push()
     {
-        contextStack.addFirst(new Context());
+        if (depth == frames.length)
+        {
+            Context[] newFrames = new Context[depth * 2];
+            System.arraycopy(frames, 0, newFrames, 0, depth);
+            frames = newFrames;
+        }
+        Context frame = frames[depth];
+        if (frame == null || !frame.isStackFrame())
+            frames[depth] = new Context(true);
+        else
+            frame.clear();
+        ++depth;
     }
 
     /**
-     * Pops the current map off the context stack.
+     * Pops the current map off the context stack. The popped context belongs
+     * to the caller; the next push() creates a new frame.
      * 
-     * @return
+     * @return the popped context
      */
     public Context pop()
     {
-        return contextStack.removeFirst();
+        if (depth == 0)
+            throw new NoSuchElementException();
+        Context frame = frames[--depth];
+        frames[depth] = null;
+        return frame;
+    }
+
+    /**
+     * Pops the current map off the context stack, and keeps it to be reused
+     * by the next push(). Used by tags that push a frame for their body, and
+     * never look at it again.
+     */
+    public void popFrame()
+    {
+        if (depth == 0)
+            throw new NoSuchElementException();
+        --depth;
     }
 
     /**
@@ -86,8 +166,157 @@ public class ContextStack
      */
     public Object getVariable(String key)
     {
-        Context context = getVariableContext(key);
-        return context != null ? context.getVariable(key) : null;
+        return getVariable(VariableSlots.findSlot(key), key);
+    }
+
+    /**
+     * Returns the object with the given key, whose slot is already known.
+     * 
+     * A Future is waited for, and a Supplier is called the first time it is
+     * looked up in this stack (or its forks), and its value returned. Values
+     * that are never looked up are never computed. The Context itself is left
+     * unchanged.
+     * 
+     * If the Supplier or Future fails, so does the lookup: a RuntimeException
+     * or Error is rethrown as is, and other exceptions are wrapped in an
+     * IllegalStateException. Being interrupted while waiting throws an
+     * UncheckedIOException wrapping an InterruptedIOException.
+     * 
+     * @param slot
+     *            the slot of the key, or -1 if it has none
+     * @param key
+     * @return the object or null if not found
+     */
+    public Object getVariable(int slot, String key)
+    {
+        for (int i = depth - 1; i >= 0; --i)
+        {
+            Object value = frames[i].lookup(slot, key);
+            if (value != Context.MISSING)
+            {
+                if (value instanceof Future<?> || value instanceof Supplier<?>)
+                    return resolve(key, value);
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Starts computing the values of the Suppliers with the given names on
+     * the executor, so they are ready (or closer to ready) when they are
+     * looked up. Names that aren't Suppliers, or have been resolved, are
+     * skipped.
+     * 
+     * @param names
+     * @param executor
+     */
+    public void prefetch(String[] names, Executor executor)
+    {
+        for (String name : names)
+        {
+            Context context = getVariableContext(name);
+            Object value = context != null ? context.getVariable(name) : null;
+            if (value instanceof Supplier<?>)
+            {
+                Supplier<?> supplier = (Supplier<?>) value;
+                if (!lazyValues.containsKey(supplier))
+                    lazyValues.putIfAbsent(supplier, CompletableFuture
+                            .supplyAsync(supplier, executor));
+            }
+        }
+    }
+
+    /**
+     * Returns the value of a Future or Supplier, computing a Supplier's value
+     * at most once. The Supplier is called outside the map, so other lookups
+     * (and the Supplier itself) aren't blocked by it.
+     */
+    protected Object resolve(String key, Object lazy)
+    {
+        Future<?> future;
+        if (lazy instanceof Supplier<?>)
+        {
+            future = (Future<?>) lazyValues.get(lazy);
+            if (future == null)
+            {
+                Computation computation = new Computation();
+                future = (Future<?>) lazyValues.putIfAbsent(lazy, computation);
+                if (future == null)
+                {
+                    future = computation;
+                    computation.run((Supplier<?>) lazy);
+                }
+            }
+            else if (future instanceof Computation
+                    && ((Computation) future).isComputing())
+                throw new IllegalStateException(
+                        "Supplier looked itself up: " + key);
+        }
+        else
+            future = (Future<?>) lazy;
+
+        Object value;
+        try
+        {
+            value = future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            InterruptedIOException interrupted = new InterruptedIOException(
+                    "Interrupted while waiting for: " + key);
+            interrupted.initCause(e);
+            throw new UncheckedIOException(interrupted);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IllegalStateException("Could not compute: " + key, cause);
+        }
+        return value != NULL ? value : null;
+    }
+
+    /**
+     * The value of a Supplier, computed by the thread that first looked it up.
+     */
+    private static final class Computation extends CompletableFuture<Object>
+    {
+        private volatile Thread thread;
+
+        void run(Supplier<?> supplier)
+        {
+            thread = Thread.currentThread();
+            try
+            {
+                Object result = supplier.get();
+                complete(result != null ? result : NULL);
+            }
+            catch (RuntimeException e)
+            {
+                completeExceptionally(e);
+            }
+            catch (Error e)
+            {
+                completeExceptionally(e);
+            }
+            finally
+            {
+                thread = null;
+            }
+        }
+
+        /**
+         * @return true if the calling thread is computing the value
+         */
+        boolean isComputing()
+        {
+            return thread == Thread.currentThread();
+        }
     }
 
     public Macro getMacro(String macroName)
@@ -96,6 +325,22 @@ public class ContextStack
         return context != null ? context.getMacro(macroName) : null;
     }
 
+    /**
+     * Variables are normally looked up by their full dotted name first (e.g.
+     * "user.name"), in case one was put with that name. That lookup can be
+     * skipped if this returns false.
+     * 
+     * @return true if any context in the stack may hold a variable whose name
+     *         contains a dot
+     */
+    public boolean hasDottedNames()
+    {
+        for (int i = depth - 1; i >= 0; --i)
+            if (frames[i].hasDottedNames())
+                return true;
+        return false;
+    }
+
     /**
      * Puts a variable into the current map.
      * 
@@ -121,13 +366,32 @@ public class ContextStack
      */
     public boolean putVariable(String key, Object val, boolean global)
     {
-        if (contextStack.isEmpty())
+        return putVariable(VariableSlots.findSlot(key), key, val, global);
+    }
+
+    /**
+     * Puts a variable, whose slot is already known, into the current map.
+     * 
+     * @param slot
+     *            the slot of the key, or -1 if it has none
+     * @param key
+     * @param val
+     * @return
+     */
+    public boolean putVariable(int slot, String key, Object val)
+    {
+        return putVariable(slot, key, val, false);
+    }
+
+    protected boolean putVariable(int slot, String key, Object val,
+            boolean global)
+    {
+        if (depth == 0)
             return false;
-        Context context = global ? getVariableContext(key) : null;
-        if (context != null)
-            context.putVariable(key, val);
-        else
-            contextStack.peek().putVariable(key, val);
+        Context context = global ? getVariableContext(slot, key) : null;
+        if (context == null)
+            context = frames[depth - 1];
+        context.putVariable(slot, key, val);
         return true;
     }
 
@@ -145,13 +409,13 @@ public class ContextStack
 
     public boolean putMacro(String macroName, Macro macro, boolean global)
     {
-        if (contextStack.isEmpty())
+        if (depth == 0)
             return false;
         Context context = global ? getMacroContext(macroName) : null;
         if (context != null)
             context.putMacro(macroName, macro);
         else
-            contextStack.peek().putMacro(macroName, macro);
+            frames[depth - 1].putMacro(macroName, macro);
         return true;
     }
 
@@ -177,30 +441,29 @@ public class ContextStack
      */
     public Object removeVariable(String key)
     {
-        if (contextStack.isEmpty() || !contextStack.peek().hasVariable(key))
+        if (depth == 0 || !frames[depth - 1].hasVariable(key))
             return null;
-        return contextStack.peek().removeVariable(key);
+        return frames[depth - 1].removeVariable(key);
     }
 
     protected Context getVariableContext(String key)
     {
-        for (Iterator<Context> it = contextStack.iterator(); it.hasNext();)
-        {
-            Context context = (Context) it.next();
-            if (context.hasVariable(key))
-                return context;
-        }
+        return getVariableContext(VariableSlots.findSlot(key), key);
+    }
+
+    protected Context getVariableContext(int slot, String key)
+    {
+        for (int i = depth - 1; i >= 0; --i)
+            if (frames[i].lookup(slot, key) != Context.MISSING)
+                return frames[i];
         return null;
     }
 
     protected Context getMacroContext(String macro)
     {
-        for (Iterator<Context> it = contextStack.iterator(); it.hasNext();)
-        {
-            Context context = (Context) it.next();
-            if (context.hasMacro(macro))
-                return context;
-        }
+        for (int i = depth - 1; i >= 0; --i)
+            if (frames[i].hasMacro(macro))
+                return frames[i];
         return null;
     }
 
@@ -93,7 +93,7 @@ public final class DefaultFilters
         return filterMap.containsKey(name);
     }
 
-    static class Lower extends AbstractFilter
+    static class Lower extends AbstractFilter implements PureFilter
     {
         public Object filter(Object object, ContextStack contextStack,
                              String... args)
@@ -102,7 +102,7 @@ public final class DefaultFilters
         }
     }
 
-    static class Upper extends AbstractFilter
+    static class Upper extends AbstractFilter implements PureFilter
     {
         public Object filter(Object object, ContextStack contextStack,
                              String... args)
@@ -111,7 +111,7 @@ public final class DefaultFilters
         }
     }
 
-    static class Length extends AbstractFilter
+    static class Length extends AbstractFilter implements PureFilter
     {
         public Object filter(Object object, ContextStack contextStack,
                              String... args)
@@ -124,7 +124,7 @@ public final class DefaultFilters
      * Returns a random item from a list or string.
      * 
      */
-    static class Random extends AbstractFilter
+    static class Random extends AbstractFilter implements ThreadSafeFilter
     {
         public Object filter(Object object, ContextStack contextStack,
                              String... args)
@@ -184,7 +184,7 @@ public final class DefaultFilters
      * digits. For a string, it’s a list of characters.
      * 
      */
-    static class Make_List extends AbstractFilter
+    static class Make_List extends AbstractFilter implements PureFilter
     {
         public Object filter(Object object, ContextStack contextStack,
                              String... args)
@@ -227,7 +227,7 @@ public final class DefaultFilters
     /**
      * If value is unavailable, use given default.
      */
-    static class Default extends AbstractFilter
+    static class Default extends AbstractFilter implements PureFilter
     {
         public Object filter(Object object, ContextStack contextStack,
                              String... args)
@@ -241,7 +241,7 @@ public final class DefaultFilters
      * returns one of those strings according to the value.
      * 
      */
-    static class YesNo extends AbstractFilter
+    static class YesNo extends AbstractFilter implements PureFilter
     {
         public Object filter(Object object, ContextStack contextStack,
                              String... args)
@@ -263,7 +263,7 @@ public final class DefaultFilters
      * Returns a boolean of whether the value’s length is the argument.
      * 
      */
-    static class Length_Is extends AbstractFilter
+    static class Length_Is extends AbstractFilter implements PureFilter
     {
         public Object filter(Object object, ContextStack contextStack,
                              String... args)
@@ -287,7 +287,7 @@ public final class DefaultFilters
         }
     }
 
-    static class WordCount extends AbstractFilter
+    static class WordCount extends AbstractFilter implements PureFilter
     {
         public Object filter(Object object, ContextStack contextStack,
                              String... args)
@@ -298,7 +298,7 @@ public final class DefaultFilters
         }
     }
 
-    static class Title extends AbstractFilter
+    static class Title extends AbstractFilter implements PureFilter
     {
         public Object filter(Object object, ContextStack contextStack,
                              String... args)
@@ -32,7 +32,8 @@ public interface Filter
      * @param object
      *            the input object
      * @param args
-     *            optional arguments, pertinent to the operation
+     *            optional arguments, pertinent to the operation. The array may
+     *            be shared between calls, and must not be modified.
      * @return the resultant object
      */
     public Object filter(Object object, ContextStack contextStack,
@@ -24,6 +24,7 @@ import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -34,6 +35,9 @@ public class FilterMap
 
     private Map<String, Filter> filterMap;
 
+    // ! incremented whenever a filter is added or removed
+    private final AtomicLong version = new AtomicLong();
+
     public FilterMap()
     {
         filterMap = Collections
@@ -53,6 +57,7 @@ public class FilterMap
             log.warn("Filter already exists: " + alias
                     + ", replacing...");
         filterMap.put(alias, filter);
+        version.incrementAndGet();
     }
 
     public Filter getFilter(String name)
@@ -75,6 +80,7 @@ public class FilterMap
         if (filterMap.containsKey(name))
         {
             filterMap.remove(name);
+            version.incrementAndGet();
             return true;
         }
         else if (hasFilter(name))
@@ -83,6 +89,19 @@ public class FilterMap
         return false;
     }
 
+    /**
+     * Returns the version of this map, which changes whenever a filter is
+     * added or removed. A map whose version is 0 has never had a filter added,
+     * so it resolves every name to the default filters. This lets callers
+     * cache the filters they look up.
+     * 
+     * @return the version
+     */
+    public long getVersion()
+    {
+        return version.get();
+    }
+
     public boolean hasFilter(String name)
     {
         return filterMap.containsKey(name)
@@ -0,0 +1,161 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Invocation statistics for one filter, across all templates.
+ * 
+ * Every invocation is counted, but only about one in
+ * {@link #SAMPLE_INTERVAL} is timed, since filters are often cheaper than
+ * reading the clock twice. The total time is estimated from the samples.
+ */
+public final class FilterMetrics implements FilterMetricsMBean
+{
+    public static final int SAMPLE_INTERVAL = 16;
+
+    private static final long NOT_TIMED = Long.MIN_VALUE;
+
+    private final String name;
+
+    private final LongAdder invocations = new LongAdder();
+
+    private final LongAdder samples = new LongAdder();
+
+    private final LongAdder sampledNanos = new LongAdder();
+
+    public FilterMetrics(String name)
+    {
+        this.name = name;
+    }
+
+    /**
+     * Counts an invocation of the filter.
+     * 
+     * @return the time the invocation started if it is to be timed, to pass
+     *         to {@link #end(long)}
+     */
+    public long begin()
+    {
+        if (!RenderMetrics.enabled)
+            return NOT_TIMED;
+        invocations.increment();
+        if (ThreadLocalRandom.current().nextInt(SAMPLE_INTERVAL) != 0)
+            return NOT_TIMED;
+        return System.nanoTime();
+    }
+
+    /**
+     * @param start
+     *            the value returned by {@link #begin()}
+     */
+    public void end(long start)
+    {
+        if (start == NOT_TIMED)
+            return;
+        sampledNanos.add(System.nanoTime() - start);
+        samples.increment();
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public long getInvocationCount()
+    {
+        return invocations.sum();
+    }
+
+    public long getMeanTimeNanos()
+    {
+        long n = samples.sum();
+        return n != 0 ? sampledNanos.sum() / n : 0;
+    }
+
+    public long getEstimatedTotalTimeNanos()
+    {
+        return getMeanTimeNanos() * invocations.sum();
+    }
+
+    public void reset()
+    {
+        invocations.reset();
+        samples.reset();
+        sampledNanos.reset();
+    }
+
+    /**
+     * @return the current values, which no longer change
+     */
+    public Snapshot snapshot()
+    {
+        return new Snapshot(name, getInvocationCount(), getMeanTimeNanos());
+    }
+
+    /**
+     * The values of a filter's metrics at one point in time.
+     */
+    public static final class Snapshot
+    {
+        private final String name;
+
+        private final long invocationCount;
+
+        private final long meanTimeNanos;
+
+        Snapshot(String name, long invocationCount, long meanTimeNanos)
+        {
+            this.name = name;
+            this.invocationCount = invocationCount;
+            this.meanTimeNanos = meanTimeNanos;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public long getInvocationCount()
+        {
+            return invocationCount;
+        }
+
+        public long getMeanTimeNanos()
+        {
+            return meanTimeNanos;
+        }
+
+        public long getEstimatedTotalTimeNanos()
+        {
+            return meanTimeNanos * invocationCount;
+        }
+
+        @Override
+        public String toString()
+        {
+            return name + ": invocations=" + invocationCount + ", mean="
+                    + meanTimeNanos + "ns";
+        }
+    }
+
+}
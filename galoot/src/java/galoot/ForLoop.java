@@ -0,0 +1,312 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot;
+
+import java.lang.reflect.Array;
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Iterates the object of a for tag, and is the "forloop" variable the loop
+ * body sees (e.g. {{ forloop.counter1 }}).
+ * 
+ * Arrays (including primitive arrays) and random access lists are iterated by
+ * index; other Iterables, Iterators and Streams through their iterator. One
+ * ForLoop serves all iterations of a loop, and computes its values on demand:
+ * "last" looks one element ahead in the iterator, rather than counting the
+ * items up front. Iterators and Streams are only iterated once, so for those
+ * the revcounters are unknown (null).
+ * 
+ * Other objects (including maps and strings) are not iterated.
+ */
+public class ForLoop extends AbstractMap<String, Object>
+{
+    private static final int UNKNOWN = -1;
+
+    private final ForLoop parent;
+
+    private final Object[] objects;
+
+    // ! a primitive array
+    private final Object array;
+
+    private final List<?> list;
+
+    private final Iterator<?> iterator;
+
+    // ! an Iterable that is not a Collection, counted only if needed
+    private final Iterable<?> iterable;
+
+    // ! the number of items, or UNKNOWN
+    private int size;
+
+    // ! the index to stop at, for indexed sources
+    private final int end;
+
+    private int index = -1;
+
+    private Object current;
+
+    /**
+     * @param source
+     *            the object to iterate
+     * @param parent
+     *            the loop this one is nested in, or null
+     */
+    public ForLoop(Object source, ForLoop parent)
+    {
+        this.parent = parent;
+        Object[] objects = null;
+        Object array = null;
+        List<?> list = null;
+        Iterator<?> iterator = null;
+        Iterable<?> iterable = null;
+        int size = 0;
+
+        if (source instanceof Object[])
+        {
+            objects = (Object[]) source;
+            size = objects.length;
+        }
+        else if (source != null && source.getClass().isArray())
+        {
+            array = source;
+            size = Array.getLength(array);
+        }
+        else if (source instanceof List<?> && source instanceof RandomAccess)
+        {
+            list = (List<?>) source;
+            size = list.size();
+        }
+        else if (source instanceof Collection<?>)
+        {
+            iterator = ((Collection<?>) source).iterator();
+            size = ((Collection<?>) source).size();
+        }
+        else if (source instanceof Iterable<?>)
+        {
+            iterable = (Iterable<?>) source;
+            iterator = iterable.iterator();
+            size = UNKNOWN;
+        }
+        else if (source instanceof Iterator<?>)
+        {
+            iterator = (Iterator<?>) source;
+            size = UNKNOWN;
+        }
+        else if (source instanceof Stream<?>)
+        {
+            iterator = ((Stream<?>) source).iterator();
+            size = UNKNOWN;
+        }
+
+        this.objects = objects;
+        this.array = array;
+        this.list = list;
+        this.iterator = iterator;
+        this.iterable = iterable;
+        this.size = size;
+        end = size;
+    }
+
+    /**
+     * Creates a loop over part of an indexed source, whose values (counters,
+     * first, last) are those of the whole loop.
+     */
+    private ForLoop(ForLoop loop, int start, int end)
+    {
+        parent = loop.parent;
+        objects = loop.objects;
+        array = loop.array;
+        list = loop.list;
+        iterator = null;
+        iterable = null;
+        size = loop.size;
+        index = start - 1;
+        this.end = end;
+    }
+
+    /**
+     * @return true iff the items are read by index, so the loop can be sliced
+     */
+    public boolean isIndexed()
+    {
+        return objects != null || array != null || list != null;
+    }
+
+    /**
+     * @return the number of items, or -1 if they are not known up front
+     */
+    public int count()
+    {
+        return size;
+    }
+
+    /**
+     * Returns a loop over the items from start up to (not including) end, as
+     * seen from the whole loop. Only indexed loops can be sliced.
+     * 
+     * @param start
+     * @param end
+     * @return
+     */
+    public ForLoop slice(int start, int end)
+    {
+        if (!isIndexed())
+            throw new IllegalStateException("Only indexed loops can be sliced");
+        if (start < 0 || end > size || start > end)
+            throw new IndexOutOfBoundsException(start + ".." + end);
+        return new ForLoop(this, start, end);
+    }
+
+    /**
+     * Advances to the next item.
+     * 
+     * @return false if there are no more items
+     */
+    public boolean next()
+    {
+        int nextIndex = index + 1;
+        if (objects != null)
+        {
+            if (nextIndex >= end)
+                return false;
+            current = objects[nextIndex];
+        }
+        else if (array != null)
+        {
+            if (nextIndex >= end)
+                return false;
+            current = Array.get(array, nextIndex);
+        }
+        else if (list != null)
+        {
+            if (nextIndex >= end)
+                return false;
+            current = list.get(nextIndex);
+        }
+        else if (iterator != null)
+        {
+            if (!iterator.hasNext())
+                return false;
+            current = iterator.next();
+        }
+        else
+            return false;
+        index = nextIndex;
+        return true;
+    }
+
+    /**
+     * @return the current item
+     */
+    public Object current()
+    {
+        return current;
+    }
+
+    public int counter0()
+    {
+        return index;
+    }
+
+    public int counter1()
+    {
+        return index + 1;
+    }
+
+    public boolean first()
+    {
+        return index == 0;
+    }
+
+    public boolean last()
+    {
+        if (size != UNKNOWN)
+            return index == size - 1;
+        return !iterator.hasNext();
+    }
+
+    /**
+     * @return the number of items left, including the current one, or null if
+     *         unknown
+     */
+    public Integer revcounter()
+    {
+        int n = getSize();
+        return n != UNKNOWN ? n - index : null;
+    }
+
+    /**
+     * @return the number of items left after the current one, or null if
+     *         unknown
+     */
+    public Integer revcounter0()
+    {
+        int n = getSize();
+        return n != UNKNOWN ? n - index - 1 : null;
+    }
+
+    /**
+     * @return the loop this one is nested in, or null
+     */
+    public ForLoop parent()
+    {
+        return parent;
+    }
+
+    private int getSize()
+    {
+        if (size == UNKNOWN && iterable != null)
+        {
+            int n = 0;
+            for (Iterator<?> it = iterable.iterator(); it.hasNext(); it.next())
+                ++n;
+            size = n;
+        }
+        return size;
+    }
+
+    /**
+     * The loop's current values, for code that treats "forloop" as a map.
+     */
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet()
+    {
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        values.put("counter0", counter0());
+        values.put("counter1", counter1());
+        values.put("first", first());
+        values.put("last", last());
+        values.put("revcounter", revcounter());
+        values.put("revcounter0", revcounter0());
+        if (parent != null)
+            values.put("parent", parent);
+        return values.entrySet();
+    }
+
+}
@@ -0,0 +1,248 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot;
+
+import galoot.types.LruMap;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.apache.commons.lang.math.NumberUtils;
+
+/**
+ * Cache of rendered template fragments, used by the cache tag, e.g.
+ * {% cache 300 user.id "sidebar" %} ... {% endcache %}
+ * 
+ * Fragments are keyed by the cache tag they come from and the values of its
+ * key expressions. Each fragment expires after the time to live given by its
+ * tag, and the cache is bounded, evicting the least recently used fragment
+ * when full.
+ * 
+ * Concurrent misses on the same key are collapsed: the first thread renders
+ * the fragment, and the others wait for its output rather than rendering it
+ * again. If the render fails, nothing is cached, and the waiting threads see
+ * the failure.
+ */
+public final class FragmentCache
+{
+    public static final int DEFAULT_MAX_SIZE = 1024;
+
+    private final LruMap<List<Object>, CacheEntry> entries;
+
+    private long hits;
+
+    private long misses;
+
+    public FragmentCache()
+    {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    public FragmentCache(int maxSize)
+    {
+        entries = new LruMap<List<Object>, CacheEntry>(maxSize);
+    }
+
+    /**
+     * Returns the fragment cached under the given key, rendering and caching
+     * it if it is missing or has expired.
+     * 
+     * @param key
+     *            the key; its elements must implement equals and hashCode
+     * @param timeToLive
+     *            how long a newly rendered fragment is kept, in milliseconds
+     * @param renderer
+     *            renders the fragment
+     * @return the fragment
+     */
+    public String get(List<Object> key, long timeToLive,
+            Supplier<String> renderer)
+    {
+        CacheEntry entry;
+        boolean rendering = false;
+        synchronized (entries)
+        {
+            long now = System.nanoTime();
+            entry = entries.get(key);
+            if (entry != null && entry.isExpired(now))
+                entry = null;
+            if (entry == null)
+            {
+                entry = new CacheEntry(now
+                        + TimeUnit.MILLISECONDS.toNanos(timeToLive));
+                entries.put(key, entry);
+                rendering = true;
+                ++misses;
+            }
+            else
+                ++hits;
+        }
+
+        if (rendering)
+            return render(key, entry, renderer);
+
+        // a fragment that includes itself would wait for itself forever
+        if (entry.renderer == Thread.currentThread())
+            return renderer.get();
+        try
+        {
+            return entry.fragment.join();
+        }
+        catch (CompletionException e)
+        {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+
+    private String render(List<Object> key, CacheEntry entry,
+            Supplier<String> renderer)
+    {
+        try
+        {
+            String fragment = renderer.get();
+            entry.fragment.complete(fragment);
+            return fragment;
+        }
+        catch (RuntimeException e)
+        {
+            remove(key, entry);
+            entry.fragment.completeExceptionally(e);
+            throw e;
+        }
+        catch (Error e)
+        {
+            remove(key, entry);
+            entry.fragment.completeExceptionally(e);
+            throw e;
+        }
+        finally
+        {
+            entry.renderer = null;
+        }
+    }
+
+    private void remove(List<Object> key, CacheEntry entry)
+    {
+        synchronized (entries)
+        {
+            if (entries.get(key) == entry)
+                entries.remove(key);
+        }
+    }
+
+    /**
+     * Converts the timeout of a cache tag, in seconds, to milliseconds.
+     * 
+     * @param seconds
+     *            a Number, or a String holding one
+     * @return the timeout, or 0 if it isn't a number
+     */
+    public static long toMillis(Object seconds)
+    {
+        double value = seconds instanceof Number ? ((Number) seconds)
+                .doubleValue() : NumberUtils.toDouble(
+                seconds != null ? seconds.toString().trim() : null, 0);
+        return (long) (value * 1000);
+    }
+
+    /**
+     * Removes all cached fragments.
+     */
+    public void clear()
+    {
+        synchronized (entries)
+        {
+            entries.clear();
+        }
+    }
+
+    public int size()
+    {
+        synchronized (entries)
+        {
+            return entries.size();
+        }
+    }
+
+    public int getMaxSize()
+    {
+        synchronized (entries)
+        {
+            return entries.getMaxSize();
+        }
+    }
+
+    /**
+     * Sets the maximum number of fragments to keep. If the cache currently
+     * holds more than this, the least recently used fragments are evicted.
+     * 
+     * @param maxSize
+     */
+    public void setMaxSize(int maxSize)
+    {
+        synchronized (entries)
+        {
+            entries.setMaxSize(maxSize);
+        }
+    }
+
+    public long getHits()
+    {
+        synchronized (entries)
+        {
+            return hits;
+        }
+    }
+
+    public long getMisses()
+    {
+        synchronized (entries)
+        {
+            return misses;
+        }
+    }
+
+    private static final class CacheEntry
+    {
+        final CompletableFuture<String> fragment = new CompletableFuture<String>();
+
+        final long expires;
+
+        // ! the thread rendering the fragment, until it is rendered
+        volatile Thread renderer = Thread.currentThread();
+
+        CacheEntry(long expires)
+        {
+            this.expires = expires;
+        }
+
+        boolean isExpired(long now)
+        {
+            // a fragment being rendered is waited for, however long it takes
+            return fragment.isDone() && now - expires >= 0;
+        }
+    }
+
+}
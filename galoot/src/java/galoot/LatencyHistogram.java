@@ -0,0 +1,154 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations, with buckets of exponentially increasing width:
+ * bucket i counts the durations from 2^i up to 2^(i+1) microseconds (bucket 0
+ * also counts anything shorter). Recording is lock-free, and cheap enough to
+ * do on every render.
+ * 
+ * Percentiles are reported as the upper bound of the bucket they fall in, so
+ * they are accurate to within a factor of two.
+ */
+public final class LatencyHistogram
+{
+    public static final int BUCKETS = 32;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder totalNanos = new LongAdder();
+
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public LatencyHistogram()
+    {
+        for (int i = 0; i < BUCKETS; ++i)
+            buckets[i] = new LongAdder();
+    }
+
+    /**
+     * Records a duration.
+     * 
+     * @param nanos
+     */
+    public void record(long nanos)
+    {
+        if (nanos < 0)
+            nanos = 0;
+        buckets[bucketOf(nanos)].increment();
+        count.increment();
+        totalNanos.add(nanos);
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos))
+            max = maxNanos.get();
+    }
+
+    private static int bucketOf(long nanos)
+    {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        if (micros == 0)
+            return 0;
+        return Math.min(63 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+    }
+
+    public long getCount()
+    {
+        return count.sum();
+    }
+
+    public long getTotalNanos()
+    {
+        return totalNanos.sum();
+    }
+
+    public long getMaxNanos()
+    {
+        return maxNanos.get();
+    }
+
+    public long getMeanNanos()
+    {
+        long n = count.sum();
+        return n != 0 ? totalNanos.sum() / n : 0;
+    }
+
+    /**
+     * @return the number of durations in each bucket
+     */
+    public long[] getBucketCounts()
+    {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; ++i)
+            counts[i] = buckets[i].sum();
+        return counts;
+    }
+
+    /**
+     * Returns (an upper bound of) the duration that the given fraction of the
+     * recorded durations did not exceed.
+     * 
+     * @param fraction
+     *            e.g. 0.99 for the 99th percentile
+     * @return the duration in nanoseconds, or 0 if nothing was recorded
+     */
+    public long getPercentileNanos(double fraction)
+    {
+        return getPercentileNanos(getBucketCounts(), fraction);
+    }
+
+    static long getPercentileNanos(long[] counts, double fraction)
+    {
+        long total = 0;
+        for (long n : counts)
+            total += n;
+        if (total == 0)
+            return 0;
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < counts.length; ++i)
+        {
+            seen += counts[i];
+            if (seen >= Math.max(rank, 1))
+                return TimeUnit.MICROSECONDS.toNanos(1L << (i + 1));
+        }
+        return TimeUnit.MICROSECONDS.toNanos(1L << counts.length);
+    }
+
+    /**
+     * Clears the histogram. Durations recorded while it is being cleared may
+     * be partly lost.
+     */
+    public void reset()
+    {
+        for (LongAdder bucket : buckets)
+            bucket.reset();
+        count.reset();
+        totalNanos.reset();
+        maxNanos.set(0);
+    }
+
+}
@@ -19,37 +19,116 @@
  */
 package galoot;
 
+import galoot.compile.RenderNode;
+import galoot.compile.TemplateCompiler;
 import galoot.node.PEntity;
 
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.LinkedList;
+import java.util.Collections;
 
 public class Macro
 {
     protected String name;
 
-    protected Collection<String> arguments;
+    protected String[] arguments;
+
+    // ! the slots of the arguments, so they are bound without hashing
+    protected int[] argumentSlots;
 
     protected Collection<PEntity> entities;
 
+    // ! the compiled body, built lazily for macros defined by the Interpreter
+    protected RenderNode body;
+
+    /**
+     * Creates a macro from the AST. The entities are not copied, and must not
+     * be modified.
+     * 
+     * @param name
+     * @param arguments
+     * @param entities
+     */
     public Macro(String name, Collection<String> arguments,
             Collection<PEntity> entities)
     {
         this.name = name;
-        this.arguments = new LinkedList<String>(arguments);
-        this.entities = new LinkedList<PEntity>(entities);
+        setArguments(arguments.toArray(new String[arguments.size()]));
+        this.entities = entities;
+    }
+
+    /**
+     * Creates a macro from a compiled template. Compiled macros have no
+     * entities, so they can only be called from compiled templates.
+     * 
+     * @param name
+     * @param arguments
+     * @param body
+     */
+    public Macro(String name, Collection<String> arguments, RenderNode body)
+    {
+        this(name, arguments.toArray(new String[arguments.size()]), body);
+    }
+
+    public Macro(String name, String[] arguments, RenderNode body)
+    {
+        this.name = name;
+        setArguments(arguments);
+        this.entities = Collections.emptyList();
+        this.body = body;
+    }
+
+    private void setArguments(String[] arguments)
+    {
+        this.arguments = arguments;
+        argumentSlots = new int[arguments.length];
+        for (int i = 0; i < arguments.length; ++i)
+            argumentSlots[i] = VariableSlots.getSlot(arguments[i]);
     }
 
     public Iterable<String> getArguments()
+    {
+        return Arrays.asList(arguments);
+    }
+
+    /**
+     * @return the argument names, which must not be modified
+     */
+    public String[] getArgumentNames()
     {
         return arguments;
     }
 
+    /**
+     * Binds the value of the argument at the given position in the current
+     * frame of the stack.
+     * 
+     * @param contextStack
+     * @param index
+     * @param value
+     */
+    public void bindArgument(ContextStack contextStack, int index, Object value)
+    {
+        contextStack.putVariable(argumentSlots[index], arguments[index], value);
+    }
+
     public Iterable<PEntity> getEntities()
     {
         return entities;
     }
 
+    /**
+     * Returns the compiled body of the macro.
+     * 
+     * @return
+     */
+    public synchronized RenderNode getBody()
+    {
+        if (body == null)
+            body = new TemplateCompiler().compileEntities(entities);
+        return body;
+    }
+
     public String getName()
     {
         return name;
@@ -57,7 +136,7 @@ public class Macro
 
     public int getNumArguments()
     {
-        return arguments.size();
+        return arguments.length;
     }
 
 }
@@ -22,6 +22,7 @@ package galoot;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -41,11 +42,16 @@ public final class PluginRegistry
 
     private Map<String, String> templateIncludePaths;
 
+    private final AtomicLong includePathsVersion = new AtomicLong();
+
+    private volatile FragmentCache fragmentCache;
+
     private PluginRegistry()
     {
         filterMap = new FilterMap();
         templateIncludePaths = Collections
                 .synchronizedMap(new LinkedHashMap<String, String>());
+        fragmentCache = new FragmentCache();
     }
 
     public static PluginRegistry getInstance()
@@ -86,9 +92,19 @@ public final class PluginRegistry
         return filterMap.removeFilter(name);
     }
 
+    /**
+     * @return the version of the registered filters, which changes whenever a
+     *         filter is registered or unregistered
+     */
+    public long getVersion()
+    {
+        return filterMap.getVersion();
+    }
+
     public void addTemplateIncludePath(String includePath)
     {
         templateIncludePaths.put(includePath, includePath);
+        includePathsVersion.incrementAndGet();
     }
 
     public Iterable<String> getTemplateIncludePaths()
@@ -99,6 +115,36 @@ public final class PluginRegistry
     public void removeTemplateIncludePath(String path)
     {
         templateIncludePaths.remove(path);
+        includePathsVersion.incrementAndGet();
+    }
+
+    /**
+     * @return a number that changes whenever an include path is added or
+     *         removed
+     */
+    long getTemplateIncludePathsVersion()
+    {
+        return includePathsVersion.get();
+    }
+
+    /**
+     * @return the cache used by the cache tag
+     */
+    public FragmentCache getFragmentCache()
+    {
+        return fragmentCache;
+    }
+
+    /**
+     * Replaces the cache used by the cache tag, e.g. to change its size.
+     * 
+     * @param fragmentCache
+     */
+    public void setFragmentCache(FragmentCache fragmentCache)
+    {
+        if (fragmentCache == null)
+            throw new IllegalArgumentException("fragmentCache is null");
+        this.fragmentCache = fragmentCache;
     }
 
 }
@@ -0,0 +1,160 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The outcome of compiling a set of templates into the {@link TemplateCache}
+ * (see {@link TemplateCache#precompile}): the compile time of each file, and
+ * the error of each one that could not be compiled.
+ */
+public final class PrecompileReport
+{
+    private final List<Entry> entries;
+
+    private final long elapsedNanos;
+
+    PrecompileReport(List<Entry> entries, long elapsedNanos)
+    {
+        this.entries = Collections.unmodifiableList(entries);
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * @return an entry per file, in the order the files were found
+     */
+    public List<Entry> getEntries()
+    {
+        return entries;
+    }
+
+    /**
+     * @return the entries of the files that could not be compiled
+     */
+    public List<Entry> getFailures()
+    {
+        List<Entry> failures = new ArrayList<Entry>();
+        for (Entry entry : entries)
+            if (entry.isFailed())
+                failures.add(entry);
+        return failures;
+    }
+
+    /**
+     * @return the number of files compiled (or found up to date in the cache)
+     */
+    public int getCompiledCount()
+    {
+        return entries.size() - getFailures().size();
+    }
+
+    /**
+     * @return the wall-clock time of the whole precompile
+     */
+    public long getElapsedMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+    }
+
+    /**
+     * @return the sum of the compile times of the files, which is greater
+     *         than the elapsed time when they are compiled in parallel
+     */
+    public long getCompileMillis()
+    {
+        long nanos = 0;
+        for (Entry entry : entries)
+            nanos += entry.compileNanos;
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Precompiled " + getCompiledCount() + " of " + entries.size()
+                + " templates in " + getElapsedMillis() + " ms ("
+                + getCompileMillis() + " ms of compiling)";
+    }
+
+    /**
+     * The compile of one template file.
+     */
+    public static final class Entry
+    {
+        private final String name;
+
+        private final File file;
+
+        private final long compileNanos;
+
+        private final Exception error;
+
+        Entry(String name, File file, long compileNanos, Exception error)
+        {
+            this.name = name;
+            this.file = file;
+            this.compileNanos = compileNanos;
+            this.error = error;
+        }
+
+        /**
+         * @return the name the template is included by, relative to its
+         *         include path
+         */
+        public String getName()
+        {
+            return name;
+        }
+
+        public File getFile()
+        {
+            return file;
+        }
+
+        public long getCompileMillis()
+        {
+            return TimeUnit.NANOSECONDS.toMillis(compileNanos);
+        }
+
+        public long getCompileNanos()
+        {
+            return compileNanos;
+        }
+
+        /**
+         * @return the reason the file could not be compiled, or null
+         */
+        public Exception getError()
+        {
+            return error;
+        }
+
+        public boolean isFailed()
+        {
+            return error != null;
+        }
+    }
+
+}
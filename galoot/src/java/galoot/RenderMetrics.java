@@ -0,0 +1,358 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Global singleton registry of render metrics: a {@link TemplateMetrics} for
+ * each named template (templates parsed from files or resources are named by
+ * their path or URL), and a {@link FilterMetrics} for each filter.
+ * 
+ * Metrics are collected with striped counters and sampled timing, and are on
+ * by default. They can be read with {@link #snapshot()}, or over JMX once
+ * {@link #registerMBeans()} has been called, under the "galoot" domain.
+ */
+public final class RenderMetrics implements RenderMetricsMBean
+{
+    private static final Log log = LogFactory.getLog(RenderMetrics.class);
+
+    public static final String DOMAIN = "galoot";
+
+    // ! read on every render and filter call, so kept out of the instance
+    static volatile boolean enabled = true;
+
+    private static RenderMetrics instance = new RenderMetrics();
+
+    private final ConcurrentMap<String, TemplateMetrics> templates = new ConcurrentHashMap<String, TemplateMetrics>();
+
+    private final ConcurrentMap<String, FilterMetrics> filters = new ConcurrentHashMap<String, FilterMetrics>();
+
+    // ! the server the MBeans are registered with, or null
+    private MBeanServer server;
+
+    private RenderMetrics()
+    {
+    }
+
+    public static RenderMetrics getInstance()
+    {
+        return instance;
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Turns the collection of metrics on or off. Values already collected are
+     * kept.
+     * 
+     * @param enabled
+     */
+    public void setEnabled(boolean enabled)
+    {
+        RenderMetrics.enabled = enabled;
+    }
+
+    /**
+     * Returns the metrics of the template with the given name, creating them
+     * if needed.
+     * 
+     * @param name
+     * @return
+     */
+    public TemplateMetrics getTemplateMetrics(String name)
+    {
+        TemplateMetrics metrics = templates.get(name);
+        if (metrics == null)
+        {
+            TemplateMetrics created = new TemplateMetrics(name);
+            metrics = templates.putIfAbsent(name, created);
+            if (metrics == null)
+            {
+                metrics = created;
+                register("Template", name, created);
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Returns the metrics of the filter with the given name, creating them if
+     * needed.
+     * 
+     * @param name
+     * @return
+     */
+    public FilterMetrics getFilterMetrics(String name)
+    {
+        FilterMetrics metrics = filters.get(name);
+        if (metrics == null)
+        {
+            FilterMetrics created = new FilterMetrics(name);
+            metrics = filters.putIfAbsent(name, created);
+            if (metrics == null)
+            {
+                metrics = created;
+                register("Filter", name, created);
+            }
+        }
+        return metrics;
+    }
+
+    public String[] getTemplateNames()
+    {
+        return templates.keySet().toArray(new String[0]);
+    }
+
+    public String[] getFilterNames()
+    {
+        return filters.keySet().toArray(new String[0]);
+    }
+
+    public long getTemplateCacheHits()
+    {
+        return TemplateCache.getInstance().getHits();
+    }
+
+    public long getTemplateCacheMisses()
+    {
+        return TemplateCache.getInstance().getMisses();
+    }
+
+    public int getTemplateCacheSize()
+    {
+        return TemplateCache.getInstance().size();
+    }
+
+    public long getTemplateResolverHits()
+    {
+        return TemplateCache.getInstance().getResolver().getHits();
+    }
+
+    public long getTemplateResolverMisses()
+    {
+        return TemplateCache.getInstance().getResolver().getMisses();
+    }
+
+    public int getTemplateResolverSize()
+    {
+        return TemplateCache.getInstance().getResolver().size();
+    }
+
+    /**
+     * Clears the values of all metrics.
+     */
+    public void reset()
+    {
+        for (TemplateMetrics metrics : templates.values())
+            metrics.reset();
+        for (FilterMetrics metrics : filters.values())
+            metrics.reset();
+    }
+
+    /**
+     * @return the current values of all metrics, which no longer change
+     */
+    public Snapshot snapshot()
+    {
+        Map<String, TemplateMetrics.Snapshot> templateSnapshots = new TreeMap<String, TemplateMetrics.Snapshot>();
+        for (TemplateMetrics metrics : templates.values())
+            templateSnapshots.put(metrics.getName(), metrics.snapshot());
+        Map<String, FilterMetrics.Snapshot> filterSnapshots = new TreeMap<String, FilterMetrics.Snapshot>();
+        for (FilterMetrics metrics : filters.values())
+            filterSnapshots.put(metrics.getName(), metrics.snapshot());
+        return new Snapshot(templateSnapshots, filterSnapshots,
+                getTemplateCacheHits(), getTemplateCacheMisses(),
+                getTemplateResolverHits(), getTemplateResolverMisses());
+    }
+
+    /**
+     * Registers this registry, and the metrics of each template and filter
+     * (including those created later), with the platform MBean server.
+     * 
+     * @throws JMException
+     */
+    public void registerMBeans() throws JMException
+    {
+        registerMBeans(ManagementFactory.getPlatformMBeanServer());
+    }
+
+    /**
+     * Registers this registry, and the metrics of each template and filter
+     * (including those created later), with the given MBean server.
+     * 
+     * @param server
+     * @throws JMException
+     */
+    public synchronized void registerMBeans(MBeanServer server)
+            throws JMException
+    {
+        if (this.server != null)
+            unregisterMBeans();
+        server.registerMBean(this, getObjectName("RenderMetrics", null));
+        this.server = server;
+        for (TemplateMetrics metrics : templates.values())
+            register("Template", metrics.getName(), metrics);
+        for (FilterMetrics metrics : filters.values())
+            register("Filter", metrics.getName(), metrics);
+    }
+
+    /**
+     * Removes the MBeans registered by {@link #registerMBeans(MBeanServer)}.
+     * 
+     * @throws JMException
+     */
+    public synchronized void unregisterMBeans() throws JMException
+    {
+        if (server == null)
+            return;
+        MBeanServer server = this.server;
+        this.server = null;
+        for (ObjectName name : server.queryNames(new ObjectName(DOMAIN + ":*"),
+                null))
+            server.unregisterMBean(name);
+    }
+
+    private synchronized void register(String type, String name, Object mbean)
+    {
+        if (server == null)
+            return;
+        try
+        {
+            ObjectName objectName = getObjectName(type, name);
+            if (!server.isRegistered(objectName))
+                server.registerMBean(mbean, objectName);
+        }
+        catch (JMException e)
+        {
+            log.warn("Could not register MBean for " + type + ": " + name, e);
+        }
+    }
+
+    /**
+     * Returns the name of the MBean of the given type, and the given template
+     * or filter name (if any).
+     * 
+     * @param type
+     *            "RenderMetrics", "Template" or "Filter"
+     * @param name
+     * @return
+     * @throws JMException
+     */
+    public static ObjectName getObjectName(String type, String name)
+            throws JMException
+    {
+        String objectName = DOMAIN + ":type=" + type;
+        if (name != null)
+            objectName += ",name=" + ObjectName.quote(name);
+        return new ObjectName(objectName);
+    }
+
+    /**
+     * The values of all metrics at one point in time.
+     */
+    public static final class Snapshot
+    {
+        private final Map<String, TemplateMetrics.Snapshot> templates;
+
+        private final Map<String, FilterMetrics.Snapshot> filters;
+
+        private final long templateCacheHits;
+
+        private final long templateCacheMisses;
+
+        private final long templateResolverHits;
+
+        private final long templateResolverMisses;
+
+        Snapshot(Map<String, TemplateMetrics.Snapshot> templates,
+                Map<String, FilterMetrics.Snapshot> filters,
+                long templateCacheHits, long templateCacheMisses,
+                long templateResolverHits, long templateResolverMisses)
+        {
+            this.templates = Collections.unmodifiableMap(templates);
+            this.filters = Collections.unmodifiableMap(filters);
+            this.templateCacheHits = templateCacheHits;
+            this.templateCacheMisses = templateCacheMisses;
+            this.templateResolverHits = templateResolverHits;
+            this.templateResolverMisses = templateResolverMisses;
+        }
+
+        /**
+         * @return the template metrics, by template name
+         */
+        public Map<String, TemplateMetrics.Snapshot> getTemplates()
+        {
+            return templates;
+        }
+
+        /**
+         * @return the filter metrics, by filter name
+         */
+        public Map<String, FilterMetrics.Snapshot> getFilters()
+        {
+            return filters;
+        }
+
+        /**
+         * @return the number of includes and extends served from the
+         *         {@link TemplateCache}
+         */
+        public long getTemplateCacheHits()
+        {
+            return templateCacheHits;
+        }
+
+        public long getTemplateCacheMisses()
+        {
+            return templateCacheMisses;
+        }
+
+        /**
+         * @return the number of include and extends names whose location was
+         *         answered by the {@link TemplateResolver}'s cache
+         */
+        public long getTemplateResolverHits()
+        {
+            return templateResolverHits;
+        }
+
+        public long getTemplateResolverMisses()
+        {
+            return templateResolverMisses;
+        }
+    }
+
+}
@@ -19,6 +19,11 @@
  */
 package galoot;
 
+import galoot.compile.ByteOutput;
+import galoot.compile.CompiledTemplate;
+import galoot.compile.OutputMemo;
+import galoot.compile.ParallelRendering;
+import galoot.compile.TemplateCompiler;
 import galoot.interpret.Interpreter;
 import galoot.lexer.Lexer;
 import galoot.lexer.LexerException;
@@ -26,48 +31,145 @@ import galoot.node.Start;
 import galoot.parser.Parser;
 import galoot.parser.ParserException;
 import galoot.types.Document;
+import galoot.types.SegmentedBuffer;
 
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.PushbackReader;
+import java.io.OutputStream;
 import java.io.Reader;
-import java.io.StringReader;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.Executor;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.exception.ExceptionUtils;
 
 public class Template
 {
+    // ! files at least this large are memory-mapped
+    private static final long MAP_THRESHOLD = 256 * 1024;
 
     private Start templateAST;
 
+    private CompiledTemplate compiledTemplate;
+
+    // ! the name the template's metrics are registered under, or null
+    private String name;
+
     public Template(String text) throws IOException
     {
-        this(new StringReader(text));
+        initAST(CharBuffer.wrap(text));
     }
 
+    /**
+     * Parses the file, in the platform's default charset. Large files are
+     * memory-mapped rather than read. The template is named by the file's
+     * canonical path.
+     * 
+     * @param file
+     * @throws IOException
+     */
     public Template(File file) throws IOException
     {
+        initAST(readFile(file));
+        setName(file.getCanonicalPath());
+    }
 
-        final FileReader reader = new FileReader(file);
+    public Template(Reader reader) throws IOException
+    {
         initAST(reader);
-        reader.close();
     }
 
-    public Template(Reader reader) throws IOException
+    private Template(Start templateAST, CompiledTemplate compiledTemplate,
+            String name)
+    {
+        this.templateAST = templateAST;
+        this.compiledTemplate = compiledTemplate;
+        this.name = name;
+    }
+
+    /**
+     * Creates a template from one compiled ahead of time, which has no syntax
+     * tree to interpret.
+     * 
+     * @param compiledTemplate
+     * @param name
+     *            the name to record the template's metrics under, or null
+     */
+    Template(CompiledTemplate compiledTemplate, String name)
+    {
+        this.compiledTemplate = compiledTemplate;
+        if (name != null)
+            setName(name);
+    }
+
+    /**
+     * @param reader
+     * @param name
+     *            the name to record the template's metrics under in the
+     *            {@link RenderMetrics}
+     * @throws IOException
+     */
+    public Template(Reader reader, String name) throws IOException
     {
         initAST(reader);
+        setName(name);
+    }
+
+    private void setName(String name)
+    {
+        this.name = name;
+        compiledTemplate.setMetrics(RenderMetrics.getInstance()
+                .getTemplateMetrics(name));
+    }
+
+    /**
+     * Decodes the file, mapping it if it is large.
+     */
+    private static CharBuffer readFile(File file) throws IOException
+    {
+        FileInputStream stream = new FileInputStream(file);
+        try
+        {
+            FileChannel channel = stream.getChannel();
+            long size = channel.size();
+            ByteBuffer bytes;
+            if (size >= MAP_THRESHOLD)
+                bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            else
+            {
+                bytes = ByteBuffer.allocate((int) size);
+                while (bytes.hasRemaining() && channel.read(bytes) >= 0)
+                    ;
+                bytes.flip();
+            }
+            return Charset.defaultCharset().decode(bytes);
+        }
+        finally
+        {
+            stream.close();
+        }
     }
 
     protected void initAST(Reader reader) throws IOException
+    {
+        // the whole template ends up in the AST anyway
+        initAST(CharBuffer.wrap(IOUtils.toCharArray(reader)));
+    }
+
+    protected void initAST(CharBuffer text) throws IOException
     {
         try
         {
-            // TODO decide if there is a better buffer size
-            Lexer lexer = new Lexer(new PushbackReader(reader, 1024));
+            Lexer lexer = new TemplateLexer(text);
             Parser parser = new Parser(lexer);
             templateAST = parser.parse();
+            compiledTemplate = new TemplateCompiler().compile(templateAST);
         }
         catch (ParserException e)
         {
@@ -81,15 +183,90 @@ public class Template
         }
     }
 
+    /**
+     * Streams the rendered template to the writer, flushing it periodically.
+     * 
+     * Future and Supplier values in the context are resolved when first used.
+     * The Suppliers the template refers to are only started up front, to be
+     * computed while the template renders up to where they are used, if a
+     * prefetch executor (see {@link #setPrefetchExecutor(Executor)}) or
+     * parallel rendering is set; otherwise each one runs on the rendering
+     * thread when it is first used. A Supplier or Future that fails fails the
+     * render (see {@link ContextStack#getVariable(int, String)}).
+     * 
+     * @param contextStack
+     * @param writer
+     * @throws IOException
+     */
     public void render(ContextStack contextStack, Writer writer)
             throws IOException
     {
-        writer.write(render(contextStack));
+        compiledTemplate.render(contextStack, writer);
+    }
+
+    /**
+     * Streams the rendered template to the given target. Suppliers in the
+     * context are resolved as for {@link #render(ContextStack, Writer)}.
+     * 
+     * @param contextStack
+     * @param out
+     * @throws IOException
+     */
+    public void render(ContextStack contextStack, Appendable out)
+            throws IOException
+    {
+        compiledTemplate.render(contextStack, out);
+    }
+
+    /**
+     * Streams the rendered template to the stream, encoded in the given
+     * charset. Static text is encoded once and cached; only the dynamic parts
+     * are encoded on each render. The stream is flushed, but not closed.
+     * 
+     * @param contextStack
+     * @param out
+     * @param charset
+     * @throws IOException
+     */
+    public void render(ContextStack contextStack, OutputStream out,
+            Charset charset) throws IOException
+    {
+        ByteOutput output = new ByteOutput(out, charset);
+        compiledTemplate.render(contextStack, output);
+        output.finish();
+    }
+
+    /**
+     * Streams the rendered template to the channel, encoded in the given
+     * charset. Runs of static text are written with gathering writes when the
+     * channel supports them.
+     * 
+     * @param contextStack
+     * @param channel
+     * @param charset
+     * @throws IOException
+     */
+    public void render(ContextStack contextStack, WritableByteChannel channel,
+            Charset charset) throws IOException
+    {
+        ByteOutput output = new ByteOutput(channel, charset);
+        compiledTemplate.render(contextStack, output);
+        output.finish();
     }
 
     public String render(ContextStack contextStack) throws IOException
     {
-        return renderDocument(contextStack).evaluateAsString();
+        // render into pooled chunks, so the only copy is the final String
+        SegmentedBuffer out = new SegmentedBuffer();
+        try
+        {
+            compiledTemplate.render(contextStack, out);
+            return out.toString();
+        }
+        finally
+        {
+            out.release();
+        }
     }
 
     public void render(Context context, Writer writer) throws IOException
@@ -97,9 +274,86 @@ public class Template
         render(new ContextStack(context), writer);
     }
 
+    public void render(Context context, Appendable out) throws IOException
+    {
+        render(new ContextStack(context), out);
+    }
+
+    public void render(Context context, OutputStream out, Charset charset)
+            throws IOException
+    {
+        render(new ContextStack(context), out, charset);
+    }
+
     public String render(Context context) throws IOException
     {
-        return renderDocument(context).evaluateAsString();
+        return render(new ContextStack(context));
+    }
+
+    /**
+     * Turns on parallel rendering of independent includes and large loops,
+     * or turns it off if null. Off by default.
+     * 
+     * @param parallelRendering
+     * @see ParallelRendering
+     */
+    public void setParallelRendering(ParallelRendering parallelRendering)
+    {
+        compiledTemplate.setParallelRendering(parallelRendering);
+    }
+
+    public ParallelRendering getParallelRendering()
+    {
+        return compiledTemplate.getParallelRendering();
+    }
+
+    /**
+     * Sets the executor that the Supplier values the template refers to are
+     * started on before each render, so they overlap with rendering the text
+     * before them, or turns it off if null. Off by default, in which case the
+     * executor of the parallel rendering is used, if set.
+     * 
+     * @param prefetchExecutor
+     */
+    public void setPrefetchExecutor(Executor prefetchExecutor)
+    {
+        compiledTemplate.setPrefetchExecutor(prefetchExecutor);
+    }
+
+    public Executor getPrefetchExecutor()
+    {
+        return compiledTemplate.getPrefetchExecutor();
+    }
+
+    /**
+     * Turns on memoizing the output of renders in the given memo, or turns
+     * it off if null. A render whose context has the same values for every
+     * variable and member path the memoized render read writes the memoized
+     * output, without evaluating anything. Off by default.
+     * 
+     * @param outputMemo
+     * @throws IllegalStateException
+     *             if the template's output isn't only a function of the
+     *             variables it reads (see {@link #isMemoizable()})
+     * @see OutputMemo
+     */
+    public void setOutputMemo(OutputMemo outputMemo)
+    {
+        compiledTemplate.setOutputMemo(outputMemo);
+    }
+
+    public OutputMemo getOutputMemo()
+    {
+        return compiledTemplate.getOutputMemo();
+    }
+
+    /**
+     * @return true iff the template extends nothing, and has no includes,
+     *         set, load, now or cache tags, or filters that aren't pure
+     */
+    public boolean isMemoizable()
+    {
+        return compiledTemplate.isMemoizable();
     }
 
     public Document renderDocument(Context context)
@@ -109,9 +363,83 @@ public class Template
 
     public Document renderDocument(ContextStack contextStack)
     {
+        return compiledTemplate.render(contextStack);
+    }
+
+    /**
+     * Renders the template by walking the AST with an {@link Interpreter},
+     * rather than using the compiled form. This produces the same output as
+     * {@link #renderDocument(ContextStack)}, and is kept around for
+     * comparison. Templates loaded from a {@link TemplateArchive} have no
+     * AST, and can't be interpreted.
+     * 
+     * @param contextStack
+     * @return
+     */
+    public Document interpretDocument(ContextStack contextStack)
+    {
+        if (templateAST == null)
+            throw new IllegalStateException(
+                    "Precompiled templates can't be interpreted");
         Interpreter interp = new Interpreter(contextStack);
         templateAST.apply(interp);
         return interp.getDocument();
     }
 
+    /**
+     * @return false if the template has no AST (see
+     *         {@link #interpretDocument(ContextStack)})
+     */
+    public boolean isInterpretable()
+    {
+        return templateAST != null;
+    }
+
+    /**
+     * Returns a copy of this template specialized for the given static
+     * context: every expression, if tag and filter chain that only depends on
+     * variables of the static context is evaluated now, and folded into the
+     * text, and the branches not taken are removed. Renders of the copy only
+     * do the work that depends on the rest of the context.
+     * 
+     * The static variables must keep their values, and must not be rebound
+     * by the context the copy is rendered with, or by the templates it
+     * includes. Interpreting the copy ({@link #interpretDocument}) ignores
+     * the specialization.
+     * 
+     * The copy keeps the name, metrics, parallel rendering and prefetch
+     * executor of this template. If this template's output is memoized, the
+     * copy's is too, in a memo of its own of the same size.
+     * 
+     * @param staticContext
+     * @return
+     */
+    public Template specialize(Context staticContext)
+    {
+        return new Template(templateAST, compiledTemplate
+                .specialize(staticContext), name);
+    }
+
+    public CompiledTemplate getCompiledTemplate()
+    {
+        return compiledTemplate;
+    }
+
+    /**
+     * @return the template's name, or null if it was not given one
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @return the metrics of the template's renders; shared with other
+     *         templates of the same name
+     */
+    public TemplateMetrics getMetrics()
+    {
+        return compiledTemplate.getMetrics();
+    }
+
 }
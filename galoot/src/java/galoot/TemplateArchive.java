@@ -0,0 +1,373 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot;
+
+import galoot.compile.CompiledTemplate;
+import galoot.compile.TreeSerializer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * An archive of templates compiled ahead of time, so they can be loaded
+ * without lexing or parsing (see {@link TreeSerializer}).
+ * 
+ * Templates are archived under their path relative to the directory they
+ * were found in, e.g. "mail/header.html", with the modification time and
+ * length of the file they were compiled from. An entry whose file has
+ * changed since is stale: {@link #update} compiles it again, and
+ * {@link TemplateCache#preload} skips it, leaving it to be parsed when it is
+ * first used.
+ * 
+ * The archive is versioned; an archive written in another format is treated
+ * as empty, so everything in it is compiled again.
+ * 
+ * Archives are built by running this class, e.g.
+ * 
+ * <pre>
+ * java galoot.TemplateArchive templates.gar src/templates
+ * </pre>
+ * 
+ * or with the precompile profile of the Maven build.
+ */
+public final class TemplateArchive
+{
+    private static final Log log = LogFactory.getLog(TemplateArchive.class);
+
+    // ! "GALT"
+    private static final int MAGIC = 0x47414c54;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+    /**
+     * Creates an empty archive.
+     */
+    public TemplateArchive()
+    {
+    }
+
+    /**
+     * Reads an archive. An archive in another format is read as empty.
+     * 
+     * @param file
+     * @return
+     * @throws IOException
+     *             if the file can't be read, or isn't an archive
+     */
+    public static TemplateArchive load(File file) throws IOException
+    {
+        TemplateArchive archive = new TemplateArchive();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(file))));
+        try
+        {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not a template archive: " + file);
+            int version = in.readInt();
+            if (version != TreeSerializer.FORMAT_VERSION)
+            {
+                log.info("Ignoring template archive of format " + version
+                        + ": " + file);
+                return archive;
+            }
+            for (int i = 0, n = in.readInt(); i < n; ++i)
+            {
+                String name = in.readUTF();
+                long lastModified = in.readLong();
+                long length = in.readLong();
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                archive.entries.put(name, new Entry(lastModified, length,
+                        data));
+            }
+        }
+        finally
+        {
+            IOUtils.closeQuietly(in);
+        }
+        return archive;
+    }
+
+    /**
+     * Writes the archive.
+     * 
+     * @param file
+     * @throws IOException
+     */
+    public void save(File file) throws IOException
+    {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(new FileOutputStream(file))));
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(TreeSerializer.FORMAT_VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet())
+            {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.lastModified);
+                out.writeLong(entry.length);
+                out.writeInt(entry.data.length);
+                out.write(entry.data);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Brings the archive up to date with the templates in the given
+     * directories and their subdirectories: templates that are new or have
+     * changed are compiled, and entries whose file is gone are removed. When
+     * a name is found in several directories, the first one wins, as it does
+     * for the template include paths.
+     * 
+     * Files that can't be compiled are left out, and reported in the
+     * returned list.
+     * 
+     * @param directories
+     * @return the files that could not be compiled
+     * @throws IOException
+     */
+    public List<String> update(List<File> directories) throws IOException
+    {
+        Set<String> found = new HashSet<String>();
+        List<String> failures = new ArrayList<String>();
+        int compiled = 0;
+        for (File directory : directories)
+        {
+            Map<String, File> files = new LinkedHashMap<String, File>();
+            listFiles(directory, "", files);
+            for (Map.Entry<String, File> e : files.entrySet())
+            {
+                String name = e.getKey();
+                File file = e.getValue();
+                if (!found.add(name))
+                    continue;
+                if (!isStale(name, file))
+                    continue;
+                try
+                {
+                    put(name, file);
+                    ++compiled;
+                }
+                catch (IOException ex)
+                {
+                    entries.remove(name);
+                    failures.add(file.getPath());
+                    log.warn("Could not compile: " + file, ex);
+                }
+            }
+        }
+        entries.keySet().retainAll(found);
+        log.info("Compiled " + compiled + " templates, "
+                + (entries.size() - compiled) + " up to date");
+        return failures;
+    }
+
+    /**
+     * Adds the files under the directory to the map, keyed by their path
+     * relative to it, with '/' separators. Hidden files are skipped.
+     */
+    static void listFiles(File directory, String prefix,
+            Map<String, File> files)
+    {
+        File[] children = directory.listFiles();
+        if (children == null)
+            return;
+        Arrays.sort(children);
+        for (File child : children)
+        {
+            if (child.isHidden())
+                continue;
+            String name = prefix + child.getName();
+            if (child.isDirectory())
+                listFiles(child, name + "/", files);
+            else
+                files.put(name, child);
+        }
+    }
+
+    /**
+     * Compiles the file, and archives it under the given name.
+     * 
+     * @param name
+     * @param file
+     * @throws IOException
+     *             if the file can't be read or parsed, or its compiled form
+     *             can't be written
+     */
+    public void put(String name, File file) throws IOException
+    {
+        long lastModified = file.lastModified();
+        long length = file.length();
+        CompiledTemplate compiled = new Template(file).getCompiledTemplate();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        TreeSerializer.write(compiled, out);
+        out.flush();
+        entries.put(name, new Entry(lastModified, length, bytes
+                .toByteArray()));
+    }
+
+    /**
+     * @param name
+     * @param file
+     * @return true iff the template isn't archived, or the file has changed
+     *         since it was
+     */
+    public boolean isStale(String name, File file)
+    {
+        Entry entry = entries.get(name);
+        return entry == null || entry.lastModified != file.lastModified()
+                || entry.length != file.length();
+    }
+
+    /**
+     * @param name
+     * @return the modification time of the file the template was compiled
+     *         from, or 0 if it isn't archived
+     */
+    public long getLastModified(String name)
+    {
+        Entry entry = entries.get(name);
+        return entry != null ? entry.lastModified : 0L;
+    }
+
+    /**
+     * Reads an archived template. Each call returns a new template.
+     * 
+     * @param name
+     * @param templateName
+     *            the name to record the template's metrics under, or null
+     * @return the template, or null if it isn't archived
+     * @throws IOException
+     *             if the entry is corrupt
+     */
+    public Template getTemplate(String name, String templateName)
+            throws IOException
+    {
+        Entry entry = entries.get(name);
+        if (entry == null)
+            return null;
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                entry.data));
+        return new Template(TreeSerializer.read(in), templateName);
+    }
+
+    /**
+     * @return the names of the archived templates
+     */
+    public Set<String> getNames()
+    {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    public int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Builds or updates an archive.
+     * 
+     * Usage: TemplateArchive &lt;archive&gt; &lt;directory&gt;...
+     * 
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 2)
+        {
+            System.err.println("Usage: TemplateArchive <archive> <directory>...");
+            System.exit(2);
+        }
+        File file = new File(args[0]);
+        TemplateArchive archive = new TemplateArchive();
+        if (file.exists())
+        {
+            try
+            {
+                archive = load(file);
+            }
+            catch (IOException e)
+            {
+                log.warn("Rebuilding unreadable archive: " + file, e);
+            }
+        }
+        List<File> directories = new ArrayList<File>();
+        for (int i = 1; i < args.length; ++i)
+            directories.add(new File(args[i]));
+
+        List<String> failures = archive.update(directories);
+        if (file.getParentFile() != null)
+            file.getParentFile().mkdirs();
+        archive.save(file);
+        System.out.println("Archived " + archive.size() + " templates in "
+                + file);
+        for (String failure : failures)
+            System.out.println("Could not compile: " + failure);
+    }
+
+    private static final class Entry
+    {
+        final long lastModified;
+
+        final long length;
+
+        // ! the template, as written by the TreeSerializer
+        final byte[] data;
+
+        Entry(long lastModified, long length, byte[] data)
+        {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.data = data;
+        }
+    }
+
+}
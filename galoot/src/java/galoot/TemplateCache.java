@@ -0,0 +1,499 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot;
+
+import galoot.types.LruMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Global singleton cache of parsed templates, used when loading templates via
+ * the include and extends tags.
+ *
+ * Templates are keyed by their resolved location (the canonical path for
+ * files, the URL for class path resources), and names are resolved by a
+ * {@link TemplateResolver}, which caches the locations. File-based entries
+ * are invalidated when the modification time of the file changes, as reported
+ * by the resolver's watch service (see {@link #setCheckModified(boolean)}).
+ * The cache is bounded, and evicts the least recently used template when
+ * full.
+ *
+ * Parsed templates hold no render state, so a single cached instance can be
+ * rendered by many threads at once.
+ */
+public final class TemplateCache
+{
+    private static final Log log = LogFactory.getLog(TemplateCache.class);
+
+    public static final int DEFAULT_MAX_SIZE = 256;
+
+    private static TemplateCache instance = new TemplateCache();
+
+    private final LruMap<String, CacheEntry> entries;
+
+    private final TemplateResolver resolver = new TemplateResolver();
+
+    private volatile boolean checkModified;
+
+    private long hits;
+
+    private long misses;
+
+    private TemplateCache()
+    {
+        entries = new LruMap<String, CacheEntry>(DEFAULT_MAX_SIZE);
+        checkModified = !resolver.startWatching();
+    }
+
+    public static TemplateCache getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * Searches for the given filename within the template include paths
+     * specified in the PluginRegistry, then as a local or absolute filename,
+     * then as a class path resource (relative to the galoot.interpret
+     * package), and finally as a URL.
+     *
+     * @param filename
+     * @return the template, or null if it could not be located
+     * @throws IOException
+     *             if the template was located but could not be parsed
+     */
+    public Template loadTemplate(String filename) throws IOException
+    {
+        TemplateResolver.Location location = resolver.resolve(filename);
+        if (location != null && location.file != null)
+        {
+            long lastModified = location.lastModified;
+            if (checkModified)
+            {
+                lastModified = location.file.lastModified();
+                // deleted since it was resolved
+                if (lastModified == 0L)
+                {
+                    resolver.forget(filename);
+                    return loadTemplate(filename);
+                }
+            }
+            return getTemplate(location.key, location.file, lastModified);
+        }
+
+        if (location == null)
+            return null;
+
+        // resources can't change, so cache them
+        if (!location.remote)
+            return getTemplate(location.resource);
+
+        // a straight URL, which we don't cache
+        InputStream stream = location.resource.openStream();
+        try
+        {
+            return new Template(new InputStreamReader(stream));
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+
+    /**
+     * Caches the templates of a precompiled archive, for the files they would
+     * be loaded from by {@link #loadTemplate(String)}, so they are never
+     * parsed. Templates whose file has changed since they were archived are
+     * skipped, and parsed when they are first loaded.
+     * 
+     * @param archive
+     * @return the number of templates cached
+     * @throws IOException
+     *             if the archive is corrupt
+     */
+    public int preload(TemplateArchive archive) throws IOException
+    {
+        int loaded = 0;
+        for (String name : archive.getNames())
+        {
+            TemplateResolver.Location location = resolver.resolve(name);
+            if (location == null || location.file == null
+                    || archive.isStale(name, location.file))
+                continue;
+            String key = location.key;
+            store(key, new CacheEntry(archive.getTemplate(name, key), archive
+                    .getLastModified(name)));
+            ++loaded;
+        }
+        log.info("Preloaded " + loaded + " of " + archive.size()
+                + " archived templates");
+        return loaded;
+    }
+
+    /**
+     * Reads a precompiled archive, and caches its templates (see
+     * {@link #preload(TemplateArchive)}).
+     * 
+     * @param archive
+     * @return the number of templates cached
+     * @throws IOException
+     */
+    public int preload(File archive) throws IOException
+    {
+        return preload(TemplateArchive.load(archive));
+    }
+
+    /**
+     * Compiles every template under the template include paths of the
+     * {@link PluginRegistry} (see {@link #precompile(List, ForkJoinPool)}).
+     * 
+     * @param pool
+     * @return the compile time of each file, and the errors
+     * @throws InterruptedException
+     *             if interrupted while waiting for the templates
+     */
+    public PrecompileReport precompile(ForkJoinPool pool)
+            throws InterruptedException
+    {
+        List<File> directories = new ArrayList<File>();
+        for (String path : PluginRegistry.getInstance()
+                .getTemplateIncludePaths())
+            directories.add(new File(path));
+        return precompile(directories, pool);
+    }
+
+    /**
+     * Compiles every template in the given directories and their
+     * subdirectories on the pool, and caches them, so no include pays for the
+     * first parse. Returns once all of them are compiled; if the calling
+     * thread is interrupted first, the templates not yet started are
+     * cancelled. When a name is found
+     * in several directories only the first is compiled, since it is the one
+     * an include of the name would load. Templates that are cached and up to
+     * date are not compiled again.
+     * 
+     * The cache should be large enough to hold all of the templates (see
+     * {@link #setMaxSize(int)}); otherwise some are evicted again.
+     * 
+     * @param directories
+     * @param pool
+     * @return the compile time of each file, and the errors
+     * @throws InterruptedException
+     *             if interrupted while waiting for the templates
+     */
+    public PrecompileReport precompile(List<File> directories,
+            ForkJoinPool pool) throws InterruptedException
+    {
+        long start = System.nanoTime();
+        Map<String, File> files = new LinkedHashMap<String, File>();
+        for (File directory : directories)
+        {
+            Map<String, File> found = new LinkedHashMap<String, File>();
+            TemplateArchive.listFiles(directory, "", found);
+            for (Map.Entry<String, File> e : found.entrySet())
+                if (!files.containsKey(e.getKey()))
+                    files.put(e.getKey(), e.getValue());
+        }
+        int maxSize = getMaxSize();
+        if (files.size() > maxSize)
+            log.warn("Precompiling " + files.size()
+                    + " templates into a cache of " + maxSize);
+
+        List<Future<PrecompileReport.Entry>> futures = new ArrayList<Future<PrecompileReport.Entry>>();
+        for (final Map.Entry<String, File> e : files.entrySet())
+        {
+            futures.add(pool.submit(new Callable<PrecompileReport.Entry>()
+            {
+                public PrecompileReport.Entry call()
+                {
+                    return compile(e.getKey(), e.getValue());
+                }
+            }));
+        }
+
+        List<PrecompileReport.Entry> entries = new ArrayList<PrecompileReport.Entry>();
+        try
+        {
+            for (Future<PrecompileReport.Entry> future : futures)
+            {
+                // compile() reports exceptions rather than throwing them
+                try
+                {
+                    entries.add(future.get());
+                }
+                catch (ExecutionException e)
+                {
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            for (Future<PrecompileReport.Entry> future : futures)
+                future.cancel(false);
+            log.warn("Precompiling interrupted after " + entries.size()
+                    + " of " + futures.size() + " templates");
+            throw e;
+        }
+        PrecompileReport report = new PrecompileReport(entries,
+                System.nanoTime() - start);
+        log.info(report);
+        return report;
+    }
+
+    private PrecompileReport.Entry compile(String name, File file)
+    {
+        long start = System.nanoTime();
+        Exception error = null;
+        try
+        {
+            getTemplate(file);
+        }
+        catch (IOException e)
+        {
+            error = e;
+        }
+        catch (RuntimeException e)
+        {
+            error = e;
+        }
+        long nanos = System.nanoTime() - start;
+        if (error != null)
+            log.warn("Could not compile: " + file, error);
+        else if (log.isDebugEnabled())
+            log.debug("Compiled " + file + " in "
+                    + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms");
+        return new PrecompileReport.Entry(name, file, nanos, error);
+    }
+
+    /**
+     * Returns the parsed template for the given file, parsing it only if it is
+     * not in the cache or has been modified since it was cached.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public Template getTemplate(File file) throws IOException
+    {
+        return getTemplate(file.getCanonicalPath(), file, file.lastModified());
+    }
+
+    private Template getTemplate(String key, File file, long lastModified)
+            throws IOException
+    {
+        Template template = lookup(key, lastModified);
+        if (template != null)
+            return template;
+
+        // parse outside of the lock; a concurrent miss may parse twice, but
+        // lookups of other templates are never blocked by a parse
+        template = new Template(file);
+        store(key, new CacheEntry(template, lastModified));
+        return template;
+    }
+
+    /**
+     * Returns the parsed template for the given resource URL. Resources are
+     * assumed to never change.
+     *
+     * @param resource
+     * @return
+     * @throws IOException
+     */
+    public Template getTemplate(URL resource) throws IOException
+    {
+        String key = resource.toExternalForm();
+
+        Template template = lookup(key, 0L);
+        if (template != null)
+            return template;
+
+        InputStream stream = resource.openStream();
+        try
+        {
+            template = new Template(new InputStreamReader(stream), key);
+        }
+        finally
+        {
+            stream.close();
+        }
+        store(key, new CacheEntry(template, 0L));
+        return template;
+    }
+
+    /**
+     * Returns the cached template, or null if it is missing or stale.
+     */
+    private Template lookup(String key, long lastModified)
+    {
+        synchronized (entries)
+        {
+            CacheEntry entry = entries.get(key);
+            if (entry != null && entry.lastModified == lastModified)
+            {
+                ++hits;
+                return entry.template;
+            }
+            if (entry != null)
+                log.debug("Template modified, reloading: " + key);
+            ++misses;
+            return null;
+        }
+    }
+
+    private void store(String key, CacheEntry entry)
+    {
+        synchronized (entries)
+        {
+            entries.put(key, entry);
+        }
+    }
+
+    /**
+     * Removes the template cached under the given key.
+     *
+     * @param key
+     *            the canonical path or URL of the template
+     * @return true iff a template was removed
+     */
+    public boolean remove(String key)
+    {
+        synchronized (entries)
+        {
+            return entries.remove(key) != null;
+        }
+    }
+
+    /**
+     * Removes all cached templates, and template locations.
+     */
+    public void clear()
+    {
+        synchronized (entries)
+        {
+            entries.clear();
+        }
+        resolver.invalidate();
+    }
+
+    public int size()
+    {
+        synchronized (entries)
+        {
+            return entries.size();
+        }
+    }
+
+    public int getMaxSize()
+    {
+        synchronized (entries)
+        {
+            return entries.getMaxSize();
+        }
+    }
+
+    /**
+     * Sets the maximum number of templates to keep. If the cache currently
+     * holds more than this, the least recently used templates are evicted.
+     *
+     * @param maxSize
+     */
+    public void setMaxSize(int maxSize)
+    {
+        synchronized (entries)
+        {
+            entries.setMaxSize(maxSize);
+        }
+    }
+
+    /**
+     * @return the resolver of template names, which caches where they are
+     */
+    public TemplateResolver getResolver()
+    {
+        return resolver;
+    }
+
+    public boolean isCheckModified()
+    {
+        return checkModified;
+    }
+
+    /**
+     * Sets whether loading a template reads the modification time of its
+     * file, to reload it as soon as it changes. This is off by default,
+     * unless the platform has no watch service: a changed file is then
+     * reloaded once the {@link TemplateResolver}'s watch service reports the
+     * change, and loading a template whose location is cached makes no file
+     * system calls at all.
+     * 
+     * @param checkModified
+     */
+    public void setCheckModified(boolean checkModified)
+    {
+        this.checkModified = checkModified;
+    }
+
+    public long getHits()
+    {
+        synchronized (entries)
+        {
+            return hits;
+        }
+    }
+
+    public long getMisses()
+    {
+        synchronized (entries)
+        {
+            return misses;
+        }
+    }
+
+    private static final class CacheEntry
+    {
+        final Template template;
+
+        final long lastModified;
+
+        CacheEntry(Template template, long lastModified)
+        {
+            this.template = template;
+            this.lastModified = lastModified;
+        }
+    }
+
+}
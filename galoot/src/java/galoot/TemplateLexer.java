@@ -0,0 +1,242 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot;
+
+import galoot.lexer.Lexer;
+import galoot.lexer.LexerException;
+import galoot.node.TCommentText;
+import galoot.node.TTextChar;
+import galoot.node.Token;
+
+import java.io.IOException;
+import java.io.PushbackReader;
+import java.io.StringReader;
+import java.nio.CharBuffer;
+
+/**
+ * A lexer over a template held in memory, e.g. a decoded memory-mapped file.
+ * 
+ * The generated lexer runs every character through its DFA. Outside of tags,
+ * where templates are mostly literal text, this lexer instead scans ahead to
+ * the next '{' itself, and returns the run as a single text token, which is
+ * the token the DFA would have matched. Tags are left to the generated
+ * lexer, which reads the buffer directly rather than through a synchronized
+ * Reader.
+ */
+public class TemplateLexer extends Lexer
+{
+    private final Input input;
+
+    // ! the line and column of the offset scanned up to, as the generated
+    // lexer counts them
+    private int scanned, line, pos;
+
+    private boolean cr;
+
+    public TemplateLexer(CharSequence text)
+    {
+        this(CharBuffer.wrap(text));
+    }
+
+    /**
+     * @param text
+     *            the template, from its position to its limit; it must not
+     *            change while it is lexed
+     */
+    public TemplateLexer(CharBuffer text)
+    {
+        this(new Input(text.slice()));
+    }
+
+    private TemplateLexer(Input input)
+    {
+        super(input);
+        this.input = input;
+    }
+
+    @Override
+    protected Token getToken() throws IOException, LexerException
+    {
+        int start = input.position;
+        Token token;
+        if ((state == State.DEFAULT || state == State.COMMENT_BLOCK)
+                && start < input.limit && input.buffer.get(start) != '{')
+        {
+            int end = input.indexOf('{', start);
+            String text = input.buffer.subSequence(start, end).toString();
+            input.position = end;
+            token = state == State.DEFAULT ? new TTextChar(text)
+                    : new TCommentText(text);
+        }
+        else
+        {
+            try
+            {
+                token = super.getToken();
+            }
+            catch (LexerException e)
+            {
+                // the generated lexer hasn't seen the text scanned here, so
+                // its position is off; the message is "[line,pos] ..."
+                advanceTo(start);
+                String message = e.getMessage();
+                throw new LexerException("[" + (line + 1) + "," + (pos + 1)
+                        + "]" + message.substring(message.indexOf(']') + 1));
+            }
+        }
+
+        advanceTo(start);
+        token.setLine(line + 1);
+        token.setPos(pos + 1);
+        return token;
+    }
+
+    /**
+     * Counts lines and columns up to the given offset.
+     */
+    private void advanceTo(int offset)
+    {
+        if (offset < scanned)
+        {
+            scanned = line = pos = 0;
+            cr = false;
+        }
+        CharBuffer buffer = input.buffer;
+        for (; scanned < offset; ++scanned)
+        {
+            switch (buffer.get(scanned))
+            {
+            case '\n':
+                if (cr)
+                    cr = false;
+                else
+                {
+                    ++line;
+                    pos = 0;
+                }
+                break;
+            case '\r':
+                ++line;
+                pos = 0;
+                cr = true;
+                break;
+            default:
+                ++pos;
+                cr = false;
+                break;
+            }
+        }
+    }
+
+    /**
+     * Reads a buffer with no locking. Pushing back moves back over the
+     * characters read, which the generated lexer only ever pushes back.
+     */
+    private static final class Input extends PushbackReader
+    {
+        final CharBuffer buffer;
+
+        final int limit;
+
+        int position;
+
+        Input(CharBuffer buffer)
+        {
+            super(new StringReader(""), 1);
+            this.buffer = buffer;
+            limit = buffer.limit();
+        }
+
+        int indexOf(char c, int from)
+        {
+            for (int i = from; i < limit; ++i)
+                if (buffer.get(i) == c)
+                    return i;
+            return limit;
+        }
+
+        @Override
+        public int read()
+        {
+            return position < limit ? buffer.get(position++) : -1;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len)
+        {
+            if (len == 0)
+                return 0;
+            if (position >= limit)
+                return -1;
+            int n = Math.min(len, limit - position);
+            for (int i = 0; i < n; ++i)
+                cbuf[off + i] = buffer.get(position++);
+            return n;
+        }
+
+        @Override
+        public void unread(int c) throws IOException
+        {
+            if (position == 0)
+                throw new IOException("Pushback buffer overflow");
+            --position;
+        }
+
+        @Override
+        public void unread(char[] cbuf, int off, int len) throws IOException
+        {
+            if (len > position)
+                throw new IOException("Pushback buffer overflow");
+            position -= len;
+        }
+
+        @Override
+        public void unread(char[] cbuf) throws IOException
+        {
+            unread(cbuf, 0, cbuf.length);
+        }
+
+        @Override
+        public long skip(long n)
+        {
+            int skipped = (int) Math.min(Math.max(n, 0), limit - position);
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean ready()
+        {
+            return true;
+        }
+
+        @Override
+        public boolean markSupported()
+        {
+            return false;
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+
+}
@@ -0,0 +1,295 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Render statistics for one template: how often it is rendered, how long that
+ * takes, how much it writes, and how often the block layout of the templates
+ * it extends is reused.
+ * 
+ * Only streamed renders (the render methods of {@link Template}) are counted;
+ * building a Document is not. Templates parsed from files and resources share
+ * the metrics registered under their name in {@link RenderMetrics}, so they
+ * survive the template being reloaded.
+ */
+public final class TemplateMetrics implements TemplateMetricsMBean
+{
+    private final String name;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    private final LongAdder errors = new LongAdder();
+
+    private final LongAdder outputChars = new LongAdder();
+
+    private final LongAdder layoutCacheHits = new LongAdder();
+
+    private final LongAdder layoutCacheMisses = new LongAdder();
+
+    /**
+     * @param name
+     *            the template name, or null if it has none
+     */
+    public TemplateMetrics(String name)
+    {
+        this.name = name;
+    }
+
+    /**
+     * @return the time the render started, to pass to {@link #end}
+     */
+    public long begin()
+    {
+        return RenderMetrics.enabled ? System.nanoTime() : Long.MIN_VALUE;
+    }
+
+    /**
+     * Records a render.
+     * 
+     * @param start
+     *            the value returned by {@link #begin()}
+     * @param chars
+     *            the number of characters written
+     * @param failed
+     *            true if the render threw an exception
+     */
+    public void end(long start, long chars, boolean failed)
+    {
+        if (start == Long.MIN_VALUE)
+            return;
+        if (failed)
+            errors.increment();
+        else
+        {
+            latency.record(System.nanoTime() - start);
+            outputChars.add(chars);
+        }
+    }
+
+    /**
+     * Records a lookup of the cached block layout of an extending template.
+     * 
+     * @param hit
+     */
+    public void layoutCacheLookup(boolean hit)
+    {
+        if (!RenderMetrics.enabled)
+            return;
+        if (hit)
+            layoutCacheHits.increment();
+        else
+            layoutCacheMisses.increment();
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public LatencyHistogram getLatency()
+    {
+        return latency;
+    }
+
+    public long getRenderCount()
+    {
+        return latency.getCount();
+    }
+
+    public long getErrorCount()
+    {
+        return errors.sum();
+    }
+
+    public long getMeanLatencyMicros()
+    {
+        return TimeUnit.NANOSECONDS.toMicros(latency.getMeanNanos());
+    }
+
+    public long getMaxLatencyMicros()
+    {
+        return TimeUnit.NANOSECONDS.toMicros(latency.getMaxNanos());
+    }
+
+    public long get50thPercentileMicros()
+    {
+        return TimeUnit.NANOSECONDS.toMicros(latency.getPercentileNanos(0.5));
+    }
+
+    public long get99thPercentileMicros()
+    {
+        return TimeUnit.NANOSECONDS.toMicros(latency.getPercentileNanos(0.99));
+    }
+
+    public long getOutputChars()
+    {
+        return outputChars.sum();
+    }
+
+    public long getMeanOutputChars()
+    {
+        long renders = latency.getCount();
+        return renders != 0 ? outputChars.sum() / renders : 0;
+    }
+
+    public long getLayoutCacheHits()
+    {
+        return layoutCacheHits.sum();
+    }
+
+    public long getLayoutCacheMisses()
+    {
+        return layoutCacheMisses.sum();
+    }
+
+    public void reset()
+    {
+        latency.reset();
+        errors.reset();
+        outputChars.reset();
+        layoutCacheHits.reset();
+        layoutCacheMisses.reset();
+    }
+
+    /**
+     * @return the current values, which no longer change
+     */
+    public Snapshot snapshot()
+    {
+        return new Snapshot(this);
+    }
+
+    /**
+     * The values of a template's metrics at one point in time.
+     */
+    public static final class Snapshot
+    {
+        private final String name;
+
+        private final long renderCount;
+
+        private final long errorCount;
+
+        private final long totalNanos;
+
+        private final long maxNanos;
+
+        private final long[] bucketCounts;
+
+        private final long outputChars;
+
+        private final long layoutCacheHits;
+
+        private final long layoutCacheMisses;
+
+        Snapshot(TemplateMetrics metrics)
+        {
+            name = metrics.name;
+            bucketCounts = metrics.latency.getBucketCounts();
+            long renders = 0;
+            for (long n : bucketCounts)
+                renders += n;
+            renderCount = renders;
+            errorCount = metrics.getErrorCount();
+            totalNanos = metrics.latency.getTotalNanos();
+            maxNanos = metrics.latency.getMaxNanos();
+            outputChars = metrics.getOutputChars();
+            layoutCacheHits = metrics.getLayoutCacheHits();
+            layoutCacheMisses = metrics.getLayoutCacheMisses();
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public long getRenderCount()
+        {
+            return renderCount;
+        }
+
+        public long getErrorCount()
+        {
+            return errorCount;
+        }
+
+        public long getTotalNanos()
+        {
+            return totalNanos;
+        }
+
+        public long getMeanNanos()
+        {
+            return renderCount != 0 ? totalNanos / renderCount : 0;
+        }
+
+        public long getMaxNanos()
+        {
+            return maxNanos;
+        }
+
+        /**
+         * @param fraction
+         *            e.g. 0.99 for the 99th percentile
+         * @return see {@link LatencyHistogram#getPercentileNanos(double)}
+         */
+        public long getPercentileNanos(double fraction)
+        {
+            return LatencyHistogram.getPercentileNanos(bucketCounts, fraction);
+        }
+
+        /**
+         * @return the number of renders in each bucket of the
+         *         {@link LatencyHistogram}
+         */
+        public long[] getBucketCounts()
+        {
+            return bucketCounts.clone();
+        }
+
+        public long getOutputChars()
+        {
+            return outputChars;
+        }
+
+        public long getLayoutCacheHits()
+        {
+            return layoutCacheHits;
+        }
+
+        public long getLayoutCacheMisses()
+        {
+            return layoutCacheMisses;
+        }
+
+        @Override
+        public String toString()
+        {
+            return name + ": renders=" + renderCount + ", errors=" + errorCount
+                    + ", mean=" + getMeanNanos() / 1000 + "us, p99="
+                    + getPercentileNanos(0.99) / 1000 + "us, chars="
+                    + outputChars;
+        }
+    }
+
+}
@@ -0,0 +1,51 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot;
+
+/**
+ * The JMX view of the {@link TemplateMetrics} of one template. Times are in
+ * microseconds.
+ */
+public interface TemplateMetricsMBean
+{
+    String getName();
+
+    long getRenderCount();
+
+    long getErrorCount();
+
+    long getMeanLatencyMicros();
+
+    long getMaxLatencyMicros();
+
+    long get50thPercentileMicros();
+
+    long get99thPercentileMicros();
+
+    long getOutputChars();
+
+    long getMeanOutputChars();
+
+    long getLayoutCacheHits();
+
+    long getLayoutCacheMisses();
+
+    void reset();
+}
@@ -0,0 +1,533 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot;
+
+import galoot.interpret.Interpreter;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Resolves the names of included and extended templates to their location,
+ * the way {@link TemplateCache#loadTemplate(String)} searches for them: in the
+ * template include paths, then as a local or absolute filename, then as a
+ * class path resource. Relative resource names are relative to the
+ * galoot.interpret package, as they always have been.
+ * 
+ * Resolved locations, and names that resolve to nothing, are cached, so a
+ * repeated include makes no file system calls. Each include path, and all of
+ * its subdirectories, is watched with a {@link WatchService}. So is the
+ * directory a local or absolute filename would be in, or its nearest existing
+ * ancestor if that directory doesn't exist. When a file or directory in a
+ * watched directory is created, deleted or modified, only the names that
+ * would be found there are dropped. Adding or removing an include path drops
+ * everything.
+ * 
+ * A name that is found nowhere is either a URL, to be loaded without caching,
+ * or missing; which of the two is cached as well.
+ * 
+ * Where the platform's watch service polls, changes may take a few seconds to
+ * be noticed. If there is no watch service, nothing is cached, and the same
+ * goes for names looked for in an include path that doesn't exist.
+ */
+public final class TemplateResolver
+{
+    private static final Log log = LogFactory.getLog(TemplateResolver.class);
+
+    // ! cached for names that are neither files, resources nor URLs
+    private static final Location MISSING = new Location(null, null, null, 0L);
+
+    private final ConcurrentMap<String, Location> locations = new ConcurrentHashMap<String, Location>();
+
+    // ! the watched directories
+    private final ConcurrentMap<Path, WatchKey> watched = new ConcurrentHashMap<Path, WatchKey>();
+
+    // ! incremented whenever cached locations are dropped
+    private final AtomicLong generation = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    // ! the version of the include paths that are watched
+    private volatile long includePathsVersion = -1;
+
+    // ! the include paths whose whole tree is watched
+    private volatile Set<String> watchedPaths = Collections.emptySet();
+
+    // ! the absolute forms of the watched include paths
+    private volatile Set<Path> watchedRoots = Collections.emptySet();
+
+    private volatile WatchService watchService;
+
+    // ! set once startWatching() has run, whether or not it found a service
+    private volatile boolean started;
+
+    private volatile boolean unwatchable;
+
+    TemplateResolver()
+    {
+    }
+
+    /**
+     * Returns the location of the named template.
+     * 
+     * @param filename
+     * @return the location, or null if the name is not a file, resource or
+     *         URL
+     * @throws IOException
+     */
+    Location resolve(String filename) throws IOException
+    {
+        // only the first resolution takes the lock
+        if (!started)
+            startWatching();
+        boolean cacheable = !unwatchable;
+        long version = PluginRegistry.getInstance()
+                .getTemplateIncludePathsVersion();
+        if (cacheable && version != includePathsVersion)
+            watchIncludePaths(version);
+
+        Location location = locations.get(filename);
+        if (location != null)
+        {
+            hits.increment();
+            return location != MISSING ? location : null;
+        }
+        misses.increment();
+
+        long current = generation.get();
+        Set<String> paths = watchedPaths;
+        // loop over the include paths to see if the file exists
+        for (String path : PluginRegistry.getInstance()
+                .getTemplateIncludePaths())
+        {
+            if (!paths.contains(path))
+                cacheable = false;
+            File file = new File(path, filename);
+            if (file.exists())
+            {
+                location = new Location(file, null, file.getCanonicalPath(),
+                        file.lastModified());
+                break;
+            }
+        }
+
+        if (location == null)
+        {
+            // try local or absolute filenames, watching where they would be
+            // before looking, so a file created after the look is noticed
+            File file = new File(filename);
+            if (cacheable && !watchAncestor(toPath(filename)))
+                cacheable = false;
+            if (file.exists())
+                location = new Location(file, null, file.getCanonicalPath(),
+                        file.lastModified());
+        }
+        if (location == null)
+        {
+            // resources can't change
+            URL resource = Interpreter.class.getResource(filename);
+            if (resource != null)
+                location = new Location(null, resource, resource
+                        .toExternalForm(), 0L);
+        }
+        if (location == null)
+        {
+            try
+            {
+                location = new Location(null, new URL(filename), filename,
+                        0L, true);
+            }
+            catch (MalformedURLException e)
+            {
+                location = MISSING;
+            }
+        }
+
+        if (cacheable)
+        {
+            locations.put(filename, location);
+            // a change seen while looking could have been missed
+            if (generation.get() != current)
+                locations.remove(filename);
+        }
+        return location != MISSING ? location : null;
+    }
+
+    /**
+     * Drops the cached location of a single name, e.g. because its file has
+     * been found to be missing.
+     * 
+     * @param filename
+     */
+    void forget(String filename)
+    {
+        locations.remove(filename);
+    }
+
+    /**
+     * Watches the directory the path would be in, or its nearest existing
+     * ancestor, which sees the directory being created. Only that one
+     * directory is watched, not its subdirectories.
+     * 
+     * @return false if it couldn't be watched
+     */
+    private synchronized boolean watchAncestor(Path path)
+    {
+        if (path == null)
+            return false;
+        Path dir = path.getParent();
+        while (dir != null && !Files.isDirectory(dir))
+            dir = dir.getParent();
+        return dir != null && watch(dir);
+    }
+
+    /**
+     * Drops everything, and watches the trees of the current include paths
+     * instead of the previous ones.
+     */
+    private synchronized void watchIncludePaths(long version)
+    {
+        if (version == includePathsVersion)
+            return;
+        cancelWatches();
+        Set<String> paths = new HashSet<String>();
+        Set<Path> roots = new HashSet<Path>();
+        for (String path : PluginRegistry.getInstance()
+                .getTemplateIncludePaths())
+        {
+            Path root = toPath(path);
+            if (watchTree(root))
+            {
+                paths.add(path);
+                roots.add(root);
+            }
+        }
+        watchedPaths = paths;
+        watchedRoots = roots;
+        includePathsVersion = version;
+    }
+
+    /**
+     * Watches the directory and all of its subdirectories.
+     * 
+     * @return false if some of them couldn't be watched, or the directory
+     *         doesn't exist
+     */
+    private synchronized boolean watchTree(Path root)
+    {
+        if (root == null || !Files.isDirectory(root))
+            return false;
+        final boolean[] complete = { true };
+        try
+        {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>()
+            {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir,
+                        BasicFileAttributes attrs)
+                {
+                    if (!watch(dir))
+                        complete[0] = false;
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file,
+                        IOException e)
+                {
+                    // e.g. an unreadable subdirectory
+                    log.warn("Could not watch " + file, e);
+                    complete[0] = false;
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        catch (IOException e)
+        {
+            log.warn("Could not watch " + root, e);
+            return false;
+        }
+        return complete[0];
+    }
+
+    private boolean watch(Path dir)
+    {
+        WatchKey key = watched.get(dir);
+        if (key != null && key.isValid())
+            return true;
+        try
+        {
+            key = dir.register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            watched.put(dir, key);
+            return true;
+        }
+        catch (IOException e)
+        {
+            log.warn("Could not watch " + dir, e);
+            return false;
+        }
+        catch (ClosedWatchServiceException e)
+        {
+            return false;
+        }
+    }
+
+    private synchronized void cancelWatches()
+    {
+        generation.incrementAndGet();
+        locations.clear();
+        for (WatchKey key : watched.values())
+            key.cancel();
+        watched.clear();
+        watchedPaths = Collections.emptySet();
+        watchedRoots = Collections.emptySet();
+    }
+
+    /**
+     * @return the absolute path, or null if the name isn't a valid path
+     */
+    private static Path toPath(String path, String... more)
+    {
+        try
+        {
+            return Paths.get(path, more).toAbsolutePath().normalize();
+        }
+        catch (InvalidPathException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Creates the watch service, and the thread that takes its events.
+     * 
+     * @return false if there is no watch service
+     */
+    synchronized boolean startWatching()
+    {
+        if (started)
+            return !unwatchable;
+        started = true;
+        try
+        {
+            watchService = FileSystems.getDefault().newWatchService();
+        }
+        catch (IOException e)
+        {
+            log.warn("No watch service, template locations won't be cached",
+                    e);
+            unwatchable = true;
+            return false;
+        }
+        Thread thread = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                takeEvents();
+            }
+        }, "galoot-template-resolver");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    private void takeEvents()
+    {
+        try
+        {
+            for (;;)
+            {
+                WatchKey key = watchService.take();
+                Path dir = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents())
+                {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                    {
+                        // events were lost
+                        generation.incrementAndGet();
+                        locations.clear();
+                        continue;
+                    }
+                    Path changed = dir.resolve((Path) event.context());
+                    log.debug("Template path changed: " + changed);
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+                            && isInIncludePath(changed)
+                            && Files.isDirectory(changed)
+                            && !watchTree(changed))
+                    {
+                        // the include path is no longer watched as a whole
+                        invalidate();
+                        continue;
+                    }
+                    forgetUnder(changed);
+                }
+                if (!key.reset())
+                    watched.remove(dir, key);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (ClosedWatchServiceException e)
+        {
+            // closed
+        }
+    }
+
+    private boolean isInIncludePath(Path path)
+    {
+        for (Path root : watchedRoots)
+            if (path.startsWith(root))
+                return true;
+        return false;
+    }
+
+    /**
+     * Drops the names that would be found at or under the changed path.
+     */
+    private void forgetUnder(Path changed)
+    {
+        generation.incrementAndGet();
+        Iterable<String> paths = PluginRegistry.getInstance()
+                .getTemplateIncludePaths();
+        for (Iterator<String> it = locations.keySet().iterator(); it
+                .hasNext();)
+        {
+            String filename = it.next();
+            Path local = toPath(filename);
+            if (local == null || local.startsWith(changed))
+            {
+                it.remove();
+                continue;
+            }
+            for (String path : paths)
+            {
+                Path probe = toPath(path, filename);
+                if (probe == null || probe.startsWith(changed))
+                {
+                    it.remove();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops all cached locations, and stops watching the include paths until
+     * the next resolution.
+     */
+    public synchronized void invalidate()
+    {
+        cancelWatches();
+        includePathsVersion = -1;
+    }
+
+    /**
+     * @return the number of resolutions answered from the cache
+     */
+    public long getHits()
+    {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of resolutions that had to search
+     */
+    public long getMisses()
+    {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of names whose location (or absence) is cached
+     */
+    public int size()
+    {
+        return locations.size();
+    }
+
+    /**
+     * Where a template was found: a file, a class path resource, or a URL to
+     * be loaded each time.
+     */
+    static final class Location
+    {
+        final File file;
+
+        final URL resource;
+
+        // ! the canonical path of the file, or the URL of the resource
+        final String key;
+
+        // ! the modification time of the file when it was resolved
+        final long lastModified;
+
+        // ! true if the resource is a URL whose content may change
+        final boolean remote;
+
+        Location(File file, URL resource, String key, long lastModified)
+        {
+            this(file, resource, key, lastModified, false);
+        }
+
+        Location(File file, URL resource, String key, long lastModified,
+                boolean remote)
+        {
+            this.file = file;
+            this.resource = resource;
+            this.key = key;
+            this.lastModified = lastModified;
+            this.remote = remote;
+        }
+    }
+
+}
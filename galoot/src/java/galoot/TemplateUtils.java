@@ -19,9 +19,6 @@
  */
 package galoot;
 
-import java.lang.reflect.Field;
-import java.lang.reflect.Method;
-import java.security.InvalidParameterException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
@@ -65,150 +62,145 @@ public final class TemplateUtils
     {
         for (Iterator<String> it = members.iterator(); object != null
                 && it.hasNext();)
-        {
-            String memberName = (String) it.next();
-
-            boolean found = false; // used to flag if we found it
+            object = evaluateMember(object, it.next(), context);
+        return object;
+    }
 
-            // first, check to see if it has parameters/methods with this name
-            List<String> names = new ArrayList<String>();
-            names.add(memberName);
+    /**
+     * Evaluates a single member of the given object: a field or method (see
+     * {@link AccessorCache}), an index into a list, array, collection or
+     * string, or a key of a map.
+     * 
+     * @param object
+     *            the object, which must not be null
+     * @param memberName
+     * @param context
+     * @return the member
+     */
+    public static Object evaluateMember(Object object, String memberName,
+            ContextStack context)
+    {
+        Object member = AccessorCache.getAccessor(object.getClass(),
+                memberName).get(object);
+        if (member != AccessorCache.Accessor.NOT_FOUND)
+            return member;
+        return evaluateIndex(object, memberName, context);
+    }
 
-            // compute the getter name and add it as a possibility
-            names.add("get" + memberName.substring(0, 1).toUpperCase()
-                    + memberName.substring(1));
+    /**
+     * Evaluates a member of an object that has no field or method of that
+     * name, as an index or map key.
+     * 
+     * @param object
+     *            the object, which must not be null
+     * @param memberName
+     * @param context
+     * @return the member
+     */
+    public static Object evaluateIndex(Object object, String memberName,
+            ContextStack context)
+    {
+        boolean found = false;
 
-            for (String name : names)
+        // see if it is a list
+        if (object instanceof List)
+        {
+            List listObj = (List) object;
+            // try to convert the name to an index
+            try
             {
-                // try it as a field
-                try
-                {
-                    Field field = object.getClass().getField(name);
-                    object = field.get(object);
-                    found = true;
-                }
-                catch (Exception e)
-                {
-                    // try it as a method
-                    try
-                    {
-                        Method method = object.getClass().getMethod(name, null);
-                        if (method.getParameterTypes().length != 0)
-                            throw new InvalidParameterException();
-                        object = method.invoke(object, null);
-                        found = true;
-                        break;
-                    }
-                    catch (Exception e1)
-                    {
-                    }
-                }
+                int index = Integer.parseInt(memberName);
+                if (index < 0 || index >= listObj.size())
+                    throw new IndexOutOfBoundsException(memberName);
+                object = listObj.get(index);
             }
-
-            // if we found it already, continue on
-            if (found)
-                continue;
-
-            // see if it is a list
-            if (object instanceof List)
+            catch (Exception e)
             {
-                List listObj = (List) object;
-                // try to convert the name to an index
-                try
-                {
-                    int index = Integer.parseInt(memberName);
-                    if (index < 0 || index >= listObj.size())
-                        throw new IndexOutOfBoundsException(memberName);
-                    object = listObj.get(index);
-                }
-                catch (Exception e)
-                {
-                    log.error(ExceptionUtils.getStackTrace(e));
-                }
+                log.error(ExceptionUtils.getStackTrace(e));
             }
-            else if (TemplateUtils.isArrayType(object))
+        }
+        else if (TemplateUtils.isArrayType(object))
+        {
+            // try to convert the name to an index
+            try
             {
-                // try to convert the name to an index
-                try
-                {
-                    Vector v = new Vector(TemplateUtils
-                            .objectToCollection(object));
-                    int index = Integer.parseInt(memberName);
-                    object = v.get(index);
-                }
-                catch (Exception e)
-                {
-                    log.error(ExceptionUtils.getStackTrace(e));
-                }
+                Vector v = new Vector(TemplateUtils
+                        .objectToCollection(object));
+                int index = Integer.parseInt(memberName);
+                object = v.get(index);
             }
-            // try it as a collection, maybe -- more expensive, possibly
-            else if (object instanceof Collection)
+            catch (Exception e)
             {
-                Collection collObj = (Collection) object;
-                // try to convert the name to an index
-                try
-                {
-                    int index = Integer.parseInt(memberName);
-                    int offset = 0;
+                log.error(ExceptionUtils.getStackTrace(e));
+            }
+        }
+        // try it as a collection, maybe -- more expensive, possibly
+        else if (object instanceof Collection)
+        {
+            Collection collObj = (Collection) object;
+            // try to convert the name to an index
+            try
+            {
+                int index = Integer.parseInt(memberName);
+                int offset = 0;
 
-                    for (Iterator iterator = collObj.iterator(); iterator
-                            .hasNext()
-                            && !found;)
+                for (Iterator iterator = collObj.iterator(); iterator
+                        .hasNext()
+                        && !found;)
+                {
+                    if (index == offset)
                     {
-                        if (index == offset)
-                        {
-                            object = iterator.next();
-                            found = true;
-                        }
-                        else
-                            iterator.next();
-                        offset++;
+                        object = iterator.next();
+                        found = true;
                     }
-                    if (!found)
-                        throw new IndexOutOfBoundsException(memberName);
-                }
-                catch (Exception e)
-                {
-                    log.error(ExceptionUtils.getStackTrace(e));
+                    else
+                        iterator.next();
+                    offset++;
                 }
+                if (!found)
+                    throw new IndexOutOfBoundsException(memberName);
             }
-            // it could be a member of a Map
-            else if (object instanceof Map)
+            catch (Exception e)
             {
-                Map mapObj = (Map) object;
-                if (mapObj.containsKey(memberName))
-                    object = mapObj.get(memberName);
-                else
-                {
-                    // try to get it from the context
-                    Object key = context.getVariable(memberName);
+                log.error(ExceptionUtils.getStackTrace(e));
+            }
+        }
+        // it could be a member of a Map
+        else if (object instanceof Map)
+        {
+            Map mapObj = (Map) object;
+            if (mapObj.containsKey(memberName))
+                object = mapObj.get(memberName);
+            else
+            {
+                // try to get it from the context
+                Object key = context.getVariable(memberName);
 
-                    if (key != null)
-                        object = mapObj.get(key);
-                    else
-                        object = null;
-                }
+                if (key != null)
+                    object = mapObj.get(key);
+                else
+                    object = null;
             }
-            // see if it is a string
-            else if (object instanceof CharSequence)
+        }
+        // see if it is a string
+        else if (object instanceof CharSequence)
+        {
+            CharSequence charObj = (CharSequence) object;
+            try
             {
-                CharSequence charObj = (CharSequence) object;
-                try
-                {
-                    int index = Integer.parseInt(memberName);
-                    object = charObj.charAt(index);
-                }
-                catch (Exception e)
-                {
-                    log.error(ExceptionUtils.getStackTrace(e));
-                }
+                int index = Integer.parseInt(memberName);
+                object = charObj.charAt(index);
             }
-            // otherwise, it can't find the member object
-            else
+            catch (Exception e)
             {
-                object = null;
+                log.error(ExceptionUtils.getStackTrace(e));
             }
         }
+        // otherwise, it can't find the member object
+        else
+        {
+            object = null;
+        }
         return object;
     }
 
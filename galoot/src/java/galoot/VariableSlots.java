@@ -0,0 +1,93 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Assigns integer slots to variable names. The names used by compiled
+ * templates are given slots when the template is compiled, so that the frames
+ * the {@link ContextStack} pushes can store and find those variables by
+ * comparing slots rather than hashing names.
+ * 
+ * Slots are global to the JVM and never reassigned. At most
+ * {@link #MAX_SLOTS} names are given slots, so applications compiling
+ * arbitrary templates don't grow the registry without bound; other names are
+ * stored and found by name.
+ */
+public final class VariableSlots
+{
+    public static final int MAX_SLOTS = 4096;
+
+    private static final ConcurrentMap<String, Integer> slots = new ConcurrentHashMap<String, Integer>();
+
+    private VariableSlots()
+    {
+    }
+
+    /**
+     * Returns the slot for the given name, assigning one if the name has none
+     * and fewer than {@link #MAX_SLOTS} have been assigned.
+     * 
+     * @param name
+     * @return the slot, or -1 if the name has none
+     */
+    public static int getSlot(String name)
+    {
+        Integer slot = slots.get(name);
+        if (slot == null)
+        {
+            synchronized (slots)
+            {
+                slot = slots.get(name);
+                if (slot == null)
+                {
+                    if (slots.size() >= MAX_SLOTS)
+                        return -1;
+                    slot = slots.size();
+                    slots.put(name, slot);
+                }
+            }
+        }
+        return slot;
+    }
+
+    /**
+     * Returns the slot for the given name, without assigning one.
+     * 
+     * @param name
+     * @return the slot, or -1 if the name has none
+     */
+    public static int findSlot(String name)
+    {
+        Integer slot = slots.get(name);
+        return slot != null ? slot : -1;
+    }
+
+    /**
+     * @return the number of slots assigned so far
+     */
+    public static int size()
+    {
+        return slots.size();
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import galoot.ContextStack;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The blocks that templates extending the one being rendered override, used
+ * when streaming a template that uses {% extends %}.
+ * 
+ * Each block name maps to its overriding bodies, from the least to the most
+ * derived template. When the extended template reaches a block, only the most
+ * derived body is rendered in its place. "block.super" refers to the next less
+ * derived body (or the block's own body), which is rendered the first time it
+ * is referenced, if at all.
+ * 
+ * A layout is only modified while it is being built; after that it can be
+ * shared by concurrent renders.
+ */
+public class BlockLayout
+{
+    private final Map<String, List<RenderNode>> overrides = new HashMap<String, List<RenderNode>>();
+
+    /**
+     * Adds an override. Overrides must be added from the least to the most
+     * derived template.
+     * 
+     * @param name
+     * @param body
+     */
+    public void addOverride(String name, RenderNode body)
+    {
+        List<RenderNode> bodies = overrides.get(name);
+        if (bodies == null)
+        {
+            bodies = new ArrayList<RenderNode>(2);
+            overrides.put(name, bodies);
+        }
+        bodies.add(body);
+    }
+
+    /**
+     * Renders the block with the given name, in place of the given body.
+     * 
+     * @param name
+     * @param body
+     *            the block's own body, in the extended template
+     * @param context
+     */
+    public void renderBlock(String name, RenderNode body, RenderContext context)
+    {
+        List<RenderNode> bodies = name != null ? overrides.get(name) : null;
+        renderBody(body, bodies, bodies != null ? bodies.size() - 1 : -1,
+                context);
+    }
+
+    /**
+     * @return true iff no block is overridden
+     */
+    public boolean isEmpty()
+    {
+        return overrides.isEmpty();
+    }
+
+    /**
+     * Renders the override at the given index, or the block's own body if the
+     * index is negative.
+     */
+    void renderBody(RenderNode body, List<RenderNode> bodies, int index,
+            RenderContext context)
+    {
+        ContextStack contextStack = context.getContextStack();
+        contextStack.push();
+        if (index >= 0)
+        {
+            contextStack.putVariable(BlockNode.BLOCK_SUPER_SLOT,
+                    BlockNode.BLOCK_SUPER, new BlockSuper(this, body, bodies,
+                            index - 1, context));
+            bodies.get(index).render(context);
+        }
+        else
+            body.render(context);
+        contextStack.popFrame();
+    }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import galoot.ContextStack;
+import galoot.VariableSlots;
+import galoot.types.BlockFragment;
+import galoot.types.Document;
+
+/**
+ * A named (or anonymous) block, e.g. {% block content %} {% endblock %}. Blocks
+ * are what a child template overrides when extending a parent.
+ */
+public class BlockNode implements RenderNode
+{
+    static final String BLOCK_SUPER = "block.super";
+
+    static final int BLOCK_SUPER_SLOT = VariableSlots.getSlot(BLOCK_SUPER);
+
+    private final String name;
+
+    private final RenderNode body;
+
+    public BlockNode(String name, RenderNode body)
+    {
+        this.name = name;
+        this.body = body;
+    }
+
+    public void render(RenderContext context)
+    {
+        if (context.isStreaming())
+        {
+            renderStreaming(context);
+            return;
+        }
+
+        Document document = context.getDocument();
+        Document parentDocument = context.getParentDocument();
+        boolean evaluate = false, existsInParent = false;
+        int curBlockDepth = document.getBlockDepth();
+
+        /*
+         * We only render the block if one of the following is true: (1) if the
+         * document has a parent doc AND ((this block is a top-level block of
+         * this document AND exists in the parent) OR (this block is NOT a
+         * top-level block and does NOT exist in the parent)), or if (2) the
+         * document does NOT have a parent doc. AND the block name has not
+         * already been used in the current document.
+         */
+        if (parentDocument != null)
+        {
+            existsInParent = name != null && parentDocument.hasBlock(name);
+            if ((curBlockDepth == 0 && existsInParent)
+                    || (curBlockDepth > 0 && !existsInParent))
+                evaluate = true;
+        }
+        else if (name != null && document.hasBlock(name))
+            throw new RuntimeException("Block already exists with name: "
+                    + name);
+        else
+            evaluate = true;
+
+        if (!evaluate)
+            return;
+
+        ContextStack contextStack = context.getContextStack();
+        contextStack.push();
+
+        BlockFragment newBlock = new BlockFragment(name);
+        document.addContent(newBlock);
+
+        // a block overriding one in the parent can refer to the parent's
+        // (already evaluated) contents as "block.super"
+        boolean replacesParent = curBlockDepth == 0 && existsInParent;
+        if (replacesParent)
+            contextStack.putVariable(BLOCK_SUPER_SLOT, BLOCK_SUPER,
+                    parentDocument.getBlock(name).evaluateAsString());
+
+        body.render(context);
+
+        document.popBlock();
+        contextStack.popFrame();
+
+        if (replacesParent)
+            parentDocument.replaceBlock(newBlock);
+    }
+
+    /**
+     * Streams the block. Blocks of a template being extended are rendered as
+     * laid out by the extending templates; blocks of the templates doing the
+     * extending are only collected.
+     */
+    private void renderStreaming(RenderContext context)
+    {
+        BlockLayout layout = context.getBlockLayout();
+        if (context.isCollectingBlocks())
+            layout.addOverride(name, body);
+        else if (layout != null)
+            layout.renderBlock(name, body, context);
+        else
+        {
+            if (name != null && !context.addBlockName(name))
+                throw new RuntimeException("Block already exists with name: "
+                        + name);
+            ContextStack contextStack = context.getContextStack();
+            contextStack.push();
+            body.render(context);
+            contextStack.popFrame();
+        }
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public RenderNode getBody()
+    {
+        return body;
+    }
+
+}
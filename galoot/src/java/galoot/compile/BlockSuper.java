@@ -0,0 +1,79 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import java.util.List;
+
+/**
+ * The value of "block.super" while streaming an overriding block. The less
+ * derived body is only rendered when the variable is first evaluated, and its
+ * output is kept for any later references.
+ */
+final class BlockSuper
+{
+    private final BlockLayout layout;
+
+    private final RenderNode body;
+
+    private final List<RenderNode> bodies;
+
+    private final int index;
+
+    private final RenderContext context;
+
+    private String contents;
+
+    BlockSuper(BlockLayout layout, RenderNode body, List<RenderNode> bodies,
+            int index, RenderContext context)
+    {
+        this.layout = layout;
+        this.body = body;
+        this.bodies = bodies;
+        this.index = index;
+        this.context = context;
+    }
+
+    /**
+     * @return the output of the less derived body, rendering it if needed
+     */
+    String getContents()
+    {
+        if (contents == null)
+        {
+            context.beginFilterBlock();
+            try
+            {
+                layout.renderBody(body, bodies, index, context);
+            }
+            finally
+            {
+                contents = context.endFilterBlock();
+            }
+        }
+        return contents;
+    }
+
+    @Override
+    public String toString()
+    {
+        return getContents();
+    }
+
+}
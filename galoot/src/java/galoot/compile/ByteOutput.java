@@ -0,0 +1,310 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A render target that encodes the output to bytes, for writing templates
+ * straight to an OutputStream or a channel.
+ * 
+ * Dynamic output is encoded as it is appended. The static text of a template
+ * is written from the bytes cached by its {@link StaticText}, so it is never
+ * re-encoded: short runs are copied into the output buffer, and longer ones
+ * are queued as they are and written together with the buffer, using a
+ * gathering write when the channel supports it.
+ * 
+ * Static text is only pre-encoded for charsets where encoding the pieces
+ * separately gives the same bytes as encoding the whole, which we take to be
+ * those that encode plain ASCII as itself (so no byte order marks). Any other
+ * charset is encoded as it is written.
+ * 
+ * Call {@link #finish()} once the render is done. A ByteOutput is not
+ * thread-safe.
+ */
+public final class ByteOutput implements Appendable, Flushable
+{
+    // ! size of the buffer for encoded output
+    public static final int BUFFER_SIZE = 8192;
+
+    // ! static text shorter than this is copied rather than queued
+    public static final int MIN_GATHER_LENGTH = 256;
+
+    // ! maximum number of buffers queued before they are written
+    private static final int MAX_PENDING = 16;
+
+    private static final byte[] ASCII_PROBE = { 'a' };
+
+    private static final ConcurrentMap<Charset, Boolean> preEncodable = new ConcurrentHashMap<Charset, Boolean>();
+
+    private final OutputStream stream;
+
+    private final WritableByteChannel channel;
+
+    private final Charset charset;
+
+    private final boolean preEncoded;
+
+    private final CharsetEncoder encoder;
+
+    private final ByteBuffer buffer;
+
+    // ! start of the bytes in the buffer that have not been queued
+    private int queuedUpTo;
+
+    private final ByteBuffer[] pending = new ByteBuffer[MAX_PENDING];
+
+    private int pendingCount;
+
+    // ! a high surrogate waiting for the rest of its pair
+    private char highSurrogate;
+
+    public ByteOutput(OutputStream stream, Charset charset)
+    {
+        this(stream, null, charset);
+    }
+
+    public ByteOutput(WritableByteChannel channel, Charset charset)
+    {
+        this(null, channel, charset);
+    }
+
+    private ByteOutput(OutputStream stream, WritableByteChannel channel,
+            Charset charset)
+    {
+        this.stream = stream;
+        this.channel = channel;
+        this.charset = charset;
+        preEncoded = isPreEncodable(charset);
+        encoder = charset.newEncoder().onMalformedInput(
+                CodingErrorAction.REPLACE).onUnmappableCharacter(
+                CodingErrorAction.REPLACE);
+        buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    /**
+     * @param charset
+     * @return true iff static text is written pre-encoded in the charset
+     */
+    public static boolean isPreEncodable(Charset charset)
+    {
+        Boolean result = preEncodable.get(charset);
+        if (result == null)
+        {
+            result = charset.canEncode()
+                    && Arrays.equals(ASCII_PROBE, "a".getBytes(charset));
+            preEncodable.put(charset, result);
+        }
+        return result;
+    }
+
+    public Charset getCharset()
+    {
+        return charset;
+    }
+
+    public ByteOutput append(CharSequence s) throws IOException
+    {
+        if (s == null)
+            s = "null";
+        return append(s, 0, s.length());
+    }
+
+    public ByteOutput append(CharSequence s, int start, int end)
+            throws IOException
+    {
+        if (s == null)
+            s = "null";
+        if (start == end)
+            return this;
+        if (highSurrogate != 0)
+        {
+            CharBuffer joined = CharBuffer.allocate(end - start + 1);
+            joined.put(highSurrogate).append(s, start, end).flip();
+            highSurrogate = 0;
+            encode(joined, false);
+        }
+        else
+            encode(CharBuffer.wrap(s, start, end), false);
+        return this;
+    }
+
+    public ByteOutput append(char c) throws IOException
+    {
+        return append(String.valueOf(c));
+    }
+
+    /**
+     * Writes a piece of static text.
+     * 
+     * @param text
+     * @throws IOException
+     */
+    public void write(StaticText text) throws IOException
+    {
+        if (!preEncoded)
+        {
+            append(text.getText());
+            return;
+        }
+        endCharacters();
+
+        byte[] bytes = text.encode(charset);
+        if (bytes.length < MIN_GATHER_LENGTH)
+        {
+            if (buffer.remaining() < bytes.length)
+                drain();
+            buffer.put(bytes);
+        }
+        else
+        {
+            queueBuffer();
+            enqueue(ByteBuffer.wrap(bytes));
+        }
+    }
+
+    /**
+     * Writes out everything queued so far, and flushes the stream.
+     */
+    public void flush() throws IOException
+    {
+        drain();
+        if (stream != null)
+            stream.flush();
+    }
+
+    /**
+     * Encodes anything left over (such as an unpaired surrogate), and flushes.
+     * The stream or channel is not closed.
+     * 
+     * @throws IOException
+     */
+    public void finish() throws IOException
+    {
+        endCharacters();
+        flush();
+    }
+
+    private void encode(CharBuffer chars, boolean endOfInput)
+            throws IOException
+    {
+        for (;;)
+        {
+            CoderResult result = encoder.encode(chars, buffer, endOfInput);
+            if (result.isOverflow())
+                drain();
+            else if (result.isUnderflow())
+                break;
+            else
+                result.throwException();
+        }
+        // the encoder leaves a trailing high surrogate for the next call
+        if (chars.hasRemaining())
+            highSurrogate = chars.get();
+    }
+
+    /**
+     * Ends the current run of encoded characters, so bytes can be written
+     * around the encoder.
+     */
+    private void endCharacters() throws IOException
+    {
+        CharBuffer rest = highSurrogate != 0 ? CharBuffer.wrap(String
+                .valueOf(highSurrogate)) : CharBuffer.allocate(0);
+        highSurrogate = 0;
+        encode(rest, true);
+        while (encoder.flush(buffer).isOverflow())
+            drain();
+        encoder.reset();
+    }
+
+    /**
+     * Queues the bytes added to the buffer since it was last queued.
+     */
+    private void queueBuffer() throws IOException
+    {
+        if (buffer.position() == queuedUpTo)
+            return;
+        ByteBuffer slice = buffer.duplicate();
+        slice.flip();
+        slice.position(queuedUpTo);
+        queuedUpTo = buffer.position();
+        enqueue(slice);
+    }
+
+    private void enqueue(ByteBuffer bytes) throws IOException
+    {
+        pending[pendingCount++] = bytes;
+        // keep a slot free for the buffer, which drain() queues last
+        if (pendingCount == MAX_PENDING - 1)
+            drain();
+    }
+
+    /**
+     * Writes the queued bytes and the buffer, after which the buffer is free
+     * to be reused.
+     */
+    private void drain() throws IOException
+    {
+        queueBuffer();
+        if (pendingCount > 0)
+        {
+            if (channel instanceof GatheringByteChannel)
+            {
+                GatheringByteChannel gathering = (GatheringByteChannel) channel;
+                while (pending[pendingCount - 1].hasRemaining())
+                    gathering.write(pending, 0, pendingCount);
+            }
+            else
+            {
+                for (int i = 0; i < pendingCount; ++i)
+                {
+                    ByteBuffer bytes = pending[i];
+                    if (channel != null)
+                    {
+                        while (bytes.hasRemaining())
+                            channel.write(bytes);
+                    }
+                    else
+                        stream.write(bytes.array(), bytes.arrayOffset()
+                                + bytes.position(), bytes.remaining());
+                }
+            }
+            Arrays.fill(pending, 0, pendingCount, null);
+            pendingCount = 0;
+        }
+        buffer.clear();
+        queuedUpTo = 0;
+    }
+
+}
@@ -0,0 +1,331 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.security.CodeSource;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Global singleton that compiles hot templates to JVM classes.
+ * 
+ * A compiled template counts its renders, and once it reaches the threshold
+ * its render tree is handed to this compiler. The tree is translated to Java
+ * source, compiled in memory with the system Java compiler, and loaded by a
+ * class loader of its own. Compilation happens on a background thread, and
+ * the template keeps rendering its tree until the generated class is ready.
+ * If compilation fails (e.g. when running on a JRE without a compiler), the
+ * template keeps using its tree.
+ * 
+ * The backend is disabled by default. Enable it with a positive threshold,
+ * either via {@link #setThreshold(int)} or the galoot.bytecode.threshold
+ * system property.
+ */
+public final class BytecodeCompiler
+{
+    private static final Log log = LogFactory.getLog(BytecodeCompiler.class);
+
+    public static final String THRESHOLD_PROPERTY = "galoot.bytecode.threshold";
+
+    private static final String PACKAGE_NAME = "galoot.compile.generated";
+
+    private static BytecodeCompiler instance = new BytecodeCompiler();
+
+    private final AtomicInteger classCount = new AtomicInteger();
+
+    // ! the background compiler thread, created on demand
+    private ExecutorService executor;
+
+    private volatile int threshold;
+
+    private BytecodeCompiler()
+    {
+        threshold = Integer.getInteger(THRESHOLD_PROPERTY, 0);
+    }
+
+    public static BytecodeCompiler getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * @return the number of renders after which a template is compiled, or 0
+     *         if the backend is disabled
+     */
+    public int getThreshold()
+    {
+        return threshold;
+    }
+
+    /**
+     * Sets the number of renders after which a template is compiled. Zero
+     * disables the backend.
+     * 
+     * @param threshold
+     */
+    public void setThreshold(int threshold)
+    {
+        if (threshold < 0)
+            throw new IllegalArgumentException(
+                    "threshold must not be negative: " + threshold);
+        this.threshold = threshold;
+    }
+
+    /**
+     * Compiles the template in the background, and switches it over to the
+     * generated class when done.
+     * 
+     * @param template
+     */
+    void schedule(final CompiledTemplate template)
+    {
+        getExecutor().execute(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    template.setRoot(compile(template.getRoot()));
+                }
+                catch (Throwable t)
+                {
+                    log.warn("Unable to compile template, using its render "
+                            + "tree: " + t.getMessage());
+                    template.setCompileFailed();
+                }
+            }
+        });
+    }
+
+    private synchronized ExecutorService getExecutor()
+    {
+        if (executor == null)
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "galoot-bytecode-compiler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        return executor;
+    }
+
+    /**
+     * Stops the background compiler thread once the compilations already
+     * scheduled are done. A template scheduled later starts a new thread.
+     */
+    public synchronized void shutdown()
+    {
+        if (executor != null)
+        {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * Compiles the render tree to a class, and returns an instance of it.
+     * 
+     * @param root
+     * @return a renderer equivalent to the given tree
+     * @throws IOException
+     *             if the tree could not be compiled
+     */
+    public RenderNode compile(RenderNode root) throws IOException
+    {
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if (javac == null)
+            throw new IOException("No Java compiler is available");
+
+        String simpleName = "Renderer" + classCount.incrementAndGet();
+        String className = PACKAGE_NAME + "." + simpleName;
+        RendererSourceGenerator generator = new RendererSourceGenerator(
+                PACKAGE_NAME, simpleName);
+        String source = generator.generate(root);
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+        MemoryFileManager fileManager = new MemoryFileManager(javac
+                .getStandardFileManager(diagnostics, null, null));
+        List<String> options = Arrays.asList("-classpath", getClassPath(),
+                "-proc:none", "-g:none");
+        Boolean success = javac.getTask(null, fileManager, diagnostics,
+                options, null,
+                Collections.singletonList(new SourceFile(className, source)))
+                .call();
+        fileManager.close();
+
+        if (!Boolean.TRUE.equals(success))
+        {
+            StringBuilder message = new StringBuilder(
+                    "Unable to compile template");
+            for (Diagnostic<? extends JavaFileObject> d : diagnostics
+                    .getDiagnostics())
+                message.append("\n").append(d.getMessage(null));
+            throw new IOException(message.toString());
+        }
+
+        try
+        {
+            Class<?> rendererClass = new TemplateClassLoader(
+                    BytecodeCompiler.class.getClassLoader()).define(className,
+                    fileManager.getBytes(className));
+            GeneratedRenderer renderer = (GeneratedRenderer) rendererClass
+                    .getDeclaredConstructor().newInstance();
+            renderer.init(generator.getTexts(), generator.getExpressions(),
+                    generator.getConditions(), generator.getNodes());
+            for (BodyReference reference : generator.getReferences())
+                reference.setOwner(renderer);
+            log.debug("Compiled template to " + className);
+            return renderer;
+        }
+        catch (Exception e)
+        {
+            throw new IOException("Unable to load compiled template: "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * The generated code only refers to galoot classes, so the location of
+     * those is all the compiler needs.
+     */
+    private static String getClassPath()
+    {
+        StringBuilder classPath = new StringBuilder();
+        CodeSource codeSource = GeneratedRenderer.class.getProtectionDomain()
+                .getCodeSource();
+        if (codeSource != null && codeSource.getLocation() != null)
+        {
+            try
+            {
+                classPath.append(new File(codeSource.getLocation().toURI())
+                        .getPath());
+            }
+            catch (Exception e)
+            {
+                // fall back to the system class path
+            }
+        }
+        String systemClassPath = System.getProperty("java.class.path");
+        if (systemClassPath != null && systemClassPath.length() > 0)
+        {
+            if (classPath.length() > 0)
+                classPath.append(File.pathSeparator);
+            classPath.append(systemClassPath);
+        }
+        return classPath.toString();
+    }
+
+    private static final class SourceFile extends SimpleJavaFileObject
+    {
+        private final String source;
+
+        SourceFile(String className, String source)
+        {
+            super(URI.create("string:///" + className.replace('.', '/')
+                    + Kind.SOURCE.extension), Kind.SOURCE);
+            this.source = source;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors)
+        {
+            return source;
+        }
+    }
+
+    private static final class ClassFile extends SimpleJavaFileObject
+    {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        ClassFile(String className)
+        {
+            super(URI.create("bytes:///" + className.replace('.', '/')
+                    + Kind.CLASS.extension), Kind.CLASS);
+        }
+
+        @Override
+        public OutputStream openOutputStream()
+        {
+            return bytes;
+        }
+    }
+
+    /**
+     * Keeps the compiled classes in memory.
+     */
+    private static final class MemoryFileManager extends
+            ForwardingJavaFileManager<StandardJavaFileManager>
+    {
+        private final Map<String, ClassFile> classFiles = new HashMap<String, ClassFile>();
+
+        MemoryFileManager(StandardJavaFileManager fileManager)
+        {
+            super(fileManager);
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(
+                JavaFileManager.Location location, String className,
+                JavaFileObject.Kind kind, FileObject sibling)
+        {
+            ClassFile classFile = new ClassFile(className);
+            classFiles.put(className, classFile);
+            return classFile;
+        }
+
+        byte[] getBytes(String className) throws IOException
+        {
+            ClassFile classFile = classFiles.get(className);
+            if (classFile == null)
+                throw new IOException("No class generated for " + className);
+            return classFile.bytes.toByteArray();
+        }
+    }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import galoot.FragmentCache;
+import galoot.PluginRegistry;
+
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+/**
+ * The cache tag, which caches the rendered contents of its body in the
+ * {@link FragmentCache}, e.g. {% cache 300 user.id %} ... {% endcache %}
+ * 
+ * The first argument is the time to live in seconds; a timeout of 0 or less
+ * turns caching off. The fragment is keyed by the tag and the values of the
+ * remaining arguments. On a hit the body is not rendered at all, so any
+ * variables or macros it defines are not defined either.
+ */
+public class CacheNode implements RenderNode
+{
+    private final Expression timeout;
+
+    private final Expression[] keys;
+
+    private final RenderNode body;
+
+    // ! identifies the tag in the fragment keys, shared with rebuilt copies
+    private final Object id;
+
+    public CacheNode(Expression timeout, Expression[] keys, RenderNode body)
+    {
+        this(timeout, keys, body, new Object());
+    }
+
+    /**
+     * Creates a copy of a tag, sharing its cached fragments.
+     * 
+     * @param timeout
+     * @param keys
+     * @param body
+     * @param id
+     *            the id of the tag being copied
+     */
+    public CacheNode(Expression timeout, Expression[] keys, RenderNode body,
+            Object id)
+    {
+        this.timeout = timeout;
+        this.keys = keys;
+        this.body = body;
+        this.id = id;
+    }
+
+    public void render(final RenderContext context)
+    {
+        long timeToLive = FragmentCache.toMillis(timeout.evaluate(context));
+        // the blocks of a child template must be collected on every render
+        if (timeToLive <= 0 || context.isCollectingBlocks())
+        {
+            body.render(context);
+            return;
+        }
+
+        Object[] key = new Object[keys.length + 1];
+        key[0] = id;
+        for (int i = 0; i < keys.length; ++i)
+            key[i + 1] = keys[i].evaluate(context);
+
+        String fragment = PluginRegistry.getInstance().getFragmentCache().get(
+                Arrays.asList(key), timeToLive, new Supplier<String>()
+                {
+                    public String get()
+                    {
+                        context.beginFilterBlock();
+                        body.render(context);
+                        return context.endFilterBlock();
+                    }
+                });
+        context.write(fragment);
+    }
+
+    public Expression getTimeout()
+    {
+        return timeout;
+    }
+
+    public Expression[] getKeys()
+    {
+        return keys;
+    }
+
+    public RenderNode getBody()
+    {
+        return body;
+    }
+
+    public Object getId()
+    {
+        return id;
+    }
+
+}
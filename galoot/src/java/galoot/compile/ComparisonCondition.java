@@ -0,0 +1,84 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import galoot.TemplateUtils;
+
+/**
+ * Compares two expressions, e.g. {% if var > 1 %}
+ */
+public class ComparisonCondition implements Condition
+{
+    public enum Operator
+    {
+        GT, GTE, LT, LTE, EQ, NE
+    }
+
+    private final Operator operator;
+
+    private final Expression lhs;
+
+    private final Expression rhs;
+
+    public ComparisonCondition(Operator operator, Expression lhs,
+            Expression rhs)
+    {
+        this.operator = operator;
+        this.lhs = lhs;
+        this.rhs = rhs;
+    }
+
+    public boolean test(RenderContext context)
+    {
+        int val = TemplateUtils.compareObjects(lhs.evaluate(context), rhs
+                .evaluate(context));
+        switch (operator)
+        {
+        case GT:
+            return val == 1;
+        case GTE:
+            return val == 1 || val == 0;
+        case LT:
+            return val == -1;
+        case LTE:
+            return val == -1 || val == 0;
+        case EQ:
+            return val == 0;
+        default:
+            return val != 0;
+        }
+    }
+
+    public Operator getOperator()
+    {
+        return operator;
+    }
+
+    public Expression getLhs()
+    {
+        return lhs;
+    }
+
+    public Expression getRhs()
+    {
+        return rhs;
+    }
+
+}
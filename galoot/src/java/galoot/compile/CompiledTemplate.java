@@ -0,0 +1,616 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import galoot.Context;
+import galoot.ContextStack;
+import galoot.Template;
+import galoot.TemplateCache;
+import galoot.TemplateMetrics;
+import galoot.types.Document;
+import galoot.types.SegmentedBuffer;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The compiled form of a template: the root of its render tree, and the name
+ * of the template it extends, if any.
+ * 
+ * Once a template has been rendered often enough, its tree is handed to the
+ * {@link BytecodeCompiler}, and replaced by the generated class when that is
+ * ready.
+ */
+public class CompiledTemplate
+{
+    // ! the name of the parent template, or null
+    private final String parentName;
+
+    private volatile RenderNode root;
+
+    // ! the render tree as compiled, which the root may be generated from
+    private final RenderNode tree;
+
+    private final AtomicInteger renderCount = new AtomicInteger();
+
+    // ! set once the template has been handed to the BytecodeCompiler
+    private final AtomicBoolean compileScheduled = new AtomicBoolean();
+
+    private volatile boolean bytecodeCompiled;
+
+    private volatile boolean compileFailed;
+
+    private final InlineCacheStatistics inlineCacheStatistics;
+
+    // ! the blocks at the top level of the template, or null if it has other
+    // tags, which have to be rendered for their side effects
+    private final List<BlockNode> topLevelBlocks;
+
+    // ! the filters used by the template, or null if it can't be included
+    // in parallel
+    private final String[] parallelFilters;
+
+    // ! the names of the variables the template refers to
+    private String[] referencedNames = new String[0];
+
+    // ! settings for rendering parts in parallel, or null
+    private volatile ParallelRendering parallelRendering;
+
+    // ! starts the referenced Suppliers before rendering, or null
+    private volatile Executor prefetchExecutor;
+
+    // ! the ancestors and block layout of the last streamed render
+    private volatile Inheritance inheritance;
+
+    private volatile TemplateMetrics metrics = new TemplateMetrics(null);
+
+    // ! the names the template binds, or null if its output can't be
+    // memoized
+    private final Set<String> memoBoundNames;
+
+    // ! the memoized outputs of streamed renders, or null
+    private volatile OutputMemo outputMemo;
+
+    public CompiledTemplate(String parentName, RenderNode root)
+    {
+        this(parentName, root, new InlineCacheStatistics());
+    }
+
+    public CompiledTemplate(String parentName, RenderNode root,
+            InlineCacheStatistics inlineCacheStatistics)
+    {
+        this.parentName = parentName;
+        this.root = root;
+        tree = root;
+        this.inlineCacheStatistics = inlineCacheStatistics;
+        List<BlockNode> blocks = new ArrayList<BlockNode>();
+        topLevelBlocks = collectBlocks(root, blocks) ? blocks : null;
+        Set<String> filterNames = new HashSet<String>();
+        if (parentName == null
+                && ParallelSafety.isSafe(root, true, filterNames))
+            parallelFilters = filterNames.toArray(new String[filterNames
+                    .size()]);
+        else
+            parallelFilters = null;
+        memoBoundNames = parentName == null ? MemoSafety.findBoundNames(root)
+                : null;
+    }
+
+    /**
+     * Render the template with the given context.
+     * 
+     * @param contextStack
+     * @return the fully qualified document
+     */
+    public Document render(ContextStack contextStack)
+    {
+        RenderContext context = new RenderContext(contextStack);
+        prefetch(context);
+        if (parentName != null)
+            context.setParentDocument(loadParent(context.getContextStack()));
+
+        renderRoot(context);
+
+        /*
+         * if we have a parent (via extends keyword) return it, since everything
+         * was added to it anyway. Otherwise, return our own document.
+         */
+        return context.getParentDocument() != null ? context
+                .getParentDocument() : context.getDocument();
+    }
+
+    /**
+     * Render the template with the given context, streaming the output to the
+     * given target as it is produced.
+     * 
+     * If the template extends another, the chain of templates is walked up to
+     * the one that extends nothing, and the top template is streamed with the
+     * blocks overridden by the ones below it in place. When the templates
+     * below the top have nothing but blocks and text at their top level, the
+     * overrides are flattened into a block layout once, and reused for as
+     * long as the chain is unchanged. Otherwise, they are rendered first, with
+     * their output discarded, to collect the blocks they override (and for
+     * the side effects of their other tags).
+     * 
+     * @param contextStack
+     * @param out
+     * @throws IOException
+     */
+    public void render(ContextStack contextStack, Appendable out)
+            throws IOException
+    {
+        OutputMemo memo = outputMemo;
+        if (memo != null)
+        {
+            if (contextStack == null)
+                contextStack = new ContextStack();
+            // filters added to the context may not be pure
+            if (contextStack.getFilterMap().getVersion() == 0)
+            {
+                renderMemoized(contextStack, out, memo);
+                return;
+            }
+        }
+
+        RenderContext context = new RenderContext(contextStack, out);
+        prefetch(context);
+        TemplateMetrics metrics = this.metrics;
+        long start = metrics.begin();
+        boolean failed = true;
+        try
+        {
+            stream(context, metrics);
+            failed = false;
+        }
+        finally
+        {
+            metrics.end(start, context.getWrittenChars(), failed);
+        }
+    }
+
+    /**
+     * Writes the memoized output for the context, or renders it (in serial,
+     * recording what it reads) and memoizes it.
+     */
+    private void renderMemoized(ContextStack contextStack, Appendable out,
+            OutputMemo memo) throws IOException
+    {
+        TemplateMetrics metrics = this.metrics;
+        long start = metrics.begin();
+        boolean failed = true;
+        String output = null;
+        try
+        {
+            output = memo.lookup(contextStack);
+            if (output == null)
+            {
+                SegmentedBuffer buffer = new SegmentedBuffer();
+                try
+                {
+                    RenderContext context = new RenderContext(contextStack,
+                            buffer);
+                    Dependencies dependencies = new Dependencies(
+                            memoBoundNames);
+                    context.setDependencies(dependencies);
+                    stream(context, metrics);
+                    output = buffer.toString();
+                    memo.store(dependencies, output);
+                }
+                finally
+                {
+                    buffer.release();
+                }
+            }
+            out.append(output);
+            if (out instanceof Flushable)
+                ((Flushable) out).flush();
+            failed = false;
+        }
+        finally
+        {
+            metrics.end(start, output != null ? output.length() : 0, failed);
+        }
+    }
+
+    private void stream(RenderContext context, TemplateMetrics metrics)
+            throws IOException
+    {
+        try
+        {
+            if (parentName == null)
+                renderRoot(context);
+            else
+            {
+                List<CompiledTemplate> chain = loadAncestors();
+                BlockLayout layout = getFlattenedLayout(chain, metrics);
+                if (layout != null)
+                    context.setBlockLayout(layout);
+                else
+                {
+                    context.setBlockLayout(new BlockLayout());
+                    context.setCollectingBlocks(true);
+                    for (int i = chain.size() - 2; i >= 0; --i)
+                        chain.get(i).renderRoot(context);
+                    renderRoot(context);
+                    context.setCollectingBlocks(false);
+                }
+                chain.get(chain.size() - 1).renderRoot(context);
+            }
+        }
+        catch (UncheckedIOException e)
+        {
+            throw e.getCause();
+        }
+        context.flush();
+    }
+
+    /**
+     * Starts computing the lazy values the template refers to on the prefetch
+     * executor, or else the executor of the parallel rendering, if either is
+     * set.
+     */
+    private void prefetch(RenderContext context)
+    {
+        ParallelRendering parallel = parallelRendering;
+        context.setParallelRendering(parallel);
+        Executor executor = prefetchExecutor;
+        if (executor == null && parallel != null)
+            executor = parallel.getExecutor();
+        if (executor != null)
+            context.getContextStack().prefetch(referencedNames, executor);
+    }
+
+    private void renderRoot(RenderContext context)
+    {
+        RenderNode node = root;
+        if (!compileScheduled.get())
+        {
+            // the threshold may have been lowered below the count since
+            int threshold = BytecodeCompiler.getInstance().getThreshold();
+            if (threshold > 0 && renderCount.incrementAndGet() >= threshold
+                    && compileScheduled.compareAndSet(false, true))
+                BytecodeCompiler.getInstance().schedule(this);
+        }
+        node.render(context);
+    }
+
+    /**
+     * @return the templates this one extends, from its parent up
+     * @throws IOException
+     */
+    private List<CompiledTemplate> loadAncestors() throws IOException
+    {
+        List<CompiledTemplate> chain = new ArrayList<CompiledTemplate>();
+        for (String name = parentName; name != null;)
+        {
+            Template parent = TemplateCache.getInstance().loadTemplate(name);
+            if (parent == null)
+                throw new IOException("Unable to load parent document: "
+                        + name);
+            CompiledTemplate compiled = parent.getCompiledTemplate();
+            if (compiled == this || chain.contains(compiled))
+                throw new IOException("Circular extends: " + name);
+            chain.add(compiled);
+            name = compiled.getParentName();
+        }
+        return chain;
+    }
+
+    /**
+     * Returns the layout of the blocks this template and the ancestors below
+     * the top override, building it if the chain has changed.
+     * 
+     * @param chain
+     *            the ancestors, from the parent up
+     * @return the layout, or null if one of the templates has to be rendered
+     *         to collect its blocks
+     */
+    private BlockLayout getFlattenedLayout(List<CompiledTemplate> chain,
+            TemplateMetrics metrics)
+    {
+        Inheritance inheritance = this.inheritance;
+        boolean hit = inheritance != null && inheritance.chain.equals(chain);
+        metrics.layoutCacheLookup(hit);
+        if (hit)
+            return inheritance.layout;
+
+        BlockLayout layout = new BlockLayout();
+        for (int i = chain.size() - 1; i >= 0 && layout != null; --i)
+        {
+            // the top of the chain is the one rendered, not collected
+            CompiledTemplate template = i == 0 ? this : chain.get(i - 1);
+            if (template.topLevelBlocks == null)
+                layout = null;
+            else
+            {
+                for (BlockNode block : template.topLevelBlocks)
+                    layout.addOverride(block.getName(), block.getBody());
+            }
+        }
+        this.inheritance = new Inheritance(chain, layout);
+        return layout;
+    }
+
+    /**
+     * Adds the blocks found at the top level of the tree to the list.
+     * 
+     * @return false if the tree has anything but blocks and text at its top
+     *         level
+     */
+    private static boolean collectBlocks(RenderNode node, List<BlockNode> blocks)
+    {
+        if (node instanceof NodeList)
+        {
+            for (RenderNode child : ((NodeList) node).getNodes())
+                if (!collectBlocks(child, blocks))
+                    return false;
+            return true;
+        }
+        if (node instanceof BlockNode)
+        {
+            blocks.add((BlockNode) node);
+            return true;
+        }
+        return node == null || node instanceof TextNode;
+    }
+
+    private Document loadParent(ContextStack contextStack)
+    {
+        try
+        {
+            Template parent = TemplateCache.getInstance().loadTemplate(
+                    parentName);
+            if (parent == null)
+                throw new Exception("Unable to load parent document: "
+                        + parentName);
+            return parent.renderDocument(contextStack);
+        }
+        catch (RuntimeException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public String getParentName()
+    {
+        return parentName;
+    }
+
+    public RenderNode getRoot()
+    {
+        return root;
+    }
+
+    /**
+     * Returns a copy of this template with the parts that only depend on the
+     * given static context evaluated (see {@link Specializer}). The copy is
+     * rendered with the same settings, and compiled to bytecode separately.
+     * 
+     * @param staticContext
+     * @return
+     */
+    public CompiledTemplate specialize(Context staticContext)
+    {
+        RenderNode specialized = new Specializer(staticContext, tree)
+                .specialize(tree);
+        if (specialized == null)
+            specialized = new NodeList(Collections.<RenderNode> emptyList());
+        CompiledTemplate template = new CompiledTemplate(parentName,
+                specialized);
+        template.referencedNames = referencedNames;
+        template.parallelRendering = parallelRendering;
+        template.prefetchExecutor = prefetchExecutor;
+        template.metrics = metrics;
+        // a memo of its own, as the copy reads fewer variables for the same
+        // output
+        OutputMemo memo = outputMemo;
+        if (memo != null && template.isMemoizable())
+            template.outputMemo = new OutputMemo(memo.getMaxSize());
+        return template;
+    }
+
+    /**
+     * @return the render tree as compiled
+     */
+    RenderNode getTree()
+    {
+        return tree;
+    }
+
+    /**
+     * @return the counters of the inline caches of this template's variable
+     *         expressions
+     */
+    public InlineCacheStatistics getInlineCacheStatistics()
+    {
+        return inlineCacheStatistics;
+    }
+
+    /**
+     * Switches to the generated renderer.
+     */
+    void setRoot(RenderNode root)
+    {
+        this.root = root;
+        bytecodeCompiled = true;
+    }
+
+    void setCompileFailed()
+    {
+        compileFailed = true;
+    }
+
+    /**
+     * @return true iff extending templates can have this template's blocks
+     *         laid out without rendering it
+     */
+    public boolean hasOnlyTopLevelBlocks()
+    {
+        return topLevelBlocks != null;
+    }
+
+    /**
+     * @return the names of the variables the template refers to, which must
+     *         not be modified
+     */
+    public String[] getReferencedNames()
+    {
+        return referencedNames;
+    }
+
+    void setReferencedNames(String[] referencedNames)
+    {
+        this.referencedNames = referencedNames;
+    }
+
+    /**
+     * @return the metrics of the template's streamed renders
+     */
+    public TemplateMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    public void setMetrics(TemplateMetrics metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    public ParallelRendering getParallelRendering()
+    {
+        return parallelRendering;
+    }
+
+    public Executor getPrefetchExecutor()
+    {
+        return prefetchExecutor;
+    }
+
+    /**
+     * Sets the executor the Suppliers the template refers to are started on
+     * before each render, or turns prefetching off if null (in which case the
+     * executor of the parallel rendering is used, if set).
+     * 
+     * @param prefetchExecutor
+     */
+    public void setPrefetchExecutor(Executor prefetchExecutor)
+    {
+        this.prefetchExecutor = prefetchExecutor;
+    }
+
+    /**
+     * @return true iff the output of the template is a function of the
+     *         variables it reads (see {@link MemoSafety}), so it can be
+     *         memoized
+     */
+    public boolean isMemoizable()
+    {
+        return memoBoundNames != null;
+    }
+
+    public OutputMemo getOutputMemo()
+    {
+        return outputMemo;
+    }
+
+    /**
+     * Turns on memoizing the output of streamed renders in the given memo, or
+     * turns it off if null. Memoized renders are never rendered in parallel.
+     * 
+     * @param outputMemo
+     * @throws IllegalStateException
+     *             if the template isn't memoizable
+     */
+    public void setOutputMemo(OutputMemo outputMemo)
+    {
+        if (outputMemo != null && !isMemoizable())
+            throw new IllegalStateException(
+                    "The template's output can't be memoized");
+        this.outputMemo = outputMemo;
+    }
+
+    /**
+     * Turns on parallel rendering of the parts of this template that allow
+     * it, or turns it off if null.
+     * 
+     * @param parallelRendering
+     */
+    public void setParallelRendering(ParallelRendering parallelRendering)
+    {
+        this.parallelRendering = parallelRendering;
+    }
+
+    /**
+     * @param contextStack
+     * @return true iff the template can be included on another thread: it
+     *         extends nothing, only reads the context, and its filters in the
+     *         context are thread-safe
+     */
+    public boolean isParallelSafe(ContextStack contextStack)
+    {
+        return parallelFilters != null
+                && ParallelRendering.hasSafeFilters(parallelFilters,
+                        contextStack.getFilterMap());
+    }
+
+    /**
+     * @return true iff the template renders with a generated class
+     */
+    public boolean isBytecodeCompiled()
+    {
+        return bytecodeCompiled;
+    }
+
+    /**
+     * @return true iff the template could not be compiled to a class, and
+     *         stays on its render tree
+     */
+    public boolean isCompileFailed()
+    {
+        return compileFailed;
+    }
+
+    private static final class Inheritance
+    {
+        final List<CompiledTemplate> chain;
+
+        final BlockLayout layout;
+
+        Inheritance(List<CompiledTemplate> chain, BlockLayout layout)
+        {
+            this.chain = chain;
+            this.layout = layout;
+        }
+    }
+
+}
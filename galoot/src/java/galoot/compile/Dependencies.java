@@ -0,0 +1,64 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Records the variables and member paths a render reads from the context it
+ * is given, with the first value read from each. Names the template binds
+ * itself (loop variables, macro arguments and the like) are not recorded,
+ * since their values follow from the ones that are.
+ */
+final class Dependencies
+{
+    // ! the names bound by the template
+    private final Set<String> boundNames;
+
+    // ! the paths read, in order, and their values
+    private final Map<String, Object> values = new LinkedHashMap<String, Object>();
+
+    Dependencies(Set<String> boundNames)
+    {
+        this.boundNames = boundNames;
+    }
+
+    /**
+     * @param referent
+     *            the variable the path starts at
+     * @param path
+     *            the variable and its members, joined with dots
+     * @param value
+     *            the value of the path, before any filters
+     */
+    void read(String referent, String path, Object value)
+    {
+        if (!boundNames.contains(referent) && !values.containsKey(path))
+            values.put(path, value);
+    }
+
+    Map<String, Object> getValues()
+    {
+        return values;
+    }
+
+}
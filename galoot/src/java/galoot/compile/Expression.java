@@ -0,0 +1,35 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+/**
+ * An Expression is a compiled variable expression, including any member
+ * lookups and filters, e.g. {{ var.member|filter:"arg" }}
+ */
+public interface Expression
+{
+    /**
+     * Evaluate the expression against the current render.
+     * 
+     * @param context
+     * @return the resultant object, or null
+     */
+    public Object evaluate(RenderContext context);
+}
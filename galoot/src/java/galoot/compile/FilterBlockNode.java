@@ -0,0 +1,58 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import org.apache.commons.lang.ObjectUtils;
+
+/**
+ * The filter tag, which applies filters to the rendered contents of its body,
+ * e.g. {% filter lower|title %} some text {% endfilter %}
+ */
+public class FilterBlockNode implements RenderNode
+{
+    private final FilterChain filters;
+
+    private final RenderNode body;
+
+    public FilterBlockNode(FilterChain filters, RenderNode body)
+    {
+        this.filters = filters;
+        this.body = body;
+    }
+
+    public void render(RenderContext context)
+    {
+        context.beginFilterBlock();
+        body.render(context);
+        Object output = filters.apply(context.endFilterBlock(), context);
+        context.write(ObjectUtils.toString(output, ""));
+    }
+
+    public FilterChain getFilters()
+    {
+        return filters;
+    }
+
+    public RenderNode getBody()
+    {
+        return body;
+    }
+
+}
@@ -0,0 +1,190 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import galoot.ContextStack;
+import galoot.DefaultFilters;
+import galoot.Filter;
+import galoot.FilterMap;
+import galoot.FilterMetrics;
+import galoot.RenderMetrics;
+import galoot.VariableSlots;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A single filter application within a filter chain, e.g. |cut:" "
+ */
+public class FilterCall
+{
+    private static final Log log = LogFactory.getLog(FilterCall.class);
+
+    private static final String[] NO_ARGS = new String[0];
+
+    private final String name;
+
+    // ! the argument text, with any quotes stripped; null if no argument
+    private final String argument;
+
+    // ! true if the argument should first be looked up in the context
+    private final boolean variableArgument;
+
+    // ! the slot of the argument, if it is a variable
+    private final int argumentSlot;
+
+    // ! the argument, split at commas
+    private final String[] arguments;
+
+    // ! the filter, for contexts that haven't added any of their own
+    private final Filter defaultFilter;
+
+    // ! the filter last looked up in a context's own filter map
+    private volatile Binding binding;
+
+    private final FilterMetrics metrics;
+
+    /**
+     * @param name
+     *            the filter name
+     * @param argument
+     *            the argument text, or null if there is none
+     * @param variableArgument
+     *            true if the argument is unquoted, and may refer to a context
+     *            variable
+     */
+    public FilterCall(String name, String argument, boolean variableArgument)
+    {
+        this.name = name;
+        this.argument = argument;
+        this.variableArgument = variableArgument;
+        arguments = argument != null ? StringUtils.split(argument, ',')
+                : NO_ARGS;
+        defaultFilter = DefaultFilters.getInstance().getFilter(name);
+        // only names can be bound by tags, and numbers would grow the slots
+        argumentSlot = variableArgument && isName(argument) ? VariableSlots
+                .getSlot(argument) : -1;
+        metrics = RenderMetrics.getInstance().getFilterMetrics(name);
+    }
+
+    /**
+     * Applies the filter to the given object. If the filter is missing, the
+     * result is null.
+     * 
+     * @param object
+     * @param context
+     * @return the filtered object
+     */
+    public Object apply(Object object, RenderContext context)
+    {
+        ContextStack contextStack = context.getContextStack();
+        Filter filter = getFilter(contextStack.getFilterMap());
+        if (filter == null)
+        {
+            log.warn("Missing filter: [" + name + "] - setting object to 'null'");
+            return null;
+        }
+        long start = metrics.begin();
+        Object result = filter.filter(object, contextStack,
+                getArguments(context));
+        metrics.end(start);
+        return result;
+    }
+
+    /**
+     * Returns the filter, looking it up only if the filter map has changed
+     * since the last lookup. The default filters never change, so maps that
+     * only hold those need no lookup at all.
+     */
+    private Filter getFilter(FilterMap filterMap)
+    {
+        long version = filterMap.getVersion();
+        if (version == 0)
+            return defaultFilter;
+
+        Binding b = binding;
+        if (b != null && b.filterMap == filterMap && b.version == version)
+            return b.filter;
+
+        Filter filter = filterMap.getFilter(name);
+        binding = new Binding(filterMap, version, filter);
+        return filter;
+    }
+
+    private static boolean isName(String s)
+    {
+        if (s == null || s.length() == 0
+                || !Character.isJavaIdentifierStart(s.charAt(0)))
+            return false;
+        for (int i = 1; i < s.length(); ++i)
+            if (!Character.isJavaIdentifierPart(s.charAt(i)))
+                return false;
+        return true;
+    }
+
+    private String[] getArguments(RenderContext context)
+    {
+        if (variableArgument)
+        {
+            // look it up in the context
+            Object var = context.getContextStack().getVariable(argumentSlot,
+                    argument);
+            Dependencies dependencies = context.getDependencies();
+            if (dependencies != null)
+                dependencies.read(argument, argument, var);
+            if (var != null)
+                return StringUtils.split(var.toString(), ',');
+        }
+        return arguments;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public String getArgument()
+    {
+        return argument;
+    }
+
+    public boolean isVariableArgument()
+    {
+        return variableArgument;
+    }
+
+    private static final class Binding
+    {
+        final FilterMap filterMap;
+
+        final long version;
+
+        final Filter filter;
+
+        Binding(FilterMap filterMap, long version, Filter filter)
+        {
+            this.filterMap = filterMap;
+            this.version = version;
+            this.filter = filter;
+        }
+    }
+
+}
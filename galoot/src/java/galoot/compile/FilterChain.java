@@ -0,0 +1,58 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import java.util.List;
+
+/**
+ * The filters applied to an expression or {% filter %} block, in order.
+ */
+public class FilterChain
+{
+    private final FilterCall[] calls;
+
+    public FilterChain(List<FilterCall> calls)
+    {
+        this.calls = calls.toArray(new FilterCall[calls.size()]);
+    }
+
+    public Object apply(Object object, RenderContext context)
+    {
+        for (int i = 0; i < calls.length; ++i)
+            object = calls[i].apply(object, context);
+        return object;
+    }
+
+    public boolean isEmpty()
+    {
+        return calls.length == 0;
+    }
+
+    /**
+     * Returns the filter calls. The array must not be modified.
+     * 
+     * @return
+     */
+    public FilterCall[] getCalls()
+    {
+        return calls;
+    }
+
+}
@@ -0,0 +1,56 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import galoot.TemplateUtils;
+
+import java.util.List;
+
+/**
+ * The firstof tag, e.g. {% firstof var1 var2 "default" %}
+ */
+public class FirstOfNode implements RenderNode
+{
+    private final Expression[] arguments;
+
+    public FirstOfNode(List<Expression> arguments)
+    {
+        this.arguments = arguments.toArray(new Expression[arguments.size()]);
+    }
+
+    public void render(RenderContext context)
+    {
+        for (int i = 0; i < arguments.length; ++i)
+        {
+            Object var = arguments[i].evaluate(context);
+            if (TemplateUtils.evaluateAsBoolean(var))
+            {
+                context.write(var.toString());
+                return;
+            }
+        }
+    }
+
+    public Expression[] getArguments()
+    {
+        return arguments;
+    }
+
+}
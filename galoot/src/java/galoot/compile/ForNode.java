@@ -0,0 +1,168 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import galoot.ContextStack;
+import galoot.ForLoop;
+import galoot.VariableSlots;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The for tag, e.g. {% for item in list %} {{ forloop.counter1 }} {% endfor %}
+ */
+public class ForNode implements RenderNode
+{
+    private static final int FORLOOP_SLOT = VariableSlots.getSlot("forloop");
+
+    // ! this is the loop variable, which will get updated each iteration
+    private final String loopVar;
+
+    private final int loopVarSlot;
+
+    private final Expression expression;
+
+    private final RenderNode body;
+
+    // ! the filters used by the body, or null if it can't be rendered in
+    // parallel
+    private final String[] parallelFilters;
+
+    public ForNode(String loopVar, Expression expression, RenderNode body)
+    {
+        this.loopVar = loopVar;
+        loopVarSlot = VariableSlots.getSlot(loopVar);
+        this.expression = expression;
+        this.body = body;
+        Set<String> filterNames = new HashSet<String>();
+        if (ParallelSafety.isSafe(body, false, filterNames))
+            parallelFilters = filterNames.toArray(new String[filterNames
+                    .size()]);
+        else
+            parallelFilters = null;
+    }
+
+    public void render(RenderContext context)
+    {
+        for (Loop loop = begin(context); loop.next();)
+            body.render(context);
+    }
+
+    /**
+     * Evaluates the loop expression and returns the loop state. Each call to
+     * {@link Loop#next()} sets up the context for the next iteration, and
+     * cleans up after the previous one.
+     * 
+     * @param context
+     * @return
+     */
+    public Loop begin(RenderContext context)
+    {
+        ForLoop forLoop = new ForLoop(expression.evaluate(context), context
+                .getForLoop());
+        ParallelRendering parallel = context.getParallelRendering();
+        if (parallel != null && parallelFilters != null
+                && parallel.renderLoop(this, forLoop, parallelFilters, context))
+        {
+            // already rendered, so there is nothing left to iterate
+            forLoop = new ForLoop(null, forLoop.parent());
+        }
+        return new Loop(context, forLoop);
+    }
+
+    /**
+     * Renders the body for each of the loop's items.
+     */
+    void renderIterations(ForLoop forLoop, RenderContext context)
+    {
+        for (Loop loop = new Loop(context, forLoop); loop.next();)
+            body.render(context);
+    }
+
+    /**
+     * The state of one execution of a for loop.
+     */
+    public final class Loop
+    {
+        private final RenderContext context;
+
+        private final ContextStack contextStack;
+
+        private final ForLoop forLoop;
+
+        private boolean started;
+
+        Loop(RenderContext context, ForLoop forLoop)
+        {
+            this.context = context;
+            this.contextStack = context.getContextStack();
+            this.forLoop = forLoop;
+        }
+
+        /**
+         * Advances to the next iteration.
+         * 
+         * @return false if the loop is finished
+         */
+        public boolean next()
+        {
+            if (started)
+            {
+                // pop the context from the last iteration
+                contextStack.popFrame();
+            }
+            if (!forLoop.next())
+            {
+                if (started)
+                    context.setForLoop(forLoop.parent());
+                return false;
+            }
+            if (!started)
+            {
+                // nested loops see this one as their parent
+                context.setForLoop(forLoop);
+                started = true;
+            }
+
+            // each iteration gets a fresh context
+            contextStack.push();
+            contextStack.putVariable(loopVarSlot, loopVar, forLoop.current());
+            contextStack.putVariable(FORLOOP_SLOT, "forloop", forLoop);
+            return true;
+        }
+    }
+
+    public String getLoopVar()
+    {
+        return loopVar;
+    }
+
+    public Expression getExpression()
+    {
+        return expression;
+    }
+
+    public RenderNode getBody()
+    {
+        return body;
+    }
+
+}
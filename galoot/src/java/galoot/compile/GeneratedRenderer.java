@@ -0,0 +1,60 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+/**
+ * Base class of the renderers generated by the {@link BytecodeCompiler}. The
+ * generated subclass holds the template's straight-line code, and refers to
+ * the parts of the render tree it does not inline through the operand arrays.
+ * 
+ * This class and its members must be public, since the generated classes live
+ * in their own class loader.
+ */
+public abstract class GeneratedRenderer implements RenderNode
+{
+    // ! the static text of the template
+    protected StaticText[] texts;
+
+    protected Expression[] expressions;
+
+    protected Condition[] conditions;
+
+    protected RenderNode[] nodes;
+
+    public final void init(StaticText[] texts, Expression[] expressions,
+            Condition[] conditions, RenderNode[] nodes)
+    {
+        this.texts = texts;
+        this.expressions = expressions;
+        this.conditions = conditions;
+        this.nodes = nodes;
+    }
+
+    /**
+     * Renders the body with the given id. Tags that are not inlined (blocks,
+     * filter blocks, macros) call back into the generated code for their
+     * bodies through this method.
+     * 
+     * @param id
+     * @param context
+     */
+    public abstract void renderBody(int id, RenderContext context);
+
+}
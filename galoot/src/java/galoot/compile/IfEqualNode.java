@@ -0,0 +1,84 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import java.util.List;
+
+/**
+ * The ifequal tag, e.g. {% ifequal var1 var2 "tom" %}
+ */
+public class IfEqualNode implements RenderNode
+{
+    private final Expression[] arguments;
+
+    private final RenderNode body;
+
+    private final RenderNode elseBody;
+
+    public IfEqualNode(List<Expression> arguments, RenderNode body,
+            RenderNode elseBody)
+    {
+        this.arguments = arguments.toArray(new Expression[arguments.size()]);
+        this.body = body;
+        this.elseBody = elseBody;
+    }
+
+    public void render(RenderContext context)
+    {
+        if (test(context))
+            body.render(context);
+        else
+            elseBody.render(context);
+    }
+
+    /**
+     * @param context
+     * @return true iff the arguments are all equal
+     */
+    boolean test(RenderContext context)
+    {
+        Object[] values = new Object[arguments.length];
+        for (int i = 0; i < arguments.length; ++i)
+            values[i] = arguments[i].evaluate(context);
+
+        // every argument is compared against the last one
+        boolean equals = true;
+        Object object = values[values.length - 1];
+        for (int i = values.length - 2; i >= 0 && equals && object != null; --i)
+            equals &= (values[i] != null && object.equals(values[i]));
+        return equals;
+    }
+
+    public Expression[] getArguments()
+    {
+        return arguments;
+    }
+
+    public RenderNode getBody()
+    {
+        return body;
+    }
+
+    public RenderNode getElseBody()
+    {
+        return elseBody;
+    }
+
+}
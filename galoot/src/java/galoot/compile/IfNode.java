@@ -0,0 +1,82 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import java.util.List;
+
+/**
+ * The if tag, along with any elseif and else clauses. The first clause whose
+ * condition passes is rendered.
+ */
+public class IfNode implements RenderNode
+{
+    private final Condition[] conditions;
+
+    private final RenderNode[] bodies;
+
+    // ! the else clause, or null
+    private final RenderNode elseBody;
+
+    /**
+     * @param conditions
+     *            the if condition, followed by the elseif conditions
+     * @param bodies
+     *            the body for each condition
+     * @param elseBody
+     *            the else clause, or null
+     */
+    public IfNode(List<Condition> conditions, List<RenderNode> bodies,
+            RenderNode elseBody)
+    {
+        this.conditions = conditions.toArray(new Condition[conditions.size()]);
+        this.bodies = bodies.toArray(new RenderNode[bodies.size()]);
+        this.elseBody = elseBody;
+    }
+
+    public void render(RenderContext context)
+    {
+        for (int i = 0; i < conditions.length; ++i)
+        {
+            if (conditions[i].test(context))
+            {
+                bodies[i].render(context);
+                return;
+            }
+        }
+        if (elseBody != null)
+            elseBody.render(context);
+    }
+
+    public Condition[] getConditions()
+    {
+        return conditions;
+    }
+
+    public RenderNode[] getBodies()
+    {
+        return bodies;
+    }
+
+    public RenderNode getElseBody()
+    {
+        return elseBody;
+    }
+
+}
@@ -0,0 +1,144 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import galoot.Template;
+import galoot.TemplateCache;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The include tag, which renders another template in the current context, e.g.
+ * {% include "header.html" %} or {% include headerFile %}
+ */
+public class IncludeNode implements RenderNode
+{
+    private static final Log log = LogFactory.getLog(IncludeNode.class);
+
+    private final String filename;
+
+    private final Expression expression;
+
+    /**
+     * @param filename
+     *            the name of the file to include, or null if it is given by an
+     *            expression
+     * @param expression
+     *            the expression to evaluate for the filename, or null
+     */
+    public IncludeNode(String filename, Expression expression)
+    {
+        this.filename = filename;
+        this.expression = expression;
+    }
+
+    public void render(RenderContext context)
+    {
+        Template template = load(context);
+        if (template != null)
+            render(template, context);
+    }
+
+    /**
+     * Finds the template to include.
+     * 
+     * @param context
+     * @return the template, or null if it could not be loaded
+     */
+    Template load(RenderContext context)
+    {
+        String name = filename;
+        if (name == null)
+        {
+            Object var = expression.evaluate(context);
+            if (var == null)
+            {
+                log.warn("include expression evaluated to null");
+                return null;
+            }
+            name = var.toString();
+        }
+
+        try
+        {
+            Template template = TemplateCache.getInstance().loadTemplate(name);
+            if (template == null)
+                log.warn("File could not be included: " + name);
+            return template;
+        }
+        catch (Throwable e)
+        {
+            log.warn("File could not be included: " + name);
+            // ignore the problem for now
+            return null;
+        }
+    }
+
+    /**
+     * Renders the loaded template in the current context.
+     */
+    void render(Template template, RenderContext context)
+    {
+        try
+        {
+            // rendered whole, so a failure doesn't leave partial output
+            context.write(template.render(context.getContextStack()));
+        }
+        catch (Throwable e)
+        {
+            log.warn("Included template could not be rendered", e);
+        }
+    }
+
+    /**
+     * Writes the output of the template, rendered on another thread.
+     */
+    void write(Future<String> output, RenderContext context)
+    {
+        try
+        {
+            context.write(output.get());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted while including a template");
+        }
+        catch (ExecutionException e)
+        {
+            log.warn("Included template could not be rendered", e.getCause());
+        }
+    }
+
+    public String getFilename()
+    {
+        return filename;
+    }
+
+    public Expression getExpression()
+    {
+        return expression;
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for the inline caches of the variable expressions in one template.
+ */
+public class InlineCacheStatistics
+{
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder megamorphicMisses = new LongAdder();
+
+    private final LongAdder fullDotLookups = new LongAdder();
+
+    private final LongAdder fullDotHits = new LongAdder();
+
+    private final LongAdder fullDotSkips = new LongAdder();
+
+    void hit()
+    {
+        hits.increment();
+    }
+
+    void miss(boolean megamorphic)
+    {
+        misses.increment();
+        if (megamorphic)
+            megamorphicMisses.increment();
+    }
+
+    void fullDotLookup(boolean hit)
+    {
+        fullDotLookups.increment();
+        if (hit)
+            fullDotHits.increment();
+    }
+
+    void fullDotSkip()
+    {
+        fullDotSkips.increment();
+    }
+
+    /**
+     * @return member accesses whose receiver class was in the inline cache
+     */
+    public long getHits()
+    {
+        return hits.sum();
+    }
+
+    /**
+     * @return member accesses that had to go to the {@link galoot.AccessorCache}
+     */
+    public long getMisses()
+    {
+        return misses.sum();
+    }
+
+    /**
+     * @return misses at call sites that have seen too many receiver classes to
+     *         cache any more
+     */
+    public long getMegamorphicMisses()
+    {
+        return megamorphicMisses.sum();
+    }
+
+    /**
+     * @return the fraction of member accesses that hit, or 0 if there were none
+     */
+    public double getHitRate()
+    {
+        long h = getHits(), total = h + getMisses();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    /**
+     * @return lookups of the full dot expression (e.g. "a.b.c") as a variable
+     */
+    public long getFullDotLookups()
+    {
+        return fullDotLookups.sum();
+    }
+
+    public long getFullDotHits()
+    {
+        return fullDotHits.sum();
+    }
+
+    /**
+     * @return full dot lookups skipped, because no variable name in the
+     *         context contained a dot
+     */
+    public long getFullDotSkips()
+    {
+        return fullDotSkips.sum();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "hits=" + getHits() + ", misses=" + getMisses()
+                + ", megamorphicMisses=" + getMegamorphicMisses()
+                + ", fullDotLookups=" + getFullDotLookups()
+                + ", fullDotHits=" + getFullDotHits() + ", fullDotSkips="
+                + getFullDotSkips();
+    }
+
+}
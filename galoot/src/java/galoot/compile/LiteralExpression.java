@@ -0,0 +1,89 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A string or number literal, optionally followed by members and filters,
+ * e.g. {{ "text"|upper }} or {{ 42 }}
+ */
+public class LiteralExpression implements Expression
+{
+    private final Object value;
+
+    private final List<String> members;
+
+    private final FilterChain filters;
+
+    // ! an inline cache for each member
+    private final MemberCache[] memberCaches;
+
+    public LiteralExpression(Object value, String[] members,
+            FilterChain filters)
+    {
+        this(value, members, filters, new InlineCacheStatistics());
+    }
+
+    /**
+     * @param value
+     * @param members
+     * @param filters
+     * @param statistics
+     *            the counters of the template the expression is in
+     */
+    public LiteralExpression(Object value, String[] members,
+            FilterChain filters, InlineCacheStatistics statistics)
+    {
+        this.value = value;
+        this.members = Collections.unmodifiableList(Arrays.asList(members));
+        this.filters = filters;
+        memberCaches = new MemberCache[members.length];
+        for (int i = 0; i < members.length; ++i)
+            memberCaches[i] = new MemberCache(members[i], statistics);
+    }
+
+    public Object evaluate(RenderContext context)
+    {
+        Object object = value;
+        for (int i = 0; object != null && i < memberCaches.length; ++i)
+            object = memberCaches[i].evaluate(object, context
+                    .getContextStack());
+        return filters.apply(object, context);
+    }
+
+    public Object getValue()
+    {
+        return value;
+    }
+
+    public List<String> getMembers()
+    {
+        return members;
+    }
+
+    public FilterChain getFilters()
+    {
+        return filters;
+    }
+
+}
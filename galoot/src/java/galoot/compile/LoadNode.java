@@ -0,0 +1,147 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import galoot.Filter;
+import galoot.PluginRegistry;
+
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The load tag, which makes plug-ins from the {@link PluginRegistry} available
+ * to the current context, e.g. {% load "myfilter" as f, otherFilter %}
+ */
+public class LoadNode implements RenderNode
+{
+    private static final Log log = LogFactory.getLog(LoadNode.class);
+
+    private final Plugin[] plugins;
+
+    public LoadNode(List<Plugin> plugins)
+    {
+        this.plugins = plugins.toArray(new Plugin[plugins.size()]);
+    }
+
+    public void render(RenderContext context)
+    {
+        for (int i = 0; i < plugins.length; ++i)
+        {
+            Plugin plugin = plugins[i];
+            String pluginName = plugin.getName(context);
+            if (pluginName == null)
+            {
+                log.warn("plug-in expression evaluated to null");
+                continue;
+            }
+            String alias = plugin.alias != null ? plugin.alias : pluginName;
+
+            Filter filter = plugin.getFilter(pluginName);
+            if (filter == null)
+                log.warn("Unable to load filter plugin: [" + pluginName + "]");
+            else
+            {
+                if (log.isDebugEnabled())
+                    log.debug("Loaded filter plugin: [" + pluginName
+                            + "] as [" + alias + "]");
+                // add the filter to the context's filter map
+                context.getContextStack().getFilterMap().addFilter(filter,
+                        alias);
+            }
+        }
+    }
+
+    public Plugin[] getPlugins()
+    {
+        return plugins;
+    }
+
+    /**
+     * A plug-in to load: either a name, or an expression that evaluates to the
+     * name, with an optional alias.
+     */
+    public static class Plugin
+    {
+        private final String name;
+
+        private final Expression expression;
+
+        private final String alias;
+
+        // ! the registry version the filter was looked up in, or -1
+        private volatile long version = -1;
+
+        private volatile Filter filter;
+
+        public Plugin(String name, Expression expression, String alias)
+        {
+            this.name = name;
+            this.expression = expression;
+            this.alias = alias;
+        }
+
+        /**
+         * Returns the registered filter with the given name. Filters loaded by
+         * a fixed name are looked up again only when the registry changes.
+         */
+        protected Filter getFilter(String pluginName)
+        {
+            PluginRegistry registry = PluginRegistry.getInstance();
+            if (name == null)
+                return registry.getFilter(pluginName);
+
+            long registryVersion = registry.getVersion();
+            if (version != registryVersion)
+            {
+                // the filter is written first, so a reader that sees the new
+                // version sees it too
+                filter = registry.getFilter(name);
+                version = registryVersion;
+            }
+            return filter;
+        }
+
+        protected String getName(RenderContext context)
+        {
+            if (name != null)
+                return name;
+            Object var = expression.evaluate(context);
+            return var != null ? var.toString() : null;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public Expression getExpression()
+        {
+            return expression;
+        }
+
+        public String getAlias()
+        {
+            return alias;
+        }
+    }
+
+}
@@ -0,0 +1,62 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+/**
+ * Joins two conditions with "and" or "or", e.g. {% if a and not b %}
+ */
+public class LogicalCondition implements Condition
+{
+    private final Condition left;
+
+    private final Condition right;
+
+    private final boolean and;
+
+    public LogicalCondition(Condition left, Condition right, boolean and)
+    {
+        this.left = left;
+        this.right = right;
+        this.and = and;
+    }
+
+    public boolean test(RenderContext context)
+    {
+        return and ? left.test(context) && right.test(context) : left
+                .test(context)
+                || right.test(context);
+    }
+
+    public Condition getLeft()
+    {
+        return left;
+    }
+
+    public Condition getRight()
+    {
+        return right;
+    }
+
+    public boolean isAnd()
+    {
+        return and;
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import galoot.ContextStack;
+import galoot.Macro;
+
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Calls a macro, e.g. {{ name(var, "text") }}
+ * 
+ * Calls to a macro the compiler knows is the one in scope (see
+ * {@link TemplateCompiler}) are bound to it, and don't look it up.
+ */
+public class MacroCallNode implements RenderNode
+{
+    private static final Log log = LogFactory.getLog(MacroCallNode.class);
+
+    private final String name;
+
+    private final Expression[] arguments;
+
+    // ! the macro called, or null if it is looked up on each call
+    private final Macro macro;
+
+    public MacroCallNode(String name, List<Expression> arguments)
+    {
+        this(name, arguments.toArray(new Expression[arguments.size()]), null);
+    }
+
+    /**
+     * @param name
+     * @param arguments
+     * @param macro
+     *            the macro called, or null to look it up on each call
+     */
+    public MacroCallNode(String name, Expression[] arguments, Macro macro)
+    {
+        this.name = name;
+        this.arguments = arguments;
+        this.macro = macro;
+    }
+
+    public void render(RenderContext context)
+    {
+        ContextStack contextStack = context.getContextStack();
+        Macro macro = this.macro != null ? this.macro : contextStack
+                .getMacro(name);
+        if (macro == null)
+        {
+            log.warn("Unknown macro: " + name);
+            return;
+        }
+        if (macro.getNumArguments() != arguments.length)
+            throw new RuntimeException("Macro '" + name + "' expected "
+                    + macro.getNumArguments() + " arguments");
+
+        Object[] values = new Object[arguments.length];
+        for (int i = 0; i < arguments.length; ++i)
+            values[i] = arguments[i].evaluate(context);
+
+        // push a new context, with the arguments as vars
+        contextStack.push();
+        for (int i = 0; i < values.length; ++i)
+            macro.bindArgument(contextStack, i, values[i]);
+
+        macro.getBody().render(context);
+
+        contextStack.popFrame();
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public Expression[] getArguments()
+    {
+        return arguments;
+    }
+
+    /**
+     * @return the macro the call is bound to, or null if it is looked up
+     */
+    public Macro getMacro()
+    {
+        return macro;
+    }
+
+}
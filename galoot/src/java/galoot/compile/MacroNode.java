@@ -0,0 +1,73 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import galoot.Macro;
+
+/**
+ * Defines a macro in the current context, e.g. {% macro name(arg1, arg2) %}
+ * {% endmacro %}
+ * 
+ * The Macro is built once, and the same instance is defined on each render.
+ */
+public class MacroNode implements RenderNode
+{
+    private final String name;
+
+    private final String[] arguments;
+
+    private final RenderNode body;
+
+    private final Macro macro;
+
+    public MacroNode(String name, String[] arguments, RenderNode body)
+    {
+        this.name = name;
+        this.arguments = arguments;
+        this.body = body;
+        macro = new Macro(name, arguments, body);
+    }
+
+    public void render(RenderContext context)
+    {
+        context.getContextStack().putMacro(name, macro);
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public String[] getArguments()
+    {
+        return arguments;
+    }
+
+    public RenderNode getBody()
+    {
+        return body;
+    }
+
+    public Macro getMacro()
+    {
+        return macro;
+    }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import galoot.AccessorCache;
+import galoot.AccessorCache.Accessor;
+import galoot.ContextStack;
+import galoot.TemplateUtils;
+
+/**
+ * An inline cache for one member access of one variable expression, e.g. the
+ * "name" in {{ user.name }}.
+ * 
+ * A call site almost always sees objects of the same class, so the accessors
+ * for the last few classes seen are kept right here, and checked by identity
+ * before going to the global {@link AccessorCache}. Once a site has seen more
+ * than {@link #MAX_ENTRIES} classes, it is megamorphic, and new classes are no
+ * longer added.
+ */
+final class MemberCache
+{
+    static final int MAX_ENTRIES = 4;
+
+    private static final Entry[] EMPTY = new Entry[0];
+
+    private final String memberName;
+
+    private final InlineCacheStatistics statistics;
+
+    // ! replaced, never modified, so readers need no locking
+    private volatile Entry[] entries = EMPTY;
+
+    MemberCache(String memberName, InlineCacheStatistics statistics)
+    {
+        this.memberName = memberName;
+        this.statistics = statistics;
+    }
+
+    /**
+     * Evaluates the member of the given object.
+     * 
+     * @param object
+     *            the object, which must not be null
+     * @param context
+     * @return the member
+     * @see TemplateUtils#evaluateMember(Object, String, ContextStack)
+     */
+    Object evaluate(Object object, ContextStack context)
+    {
+        Class<?> type = object.getClass();
+        Entry[] cached = entries;
+        Accessor accessor = null;
+        for (int i = 0; i < cached.length; ++i)
+        {
+            if (cached[i].type == type)
+            {
+                accessor = cached[i].accessor;
+                break;
+            }
+        }
+
+        if (accessor != null)
+            statistics.hit();
+        else
+        {
+            accessor = AccessorCache.getAccessor(type, memberName);
+            boolean megamorphic = cached.length >= MAX_ENTRIES;
+            if (!megamorphic)
+            {
+                // a racing update may be lost, and simply happens again
+                Entry[] updated = new Entry[cached.length + 1];
+                System.arraycopy(cached, 0, updated, 0, cached.length);
+                updated[cached.length] = new Entry(type, accessor);
+                entries = updated;
+            }
+            statistics.miss(megamorphic);
+        }
+
+        Object member = accessor.get(object);
+        if (member != Accessor.NOT_FOUND)
+            return member;
+        return TemplateUtils.evaluateIndex(object, memberName, context);
+    }
+
+    String getMemberName()
+    {
+        return memberName;
+    }
+
+    private static final class Entry
+    {
+        final Class<?> type;
+
+        final Accessor accessor;
+
+        Entry(Class<?> type, Accessor accessor)
+        {
+            this.type = type;
+            this.accessor = accessor;
+        }
+    }
+
+}
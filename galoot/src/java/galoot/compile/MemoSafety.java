@@ -0,0 +1,241 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import galoot.DefaultFilters;
+import galoot.PureFilter;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides whether the output of a render tree can be memoized, i.e. whether
+ * it is a function of the context variables it reads. Tags with effects
+ * beyond their output ({% set %}, {% load %}), or whose output depends on
+ * something other than the context ({% now %}, includes, cache tags), are
+ * not allowed, nor are filters that aren't {@link PureFilter}s, or calls to
+ * macros the template doesn't define. Anything not known to be allowed is
+ * not.
+ * 
+ * The names the tree binds itself are collected, so reads of them aren't
+ * recorded as dependencies. That only holds if every read of such a name is
+ * inside a tag that binds it, so a tree that also reads one elsewhere (e.g.
+ * the loop variable after the loop) isn't allowed either.
+ */
+final class MemoSafety
+{
+    private final Set<String> boundNames = new HashSet<String>();
+
+    private final Set<String> definedMacros = new HashSet<String>();
+
+    private final Set<String> calledMacros = new HashSet<String>();
+
+    // ! the names bound by the enclosing tags, with how many bind each
+    private final Map<String, Integer> inScope = new HashMap<String, Integer>();
+
+    // ! the names read outside any tag that binds them
+    private final Set<String> freeNames = new HashSet<String>();
+
+    private MemoSafety()
+    {
+    }
+
+    /**
+     * @param root
+     * @return the names bound by the tree, or null if its output can't be
+     *         memoized
+     */
+    static Set<String> findBoundNames(RenderNode root)
+    {
+        MemoSafety safety = new MemoSafety();
+        if (!safety.isSafe(root)
+                || !safety.definedMacros.containsAll(safety.calledMacros))
+            return null;
+        for (String name : safety.freeNames)
+            if (safety.boundNames.contains(name))
+                return null;
+        return safety.boundNames;
+    }
+
+    private void bind(String... names)
+    {
+        for (String name : names)
+        {
+            boundNames.add(name);
+            Integer count = inScope.get(name);
+            inScope.put(name, count == null ? 1 : count + 1);
+        }
+    }
+
+    private void unbind(String... names)
+    {
+        for (String name : names)
+        {
+            int count = inScope.get(name);
+            if (count == 1)
+                inScope.remove(name);
+            else
+                inScope.put(name, count - 1);
+        }
+    }
+
+    private void read(String name)
+    {
+        if (!inScope.containsKey(name))
+            freeNames.add(name);
+    }
+
+    private boolean isSafe(RenderNode body, String... names)
+    {
+        bind(names);
+        try
+        {
+            return isSafe(body);
+        }
+        finally
+        {
+            unbind(names);
+        }
+    }
+
+    private boolean isSafe(RenderNode node)
+    {
+        if (node == null || node instanceof TextNode)
+            return true;
+        if (node instanceof NodeList)
+        {
+            for (RenderNode child : ((NodeList) node).getNodes())
+                if (!isSafe(child))
+                    return false;
+            return true;
+        }
+        if (node instanceof VariableNode)
+            return isSafe(((VariableNode) node).getExpression());
+        if (node instanceof FirstOfNode)
+            return isSafe(((FirstOfNode) node).getArguments());
+        if (node instanceof IfNode)
+        {
+            IfNode ifNode = (IfNode) node;
+            for (Condition condition : ifNode.getConditions())
+                if (!isSafe(condition))
+                    return false;
+            for (RenderNode body : ifNode.getBodies())
+                if (!isSafe(body))
+                    return false;
+            return isSafe(ifNode.getElseBody());
+        }
+        if (node instanceof IfEqualNode)
+        {
+            IfEqualNode ifEqual = (IfEqualNode) node;
+            return isSafe(ifEqual.getArguments())
+                    && isSafe(ifEqual.getBody())
+                    && isSafe(ifEqual.getElseBody());
+        }
+        if (node instanceof ForNode)
+        {
+            ForNode forNode = (ForNode) node;
+            return isSafe(forNode.getExpression())
+                    && isSafe(forNode.getBody(), forNode.getLoopVar(),
+                            "forloop");
+        }
+        if (node instanceof WithNode)
+        {
+            WithNode with = (WithNode) node;
+            return isSafe(with.getExpression())
+                    && isSafe(with.getBody(), with.getVar());
+        }
+        if (node instanceof FilterBlockNode)
+        {
+            FilterBlockNode filterBlock = (FilterBlockNode) node;
+            return isSafe(filterBlock.getFilters())
+                    && isSafe(filterBlock.getBody());
+        }
+        if (node instanceof BlockNode)
+            return isSafe(((BlockNode) node).getBody(), "block");
+        if (node instanceof MacroNode)
+        {
+            MacroNode macro = (MacroNode) node;
+            definedMacros.add(macro.getName());
+            return isSafe(macro.getBody(), macro.getArguments());
+        }
+        if (node instanceof MacroCallNode)
+        {
+            MacroCallNode call = (MacroCallNode) node;
+            if (call.getMacro() == null)
+                calledMacros.add(call.getName());
+            return isSafe(call.getArguments());
+        }
+        return false;
+    }
+
+    private boolean isSafe(Expression[] expressions)
+    {
+        for (Expression expression : expressions)
+            if (!isSafe(expression))
+                return false;
+        return true;
+    }
+
+    private boolean isSafe(Expression expression)
+    {
+        if (expression instanceof VariableExpression)
+        {
+            VariableExpression variable = (VariableExpression) expression;
+            read(variable.getReferent());
+            return isSafe(variable.getFilters());
+        }
+        if (expression instanceof LiteralExpression)
+            return isSafe(((LiteralExpression) expression).getFilters());
+        return expression instanceof ConstantExpression;
+    }
+
+    private boolean isSafe(Condition condition)
+    {
+        if (condition instanceof TruthCondition)
+            return isSafe(((TruthCondition) condition).getExpression());
+        if (condition instanceof ComparisonCondition)
+        {
+            ComparisonCondition comparison = (ComparisonCondition) condition;
+            return isSafe(comparison.getLhs()) && isSafe(comparison.getRhs());
+        }
+        if (condition instanceof LogicalCondition)
+        {
+            LogicalCondition logical = (LogicalCondition) condition;
+            return isSafe(logical.getLeft()) && isSafe(logical.getRight());
+        }
+        return false;
+    }
+
+    private boolean isSafe(FilterChain filters)
+    {
+        if (filters != null)
+            for (FilterCall call : filters.getCalls())
+            {
+                if (!(DefaultFilters.getInstance().getFilter(call.getName()) instanceof PureFilter))
+                    return false;
+                if (call.isVariableArgument())
+                    read(call.getArgument());
+            }
+        return true;
+    }
+
+}
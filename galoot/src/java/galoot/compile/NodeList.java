@@ -0,0 +1,97 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A sequence of nodes, rendered in order.
+ */
+public class NodeList implements RenderNode
+{
+    private final RenderNode[] nodes;
+
+    // ! the filters used next to the includes, or null if the includes
+    // can't be rendered in parallel
+    private final String[] includeFilters;
+
+    public NodeList(List<RenderNode> nodes)
+    {
+        this.nodes = nodes.toArray(new RenderNode[nodes.size()]);
+        includeFilters = findParallelIncludes(this.nodes);
+    }
+
+    public void render(RenderContext context)
+    {
+        ParallelRendering parallel = context.getParallelRendering();
+        if (parallel != null
+                && includeFilters != null
+                && ParallelRendering.hasSafeFilters(includeFilters, context
+                        .getContextStack().getFilterMap()))
+        {
+            parallel.renderIncludes(nodes, context);
+            return;
+        }
+        for (int i = 0; i < nodes.length; ++i)
+            nodes[i].render(context);
+    }
+
+    /**
+     * @return true iff there are several includes in the list, which may be
+     *         rendered in parallel
+     */
+    public boolean hasParallelIncludes()
+    {
+        return includeFilters != null;
+    }
+
+    /**
+     * Returns the filters used by the nodes other than includes, if there are
+     * at least two includes and the other nodes are safe to render alongside
+     * them.
+     */
+    private static String[] findParallelIncludes(RenderNode[] nodes)
+    {
+        int includes = 0;
+        Set<String> filterNames = new HashSet<String>();
+        for (RenderNode node : nodes)
+        {
+            if (node instanceof IncludeNode)
+                ++includes;
+            else if (!ParallelSafety.isSafe(node, true, filterNames))
+                return null;
+        }
+        return includes >= 2 ? filterNames.toArray(new String[filterNames
+                .size()]) : null;
+    }
+
+    /**
+     * Returns the child nodes. The array must not be modified.
+     * 
+     * @return
+     */
+    public RenderNode[] getNodes()
+    {
+        return nodes;
+    }
+
+}
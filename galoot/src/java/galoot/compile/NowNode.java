@@ -0,0 +1,82 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import java.util.Calendar;
+import java.util.Formatter;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The now tag, e.g. {% now "Today: %tm/%Td/%tY" %}
+ */
+public class NowNode implements RenderNode
+{
+    private static final Log log = LogFactory.getLog(NowNode.class);
+
+    // ! the format, or null to use the default Date format
+    private final String format;
+
+    // ! the number of calendar arguments the format needs
+    private final int numArguments;
+
+    public NowNode(String format)
+    {
+        this.format = format;
+        // add a little hack here that lets you not have to specify the 1$
+        // positional chars in the format
+        numArguments = format != null ? format.split("%[tT]").length : 0;
+    }
+
+    public void render(RenderContext context)
+    {
+        Calendar cal = Calendar.getInstance();
+        try
+        {
+            String formatted = cal.getTime().toString();
+            if (format != null)
+            {
+                if (numArguments == 0)
+                    formatted = new Formatter().format(format, cal).toString();
+                else
+                {
+                    Calendar calArr[] = new Calendar[numArguments];
+                    for (int i = 0; i < numArguments; ++i)
+                        calArr[i] = cal;
+                    formatted = new Formatter().format(format,
+                            (Object[]) calArr).toString();
+                }
+            }
+            context.write(formatted);
+        }
+        catch (Throwable e)
+        {
+            log.warn(ExceptionUtils.getStackTrace(e));
+        }
+    }
+
+    public String getFormat()
+    {
+        return format;
+    }
+
+}
@@ -0,0 +1,279 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import galoot.ContextStack;
+import galoot.types.LruMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Memoizes the output of a template's renders. Each render records the
+ * context variables and member paths it reads (its dependencies), and its
+ * output is kept under the values it read. A later render first looks up
+ * those paths in its own context, and if they have the same values as a
+ * memoized render, the memoized output is used without rendering anything.
+ * 
+ * Renders that take different branches read different paths, so a few sets
+ * of paths are kept, and tried in turn. Outputs are evicted least recently
+ * used first once the memo is full.
+ * 
+ * The values read must not change while they are memoized, and must compare
+ * equal (with equals) only when they render the same way; collections of
+ * beans without equals() only match themselves.
+ * 
+ * @see CompiledTemplate#setOutputMemo(OutputMemo)
+ */
+public class OutputMemo
+{
+    public static final int DEFAULT_MAX_SIZE = 256;
+
+    // ! each set of paths costs a lookup per render, so only a few are kept
+    private static final int MAX_PATH_SETS = 8;
+
+    private final List<PathSet> pathSets = new CopyOnWriteArrayList<PathSet>();
+
+    private final LruMap<Key, String> outputs;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    public OutputMemo()
+    {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param maxSize
+     *            the most outputs to keep
+     */
+    public OutputMemo(int maxSize)
+    {
+        outputs = new LruMap<Key, String>(maxSize);
+    }
+
+    /**
+     * @param contextStack
+     * @return the memoized output of a render with the same dependencies as
+     *         the given context, or null if there is none
+     */
+    String lookup(ContextStack contextStack)
+    {
+        for (PathSet pathSet : pathSets)
+        {
+            Key key = new Key(pathSet, pathSet.evaluate(contextStack));
+            String output;
+            synchronized (outputs)
+            {
+                output = outputs.get(key);
+            }
+            if (output != null)
+            {
+                hits.increment();
+                return output;
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Memoizes the output of a render.
+     * 
+     * @param dependencies
+     *            what the render read
+     * @param output
+     */
+    void store(Dependencies dependencies, String output)
+    {
+        Map<String, Object> values = dependencies.getValues();
+        PathSet pathSet = getPathSet(values.keySet().toArray(
+                new String[values.size()]));
+        if (pathSet == null)
+            return;
+        Key key = new Key(pathSet, new ArrayList<Object>(values.values()));
+        synchronized (outputs)
+        {
+            outputs.put(key, output);
+        }
+    }
+
+    /**
+     * @return the set with the given paths, or null if there are too many
+     *         sets to add it
+     */
+    private PathSet getPathSet(String[] paths)
+    {
+        for (PathSet pathSet : pathSets)
+            if (Arrays.equals(pathSet.paths, paths))
+                return pathSet;
+        synchronized (pathSets)
+        {
+            for (PathSet pathSet : pathSets)
+                if (Arrays.equals(pathSet.paths, paths))
+                    return pathSet;
+            if (pathSets.size() >= MAX_PATH_SETS)
+                return null;
+            PathSet pathSet = new PathSet(paths);
+            pathSets.add(pathSet);
+            return pathSet;
+        }
+    }
+
+    /**
+     * Forgets all memoized outputs, and the paths they depend on.
+     */
+    public void clear()
+    {
+        synchronized (pathSets)
+        {
+            pathSets.clear();
+        }
+        synchronized (outputs)
+        {
+            outputs.clear();
+        }
+    }
+
+    public int size()
+    {
+        synchronized (outputs)
+        {
+            return outputs.size();
+        }
+    }
+
+    public int getMaxSize()
+    {
+        synchronized (outputs)
+        {
+            return outputs.getMaxSize();
+        }
+    }
+
+    /**
+     * @return the number of renders that used a memoized output
+     */
+    public long getHits()
+    {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of renders that had to render
+     */
+    public long getMisses()
+    {
+        return misses.sum();
+    }
+
+    /**
+     * @return the fraction of renders that used a memoized output, or 0 if
+     *         there have been none
+     */
+    public double getHitRatio()
+    {
+        long hits = getHits(), total = hits + getMisses();
+        return total > 0 ? (double) hits / total : 0;
+    }
+
+    /**
+     * @return the sets of paths the memoized renders depend on
+     */
+    public List<List<String>> getDependencies()
+    {
+        List<List<String>> dependencies = new ArrayList<List<String>>();
+        for (PathSet pathSet : pathSets)
+            dependencies.add(Collections.unmodifiableList(Arrays
+                    .asList(pathSet.paths)));
+        return dependencies;
+    }
+
+    /**
+     * The paths read by a render, with the expressions to read them again.
+     */
+    private static final class PathSet
+    {
+        final String[] paths;
+
+        final VariableExpression[] expressions;
+
+        PathSet(String[] paths)
+        {
+            this.paths = paths;
+            FilterChain noFilters = new FilterChain(Collections
+                    .<FilterCall> emptyList());
+            expressions = new VariableExpression[paths.length];
+            for (int i = 0; i < paths.length; ++i)
+            {
+                String[] parts = paths[i].split("\\.");
+                expressions[i] = new VariableExpression(parts[0], Arrays
+                        .copyOfRange(parts, 1, parts.length), noFilters);
+            }
+        }
+
+        List<Object> evaluate(ContextStack contextStack)
+        {
+            List<Object> values = new ArrayList<Object>(expressions.length);
+            for (VariableExpression expression : expressions)
+                values.add(expression.evaluatePath(contextStack));
+            return values;
+        }
+    }
+
+    private static final class Key
+    {
+        final PathSet pathSet;
+
+        final List<Object> values;
+
+        final int hash;
+
+        Key(PathSet pathSet, List<Object> values)
+        {
+            this.pathSet = pathSet;
+            this.values = values;
+            hash = 31 * System.identityHashCode(pathSet) + values.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return pathSet == other.pathSet && values.equals(other.values);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+    }
+
+}
@@ -0,0 +1,352 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import galoot.ContextStack;
+import galoot.Filter;
+import galoot.FilterMap;
+import galoot.ForLoop;
+import galoot.Template;
+import galoot.ThreadSafeFilter;
+import galoot.types.SegmentedBuffer;
+
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Settings for rendering parts of a template in parallel, which is off unless
+ * a template is given a ParallelRendering (see
+ * {@link Template#setParallelRendering(ParallelRendering)}).
+ * 
+ * Two kinds of parts are rendered in parallel:
+ * <ul>
+ * <li>Sibling {% include %} tags, when every included template and every tag
+ * between them only reads the context. Each include is rendered on the
+ * executor while the calling thread renders the rest, and the output is
+ * written in order.</li>
+ * <li>Large {% for %} loops over arrays and random access lists, whose body
+ * only reads the context. The iterations are split into chunks, each rendered
+ * into its own buffer with the forloop values of the whole loop, and the
+ * buffers are written in order.</li>
+ * </ul>
+ * Tags that change the context ({% set %}, {% load %}, {% macro %}) make a
+ * part unsafe, as do filters that are not {@link ThreadSafeFilter}s. The
+ * objects in the context must be safe to read from several threads.
+ * 
+ * Parts rendered on the executor are never split up further.
+ * 
+ * Before rendering, the Suppliers in the context that the template refers to
+ * are started on the executor (see
+ * {@link ContextStack#prefetch(String[], java.util.concurrent.Executor)}), so
+ * they are computed while the template renders up to where they are used.
+ */
+public final class ParallelRendering
+{
+    // ! loops with fewer iterations are rendered on the calling thread
+    public static final int DEFAULT_LOOP_THRESHOLD = 1024;
+
+    // ! the number of iterations rendered by each task
+    public static final int DEFAULT_CHUNK_SIZE = 256;
+
+    private final ExecutorService executor;
+
+    private final int loopThreshold;
+
+    private final int chunkSize;
+
+    /**
+     * Renders on the common ForkJoinPool, with the default loop settings.
+     */
+    public ParallelRendering()
+    {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public ParallelRendering(ExecutorService executor)
+    {
+        this(executor, DEFAULT_LOOP_THRESHOLD, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param executor
+     *            runs the parallel parts, e.g. a ForkJoinPool or an executor
+     *            with a thread per task
+     * @param loopThreshold
+     *            the number of iterations a loop needs to be split up
+     * @param chunkSize
+     *            the number of iterations rendered by each task
+     */
+    public ParallelRendering(ExecutorService executor, int loopThreshold,
+            int chunkSize)
+    {
+        if (chunkSize < 1)
+            throw new IllegalArgumentException("chunkSize must be positive: "
+                    + chunkSize);
+        this.executor = executor;
+        this.loopThreshold = loopThreshold;
+        this.chunkSize = chunkSize;
+    }
+
+    public ExecutorService getExecutor()
+    {
+        return executor;
+    }
+
+    public int getLoopThreshold()
+    {
+        return loopThreshold;
+    }
+
+    public int getChunkSize()
+    {
+        return chunkSize;
+    }
+
+    /**
+     * @param filterNames
+     * @param filterMap
+     * @return true iff all of the named filters, as found in the map, are
+     *         thread-safe (missing filters are harmless)
+     */
+    static boolean hasSafeFilters(String[] filterNames, FilterMap filterMap)
+    {
+        for (String name : filterNames)
+        {
+            Filter filter = filterMap.getFilter(name);
+            if (filter != null && !(filter instanceof ThreadSafeFilter))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Renders the loop in chunks, if it is large enough and its filters are
+     * thread-safe.
+     * 
+     * @param node
+     * @param loop
+     * @param filterNames
+     *            the filters used by the loop body
+     * @param context
+     * @return false if the loop was not rendered
+     */
+    boolean renderLoop(final ForNode node, ForLoop loop,
+            String[] filterNames, RenderContext context)
+    {
+        int count = loop.count();
+        if (count < loopThreshold || count <= chunkSize || !loop.isIndexed()
+                || !hasSafeFilters(filterNames, context.getContextStack()
+                        .getFilterMap()))
+            return false;
+
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        int written = 0;
+        try
+        {
+            for (int start = chunkSize; start < count; start += chunkSize)
+            {
+                Chunk chunk = new Chunk(node, loop.slice(start, Math.min(
+                        count, start + chunkSize)), context);
+                chunk.future = executor.submit(chunk);
+                chunks.add(chunk);
+            }
+
+            // the first chunk goes straight to the output, from this thread
+            node.renderIterations(loop.slice(0, chunkSize), context);
+            for (Chunk chunk : chunks)
+            {
+                SegmentedBuffer buffer = await(chunk.future);
+                ++written;
+                try
+                {
+                    context.write(buffer);
+                }
+                finally
+                {
+                    buffer.release();
+                }
+            }
+        }
+        finally
+        {
+            for (Chunk chunk : chunks.subList(written, chunks.size()))
+                chunk.abandon();
+        }
+        return true;
+    }
+
+    /**
+     * A chunk of loop iterations, rendered into a buffer of its own. A chunk
+     * whose output is no longer wanted is abandoned, and its buffer is
+     * released by whichever of the task and the abandoning thread comes
+     * last.
+     */
+    private static final class Chunk implements Callable<SegmentedBuffer>
+    {
+        private final ForNode node;
+
+        private final ForLoop slice;
+
+        private final SegmentedBuffer buffer = new SegmentedBuffer();
+
+        private final RenderContext fork;
+
+        // ! set by the first of the task finishing and the chunk being
+        // abandoned
+        private final AtomicBoolean settled = new AtomicBoolean();
+
+        Future<SegmentedBuffer> future;
+
+        Chunk(ForNode node, ForLoop slice, RenderContext context)
+        {
+            this.node = node;
+            this.slice = slice;
+            fork = context.fork(buffer);
+        }
+
+        public SegmentedBuffer call()
+        {
+            try
+            {
+                node.renderIterations(slice, fork);
+            }
+            finally
+            {
+                // abandoned while rendering, so no one else will release it
+                if (!settled.compareAndSet(false, true))
+                    buffer.release();
+            }
+            return buffer;
+        }
+
+        void abandon()
+        {
+            future.cancel(false);
+            // if the task has already finished (or failed), its buffer is ours
+            // to release
+            if (!settled.compareAndSet(false, true))
+                buffer.release();
+        }
+    }
+
+    /**
+     * Renders the nodes in order, rendering the templates of the include tags
+     * among them in parallel if they are all safe to.
+     * 
+     * @param nodes
+     * @param context
+     */
+    @SuppressWarnings("unchecked")
+    void renderIncludes(RenderNode[] nodes, RenderContext context)
+    {
+        // the templates are loaded up front, to see whether they are safe
+        Template[] templates = new Template[nodes.length];
+        boolean safe = true;
+        ContextStack contextStack = context.getContextStack();
+        for (int i = 0; i < nodes.length; ++i)
+        {
+            if (nodes[i] instanceof IncludeNode)
+            {
+                templates[i] = ((IncludeNode) nodes[i]).load(context);
+                safe &= templates[i] == null
+                        || templates[i].getCompiledTemplate().isParallelSafe(
+                                contextStack);
+            }
+        }
+
+        Future<String>[] outputs = new Future[nodes.length];
+        try
+        {
+            for (int i = 0; safe && i < nodes.length; ++i)
+            {
+                final Template template = templates[i];
+                if (template != null)
+                {
+                    final ContextStack fork = contextStack.fork();
+                    outputs[i] = executor.submit(new Callable<String>()
+                    {
+                        public String call() throws Exception
+                        {
+                            return template.render(fork);
+                        }
+                    });
+                }
+            }
+
+            for (int i = 0; i < nodes.length; ++i)
+            {
+                if (outputs[i] != null)
+                    ((IncludeNode) nodes[i]).write(outputs[i], context);
+                else if (nodes[i] instanceof IncludeNode)
+                {
+                    if (templates[i] != null)
+                        ((IncludeNode) nodes[i]).render(templates[i], context);
+                }
+                else
+                    nodes[i].render(context);
+            }
+        }
+        finally
+        {
+            for (Future<String> output : outputs)
+                if (output != null)
+                    output.cancel(false);
+        }
+    }
+
+    /**
+     * Waits for the task, and rethrows anything it threw. An interrupt is
+     * thrown as an UncheckedIOException wrapping an InterruptedIOException,
+     * which the render methods throw as the InterruptedIOException.
+     */
+    private static <T> T await(Future<T> future)
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            InterruptedIOException interrupted = new InterruptedIOException(
+                    "Interrupted while rendering in parallel");
+            interrupted.initCause(e);
+            throw new UncheckedIOException(interrupted);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
+}
@@ -0,0 +1,163 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import java.util.Set;
+
+/**
+ * Decides whether part of a render tree can be rendered in parallel with the
+ * rest of the template. A part is safe if it only reads the context: tags that
+ * change what later tags see ({% set %}, {% load %}, {% macro %}) are unsafe,
+ * as are macro calls and includes, whose contents are not known until render
+ * time. Anything not known to be safe is unsafe.
+ * 
+ * The filters used by a safe part are collected, since whether they are
+ * thread-safe depends on the filters in the context at render time.
+ */
+final class ParallelSafety
+{
+    private ParallelSafety()
+    {
+    }
+
+    /**
+     * @param node
+     * @param allowBlocks
+     *            whether block tags are allowed, which they are when the node
+     *            is rendered in the original render context
+     * @param filterNames
+     *            gets the names of the filters used
+     * @return true iff the node is safe to render in parallel
+     */
+    static boolean isSafe(RenderNode node, boolean allowBlocks,
+            Set<String> filterNames)
+    {
+        if (node == null || node instanceof TextNode
+                || node instanceof NowNode)
+            return true;
+        if (node instanceof NodeList)
+        {
+            for (RenderNode child : ((NodeList) node).getNodes())
+                if (!isSafe(child, allowBlocks, filterNames))
+                    return false;
+            return true;
+        }
+        if (node instanceof VariableNode)
+            return isSafe(((VariableNode) node).getExpression(), filterNames);
+        if (node instanceof IfNode)
+        {
+            IfNode ifNode = (IfNode) node;
+            for (Condition condition : ifNode.getConditions())
+                if (!isSafe(condition, filterNames))
+                    return false;
+            for (RenderNode body : ifNode.getBodies())
+                if (!isSafe(body, allowBlocks, filterNames))
+                    return false;
+            return isSafe(ifNode.getElseBody(), allowBlocks, filterNames);
+        }
+        if (node instanceof IfEqualNode)
+        {
+            IfEqualNode ifEqual = (IfEqualNode) node;
+            return isSafe(ifEqual.getArguments(), filterNames)
+                    && isSafe(ifEqual.getBody(), allowBlocks, filterNames)
+                    && isSafe(ifEqual.getElseBody(), allowBlocks, filterNames);
+        }
+        if (node instanceof FirstOfNode)
+            return isSafe(((FirstOfNode) node).getArguments(), filterNames);
+        if (node instanceof WithNode)
+        {
+            WithNode with = (WithNode) node;
+            return isSafe(with.getExpression(), filterNames)
+                    && isSafe(with.getBody(), allowBlocks, filterNames);
+        }
+        if (node instanceof ForNode)
+        {
+            ForNode forNode = (ForNode) node;
+            return isSafe(forNode.getExpression(), filterNames)
+                    && isSafe(forNode.getBody(), allowBlocks, filterNames);
+        }
+        if (node instanceof FilterBlockNode)
+        {
+            FilterBlockNode filterBlock = (FilterBlockNode) node;
+            addFilters(filterBlock.getFilters(), filterNames);
+            return isSafe(filterBlock.getBody(), allowBlocks, filterNames);
+        }
+        if (node instanceof BlockNode)
+            return allowBlocks
+                    && isSafe(((BlockNode) node).getBody(), allowBlocks,
+                            filterNames);
+        return false;
+    }
+
+    private static boolean isSafe(Expression[] expressions,
+            Set<String> filterNames)
+    {
+        for (Expression expression : expressions)
+            if (!isSafe(expression, filterNames))
+                return false;
+        return true;
+    }
+
+    private static boolean isSafe(Expression expression,
+            Set<String> filterNames)
+    {
+        if (expression instanceof VariableExpression)
+        {
+            addFilters(((VariableExpression) expression).getFilters(),
+                    filterNames);
+            return true;
+        }
+        if (expression instanceof LiteralExpression)
+        {
+            addFilters(((LiteralExpression) expression).getFilters(),
+                    filterNames);
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean isSafe(Condition condition, Set<String> filterNames)
+    {
+        if (condition instanceof TruthCondition)
+            return isSafe(((TruthCondition) condition).getExpression(),
+                    filterNames);
+        if (condition instanceof ComparisonCondition)
+        {
+            ComparisonCondition comparison = (ComparisonCondition) condition;
+            return isSafe(comparison.getLhs(), filterNames)
+                    && isSafe(comparison.getRhs(), filterNames);
+        }
+        if (condition instanceof LogicalCondition)
+        {
+            LogicalCondition logical = (LogicalCondition) condition;
+            return isSafe(logical.getLeft(), filterNames)
+                    && isSafe(logical.getRight(), filterNames);
+        }
+        return false;
+    }
+
+    private static void addFilters(FilterChain filters, Set<String> filterNames)
+    {
+        if (filters != null)
+            for (FilterCall call : filters.getCalls())
+                filterNames.add(call.getName());
+    }
+
+}
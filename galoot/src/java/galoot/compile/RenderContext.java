@@ -0,0 +1,363 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import galoot.ContextStack;
+import galoot.ForLoop;
+import galoot.types.Document;
+import galoot.types.SegmentedBuffer;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.Stack;
+
+/**
+ * Holds the state of a single render of a compiled template: the context
+ * stack, the document being built, and the bookkeeping needed by the block,
+ * filter and for tags. A RenderContext is not thread-safe, and is used for
+ * exactly one render.
+ * 
+ * Output either goes to a {@link Document}, or is streamed to an Appendable
+ * (which may be a {@link ByteOutput}, taking static text pre-encoded).
+ * When streaming, a Flushable target is flushed every
+ * {@link #FLUSH_INTERVAL} characters, and I/O errors are thrown as
+ * UncheckedIOExceptions.
+ */
+public class RenderContext
+{
+    // ! number of characters written between flushes, when streaming
+    public static final int FLUSH_INTERVAL = 8192;
+
+    // ! the context stack
+    private ContextStack contextStack;
+
+    // ! The document that contains all of the fragments
+    private Document document;
+
+    // ! If the document is an extension of another, the parent document
+    private Document parentDocument;
+
+    /**
+     * stack of actual {% filter %} blocks, which needs to do post-processing on
+     * the block of data
+     */
+    private Stack<SegmentedBuffer> filterBlockData;
+
+    // ! the innermost for loop being rendered, so nested loops can refer to
+    // it as their parent
+    private ForLoop forLoop;
+
+    // ! the streaming target, or null if rendering to the document
+    private Appendable out;
+
+    // ! the streaming target, if it takes pre-encoded static text
+    private ByteOutput byteOutput;
+
+    // ! characters written since the last flush
+    private int unflushed;
+
+    // ! characters written by earlier flush intervals
+    private long flushed;
+
+    // ! the block overrides of the templates extending this one, or null
+    private BlockLayout blockLayout;
+
+    // ! true while collecting the block overrides of child templates
+    private boolean collectingBlocks;
+
+    // ! settings for rendering parts in parallel, or null
+    private ParallelRendering parallelRendering;
+
+    // ! names of the blocks streamed so far, created on demand
+    private Set<String> blockNames;
+
+    // ! records the variables the render reads, or null
+    private Dependencies dependencies;
+
+    /**
+     * Creates a context that renders to a {@link Document}.
+     * 
+     * @param contextStack
+     */
+    public RenderContext(ContextStack contextStack)
+    {
+        this.contextStack = contextStack != null ? contextStack
+                : new ContextStack();
+        document = new Document();
+        filterBlockData = new Stack<SegmentedBuffer>();
+    }
+
+    /**
+     * Creates a context that streams its output to the given target.
+     * 
+     * @param contextStack
+     * @param out
+     */
+    public RenderContext(ContextStack contextStack, Appendable out)
+    {
+        this(contextStack);
+        this.out = out;
+        if (out instanceof ByteOutput)
+            byteOutput = (ByteOutput) out;
+    }
+
+    public ContextStack getContextStack()
+    {
+        return contextStack;
+    }
+
+    /**
+     * Writes the string to the output. If we are in a filter block, the data
+     * is collected so the filters can be applied to the whole block.
+     * 
+     * @param s
+     */
+    public void write(String s)
+    {
+        if (!filterBlockData.isEmpty())
+            filterBlockData.peek().append(s);
+        else if (collectingBlocks)
+            return;
+        else if (out != null)
+        {
+            try
+            {
+                out.append(s);
+                unflushed += s.length();
+                if (unflushed >= FLUSH_INTERVAL)
+                    flush();
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        }
+        else
+            document.addContent(s);
+    }
+
+    /**
+     * Writes the contents of the buffer, which may then be released.
+     * 
+     * @param buffer
+     */
+    public void write(SegmentedBuffer buffer)
+    {
+        try
+        {
+            if (!filterBlockData.isEmpty())
+                buffer.writeTo(filterBlockData.peek());
+            else if (collectingBlocks)
+                return;
+            else if (out != null)
+            {
+                buffer.writeTo(out);
+                unflushed += buffer.length();
+                if (unflushed >= FLUSH_INTERVAL)
+                    flush();
+            }
+            else
+                document.addContent(buffer.toString());
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Creates a context for rendering part of the template on another thread,
+     * into the given target. It sees the variables of this context through a
+     * fork of its stack (see {@link ContextStack#fork()}).
+     * 
+     * @param out
+     * @return
+     */
+    public RenderContext fork(Appendable out)
+    {
+        RenderContext fork = new RenderContext(contextStack.fork(), out);
+        fork.forLoop = forLoop;
+        return fork;
+    }
+
+    /**
+     * Writes a piece of static template text. When streaming bytes, its cached
+     * encoding is written as is.
+     * 
+     * @param text
+     */
+    public void write(StaticText text)
+    {
+        if (byteOutput == null || !filterBlockData.isEmpty()
+                || collectingBlocks)
+        {
+            write(text.getText());
+            return;
+        }
+        try
+        {
+            byteOutput.write(text);
+            unflushed += text.length();
+            if (unflushed >= FLUSH_INTERVAL)
+                flush();
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Flushes the streaming target, if it is Flushable.
+     * 
+     * @throws IOException
+     */
+    public void flush() throws IOException
+    {
+        flushed += unflushed;
+        unflushed = 0;
+        if (out instanceof Flushable)
+            ((Flushable) out).flush();
+    }
+
+    /**
+     * @return the number of characters streamed so far
+     */
+    public long getWrittenChars()
+    {
+        return flushed + unflushed;
+    }
+
+    /**
+     * @return true iff the output is streamed, rather than added to the
+     *         document
+     */
+    public boolean isStreaming()
+    {
+        return out != null;
+    }
+
+    /**
+     * Starts collecting output for a {% filter %} block.
+     */
+    public void beginFilterBlock()
+    {
+        filterBlockData.push(new SegmentedBuffer());
+    }
+
+    /**
+     * Stops collecting output for the current {% filter %} block.
+     * 
+     * @return the output collected since the matching beginFilterBlock()
+     */
+    public String endFilterBlock()
+    {
+        SegmentedBuffer data = filterBlockData.pop();
+        String s = data.toString();
+        data.release();
+        return s;
+    }
+
+    public Document getDocument()
+    {
+        return document;
+    }
+
+    public Document getParentDocument()
+    {
+        return parentDocument;
+    }
+
+    public void setParentDocument(Document parentDocument)
+    {
+        this.parentDocument = parentDocument;
+    }
+
+    public ForLoop getForLoop()
+    {
+        return forLoop;
+    }
+
+    public void setForLoop(ForLoop forLoop)
+    {
+        this.forLoop = forLoop;
+    }
+
+    public ParallelRendering getParallelRendering()
+    {
+        return parallelRendering;
+    }
+
+    public void setParallelRendering(ParallelRendering parallelRendering)
+    {
+        this.parallelRendering = parallelRendering;
+    }
+
+    public BlockLayout getBlockLayout()
+    {
+        return blockLayout;
+    }
+
+    public void setBlockLayout(BlockLayout blockLayout)
+    {
+        this.blockLayout = blockLayout;
+    }
+
+    /**
+     * @return true iff the blocks encountered are overrides to be collected,
+     *         rather than rendered, and all output is discarded
+     */
+    public boolean isCollectingBlocks()
+    {
+        return collectingBlocks;
+    }
+
+    public void setCollectingBlocks(boolean collectingBlocks)
+    {
+        this.collectingBlocks = collectingBlocks;
+    }
+
+    Dependencies getDependencies()
+    {
+        return dependencies;
+    }
+
+    void setDependencies(Dependencies dependencies)
+    {
+        this.dependencies = dependencies;
+    }
+
+    /**
+     * Records a block streamed in this render.
+     * 
+     * @param name
+     * @return false if a block with the same name was already streamed
+     */
+    public boolean addBlockName(String name)
+    {
+        if (blockNames == null)
+            blockNames = new HashSet<String>();
+        return blockNames.add(name);
+    }
+
+}
@@ -0,0 +1,36 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+/**
+ * A RenderNode is one piece of a compiled template. Nodes are created once,
+ * when a template is compiled, and hold no render state, so a single tree can
+ * be rendered many times (and by many threads at once).
+ */
+public interface RenderNode
+{
+    /**
+     * Render this node, writing any output to the given context.
+     * 
+     * @param context
+     *            the state of the current render
+     */
+    public void render(RenderContext context);
+}
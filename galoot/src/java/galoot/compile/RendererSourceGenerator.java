@@ -0,0 +1,351 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import galoot.Macro;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Generates the Java source of a {@link GeneratedRenderer} subclass for a
+ * render tree.
+ * 
+ * Text, variables, if, for and with tags become straight-line code. Blocks,
+ * filter blocks, cache tags, macros and ifequal tags are rebuilt around references to
+ * generated bodies (and macro calls bound to a rebuilt macro are rebound),
+ * and all other tags are called through the operand arrays.
+ * A generator is used for exactly one tree.
+ */
+class RendererSourceGenerator
+{
+    // ! longer sequences are split into their own methods
+    private static final int MAX_SEQUENCE_LENGTH = 64;
+
+    private final String packageName;
+
+    private final String simpleName;
+
+    private final StringBuilder methods = new StringBuilder();
+
+    private final List<StaticText> texts = new ArrayList<StaticText>();
+
+    private final List<Expression> expressions = new ArrayList<Expression>();
+
+    private final List<Condition> conditions = new ArrayList<Condition>();
+
+    private final List<RenderNode> nodes = new ArrayList<RenderNode>();
+
+    private final List<BodyReference> references = new ArrayList<BodyReference>();
+
+    // ! the macros of rebuilt definitions, for the calls bound to them
+    private final Map<Macro, Macro> rebuiltMacros = new IdentityHashMap<Macro, Macro>();
+
+    private int methodCount, localCount;
+
+    RendererSourceGenerator(String packageName, String simpleName)
+    {
+        this.packageName = packageName;
+        this.simpleName = simpleName;
+    }
+
+    /**
+     * Generate the source for the given tree. The operands referred to by the
+     * source are available afterwards.
+     * 
+     * @param root
+     * @return
+     */
+    String generate(RenderNode root)
+    {
+        StringBuilder render = new StringBuilder();
+        emit(root, render, "        ");
+
+        StringBuilder bodies = new StringBuilder();
+        for (int i = 0; i < references.size(); ++i)
+            bodies.append("        case ").append(i).append(": body").append(
+                    i).append("(context); break;\n");
+
+        StringBuilder source = new StringBuilder();
+        source.append("package ").append(packageName).append(";\n\n");
+        source.append("import galoot.compile.*;\n\n");
+        source.append("public final class ").append(simpleName).append(
+                " extends GeneratedRenderer\n{\n");
+        source.append("    public void render(RenderContext context)\n");
+        source.append("    {\n").append(render).append("    }\n\n");
+        source.append("    public void renderBody(int id, RenderContext");
+        source.append(" context)\n    {\n        switch (id)\n        {\n");
+        source.append(bodies).append("        }\n    }\n\n");
+        source.append(methods).append("}\n");
+        return source.toString();
+    }
+
+    StaticText[] getTexts()
+    {
+        return texts.toArray(new StaticText[texts.size()]);
+    }
+
+    Expression[] getExpressions()
+    {
+        return expressions.toArray(new Expression[expressions.size()]);
+    }
+
+    Condition[] getConditions()
+    {
+        return conditions.toArray(new Condition[conditions.size()]);
+    }
+
+    RenderNode[] getNodes()
+    {
+        return nodes.toArray(new RenderNode[nodes.size()]);
+    }
+
+    List<BodyReference> getReferences()
+    {
+        return references;
+    }
+
+    private void emit(RenderNode node, StringBuilder out, String indent)
+    {
+        // lists with includes to render in parallel are rendered as nodes
+        if (node instanceof NodeList
+                && !((NodeList) node).hasParallelIncludes())
+            emitSequence(((NodeList) node).getNodes(), out, indent);
+        else if (node instanceof TextNode)
+            out.append(indent).append("context.write(").append(
+                    text(((TextNode) node).getStaticText())).append(");\n");
+        else if (node instanceof VariableNode)
+        {
+            String local = local("value");
+            out.append(indent).append("Object ").append(local).append(" = ")
+                    .append(expression(((VariableNode) node).getExpression()))
+                    .append(".evaluate(context);\n");
+            out.append(indent).append("if (").append(local).append(
+                    " != null)\n");
+            out.append(indent).append("    context.write(").append(local)
+                    .append(".toString());\n");
+        }
+        else if (node instanceof IfNode)
+            emitIf((IfNode) node, out, indent);
+        else if (node instanceof ForNode)
+        {
+            ForNode forNode = (ForNode) node;
+            String local = local("loop");
+            out.append(indent).append("for (ForNode.Loop ").append(local)
+                    .append(" = ((ForNode) ").append(node(forNode)).append(
+                            ").begin(context); ").append(local).append(
+                            ".next();)\n");
+            emitBlock(forNode.getBody(), out, indent);
+        }
+        else if (node instanceof WithNode)
+        {
+            WithNode with = (WithNode) node;
+            String local = local("with");
+            out.append(indent).append("Object ").append(local).append(" = ")
+                    .append(expression(with.getExpression())).append(
+                            ".evaluate(context);\n");
+            out.append(indent).append("context.getContextStack().push();\n");
+            out.append(indent).append(
+                    "context.getContextStack().putVariable(").append(
+                    with.getVarSlot()).append(", ").append(
+                    literal(with.getVar())).append(", ").append(local).append(
+                    ");\n");
+            emit(with.getBody(), out, indent);
+            out.append(indent).append("context.getContextStack().popFrame();\n");
+        }
+        else
+            out.append(indent).append(node(rebuild(node))).append(
+                    ".render(context);\n");
+    }
+
+    private void emitIf(IfNode ifNode, StringBuilder out, String indent)
+    {
+        Condition[] ifConditions = ifNode.getConditions();
+        RenderNode[] bodies = ifNode.getBodies();
+        for (int i = 0; i < ifConditions.length; ++i)
+        {
+            out.append(indent).append(i == 0 ? "if (" : "else if (").append(
+                    condition(ifConditions[i])).append(".test(context))\n");
+            emitBlock(bodies[i], out, indent);
+        }
+        if (ifNode.getElseBody() != null)
+        {
+            out.append(indent).append("else\n");
+            emitBlock(ifNode.getElseBody(), out, indent);
+        }
+    }
+
+    private void emitBlock(RenderNode node, StringBuilder out, String indent)
+    {
+        out.append(indent).append("{\n");
+        emit(node, out, indent + "    ");
+        out.append(indent).append("}\n");
+    }
+
+    /**
+     * Emits the nodes in order; long sequences are split into methods, to
+     * stay well within the JVM's limit on method size.
+     */
+    private void emitSequence(RenderNode[] sequence, StringBuilder out,
+            String indent)
+    {
+        if (sequence.length <= MAX_SEQUENCE_LENGTH)
+        {
+            for (RenderNode node : sequence)
+                emit(node, out, indent);
+            return;
+        }
+        for (int i = 0; i < sequence.length; i += MAX_SEQUENCE_LENGTH)
+        {
+            RenderNode[] chunk = Arrays.copyOfRange(sequence, i, Math.min(
+                    i + MAX_SEQUENCE_LENGTH, sequence.length));
+            out.append(indent).append(method(new NodeList(Arrays
+                    .asList(chunk)))).append("(context);\n");
+        }
+    }
+
+    /**
+     * Returns a copy of the tag whose bodies are rendered by generated code,
+     * or the tag itself if it has no body.
+     */
+    private RenderNode rebuild(RenderNode node)
+    {
+        if (node instanceof BlockNode)
+        {
+            BlockNode block = (BlockNode) node;
+            return new BlockNode(block.getName(), body(block.getBody()));
+        }
+        if (node instanceof FilterBlockNode)
+        {
+            FilterBlockNode filter = (FilterBlockNode) node;
+            return new FilterBlockNode(filter.getFilters(), body(filter
+                    .getBody()));
+        }
+        if (node instanceof CacheNode)
+        {
+            CacheNode cache = (CacheNode) node;
+            return new CacheNode(cache.getTimeout(), cache.getKeys(),
+                    body(cache.getBody()), cache.getId());
+        }
+        if (node instanceof MacroNode)
+        {
+            MacroNode macro = (MacroNode) node;
+            MacroNode rebuilt = new MacroNode(macro.getName(), macro
+                    .getArguments(), body(macro.getBody()));
+            rebuiltMacros.put(macro.getMacro(), rebuilt.getMacro());
+            return rebuilt;
+        }
+        if (node instanceof MacroCallNode
+                && rebuiltMacros.containsKey(((MacroCallNode) node).getMacro()))
+        {
+            // definitions come before the calls bound to them
+            MacroCallNode call = (MacroCallNode) node;
+            return new MacroCallNode(call.getName(), call.getArguments(),
+                    rebuiltMacros.get(call.getMacro()));
+        }
+        if (node instanceof IfEqualNode)
+        {
+            IfEqualNode ifEqual = (IfEqualNode) node;
+            return new IfEqualNode(Arrays.asList(ifEqual.getArguments()),
+                    body(ifEqual.getBody()), body(ifEqual.getElseBody()));
+        }
+        return node;
+    }
+
+    private BodyReference body(RenderNode body)
+    {
+        int id = references.size();
+        BodyReference reference = new BodyReference(id);
+        references.add(reference);
+        StringBuilder out = new StringBuilder();
+        emit(body, out, "        ");
+        methods.append("    private void body").append(id).append(
+                "(RenderContext context)\n    {\n").append(out).append(
+                "    }\n\n");
+        return reference;
+    }
+
+    private String method(RenderNode body)
+    {
+        String name = "sequence" + methodCount++;
+        StringBuilder out = new StringBuilder();
+        emit(body, out, "        ");
+        methods.append("    private void ").append(name).append(
+                "(RenderContext context)\n    {\n").append(out).append(
+                "    }\n\n");
+        return name;
+    }
+
+    private String text(StaticText text)
+    {
+        // shared with the tree, so its cached encodings are too
+        texts.add(text);
+        return "texts[" + (texts.size() - 1) + "]";
+    }
+
+    private String expression(Expression expression)
+    {
+        expressions.add(expression);
+        return "expressions[" + (expressions.size() - 1) + "]";
+    }
+
+    private String condition(Condition condition)
+    {
+        conditions.add(condition);
+        return "conditions[" + (conditions.size() - 1) + "]";
+    }
+
+    private String node(RenderNode node)
+    {
+        nodes.add(node);
+        return "nodes[" + (nodes.size() - 1) + "]";
+    }
+
+    private String local(String prefix)
+    {
+        return prefix + localCount++;
+    }
+
+    private static String literal(String s)
+    {
+        // StringEscapeUtils.escapeJava also escapes '/', which javac rejects
+        StringBuilder literal = new StringBuilder(s.length() + 16);
+        literal.append('"');
+        for (int i = 0, n = s.length(); i < n; ++i)
+        {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\')
+                literal.append('\\').append(c);
+            else if (c >= 0x20 && c < 0x7f)
+                literal.append(c);
+            else if (c < 0x20)
+                // unicode escapes are translated before lexing, so an escaped
+                // line break would end the literal
+                literal.append(String.format("\\%03o", (int) c));
+            else
+                literal.append(String.format("\\u%04x", (int) c));
+        }
+        return literal.append('"').toString();
+    }
+
+}
@@ -0,0 +1,54 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+/**
+ * The set tag, e.g. {% set obj.expensive.op as var %}
+ */
+public class SetNode implements RenderNode
+{
+    private final Expression expression;
+
+    private final String var;
+
+    public SetNode(Expression expression, String var)
+    {
+        this.expression = expression;
+        this.var = var;
+    }
+
+    public void render(RenderContext context)
+    {
+        // add the variable to the current or higher context
+        context.getContextStack().putVariable(var,
+                expression.evaluate(context), true);
+    }
+
+    public Expression getExpression()
+    {
+        return expression;
+    }
+
+    public String getVar()
+    {
+        return var;
+    }
+
+}
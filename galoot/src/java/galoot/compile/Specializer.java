@@ -0,0 +1,480 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import galoot.Context;
+import galoot.ContextStack;
+import galoot.DefaultFilters;
+import galoot.Macro;
+import galoot.PureFilter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Partially evaluates a render tree against a static context: expressions
+ * whose inputs all come from the static context are replaced by their values,
+ * conditions on them are decided, and the branches not taken are dropped.
+ * Variables printed, first-of tags and filter blocks that become static are
+ * folded into text.
+ * 
+ * A variable is static if it is in the static context, and no tag in the
+ * template binds the name (for, with, set, macro arguments, and "forloop" and
+ * "block" if there are loops and blocks). Since macros see the variables of
+ * their callers, this applies to the whole template, not just the scope of
+ * the tag. Filters are applied ahead of time only if they are default
+ * {@link PureFilter}s and the template loads no filter plugins.
+ * 
+ * The static values are assumed not to be rebound by the templates this one
+ * includes or is included by, or by the context it is later rendered with.
+ * Anything not known to be static is left as it is.
+ */
+final class Specializer
+{
+    private static final Log log = LogFactory.getLog(Specializer.class);
+
+    private final Context staticVariables;
+
+    private final ContextStack staticStack;
+
+    private final RenderContext staticContext;
+
+    // ! the names bound by tags of the template
+    private final Set<String> boundNames = new HashSet<String>();
+
+    // ! true if the template loads filter plugins
+    private boolean loadsFilters;
+
+    // ! the macros of rebuilt definitions, for the calls bound to them
+    private final Map<Macro, Macro> rebuiltMacros = new IdentityHashMap<Macro, Macro>();
+
+    /**
+     * @param staticContext
+     * @param root
+     *            the tree to specialize
+     */
+    Specializer(Context staticContext, RenderNode root)
+    {
+        staticVariables = staticContext;
+        staticStack = new ContextStack(staticContext);
+        this.staticContext = new RenderContext(staticStack);
+        findBindings(root);
+    }
+
+    private void findBindings(RenderNode node)
+    {
+        if (node instanceof NodeList)
+        {
+            for (RenderNode child : ((NodeList) node).getNodes())
+                findBindings(child);
+        }
+        else if (node instanceof IfNode)
+        {
+            for (RenderNode body : ((IfNode) node).getBodies())
+                findBindings(body);
+            findBindings(((IfNode) node).getElseBody());
+        }
+        else if (node instanceof IfEqualNode)
+        {
+            findBindings(((IfEqualNode) node).getBody());
+            findBindings(((IfEqualNode) node).getElseBody());
+        }
+        else if (node instanceof ForNode)
+        {
+            boundNames.add(((ForNode) node).getLoopVar());
+            boundNames.add("forloop");
+            findBindings(((ForNode) node).getBody());
+        }
+        else if (node instanceof WithNode)
+        {
+            boundNames.add(((WithNode) node).getVar());
+            findBindings(((WithNode) node).getBody());
+        }
+        else if (node instanceof SetNode)
+            boundNames.add(((SetNode) node).getVar());
+        else if (node instanceof MacroNode)
+        {
+            boundNames.addAll(Arrays.asList(((MacroNode) node).getArguments()));
+            findBindings(((MacroNode) node).getBody());
+        }
+        else if (node instanceof BlockNode)
+        {
+            boundNames.add("block");
+            findBindings(((BlockNode) node).getBody());
+        }
+        else if (node instanceof FilterBlockNode)
+            findBindings(((FilterBlockNode) node).getBody());
+        else if (node instanceof CacheNode)
+            findBindings(((CacheNode) node).getBody());
+        else if (node instanceof LoadNode)
+            loadsFilters = true;
+    }
+
+    /**
+     * @param node
+     * @return the specialized node, or null if nothing is left of it
+     */
+    RenderNode specialize(RenderNode node)
+    {
+        if (node instanceof NodeList)
+            return specializeList(((NodeList) node).getNodes());
+        if (node instanceof VariableNode)
+        {
+            Expression expression = ((VariableNode) node).getExpression();
+            if (isStatic(expression))
+                return renderStatic(node);
+            return node;
+        }
+        if (node instanceof FirstOfNode)
+        {
+            Expression[] arguments = ((FirstOfNode) node).getArguments();
+            if (isStatic(arguments))
+                return renderStatic(node);
+            return new FirstOfNode(specialize(arguments));
+        }
+        if (node instanceof IfNode)
+            return specializeIf((IfNode) node);
+        if (node instanceof IfEqualNode)
+        {
+            IfEqualNode ifEqual = (IfEqualNode) node;
+            if (isStatic(ifEqual.getArguments()))
+            {
+                Boolean equal = test(ifEqual);
+                if (equal != null)
+                    return specialize(equal ? ifEqual.getBody() : ifEqual
+                            .getElseBody());
+            }
+            return new IfEqualNode(specialize(ifEqual.getArguments()),
+                    orEmpty(specialize(ifEqual.getBody())),
+                    orEmpty(specialize(ifEqual.getElseBody())));
+        }
+        if (node instanceof ForNode)
+        {
+            ForNode forNode = (ForNode) node;
+            return new ForNode(forNode.getLoopVar(), specialize(forNode
+                    .getExpression()), orEmpty(specialize(forNode.getBody())));
+        }
+        if (node instanceof WithNode)
+        {
+            WithNode with = (WithNode) node;
+            return new WithNode(specialize(with.getExpression()),
+                    with.getVar(), orEmpty(specialize(with.getBody())));
+        }
+        if (node instanceof SetNode)
+        {
+            SetNode set = (SetNode) node;
+            return new SetNode(specialize(set.getExpression()), set.getVar());
+        }
+        if (node instanceof FilterBlockNode)
+        {
+            FilterBlockNode filterBlock = (FilterBlockNode) node;
+            RenderNode body = orEmpty(specialize(filterBlock.getBody()));
+            FilterBlockNode specialized = new FilterBlockNode(filterBlock
+                    .getFilters(), body);
+            if (isFoldable(filterBlock.getFilters())
+                    && (body instanceof TextNode || isEmpty(body)))
+                return renderStatic(specialized);
+            return specialized;
+        }
+        if (node instanceof CacheNode)
+        {
+            // the original may be rendered with other values for the static
+            // variables, so the copy caches its fragments apart
+            CacheNode cache = (CacheNode) node;
+            List<Expression> keys = specialize(cache.getKeys());
+            return new CacheNode(specialize(cache.getTimeout()), keys
+                    .toArray(new Expression[keys.size()]),
+                    orEmpty(specialize(cache.getBody())));
+        }
+        if (node instanceof BlockNode)
+        {
+            BlockNode block = (BlockNode) node;
+            return new BlockNode(block.getName(), orEmpty(specialize(block
+                    .getBody())));
+        }
+        if (node instanceof MacroNode)
+        {
+            MacroNode macro = (MacroNode) node;
+            MacroNode rebuilt = new MacroNode(macro.getName(), macro
+                    .getArguments(), orEmpty(specialize(macro.getBody())));
+            rebuiltMacros.put(macro.getMacro(), rebuilt.getMacro());
+            return rebuilt;
+        }
+        if (node instanceof MacroCallNode)
+        {
+            MacroCallNode call = (MacroCallNode) node;
+            Macro macro = call.getMacro();
+            if (rebuiltMacros.containsKey(macro))
+                macro = rebuiltMacros.get(macro);
+            List<Expression> arguments = specialize(call.getArguments());
+            return new MacroCallNode(call.getName(), arguments
+                    .toArray(new Expression[arguments.size()]), macro);
+        }
+        return node;
+    }
+
+    /**
+     * Specializes the nodes, and merges adjacent text.
+     */
+    private RenderNode specializeList(RenderNode[] nodes)
+    {
+        List<RenderNode> specialized = new ArrayList<RenderNode>(nodes.length);
+        StringBuilder text = null;
+        for (RenderNode child : nodes)
+        {
+            RenderNode node = specialize(child);
+            if (node == null || isEmpty(node))
+                continue;
+            if (node instanceof TextNode)
+            {
+                if (text == null)
+                    text = new StringBuilder();
+                text.append(((TextNode) node).getText());
+                continue;
+            }
+            if (text != null)
+            {
+                specialized.add(new TextNode(text.toString()));
+                text = null;
+            }
+            specialized.add(node);
+        }
+        if (text != null)
+            specialized.add(new TextNode(text.toString()));
+
+        if (specialized.isEmpty())
+            return null;
+        return specialized.size() == 1 ? specialized.get(0) : new NodeList(
+                specialized);
+    }
+
+    private RenderNode specializeIf(IfNode ifNode)
+    {
+        Condition[] conditions = ifNode.getConditions();
+        RenderNode[] bodies = ifNode.getBodies();
+        List<Condition> remaining = new ArrayList<Condition>();
+        List<RenderNode> remainingBodies = new ArrayList<RenderNode>();
+        RenderNode elseBody = ifNode.getElseBody();
+        for (int i = 0; i < conditions.length; ++i)
+        {
+            Object condition = specialize(conditions[i]);
+            if (condition == Boolean.FALSE)
+                continue;
+            if (condition == Boolean.TRUE)
+            {
+                // the branches after this one are never taken
+                elseBody = bodies[i];
+                break;
+            }
+            remaining.add((Condition) condition);
+            remainingBodies.add(orEmpty(specialize(bodies[i])));
+        }
+        elseBody = specialize(elseBody);
+        if (remaining.isEmpty())
+            return elseBody;
+        return new IfNode(remaining, remainingBodies, elseBody);
+    }
+
+    /**
+     * @return Boolean.TRUE or FALSE if the condition is static, and the
+     *         specialized condition otherwise
+     */
+    private Object specialize(Condition condition)
+    {
+        if (condition instanceof TruthCondition)
+        {
+            TruthCondition truth = (TruthCondition) condition;
+            if (isStatic(truth.getExpression()))
+                return test(condition);
+            return new TruthCondition(specialize(truth.getExpression()), truth
+                    .isNegated());
+        }
+        if (condition instanceof ComparisonCondition)
+        {
+            ComparisonCondition comparison = (ComparisonCondition) condition;
+            if (isStatic(comparison.getLhs()) && isStatic(comparison.getRhs()))
+                return test(condition);
+            return new ComparisonCondition(comparison.getOperator(),
+                    specialize(comparison.getLhs()), specialize(comparison
+                            .getRhs()));
+        }
+        if (condition instanceof LogicalCondition)
+        {
+            LogicalCondition logical = (LogicalCondition) condition;
+            Object left = specialize(logical.getLeft());
+            Object right = specialize(logical.getRight());
+            // the value that decides the result on its own
+            Boolean decisive = logical.isAnd() ? Boolean.FALSE : Boolean.TRUE;
+            if (left == decisive || right == decisive)
+                return decisive;
+            if (left instanceof Boolean)
+                return right;
+            if (right instanceof Boolean)
+                return left;
+            return new LogicalCondition((Condition) left, (Condition) right,
+                    logical.isAnd());
+        }
+        return condition;
+    }
+
+    private Expression specialize(Expression expression)
+    {
+        if (!isStatic(expression) || expression instanceof ConstantExpression)
+            return expression;
+        try
+        {
+            return new ConstantExpression(expression.evaluate(staticContext));
+        }
+        catch (RuntimeException e)
+        {
+            log.debug("Unable to evaluate ahead of time: " + e.getMessage());
+            return expression;
+        }
+    }
+
+    private List<Expression> specialize(Expression[] expressions)
+    {
+        List<Expression> specialized = new ArrayList<Expression>(
+                expressions.length);
+        for (Expression expression : expressions)
+            specialized.add(specialize(expression));
+        return specialized;
+    }
+
+    private boolean isStatic(Expression[] expressions)
+    {
+        for (Expression expression : expressions)
+            if (!isStatic(expression))
+                return false;
+        return true;
+    }
+
+    private boolean isStatic(Expression expression)
+    {
+        if (expression instanceof ConstantExpression)
+            return true;
+        if (expression instanceof LiteralExpression)
+            return isFoldable(((LiteralExpression) expression).getFilters());
+        if (expression instanceof VariableExpression)
+        {
+            VariableExpression variable = (VariableExpression) expression;
+            return isStatic(variable.getReferent())
+                    && isFoldable(variable.getFilters());
+        }
+        return false;
+    }
+
+    private boolean isStatic(String name)
+    {
+        return !boundNames.contains(name)
+                && staticVariables.hasVariable(name);
+    }
+
+    /**
+     * @return true iff the filters can be applied ahead of time
+     */
+    private boolean isFoldable(FilterChain filters)
+    {
+        if (filters == null || filters.isEmpty())
+            return true;
+        if (loadsFilters)
+            return false;
+        for (FilterCall call : filters.getCalls())
+        {
+            if (!(DefaultFilters.getInstance().getFilter(call.getName()) instanceof PureFilter))
+                return false;
+            if (call.isVariableArgument() && !isStatic(call.getArgument()))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the result of a static condition, or the condition itself if it
+     *         could not be evaluated
+     */
+    private Object test(Condition condition)
+    {
+        try
+        {
+            return condition.test(staticContext);
+        }
+        catch (RuntimeException e)
+        {
+            log.debug("Unable to evaluate ahead of time: " + e.getMessage());
+            return condition;
+        }
+    }
+
+    private Boolean test(IfEqualNode ifEqual)
+    {
+        try
+        {
+            return ifEqual.test(staticContext);
+        }
+        catch (RuntimeException e)
+        {
+            log.debug("Unable to evaluate ahead of time: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Renders a node whose inputs are all static into text.
+     */
+    private RenderNode renderStatic(RenderNode node)
+    {
+        StringBuilder text = new StringBuilder();
+        try
+        {
+            node.render(new RenderContext(staticStack, text));
+        }
+        catch (RuntimeException e)
+        {
+            log.debug("Unable to render ahead of time: " + e.getMessage());
+            return node;
+        }
+        return text.length() > 0 ? new TextNode(text.toString()) : null;
+    }
+
+    private static boolean isEmpty(RenderNode node)
+    {
+        return node instanceof NodeList
+                && ((NodeList) node).getNodes().length == 0
+                || node instanceof TextNode
+                && ((TextNode) node).getText().length() == 0;
+    }
+
+    private static RenderNode orEmpty(RenderNode node)
+    {
+        return node != null ? node : new NodeList(Collections
+                .<RenderNode> emptyList());
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A piece of literal template text, along with its encoding in the charset it
+ * was last written in. Templates are almost always written in one charset, so
+ * the text is encoded once and the bytes reused by every later render.
+ */
+public final class StaticText
+{
+    private final String text;
+
+    // ! the last encoding, replaced as a whole so readers need no lock
+    private volatile Encoding encoding;
+
+    public StaticText(String text)
+    {
+        this.text = text;
+    }
+
+    public String getText()
+    {
+        return text;
+    }
+
+    public int length()
+    {
+        return text.length();
+    }
+
+    /**
+     * @param charset
+     * @return a read-only view of the text encoded in the given charset
+     */
+    public ByteBuffer getBytes(Charset charset)
+    {
+        return ByteBuffer.wrap(encode(charset)).asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the text encoded in the given charset. The array is shared, and
+     * must not be modified.
+     */
+    byte[] encode(Charset charset)
+    {
+        Encoding encoding = this.encoding;
+        if (encoding == null || !encoding.charset.equals(charset))
+        {
+            encoding = new Encoding(charset, text.getBytes(charset));
+            this.encoding = encoding;
+        }
+        return encoding.bytes;
+    }
+
+    @Override
+    public String toString()
+    {
+        return text;
+    }
+
+    private static final class Encoding
+    {
+        final Charset charset;
+
+        final byte[] bytes;
+
+        Encoding(Charset charset, byte[] bytes)
+        {
+            this.charset = charset;
+            this.bytes = bytes;
+        }
+    }
+
+}
@@ -0,0 +1,38 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+/**
+ * Loads the class generated for a single template. Each template gets its own
+ * loader, so the class can be unloaded along with the template.
+ */
+class TemplateClassLoader extends ClassLoader
+{
+    TemplateClassLoader(ClassLoader parent)
+    {
+        super(parent);
+    }
+
+    Class<?> define(String name, byte[] bytes)
+    {
+        return defineClass(name, bytes, 0, bytes.length);
+    }
+
+}
@@ -0,0 +1,670 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import galoot.Macro;
+import galoot.TemplateUtils;
+import galoot.analysis.AnalysisAdapter;
+import galoot.analysis.DepthFirstAdapter;
+import galoot.node.AAndBooleanOp;
+import galoot.node.ABinaryBooleanExpr;
+import galoot.node.ABlock;
+import galoot.node.ABlockEntity;
+import galoot.node.ACharEntity;
+import galoot.node.ADocument;
+import galoot.node.AElseifBlock;
+import galoot.node.AEqBinaryExpr;
+import galoot.node.AExtends;
+import galoot.node.AFilter;
+import galoot.node.ACacheBlock;
+import galoot.node.ACacheEntity;
+import galoot.node.AFilterBlock;
+import galoot.node.AFilterEntity;
+import galoot.node.AFirstOfEntity;
+import galoot.node.AForBlock;
+import galoot.node.AForEntity;
+import galoot.node.AGtBinaryExpr;
+import galoot.node.AGteBinaryExpr;
+import galoot.node.AIfBlock;
+import galoot.node.AIfEntity;
+import galoot.node.AIfequalBlock;
+import galoot.node.AIfequalEntity;
+import galoot.node.AIncludeEntity;
+import galoot.node.ALoad;
+import galoot.node.ALoadEntity;
+import galoot.node.ALtBinaryExpr;
+import galoot.node.ALteBinaryExpr;
+import galoot.node.AMacroBlock;
+import galoot.node.AMacroEntity;
+import galoot.node.AMacroVariableBlock;
+import galoot.node.ANeBinaryExpr;
+import galoot.node.ANowEntity;
+import galoot.node.ANumberVarExpression;
+import galoot.node.AOrBooleanOp;
+import galoot.node.AQuotedFilterArg;
+import galoot.node.ASetEntity;
+import galoot.node.AStringAsPlugin;
+import galoot.node.AStringInclude;
+import galoot.node.AStringPlugin;
+import galoot.node.AStringVarExpression;
+import galoot.node.ATemplatetagEntity;
+import galoot.node.AUnaryBooleanExpr;
+import galoot.node.AUnquotedFilterArg;
+import galoot.node.AVarAsPlugin;
+import galoot.node.AVarPlugin;
+import galoot.node.AVariableEntity;
+import galoot.node.AVariableInclude;
+import galoot.node.AVariableVarExpression;
+import galoot.node.AVariableVariableBlock;
+import galoot.node.AWithBlock;
+import galoot.node.AWithEntity;
+import galoot.node.Node;
+import galoot.node.PBooleanOp;
+import galoot.node.PElseifBlock;
+import galoot.node.PEntity;
+import galoot.node.PFilter;
+import galoot.node.PPlugin;
+import galoot.node.PVarExpression;
+import galoot.node.Start;
+import galoot.node.TId;
+import galoot.node.TMember;
+import galoot.node.TStringLiteral;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang.math.NumberUtils;
+
+/**
+ * Compiles a template AST into a tree of {@link RenderNode}s. Everything that
+ * can be worked out without a context (literal text, member names, filter
+ * names and arguments, tag structure) is resolved here, once, so that each
+ * render only does the dynamic work.
+ * 
+ * Calls to a macro defined once, at the top level of the same template, and
+ * after its definition, are bound to the macro (unless the template extends
+ * or includes others, which could define a macro of the same name in the
+ * same context).
+ * 
+ * A compiler instance is not thread-safe, but it is cheap to create one per
+ * compilation.
+ */
+public class TemplateCompiler extends AnalysisAdapter
+{
+    // ! the result of compiling the last node visited
+    private Object result;
+
+    // ! counters shared by the inline caches of the compiled expressions
+    private final InlineCacheStatistics statistics;
+
+    // ! the names of the variables referred to by the template
+    private final Set<String> referencedNames = new LinkedHashSet<String>();
+
+    // ! the names of the macros calls can be bound to, once defined
+    private Set<String> bindableMacros = Collections.emptySet();
+
+    // ! the macros defined so far that calls are bound to, by name
+    private final Map<String, Macro> boundMacros = new HashMap<String, Macro>();
+
+    public TemplateCompiler()
+    {
+        this(new InlineCacheStatistics());
+    }
+
+    public TemplateCompiler(InlineCacheStatistics statistics)
+    {
+        this.statistics = statistics;
+    }
+
+    /**
+     * Compile a parsed template.
+     * 
+     * @param ast
+     * @return
+     */
+    public CompiledTemplate compile(Start ast)
+    {
+        ADocument document = (ADocument) ast.getPDocument();
+        String parentName = null;
+        if (document.getExtends() != null)
+        {
+            parentName = stripQuotes(((AExtends) document.getExtends())
+                    .getParentName());
+        }
+        if (parentName == null)
+            bindableMacros = findBindableMacros(document);
+        CompiledTemplate compiled = new CompiledTemplate(parentName,
+                compileEntities(document.getEntities()), statistics);
+        compiled.setReferencedNames(referencedNames
+                .toArray(new String[referencedNames.size()]));
+        return compiled;
+    }
+
+    /**
+     * Returns the names of the macros that are defined exactly once, or none
+     * if the template includes others.
+     */
+    private static Set<String> findBindableMacros(ADocument document)
+    {
+        final Map<String, Integer> definitions = new HashMap<String, Integer>();
+        final boolean[] includes = new boolean[1];
+        document.apply(new DepthFirstAdapter()
+        {
+            @Override
+            public void inAMacroBlock(AMacroBlock node)
+            {
+                String name = node.getId().getText();
+                Integer count = definitions.get(name);
+                definitions.put(name, count != null ? count + 1 : 1);
+            }
+
+            @Override
+            public void inAIncludeEntity(AIncludeEntity node)
+            {
+                includes[0] = true;
+            }
+        });
+        Set<String> names = new HashSet<String>();
+        if (!includes[0])
+        {
+            for (Map.Entry<String, Integer> entry : definitions.entrySet())
+                if (entry.getValue() == 1)
+                    names.add(entry.getKey());
+        }
+        return names;
+    }
+
+    /**
+     * Compile a sequence of entities. Adjacent text is merged into a single
+     * node.
+     * 
+     * @param entities
+     * @return
+     */
+    public RenderNode compileEntities(Collection<PEntity> entities)
+    {
+        List<RenderNode> nodes = new ArrayList<RenderNode>(entities.size());
+        StringBuilder text = null;
+        for (PEntity entity : entities)
+        {
+            RenderNode node = (RenderNode) compile(entity);
+            if (node == null)
+                continue;
+            if (node instanceof TextNode)
+            {
+                if (text == null)
+                    text = new StringBuilder();
+                text.append(((TextNode) node).getText());
+                continue;
+            }
+            if (text != null)
+            {
+                nodes.add(new TextNode(text.toString()));
+                text = null;
+            }
+            nodes.add(node);
+        }
+        if (text != null)
+            nodes.add(new TextNode(text.toString()));
+
+        return nodes.size() == 1 ? nodes.get(0) : new NodeList(nodes);
+    }
+
+    private Object compile(Node node)
+    {
+        result = null;
+        node.apply(this);
+        Object compiled = result;
+        result = null;
+        return compiled;
+    }
+
+    private Expression compileExpression(PVarExpression node)
+    {
+        return (Expression) compile(node);
+    }
+
+    private List<Expression> compileExpressions(Collection<PVarExpression> nodes)
+    {
+        List<Expression> expressions = new ArrayList<Expression>(nodes.size());
+        for (PVarExpression node : nodes)
+            expressions.add(compileExpression(node));
+        return expressions;
+    }
+
+    private FilterChain compileFilters(Collection<PFilter> filters)
+    {
+        List<FilterCall> calls = new ArrayList<FilterCall>(filters.size());
+        for (PFilter filter : filters)
+            calls.add((FilterCall) compile(filter));
+        return new FilterChain(calls);
+    }
+
+    private Condition compileCondition(Node expr1, PBooleanOp expr2)
+    {
+        Condition condition = (Condition) compile(expr1);
+        if (expr2 != null)
+        {
+            if (expr2 instanceof AAndBooleanOp)
+                condition = new LogicalCondition(condition,
+                        (Condition) compile(((AAndBooleanOp) expr2)
+                                .getExpression()), true);
+            else
+                condition = new LogicalCondition(condition,
+                        (Condition) compile(((AOrBooleanOp) expr2)
+                                .getExpression()), false);
+        }
+        return condition;
+    }
+
+    private static String[] getMembers(Collection<TMember> members)
+    {
+        String[] names = new String[members.size()];
+        int i = 0;
+        for (TMember member : members)
+            names[i++] = member.getText().trim();
+        return names;
+    }
+
+    private static String stripQuotes(TStringLiteral literal)
+    {
+        return TemplateUtils.stripEncasedString(literal.getText(), '"', '\'');
+    }
+
+    // ---- entities
+
+    @Override
+    public void caseACharEntity(ACharEntity node)
+    {
+        result = new TextNode(node.getChar().getText());
+    }
+
+    @Override
+    public void caseAVariableEntity(AVariableEntity node)
+    {
+        result = compile(node.getVarBlock());
+    }
+
+    @Override
+    public void caseABlockEntity(ABlockEntity node)
+    {
+        result = compile(node.getBlock());
+    }
+
+    @Override
+    public void caseALoadEntity(ALoadEntity node)
+    {
+        result = compile(node.getLoad());
+    }
+
+    @Override
+    public void caseAIncludeEntity(AIncludeEntity node)
+    {
+        result = compile(node.getInclude());
+    }
+
+    @Override
+    public void caseAFirstOfEntity(AFirstOfEntity node)
+    {
+        result = new FirstOfNode(compileExpressions(node.getArgs()));
+    }
+
+    @Override
+    public void caseAForEntity(AForEntity node)
+    {
+        result = compile(node.getFor());
+    }
+
+    @Override
+    public void caseAIfEntity(AIfEntity node)
+    {
+        result = compile(node.getIf());
+    }
+
+    @Override
+    public void caseAIfequalEntity(AIfequalEntity node)
+    {
+        result = compile(node.getIfequal());
+    }
+
+    @Override
+    public void caseAWithEntity(AWithEntity node)
+    {
+        result = compile(node.getWith());
+    }
+
+    @Override
+    public void caseAFilterEntity(AFilterEntity node)
+    {
+        result = compile(node.getFilter());
+    }
+
+    @Override
+    public void caseACacheEntity(ACacheEntity node)
+    {
+        result = compile(node.getCache());
+    }
+
+    @Override
+    public void caseATemplatetagEntity(ATemplatetagEntity node)
+    {
+        String tag = node.getTag().getText().toLowerCase();
+        String text = null;
+        if (tag.equals("openblock"))
+            text = "{%";
+        else if (tag.equals("closeblock"))
+            text = "%}";
+        else if (tag.equals("openvariable"))
+            text = "{{";
+        else if (tag.equals("closevariable"))
+            text = "}}";
+        else if (tag.equals("openbrace"))
+            text = "{";
+        else if (tag.equals("closebrace"))
+            text = "}";
+        else if (tag.equals("opencomment"))
+            text = "{#";
+        else if (tag.equals("closecomment"))
+            text = "#}";
+        result = text != null ? new TextNode(text) : null;
+    }
+
+    @Override
+    public void caseANowEntity(ANowEntity node)
+    {
+        result = new NowNode(node.getFormat() != null ? stripQuotes(node
+                .getFormat()) : null);
+    }
+
+    @Override
+    public void caseAMacroEntity(AMacroEntity node)
+    {
+        result = compile(node.getMacro());
+    }
+
+    @Override
+    public void caseASetEntity(ASetEntity node)
+    {
+        result = new SetNode(compileExpression(node.getValue()), node.getVar()
+                .getText());
+    }
+
+    // ---- variable blocks and expressions
+
+    @Override
+    public void caseAVariableVariableBlock(AVariableVariableBlock node)
+    {
+        result = new VariableNode(compileExpression(node.getExpression()));
+    }
+
+    @Override
+    public void caseAMacroVariableBlock(AMacroVariableBlock node)
+    {
+        List<Expression> args = compileExpressions(node.getArgs());
+        result = new MacroCallNode(node.getMacro().getText(), args
+                .toArray(new Expression[args.size()]), boundMacros.get(node
+                .getMacro().getText()));
+    }
+
+    @Override
+    public void caseAVariableVarExpression(AVariableVarExpression node)
+    {
+        referencedNames.add(node.getReferent().getText());
+        result = new VariableExpression(node.getReferent().getText(),
+                getMembers(node.getMembers()), compileFilters(node
+                        .getFilters()), statistics);
+    }
+
+    @Override
+    public void caseAStringVarExpression(AStringVarExpression node)
+    {
+        result = new LiteralExpression(stripQuotes(node.getReferent()),
+                getMembers(node.getMembers()), compileFilters(node
+                        .getFilters()), statistics);
+    }
+
+    @Override
+    public void caseANumberVarExpression(ANumberVarExpression node)
+    {
+        result = new LiteralExpression(NumberUtils.createNumber(node
+                .getReferent().getText()), getMembers(node.getMembers()),
+                compileFilters(node.getFilters()), statistics);
+    }
+
+    @Override
+    public void caseAFilter(AFilter node)
+    {
+        String name = node.getFilter().getText();
+        if (node.getArg() == null)
+            result = new FilterCall(name, null, false);
+        else if (node.getArg() instanceof AQuotedFilterArg)
+            result = new FilterCall(name, stripQuotes(((AQuotedFilterArg) node
+                    .getArg()).getArg()), false);
+        else
+        {
+            String argument = ((AUnquotedFilterArg) node.getArg()).getArg()
+                    .getText();
+            referencedNames.add(argument);
+            result = new FilterCall(name, argument, true);
+        }
+    }
+
+    // ---- conditions
+
+    @Override
+    public void caseAUnaryBooleanExpr(AUnaryBooleanExpr node)
+    {
+        result = new TruthCondition(compileExpression(node.getVariable()),
+                node.getNot() != null);
+    }
+
+    @Override
+    public void caseABinaryBooleanExpr(ABinaryBooleanExpr node)
+    {
+        result = compile(node.getExpr());
+    }
+
+    @Override
+    public void caseAGtBinaryExpr(AGtBinaryExpr node)
+    {
+        result = new ComparisonCondition(ComparisonCondition.Operator.GT,
+                compileExpression(node.getLhs()), compileExpression(node
+                        .getRhs()));
+    }
+
+    @Override
+    public void caseAGteBinaryExpr(AGteBinaryExpr node)
+    {
+        result = new ComparisonCondition(ComparisonCondition.Operator.GTE,
+                compileExpression(node.getLhs()), compileExpression(node
+                        .getRhs()));
+    }
+
+    @Override
+    public void caseALtBinaryExpr(ALtBinaryExpr node)
+    {
+        result = new ComparisonCondition(ComparisonCondition.Operator.LT,
+                compileExpression(node.getLhs()), compileExpression(node
+                        .getRhs()));
+    }
+
+    @Override
+    public void caseALteBinaryExpr(ALteBinaryExpr node)
+    {
+        result = new ComparisonCondition(ComparisonCondition.Operator.LTE,
+                compileExpression(node.getLhs()), compileExpression(node
+                        .getRhs()));
+    }
+
+    @Override
+    public void caseAEqBinaryExpr(AEqBinaryExpr node)
+    {
+        result = new ComparisonCondition(ComparisonCondition.Operator.EQ,
+                compileExpression(node.getLhs()), compileExpression(node
+                        .getRhs()));
+    }
+
+    @Override
+    public void caseANeBinaryExpr(ANeBinaryExpr node)
+    {
+        result = new ComparisonCondition(ComparisonCondition.Operator.NE,
+                compileExpression(node.getLhs()), compileExpression(node
+                        .getRhs()));
+    }
+
+    // ---- tags
+
+    @Override
+    public void caseAIfBlock(AIfBlock node)
+    {
+        List<Condition> conditions = new ArrayList<Condition>();
+        List<RenderNode> bodies = new ArrayList<RenderNode>();
+        conditions.add(compileCondition(node.getExpr1(), node.getExpr2()));
+        bodies.add(compileEntities(node.getIf()));
+        for (PElseifBlock e : node.getElseif())
+        {
+            AElseifBlock elseif = (AElseifBlock) e;
+            conditions.add(compileCondition(elseif.getExpr1(), elseif
+                    .getExpr2()));
+            bodies.add(compileEntities(elseif.getElseif()));
+        }
+        RenderNode elseBody = node.getElse().isEmpty() ? null
+                : compileEntities(node.getElse());
+        result = new IfNode(conditions, bodies, elseBody);
+    }
+
+    @Override
+    public void caseAIfequalBlock(AIfequalBlock node)
+    {
+        result = new IfEqualNode(compileExpressions(node.getArguments()),
+                compileEntities(node.getIfequal()), compileEntities(node
+                        .getElse()));
+    }
+
+    @Override
+    public void caseAForBlock(AForBlock node)
+    {
+        result = new ForNode(node.getIterVar().getText(),
+                compileExpression(node.getVariable()), compileEntities(node
+                        .getEntities()));
+    }
+
+    @Override
+    public void caseAWithBlock(AWithBlock node)
+    {
+        result = new WithNode(compileExpression(node.getExpression()), node
+                .getVar().getText(), compileEntities(node.getEntities()));
+    }
+
+    @Override
+    public void caseABlock(ABlock node)
+    {
+        result = new BlockNode(node.getId() != null ? node.getId().getText()
+                : null, compileEntities(node.getEntities()));
+    }
+
+    @Override
+    public void caseAMacroBlock(AMacroBlock node)
+    {
+        List<String> args = new ArrayList<String>(node.getVars().size());
+        for (TId var : node.getVars())
+            args.add(var.getText());
+        MacroNode macro = new MacroNode(node.getId().getText(), args
+                .toArray(new String[args.size()]), compileEntities(node
+                .getEntities()));
+        // only top level definitions are in scope for the rest of the template
+        if (bindableMacros.contains(macro.getName())
+                && node.parent().parent() instanceof ADocument)
+            boundMacros.put(macro.getName(), macro.getMacro());
+        result = macro;
+    }
+
+    @Override
+    public void caseAFilterBlock(AFilterBlock node)
+    {
+        result = new FilterBlockNode(compileFilters(node.getFilters()),
+                compileEntities(node.getEntities()));
+    }
+
+    @Override
+    public void caseACacheBlock(ACacheBlock node)
+    {
+        List<Expression> keys = compileExpressions(node.getKeys());
+        result = new CacheNode(compileExpression(node.getTimeout()), keys
+                .toArray(new Expression[keys.size()]), compileEntities(node
+                .getEntities()));
+    }
+
+    @Override
+    public void caseALoad(ALoad node)
+    {
+        List<LoadNode.Plugin> plugins = new ArrayList<LoadNode.Plugin>();
+        for (PPlugin plugin : node.getPlugins())
+            plugins.add((LoadNode.Plugin) compile(plugin));
+        result = new LoadNode(plugins);
+    }
+
+    @Override
+    public void caseAStringPlugin(AStringPlugin node)
+    {
+        result = new LoadNode.Plugin(stripQuotes(node.getString()), null, null);
+    }
+
+    @Override
+    public void caseAStringAsPlugin(AStringAsPlugin node)
+    {
+        result = new LoadNode.Plugin(stripQuotes(node.getString()), null, node
+                .getAlias().getText());
+    }
+
+    @Override
+    public void caseAVarPlugin(AVarPlugin node)
+    {
+        result = new LoadNode.Plugin(null, compileExpression(node.getVar()),
+                null);
+    }
+
+    @Override
+    public void caseAVarAsPlugin(AVarAsPlugin node)
+    {
+        result = new LoadNode.Plugin(null, compileExpression(node.getVar()),
+                node.getAlias().getText());
+    }
+
+    @Override
+    public void caseAStringInclude(AStringInclude node)
+    {
+        result = new IncludeNode(stripQuotes(node.getString()), null);
+    }
+
+    @Override
+    public void caseAVariableInclude(AVariableInclude node)
+    {
+        result = new IncludeNode(null, compileExpression(node.getVariable()));
+    }
+
+}
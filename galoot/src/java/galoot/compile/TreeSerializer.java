@@ -0,0 +1,651 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import galoot.Macro;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes compiled templates in a compact binary form, and reads them back
+ * without lexing or parsing.
+ * 
+ * Only what the template compiler produced is written: the text (already
+ * coalesced), the tags and expressions, and the names of the filters called.
+ * Everything derived from those (variable slots, inline caches, filter
+ * bindings, metrics) is rebuilt by the node constructors when a template is
+ * read, so it matches the process reading it. Macro calls bound to a macro
+ * defined in the template are bound again.
+ * 
+ * Trees with expressions folded by {@link Specializer} hold arbitrary values,
+ * and can't be written.
+ */
+public final class TreeSerializer
+{
+    // ! changes whenever the format does; older data is to be recompiled
+    public static final int FORMAT_VERSION = 1;
+
+    private static final byte NULL = 0, NODE_LIST = 1, TEXT = 2, VARIABLE = 3,
+            IF = 4, IF_EQUAL = 5, FOR = 6, WITH = 7, SET = 8, BLOCK = 9,
+            FILTER_BLOCK = 10, MACRO = 11, MACRO_CALL = 12, FIRST_OF = 13,
+            INCLUDE = 14, LOAD = 15, NOW = 16, CACHE = 17;
+
+    private static final byte VARIABLE_EXPRESSION = 1, LITERAL_EXPRESSION = 2;
+
+    private static final byte TRUTH = 1, COMPARISON = 2, LOGICAL = 3;
+
+    private static final byte STRING = 1, INTEGER = 2, LONG = 3, FLOAT = 4,
+            DOUBLE = 5, BIG_INTEGER = 6, BIG_DECIMAL = 7;
+
+    // ! the macros written or read so far, by index
+    private final Map<Macro, Integer> macroIndices = new IdentityHashMap<Macro, Integer>();
+
+    private final List<Macro> macros = new ArrayList<Macro>();
+
+    private final InlineCacheStatistics statistics = new InlineCacheStatistics();
+
+    private TreeSerializer()
+    {
+    }
+
+    /**
+     * Writes the template as it was compiled.
+     * 
+     * @param template
+     * @param out
+     * @throws IOException
+     *             if the template holds a value that can't be written
+     */
+    public static void write(CompiledTemplate template, DataOutput out)
+            throws IOException
+    {
+        TreeSerializer serializer = new TreeSerializer();
+        writeString(template.getParentName(), out);
+        String[] names = template.getReferencedNames();
+        out.writeInt(names.length);
+        for (String name : names)
+            writeString(name, out);
+        serializer.writeNode(template.getTree(), out);
+    }
+
+    /**
+     * Reads a template written by {@link #write}.
+     * 
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    public static CompiledTemplate read(DataInput in) throws IOException
+    {
+        TreeSerializer serializer = new TreeSerializer();
+        String parentName = readString(in);
+        String[] names = new String[in.readInt()];
+        for (int i = 0; i < names.length; ++i)
+            names[i] = readString(in);
+        RenderNode root = serializer.readNode(in);
+        CompiledTemplate template = new CompiledTemplate(parentName, root,
+                serializer.statistics);
+        template.setReferencedNames(names);
+        return template;
+    }
+
+    private void writeNode(RenderNode node, DataOutput out) throws IOException
+    {
+        if (node == null)
+            out.writeByte(NULL);
+        else if (node instanceof NodeList)
+        {
+            out.writeByte(NODE_LIST);
+            writeNodes(((NodeList) node).getNodes(), out);
+        }
+        else if (node instanceof TextNode)
+        {
+            out.writeByte(TEXT);
+            writeString(((TextNode) node).getText(), out);
+        }
+        else if (node instanceof VariableNode)
+        {
+            out.writeByte(VARIABLE);
+            writeExpression(((VariableNode) node).getExpression(), out);
+        }
+        else if (node instanceof IfNode)
+        {
+            IfNode ifNode = (IfNode) node;
+            out.writeByte(IF);
+            Condition[] conditions = ifNode.getConditions();
+            out.writeInt(conditions.length);
+            for (Condition condition : conditions)
+                writeCondition(condition, out);
+            writeNodes(ifNode.getBodies(), out);
+            writeNode(ifNode.getElseBody(), out);
+        }
+        else if (node instanceof IfEqualNode)
+        {
+            IfEqualNode ifEqual = (IfEqualNode) node;
+            out.writeByte(IF_EQUAL);
+            writeExpressions(ifEqual.getArguments(), out);
+            writeNode(ifEqual.getBody(), out);
+            writeNode(ifEqual.getElseBody(), out);
+        }
+        else if (node instanceof ForNode)
+        {
+            ForNode forNode = (ForNode) node;
+            out.writeByte(FOR);
+            writeString(forNode.getLoopVar(), out);
+            writeExpression(forNode.getExpression(), out);
+            writeNode(forNode.getBody(), out);
+        }
+        else if (node instanceof WithNode)
+        {
+            WithNode with = (WithNode) node;
+            out.writeByte(WITH);
+            writeExpression(with.getExpression(), out);
+            writeString(with.getVar(), out);
+            writeNode(with.getBody(), out);
+        }
+        else if (node instanceof SetNode)
+        {
+            SetNode set = (SetNode) node;
+            out.writeByte(SET);
+            writeExpression(set.getExpression(), out);
+            writeString(set.getVar(), out);
+        }
+        else if (node instanceof BlockNode)
+        {
+            BlockNode block = (BlockNode) node;
+            out.writeByte(BLOCK);
+            writeString(block.getName(), out);
+            writeNode(block.getBody(), out);
+        }
+        else if (node instanceof FilterBlockNode)
+        {
+            FilterBlockNode filterBlock = (FilterBlockNode) node;
+            out.writeByte(FILTER_BLOCK);
+            writeFilters(filterBlock.getFilters(), out);
+            writeNode(filterBlock.getBody(), out);
+        }
+        else if (node instanceof MacroNode)
+        {
+            MacroNode macro = (MacroNode) node;
+            out.writeByte(MACRO);
+            writeString(macro.getName(), out);
+            writeStrings(macro.getArguments(), out);
+            writeNode(macro.getBody(), out);
+            macroIndices.put(macro.getMacro(), macroIndices.size());
+        }
+        else if (node instanceof MacroCallNode)
+        {
+            MacroCallNode call = (MacroCallNode) node;
+            out.writeByte(MACRO_CALL);
+            writeString(call.getName(), out);
+            writeExpressions(call.getArguments(), out);
+            // definitions come before the calls bound to them
+            Integer index = call.getMacro() != null ? macroIndices.get(call
+                    .getMacro()) : null;
+            out.writeInt(index != null ? index : -1);
+        }
+        else if (node instanceof FirstOfNode)
+        {
+            out.writeByte(FIRST_OF);
+            writeExpressions(((FirstOfNode) node).getArguments(), out);
+        }
+        else if (node instanceof IncludeNode)
+        {
+            IncludeNode include = (IncludeNode) node;
+            out.writeByte(INCLUDE);
+            writeString(include.getFilename(), out);
+            writeExpression(include.getExpression(), out);
+        }
+        else if (node instanceof LoadNode)
+        {
+            LoadNode.Plugin[] plugins = ((LoadNode) node).getPlugins();
+            out.writeByte(LOAD);
+            out.writeInt(plugins.length);
+            for (LoadNode.Plugin plugin : plugins)
+            {
+                writeString(plugin.getName(), out);
+                writeExpression(plugin.getExpression(), out);
+                writeString(plugin.getAlias(), out);
+            }
+        }
+        else if (node instanceof NowNode)
+        {
+            out.writeByte(NOW);
+            writeString(((NowNode) node).getFormat(), out);
+        }
+        else if (node instanceof CacheNode)
+        {
+            CacheNode cache = (CacheNode) node;
+            out.writeByte(CACHE);
+            writeExpression(cache.getTimeout(), out);
+            writeExpressions(cache.getKeys(), out);
+            writeNode(cache.getBody(), out);
+        }
+        else
+            throw new IOException("Can't write node: "
+                    + node.getClass().getName());
+    }
+
+    private RenderNode readNode(DataInput in) throws IOException
+    {
+        byte type = in.readByte();
+        switch (type)
+        {
+        case NULL:
+            return null;
+        case NODE_LIST:
+            return new NodeList(readNodes(in));
+        case TEXT:
+            return new TextNode(readString(in));
+        case VARIABLE:
+            return new VariableNode(readExpression(in));
+        case IF:
+        {
+            List<Condition> conditions = new ArrayList<Condition>();
+            for (int i = 0, n = in.readInt(); i < n; ++i)
+                conditions.add(readCondition(in));
+            List<RenderNode> bodies = readNodes(in);
+            return new IfNode(conditions, bodies, readNode(in));
+        }
+        case IF_EQUAL:
+        {
+            List<Expression> arguments = readExpressions(in);
+            RenderNode body = readNode(in);
+            return new IfEqualNode(arguments, body, readNode(in));
+        }
+        case FOR:
+        {
+            String loopVar = readString(in);
+            Expression expression = readExpression(in);
+            return new ForNode(loopVar, expression, readNode(in));
+        }
+        case WITH:
+        {
+            Expression expression = readExpression(in);
+            String var = readString(in);
+            return new WithNode(expression, var, readNode(in));
+        }
+        case SET:
+        {
+            Expression expression = readExpression(in);
+            return new SetNode(expression, readString(in));
+        }
+        case BLOCK:
+        {
+            String name = readString(in);
+            return new BlockNode(name, readNode(in));
+        }
+        case FILTER_BLOCK:
+        {
+            FilterChain filters = readFilters(in);
+            return new FilterBlockNode(filters, readNode(in));
+        }
+        case MACRO:
+        {
+            String name = readString(in);
+            String[] arguments = readStrings(in);
+            MacroNode macro = new MacroNode(name, arguments, readNode(in));
+            macros.add(macro.getMacro());
+            return macro;
+        }
+        case MACRO_CALL:
+        {
+            String name = readString(in);
+            List<Expression> arguments = readExpressions(in);
+            int index = in.readInt();
+            return new MacroCallNode(name, arguments
+                    .toArray(new Expression[arguments.size()]),
+                    index >= 0 ? macros.get(index) : null);
+        }
+        case FIRST_OF:
+            return new FirstOfNode(readExpressions(in));
+        case INCLUDE:
+        {
+            String filename = readString(in);
+            return new IncludeNode(filename, readExpression(in));
+        }
+        case LOAD:
+        {
+            List<LoadNode.Plugin> plugins = new ArrayList<LoadNode.Plugin>();
+            for (int i = 0, n = in.readInt(); i < n; ++i)
+            {
+                String name = readString(in);
+                Expression expression = readExpression(in);
+                plugins.add(new LoadNode.Plugin(name, expression,
+                        readString(in)));
+            }
+            return new LoadNode(plugins);
+        }
+        case NOW:
+            return new NowNode(readString(in));
+        case CACHE:
+        {
+            Expression timeout = readExpression(in);
+            List<Expression> keys = readExpressions(in);
+            return new CacheNode(timeout, keys.toArray(new Expression[keys
+                    .size()]), readNode(in));
+        }
+        default:
+            throw new IOException("Unknown node type: " + type);
+        }
+    }
+
+    private void writeNodes(RenderNode[] nodes, DataOutput out)
+            throws IOException
+    {
+        out.writeInt(nodes.length);
+        for (RenderNode node : nodes)
+            writeNode(node, out);
+    }
+
+    private List<RenderNode> readNodes(DataInput in) throws IOException
+    {
+        int n = in.readInt();
+        List<RenderNode> nodes = new ArrayList<RenderNode>(n);
+        for (int i = 0; i < n; ++i)
+            nodes.add(readNode(in));
+        return nodes;
+    }
+
+    private void writeExpression(Expression expression, DataOutput out)
+            throws IOException
+    {
+        if (expression == null)
+            out.writeByte(NULL);
+        else if (expression instanceof VariableExpression)
+        {
+            VariableExpression variable = (VariableExpression) expression;
+            out.writeByte(VARIABLE_EXPRESSION);
+            writeString(variable.getReferent(), out);
+            writeStrings(variable.getMembers().toArray(
+                    new String[variable.getMembers().size()]), out);
+            writeFilters(variable.getFilters(), out);
+        }
+        else if (expression instanceof LiteralExpression)
+        {
+            LiteralExpression literal = (LiteralExpression) expression;
+            out.writeByte(LITERAL_EXPRESSION);
+            writeValue(literal.getValue(), out);
+            writeStrings(literal.getMembers().toArray(
+                    new String[literal.getMembers().size()]), out);
+            writeFilters(literal.getFilters(), out);
+        }
+        else
+            throw new IOException("Can't write expression: "
+                    + expression.getClass().getName());
+    }
+
+    private Expression readExpression(DataInput in) throws IOException
+    {
+        byte type = in.readByte();
+        switch (type)
+        {
+        case NULL:
+            return null;
+        case VARIABLE_EXPRESSION:
+        {
+            String referent = readString(in);
+            String[] members = readStrings(in);
+            return new VariableExpression(referent, members, readFilters(in),
+                    statistics);
+        }
+        case LITERAL_EXPRESSION:
+        {
+            Object value = readValue(in);
+            String[] members = readStrings(in);
+            return new LiteralExpression(value, members, readFilters(in),
+                    statistics);
+        }
+        default:
+            throw new IOException("Unknown expression type: " + type);
+        }
+    }
+
+    private void writeExpressions(Expression[] expressions, DataOutput out)
+            throws IOException
+    {
+        out.writeInt(expressions.length);
+        for (Expression expression : expressions)
+            writeExpression(expression, out);
+    }
+
+    private List<Expression> readExpressions(DataInput in) throws IOException
+    {
+        int n = in.readInt();
+        List<Expression> expressions = new ArrayList<Expression>(n);
+        for (int i = 0; i < n; ++i)
+            expressions.add(readExpression(in));
+        return expressions;
+    }
+
+    private void writeCondition(Condition condition, DataOutput out)
+            throws IOException
+    {
+        if (condition instanceof TruthCondition)
+        {
+            TruthCondition truth = (TruthCondition) condition;
+            out.writeByte(TRUTH);
+            writeExpression(truth.getExpression(), out);
+            out.writeBoolean(truth.isNegated());
+        }
+        else if (condition instanceof ComparisonCondition)
+        {
+            ComparisonCondition comparison = (ComparisonCondition) condition;
+            out.writeByte(COMPARISON);
+            writeString(comparison.getOperator().name(), out);
+            writeExpression(comparison.getLhs(), out);
+            writeExpression(comparison.getRhs(), out);
+        }
+        else if (condition instanceof LogicalCondition)
+        {
+            LogicalCondition logical = (LogicalCondition) condition;
+            out.writeByte(LOGICAL);
+            writeCondition(logical.getLeft(), out);
+            writeCondition(logical.getRight(), out);
+            out.writeBoolean(logical.isAnd());
+        }
+        else
+            throw new IOException("Can't write condition: "
+                    + condition.getClass().getName());
+    }
+
+    private Condition readCondition(DataInput in) throws IOException
+    {
+        byte type = in.readByte();
+        switch (type)
+        {
+        case TRUTH:
+        {
+            Expression expression = readExpression(in);
+            return new TruthCondition(expression, in.readBoolean());
+        }
+        case COMPARISON:
+        {
+            ComparisonCondition.Operator operator;
+            try
+            {
+                operator = ComparisonCondition.Operator.valueOf(readString(in));
+            }
+            catch (IllegalArgumentException e)
+            {
+                throw new IOException(e.getMessage());
+            }
+            Expression lhs = readExpression(in);
+            return new ComparisonCondition(operator, lhs, readExpression(in));
+        }
+        case LOGICAL:
+        {
+            Condition left = readCondition(in);
+            Condition right = readCondition(in);
+            return new LogicalCondition(left, right, in.readBoolean());
+        }
+        default:
+            throw new IOException("Unknown condition type: " + type);
+        }
+    }
+
+    private static void writeFilters(FilterChain filters, DataOutput out)
+            throws IOException
+    {
+        FilterCall[] calls = filters.getCalls();
+        out.writeInt(calls.length);
+        for (FilterCall call : calls)
+        {
+            writeString(call.getName(), out);
+            writeString(call.getArgument(), out);
+            out.writeBoolean(call.isVariableArgument());
+        }
+    }
+
+    private static FilterChain readFilters(DataInput in) throws IOException
+    {
+        int n = in.readInt();
+        List<FilterCall> calls = new ArrayList<FilterCall>(n);
+        for (int i = 0; i < n; ++i)
+        {
+            String name = readString(in);
+            String argument = readString(in);
+            calls.add(new FilterCall(name, argument, in.readBoolean()));
+        }
+        return new FilterChain(calls);
+    }
+
+    private static void writeValue(Object value, DataOutput out)
+            throws IOException
+    {
+        if (value == null)
+            out.writeByte(NULL);
+        else if (value instanceof String)
+        {
+            out.writeByte(STRING);
+            writeString((String) value, out);
+        }
+        else if (value instanceof Integer)
+        {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer) value);
+        }
+        else if (value instanceof Long)
+        {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        }
+        else if (value instanceof Float)
+        {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) value);
+        }
+        else if (value instanceof Double)
+        {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        }
+        else if (value instanceof BigInteger)
+        {
+            out.writeByte(BIG_INTEGER);
+            writeString(value.toString(), out);
+        }
+        else if (value instanceof BigDecimal)
+        {
+            out.writeByte(BIG_DECIMAL);
+            writeString(value.toString(), out);
+        }
+        else
+            throw new IOException("Can't write value of type: "
+                    + value.getClass().getName());
+    }
+
+    private static Object readValue(DataInput in) throws IOException
+    {
+        byte type = in.readByte();
+        switch (type)
+        {
+        case NULL:
+            return null;
+        case STRING:
+            return readString(in);
+        case INTEGER:
+            return in.readInt();
+        case LONG:
+            return in.readLong();
+        case FLOAT:
+            return in.readFloat();
+        case DOUBLE:
+            return in.readDouble();
+        case BIG_INTEGER:
+            return new BigInteger(readString(in));
+        case BIG_DECIMAL:
+            return new BigDecimal(readString(in));
+        default:
+            throw new IOException("Unknown value type: " + type);
+        }
+    }
+
+    private static void writeStrings(String[] strings, DataOutput out)
+            throws IOException
+    {
+        out.writeInt(strings.length);
+        for (String s : strings)
+            writeString(s, out);
+    }
+
+    private static String[] readStrings(DataInput in) throws IOException
+    {
+        String[] strings = new String[in.readInt()];
+        for (int i = 0; i < strings.length; ++i)
+            strings[i] = readString(in);
+        return strings;
+    }
+
+    /**
+     * Writes a string of any length (writeUTF is limited to 64K), or null.
+     */
+    static void writeString(String s, DataOutput out) throws IOException
+    {
+        if (s == null)
+        {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInput in) throws IOException
+    {
+        int length = in.readInt();
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
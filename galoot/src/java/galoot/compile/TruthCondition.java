@@ -0,0 +1,56 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import galoot.TemplateUtils;
+
+/**
+ * Tests the "boolean-ness" of an expression, e.g. {% if not var %}
+ */
+public class TruthCondition implements Condition
+{
+    private final Expression expression;
+
+    private final boolean negate;
+
+    public TruthCondition(Expression expression, boolean negate)
+    {
+        this.expression = expression;
+        this.negate = negate;
+    }
+
+    public boolean test(RenderContext context)
+    {
+        boolean result = TemplateUtils.evaluateAsBoolean(expression
+                .evaluate(context));
+        return negate ? !result : result;
+    }
+
+    public Expression getExpression()
+    {
+        return expression;
+    }
+
+    public boolean isNegated()
+    {
+        return negate;
+    }
+
+}
@@ -0,0 +1,155 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import galoot.ContextStack;
+import galoot.VariableSlots;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A variable expression, e.g. {{ var.member.member|filter }}
+ */
+public class VariableExpression implements Expression
+{
+    private final String referent;
+
+    private final List<String> members;
+
+    // ! the referent and members joined with dots, e.g. "var.member.member"
+    private final String fullDotExpression;
+
+    private final int referentSlot;
+
+    private final int fullDotSlot;
+
+    private final FilterChain filters;
+
+    // ! an inline cache for each member
+    private final MemberCache[] memberCaches;
+
+    private final InlineCacheStatistics statistics;
+
+    public VariableExpression(String referent, String[] members,
+            FilterChain filters)
+    {
+        this(referent, members, filters, new InlineCacheStatistics());
+    }
+
+    /**
+     * @param referent
+     * @param members
+     * @param filters
+     * @param statistics
+     *            the counters of the template the expression is in
+     */
+    public VariableExpression(String referent, String[] members,
+            FilterChain filters, InlineCacheStatistics statistics)
+    {
+        this.referent = referent;
+        this.members = Collections.unmodifiableList(Arrays.asList(members));
+        this.filters = filters;
+        this.statistics = statistics;
+        memberCaches = new MemberCache[members.length];
+        for (int i = 0; i < members.length; ++i)
+            memberCaches[i] = new MemberCache(members[i], statistics);
+
+        StringBuilder buf = new StringBuilder(referent);
+        for (String member : members)
+            buf.append('.').append(member);
+        fullDotExpression = buf.toString();
+        referentSlot = VariableSlots.getSlot(referent);
+        // dotted names are only slotted for block.super, so arbitrary paths
+        // don't grow the slots
+        if (members.length == 0)
+            fullDotSlot = referentSlot;
+        else if (fullDotExpression.equals(BlockNode.BLOCK_SUPER))
+            fullDotSlot = BlockNode.BLOCK_SUPER_SLOT;
+        else
+            fullDotSlot = -1;
+    }
+
+    public Object evaluate(RenderContext context)
+    {
+        Object object = evaluatePath(context.getContextStack());
+        Dependencies dependencies = context.getDependencies();
+        if (dependencies != null)
+            dependencies.read(referent, fullDotExpression, object);
+        return filters.apply(object, context);
+    }
+
+    /**
+     * @param contextStack
+     * @return the value of the variable, before any filters are applied
+     */
+    Object evaluatePath(ContextStack contextStack)
+    {
+        Object object;
+        if (memberCaches.length == 0)
+            object = contextStack.getVariable(referentSlot, referent);
+        else
+        {
+            // first things first, see if the full "dot" expression is in the
+            // map -- which it can only be if some name has a dot in it
+            object = null;
+            if (contextStack.hasDottedNames())
+            {
+                object = contextStack.getVariable(fullDotSlot,
+                        fullDotExpression);
+                statistics.fullDotLookup(object != null);
+                if (object instanceof BlockSuper)
+                    object = ((BlockSuper) object).getContents();
+            }
+            else
+                statistics.fullDotSkip();
+
+            if (object == null)
+            {
+                object = contextStack.getVariable(referentSlot, referent);
+                for (int i = 0; object != null && i < memberCaches.length; ++i)
+                    object = memberCaches[i].evaluate(object, contextStack);
+            }
+        }
+        return object;
+    }
+
+    public String getReferent()
+    {
+        return referent;
+    }
+
+    public List<String> getMembers()
+    {
+        return members;
+    }
+
+    public String getFullDotExpression()
+    {
+        return fullDotExpression;
+    }
+
+    public FilterChain getFilters()
+    {
+        return filters;
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import galoot.ContextStack;
+import galoot.VariableSlots;
+
+/**
+ * The with tag, e.g. {% with obj.expensive.op as var %} {% endwith %}
+ */
+public class WithNode implements RenderNode
+{
+    private final Expression expression;
+
+    private final String var;
+
+    private final int varSlot;
+
+    private final RenderNode body;
+
+    public WithNode(Expression expression, String var, RenderNode body)
+    {
+        this.expression = expression;
+        this.var = var;
+        varSlot = VariableSlots.getSlot(var);
+        this.body = body;
+    }
+
+    public void render(RenderContext context)
+    {
+        Object withObj = expression.evaluate(context);
+
+        ContextStack contextStack = context.getContextStack();
+        contextStack.push();
+        contextStack.putVariable(varSlot, var, withObj);
+        body.render(context);
+        contextStack.popFrame();
+    }
+
+    public Expression getExpression()
+    {
+        return expression;
+    }
+
+    public String getVar()
+    {
+        return var;
+    }
+
+    public int getVarSlot()
+    {
+        return varSlot;
+    }
+
+    public RenderNode getBody()
+    {
+        return body;
+    }
+
+}
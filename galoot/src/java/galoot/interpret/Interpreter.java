@@ -21,15 +21,20 @@ package galoot.interpret;
 
 import galoot.ContextStack;
 import galoot.Filter;
+import galoot.FilterMetrics;
+import galoot.ForLoop;
+import galoot.FragmentCache;
 import galoot.Macro;
 import galoot.PluginRegistry;
+import galoot.RenderMetrics;
 import galoot.Template;
+import galoot.TemplateCache;
 import galoot.TemplateUtils;
 import galoot.analysis.DepthFirstAdapter;
-import galoot.lexer.LexerException;
 import galoot.node.AAndBooleanOp;
 import galoot.node.ABinaryBooleanExpr;
 import galoot.node.ABlock;
+import galoot.node.ACacheBlock;
 import galoot.node.ACharEntity;
 import galoot.node.AElseifBlock;
 import galoot.node.AEqBinaryExpr;
@@ -71,29 +76,19 @@ import galoot.node.PVarExpression;
 import galoot.node.Start;
 import galoot.node.TId;
 import galoot.node.TMember;
-import galoot.parser.ParserException;
 import galoot.types.BlockFragment;
 import galoot.types.Document;
 import galoot.types.Pair;
 
-import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Collections;
 import java.util.Formatter;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.Stack;
+import java.util.function.Supplier;
 
-import org.apache.commons.collections.IteratorUtils;
 import org.apache.commons.lang.ObjectUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.exception.ExceptionUtils;
@@ -126,9 +121,8 @@ public class Interpreter extends DepthFirstAdapter
      */
     private Stack<StringBuffer> filterBlockData;
 
-    // ! keeps track of for loops vars, so we can refer to parent loop
-    // counter(s)
-    private Stack<Map<String, Object>> forLoopStack;
+    // ! the innermost for loop, so nested loops can refer to their parent
+    private ForLoop currentForLoop;
 
     /**
      * Creates a new Interpreter, using the given context stack as the initial
@@ -152,7 +146,6 @@ public class Interpreter extends DepthFirstAdapter
         variableStack = new Stack<Object>();
         filterStack = new LinkedList<Pair<String, String>>();
         filterBlockData = new Stack<StringBuffer>();
-        forLoopStack = new Stack<Map<String, Object>>();
     }
 
     @Override
@@ -216,11 +209,16 @@ public class Interpreter extends DepthFirstAdapter
             }
             else
             {
-                log.info("running filter: " + nextFilter.getFirst());
+                if (log.isDebugEnabled())
+                    log.debug("running filter: " + nextFilter.getFirst());
                 String args = nextFilter.getSecond();
+                FilterMetrics metrics = RenderMetrics.getInstance()
+                        .getFilterMetrics(nextFilter.getFirst());
+                long start = metrics.begin();
                 object = filter.filter(object, context,
                         args != null ? StringUtils.split(args, ',')
                                 : new String[0]);
+                metrics.end(start);
             }
         }
         return object;
@@ -284,13 +282,10 @@ public class Interpreter extends DepthFirstAdapter
             // push a new context
             context.push();
 
-            // add the arguments as vars in the context
-            List<String> args = IteratorUtils.toList(macro.getArguments()
-                    .iterator());
-            // reverse the list, since we are popping in reverse order
-            Collections.reverse(args);
-            for (String arg : args)
-                context.putVariable(arg, variableStack.pop());
+            // add the arguments as vars in the context, last first, since
+            // we are popping in reverse order
+            for (int i = macro.getNumArguments() - 1; i >= 0; --i)
+                macro.bindArgument(context, i, variableStack.pop());
 
             {
                 for (PEntity e : macro.getEntities())
@@ -299,11 +294,14 @@ public class Interpreter extends DepthFirstAdapter
                 }
             }
             // pop the context
-            context.pop();
+            context.popFrame();
         }
         else
         {
             log.warn("Unknown macro: " + macroName);
+            // drop the arguments
+            for (int i = node.getArgs().size(); i > 0; --i)
+                variableStack.pop();
         }
     }
 
@@ -453,8 +451,9 @@ public class Interpreter extends DepthFirstAdapter
         }
         else
         {
-            log.info("Loaded filter plugin: [" + pluginName + "] as [" + alias
-                    + "]");
+            if (log.isDebugEnabled())
+                log.debug("Loaded filter plugin: [" + pluginName + "] as ["
+                        + alias + "]");
             // add the filter to the context's filter map
             context.getFilterMap().addFilter(filter, alias);
         }
@@ -567,26 +566,11 @@ public class Interpreter extends DepthFirstAdapter
         // pop the loop expression off the stack
         Object loopObj = variableStack.pop();
 
-        // we will only support Iterable types
-        Integer objectSize = TemplateUtils.getObjectLength(loopObj);
-
-        // first, see if we can convert the type to an iterable type
-        if (TemplateUtils.isArrayType(loopObj))
-            loopObj = TemplateUtils.objectToCollection(loopObj);
-
-        if (loopObj instanceof Iterable)
-        {
-            Iterable iter = (Iterable) loopObj;
-
-            int iterCount = 0;
-            for (Iterator it = iter.iterator(); it.hasNext(); ++iterCount)
-            {
-                Object object = (Object) it.next();
-                List<PEntity> copy = new ArrayList<PEntity>(node.getEntities());
-                processForLoopIteration(loopVar, object, iterCount, copy, !it
-                        .hasNext(), objectSize);
-            }
-        }
+        ForLoop forLoop = new ForLoop(loopObj, currentForLoop);
+        currentForLoop = forLoop;
+        while (forLoop.next())
+            processForLoopIteration(loopVar, forLoop, node.getEntities());
+        currentForLoop = forLoop.parent();
 
         outAForBlock(node);
     }
@@ -596,40 +580,20 @@ public class Interpreter extends DepthFirstAdapter
      * 
      * @param loopVar
      *            the loop variable name
-     * @param loopObj
-     *            the loop object, already fully evaluated
-     * @param iterCount
-     *            the current count of the iteration, zero based
+     * @param forLoop
+     *            the loop, positioned at the current iteration
      * @param entities
      *            the entities to process
-     * @param isLast
-     *            true if this iteration is the last in the loop
      */
-    private void processForLoopIteration(String loopVar, Object loopObj,
-                                         int iterCount,
-                                         Iterable<PEntity> entities,
-                                         boolean isLast, int totalLoops)
+    private void processForLoopIteration(String loopVar, ForLoop forLoop,
+                                         Iterable<PEntity> entities)
     {
         // push a new context
         context.push();
 
-        Map<String, Object> extraLoopVars = new HashMap<String, Object>();
-
         // add the vars
-        context.putVariable(loopVar, loopObj);
-        extraLoopVars.put("counter0", iterCount);
-        extraLoopVars.put("counter1", iterCount + 1);
-        extraLoopVars.put("first", iterCount == 0);
-        extraLoopVars.put("last", isLast);
-        int revCounter = totalLoops - iterCount;
-        extraLoopVars.put("revcounter", revCounter);
-        extraLoopVars.put("revcounter0", revCounter - 1);
-        if (!forLoopStack.isEmpty())
-            extraLoopVars.put("parent", forLoopStack.peek());
-        context.putVariable("forloop", extraLoopVars);
-
-        // push the loop vars onto the stack, so sub-for loops can access it
-        forLoopStack.push(extraLoopVars);
+        context.putVariable(loopVar, forLoop.current());
+        context.putVariable("forloop", forLoop);
 
         // apply to the entities
         for (PEntity e : entities)
@@ -638,10 +602,7 @@ public class Interpreter extends DepthFirstAdapter
         }
 
         // pop the context
-        context.pop();
-
-        // pop the extra vars off the forloop stack
-        forLoopStack.pop();
+        context.popFrame();
     }
 
     @Override
@@ -817,14 +778,59 @@ public class Interpreter extends DepthFirstAdapter
             else
             {
                 String args = nextFilter.getSecond();
+                FilterMetrics metrics = RenderMetrics.getInstance()
+                        .getFilterMetrics(nextFilter.getFirst());
+                long start = metrics.begin();
                 output = filter.filter(output, context,
                         args != null ? StringUtils.split(args, ',')
                                 : new String[0]);
+                metrics.end(start);
             }
         }
         finishString(ObjectUtils.toString(output, ""));
     }
 
+    @Override
+    public void caseACacheBlock(final ACacheBlock node)
+    {
+        inACacheBlock(node);
+        node.getTimeout().apply(this);
+        long timeToLive = FragmentCache.toMillis(variableStack.pop());
+
+        // the blocks of a child template go to its document as they are met
+        if (timeToLive <= 0 || parentDocument != null)
+        {
+            for (PEntity e : new ArrayList<PEntity>(node.getEntities()))
+                e.apply(this);
+            outACacheBlock(node);
+            return;
+        }
+
+        // the tag's node identifies it, like a compiled tag's id
+        List<Object> key = new ArrayList<Object>(node.getKeys().size() + 1);
+        key.add(node);
+        for (PVarExpression e : new ArrayList<PVarExpression>(node.getKeys()))
+        {
+            e.apply(this);
+            key.add(variableStack.pop());
+        }
+
+        String fragment = PluginRegistry.getInstance().getFragmentCache().get(
+                key, timeToLive, new Supplier<String>()
+                {
+                    public String get()
+                    {
+                        filterBlockData.push(new StringBuffer());
+                        for (PEntity e : new ArrayList<PEntity>(node
+                                .getEntities()))
+                            e.apply(Interpreter.this);
+                        return filterBlockData.pop().toString();
+                    }
+                });
+        finishString(fragment);
+        outACacheBlock(node);
+    }
+
     @Override
     public void caseAWithBlock(AWithBlock node)
     {
@@ -856,73 +862,30 @@ public class Interpreter extends DepthFirstAdapter
             }
         }
         // pop the context
-        context.pop();
+        context.popFrame();
         outAWithBlock(node);
     }
 
     /**
-     * This method probably should be propagated to a higher level somewhere. It
-     * searches for the given filename within the template include paths
-     * specified in the PluginRegistry.
+     * Loads the named template via the {@link TemplateCache}, and interprets
+     * it using the current context. Templates preloaded from an archive have
+     * no AST, so they are rendered from their compiled form instead.
      * 
      * @param filename
      * @return
-     * @throws ParserException
-     * @throws LexerException
      * @throws IOException
      */
-    private Document loadDocument(String filename) throws ParserException,
-            LexerException, IOException
+    private Document loadDocument(String filename) throws IOException
     {
-        // look in the registry for the paths where include files can be found.
-        Iterable<String> includePaths = PluginRegistry.getInstance()
-                .getTemplateIncludePaths();
-        File templateFile = null;
-        // loop over the paths to see if the file exists
-        for (String path : includePaths)
-        {
-            File file = new File(path, filename);
-            if (file.exists())
-            {
-                templateFile = file;
-                break;
-            }
-        }
-
-        if (templateFile == null)
-        {
-            // try local or absolute filenames
-            File file = new File(filename);
-            if (file.exists())
-                templateFile = file;
-        }
-
-        if (templateFile != null)
-            return new Template(templateFile).renderDocument(context);
-        else
+        Template template = TemplateCache.getInstance().loadTemplate(filename);
+        if (template == null)
         {
-            // try to load it as a resource (url)
-            InputStream stream = Interpreter.class
-                    .getResourceAsStream(filename);
-
-            if (stream == null)
-            {
-                // try to load it as a straight URL
-                stream = new URL(filename).openStream();
-            }
-
-            if (stream != null)
-            {
-                Reader reader = new InputStreamReader(stream);
-                final Document doc = new Template(reader)
-                        .renderDocument(context);
-                stream.close();
-                return doc;
-            }
-
             log.warn("File could not be located in include paths: " + filename);
+            return null;
         }
-        return null;
+        if (!template.isInterpretable())
+            return template.renderDocument(context);
+        return template.interpretDocument(context);
     }
 
     @Override
@@ -1026,7 +989,7 @@ public class Interpreter extends DepthFirstAdapter
             document.popBlock();
 
             // pop the context
-            context.pop();
+            context.popFrame();
 
             // now, replace the "super" fragment, if one existed
             if (curBlockDepth == 0 && existsInParent)
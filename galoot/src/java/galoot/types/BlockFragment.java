@@ -55,7 +55,7 @@ public final class BlockFragment implements DocumentFragment
         if (content == null)
             return;
 
-        if (content instanceof String || content instanceof StringBuffer
+        if (content instanceof CharSequence
                 || content instanceof TextFragment)
         {
             if (contents.isEmpty()
@@ -121,6 +121,17 @@ public final class BlockFragment implements DocumentFragment
             this.contents.addLast(fragment);
     }
 
+    /**
+     * Makes this fragment share the contents of the other one, and the blocks
+     * nested in them, so templates further down the chain can override those.
+     * Used to splice a finished block into its parent in constant time.
+     */
+    protected void shareContent(BlockFragment other)
+    {
+        this.contents = other.contents;
+        this.blocks = other.blocks;
+    }
+
     /**
      * Replace the block with the same name as the newBlock with the contents of
      * the newBlock, and return the BlockFragments that will now not be
@@ -135,8 +146,8 @@ public final class BlockFragment implements DocumentFragment
         if (oldBlock == null)
             return false;
 
-        oldBlock.setContent((Collection<DocumentFragment>) newBlock
-                .getContents());
+        // the new block is complete, so the two can share its contents
+        oldBlock.shareContent(newBlock);
         return true;
     }
 
@@ -148,15 +159,33 @@ public final class BlockFragment implements DocumentFragment
      */
     public String evaluateAsString()
     {
-        StringBuffer buf = new StringBuffer();
+        SegmentedBuffer buf = new SegmentedBuffer();
+        try
+        {
+            writeTo(buf);
+            return buf.toString();
+        }
+        finally
+        {
+            buf.release();
+        }
+    }
+
+    /**
+     * Appends the fragment (and all child fragments) to the target, without
+     * building intermediate Strings.
+     * 
+     * @param out
+     */
+    public void writeTo(Appendable out)
+    {
         for (DocumentFragment fragment : contents)
         {
             if (fragment instanceof BlockFragment)
-                buf.append(((BlockFragment) fragment).evaluateAsString());
+                ((BlockFragment) fragment).writeTo(out);
             else if (fragment instanceof TextFragment)
-                buf.append((String) ((TextFragment) fragment).getContents());
+                ((TextFragment) fragment).writeTo(out);
         }
-        return buf.toString();
     }
 
 }
@@ -19,6 +19,12 @@
  */
 package galoot.types;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
 import java.util.Stack;
 
 public class Document implements DocumentFragment
@@ -110,6 +116,39 @@ public class Document implements DocumentFragment
         return documentBlock.evaluateAsString();
     }
 
+    /**
+     * Writes the document to the writer, fragment by fragment.
+     * 
+     * @param writer
+     * @throws IOException
+     */
+    public void writeTo(Writer writer) throws IOException
+    {
+        try
+        {
+            documentBlock.writeTo(writer);
+        }
+        catch (UncheckedIOException e)
+        {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Encodes the document to the stream in the given charset, fragment by
+     * fragment. The stream is flushed, but not closed.
+     * 
+     * @param out
+     * @param charset
+     * @throws IOException
+     */
+    public void writeTo(OutputStream out, Charset charset) throws IOException
+    {
+        Writer writer = new OutputStreamWriter(out, charset);
+        writeTo(writer);
+        writer.flush();
+    }
+
     /**
      * @param name
      * @return
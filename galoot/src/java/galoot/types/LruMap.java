@@ -0,0 +1,80 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.types;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A map bounded to a maximum size, which evicts the least recently used entry
+ * when full. Like the LinkedHashMap it extends, it is not thread-safe; even
+ * get() reorders the entries, so all access must be synchronized.
+ */
+public class LruMap<K, V> extends LinkedHashMap<K, V>
+{
+    private static final long serialVersionUID = 1L;
+
+    private int maxSize;
+
+    public LruMap(int maxSize)
+    {
+        // access-ordered, so iteration order is least recently used first
+        super(16, 0.75f, true);
+        this.maxSize = checkMaxSize(maxSize);
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<K, V> eldest)
+    {
+        return size() > maxSize;
+    }
+
+    public int getMaxSize()
+    {
+        return maxSize;
+    }
+
+    /**
+     * Sets the maximum number of entries. If the map currently holds more
+     * than this, the least recently used entries are evicted.
+     * 
+     * @param maxSize
+     */
+    public void setMaxSize(int maxSize)
+    {
+        this.maxSize = checkMaxSize(maxSize);
+        for (Iterator<K> it = keySet().iterator(); size() > maxSize
+                && it.hasNext();)
+        {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private static int checkMaxSize(int maxSize)
+    {
+        if (maxSize < 1)
+            throw new IllegalArgumentException("maxSize must be positive: "
+                    + maxSize);
+        return maxSize;
+    }
+
+}
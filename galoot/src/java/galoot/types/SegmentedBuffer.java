@@ -0,0 +1,303 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.types;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A character buffer made of a chain of fixed-size chunks (a rope). Appending
+ * never copies what was already written, another buffer can be spliced onto
+ * the end in constant time, and the contents can be written out chunk by
+ * chunk without ever building one large String.
+ * 
+ * Chunks come from a global pool. A buffer whose lifetime is known should be
+ * given back with {@link #release()} once its contents have been consumed;
+ * buffers that are never released are simply garbage collected.
+ * 
+ * A SegmentedBuffer is not thread-safe.
+ */
+public final class SegmentedBuffer implements Appendable
+{
+    // ! the number of characters in each chunk
+    public static final int CHUNK_SIZE = 4096;
+
+    // ! the maximum number of idle chunks kept in the pool
+    public static final int MAX_POOLED_CHUNKS = 256;
+
+    private static final ConcurrentLinkedQueue<Segment> pool = new ConcurrentLinkedQueue<Segment>();
+
+    private static final AtomicInteger pooled = new AtomicInteger();
+
+    private Segment head;
+
+    private Segment tail;
+
+    private int length;
+
+    public SegmentedBuffer()
+    {
+    }
+
+    public SegmentedBuffer append(CharSequence s)
+    {
+        if (s == null)
+            s = "null";
+        return append(s, 0, s.length());
+    }
+
+    public SegmentedBuffer append(CharSequence s, int start, int end)
+    {
+        if (s == null)
+            s = "null";
+        if (s instanceof String)
+        {
+            String string = (String) s;
+            while (start < end)
+            {
+                Segment segment = writable();
+                int n = Math.min(end - start, CHUNK_SIZE - segment.length);
+                string.getChars(start, start + n, segment.chars,
+                        segment.length);
+                segment.length += n;
+                length += n;
+                start += n;
+            }
+        }
+        else if (s instanceof StringBuilder)
+        {
+            StringBuilder builder = (StringBuilder) s;
+            while (start < end)
+            {
+                Segment segment = writable();
+                int n = Math.min(end - start, CHUNK_SIZE - segment.length);
+                builder.getChars(start, start + n, segment.chars,
+                        segment.length);
+                segment.length += n;
+                length += n;
+                start += n;
+            }
+        }
+        else
+        {
+            for (int i = start; i < end; ++i)
+                append(s.charAt(i));
+        }
+        return this;
+    }
+
+    public SegmentedBuffer append(char c)
+    {
+        Segment segment = writable();
+        segment.chars[segment.length++] = c;
+        ++length;
+        return this;
+    }
+
+    public SegmentedBuffer append(char[] chars, int offset, int count)
+    {
+        while (count > 0)
+        {
+            Segment segment = writable();
+            int n = Math.min(count, CHUNK_SIZE - segment.length);
+            System.arraycopy(chars, offset, segment.chars, segment.length, n);
+            segment.length += n;
+            length += n;
+            offset += n;
+            count -= n;
+        }
+        return this;
+    }
+
+    /**
+     * Moves the chunks of the other buffer onto the end of this one, without
+     * copying them. The other buffer is left empty.
+     * 
+     * @param other
+     * @return this buffer
+     */
+    public SegmentedBuffer splice(SegmentedBuffer other)
+    {
+        if (other == this || other.head == null)
+            return this;
+        if (head == null)
+            head = other.head;
+        else
+            tail.next = other.head;
+        tail = other.tail;
+        length += other.length;
+        other.head = other.tail = null;
+        other.length = 0;
+        return this;
+    }
+
+    /**
+     * @return the number of characters in the buffer
+     */
+    public int length()
+    {
+        return length;
+    }
+
+    public boolean isEmpty()
+    {
+        return length == 0;
+    }
+
+    /**
+     * Writes the contents to the writer, one chunk at a time.
+     * 
+     * @param writer
+     * @throws IOException
+     */
+    public void writeTo(Writer writer) throws IOException
+    {
+        for (Segment segment = head; segment != null; segment = segment.next)
+            writer.write(segment.chars, 0, segment.length);
+    }
+
+    /**
+     * Appends the contents to the target, one chunk at a time.
+     * 
+     * @param out
+     * @throws IOException
+     */
+    public void writeTo(Appendable out) throws IOException
+    {
+        if (out instanceof Writer)
+            writeTo((Writer) out);
+        else if (out instanceof SegmentedBuffer)
+        {
+            SegmentedBuffer buffer = (SegmentedBuffer) out;
+            for (Segment segment = head; segment != null; segment = segment.next)
+                buffer.append(segment.chars, 0, segment.length);
+        }
+        else if (out instanceof StringBuilder)
+        {
+            StringBuilder builder = (StringBuilder) out;
+            for (Segment segment = head; segment != null; segment = segment.next)
+                builder.append(segment.chars, 0, segment.length);
+        }
+        else
+        {
+            for (Segment segment = head; segment != null; segment = segment.next)
+                out.append(new String(segment.chars, 0, segment.length));
+        }
+    }
+
+    /**
+     * Encodes the contents to the stream in the given charset. Characters are
+     * encoded a chunk at a time, so no String of the whole contents is built.
+     * The stream is flushed, but not closed.
+     * 
+     * @param out
+     * @param charset
+     * @throws IOException
+     */
+    public void writeTo(OutputStream out, Charset charset) throws IOException
+    {
+        // the writer carries a surrogate pair split across two chunks
+        Writer writer = new OutputStreamWriter(out, charset);
+        writeTo(writer);
+        writer.flush();
+    }
+
+    @Override
+    public String toString()
+    {
+        if (head == null)
+            return "";
+        if (head == tail)
+            return new String(head.chars, 0, head.length);
+        char[] chars = new char[length];
+        int offset = 0;
+        for (Segment segment = head; segment != null; segment = segment.next)
+        {
+            System.arraycopy(segment.chars, 0, chars, offset, segment.length);
+            offset += segment.length;
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Empties the buffer and returns its chunks to the pool. The buffer can
+     * be reused afterwards.
+     */
+    public void release()
+    {
+        Segment segment = head;
+        head = tail = null;
+        length = 0;
+        while (segment != null)
+        {
+            Segment next = segment.next;
+            segment.next = null;
+            segment.length = 0;
+            if (pooled.incrementAndGet() <= MAX_POOLED_CHUNKS)
+                pool.offer(segment);
+            else
+                pooled.decrementAndGet();
+            segment = next;
+        }
+    }
+
+    /**
+     * @return the number of idle chunks in the pool
+     */
+    public static int getPooledChunkCount()
+    {
+        return pooled.get();
+    }
+
+    /**
+     * Returns the tail segment if it has room, otherwise links a new one.
+     */
+    private Segment writable()
+    {
+        if (tail != null && tail.length < CHUNK_SIZE)
+            return tail;
+        Segment segment = pool.poll();
+        if (segment != null)
+            pooled.decrementAndGet();
+        else
+            segment = new Segment();
+        if (head == null)
+            head = segment;
+        else
+            tail.next = segment;
+        tail = segment;
+        return segment;
+    }
+
+    private static final class Segment
+    {
+        final char[] chars = new char[CHUNK_SIZE];
+
+        int length;
+
+        Segment next;
+    }
+
+}
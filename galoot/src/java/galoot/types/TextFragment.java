@@ -19,13 +19,21 @@
  */
 package galoot.types;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * A run of rendered text. The text is held in a StringBuilder sized to it:
+ * documents are never released, so fragments don't take pooled
+ * {@link SegmentedBuffer} chunks, which would cost a whole chunk per fragment.
+ */
 public class TextFragment implements DocumentFragment
 {
-    private StringBuffer contents;
+    private StringBuilder contents;
 
     public TextFragment()
     {
-        contents = new StringBuffer();
+        contents = new StringBuilder();
     }
 
     /**
@@ -41,14 +49,37 @@ public class TextFragment implements DocumentFragment
         if (content == null)
             return;
 
-        if (content instanceof StringBuffer)
-            contents.append((StringBuffer) content);
-        else if (content instanceof String)
-            contents.append((String) content);
+        if (content instanceof CharSequence)
+            contents.append((CharSequence) content);
         else if (content instanceof TextFragment)
-            contents.append((String) ((TextFragment) content).getContents());
+            contents.append(((TextFragment) content).contents);
         else
             throw new IllegalArgumentException("Cannot add content of type: "
                     + content.getClass().getName());
     }
+
+    /**
+     * Appends the contents to the target.
+     * 
+     * @param out
+     */
+    public void writeTo(Appendable out)
+    {
+        try
+        {
+            out.append(contents);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return the number of characters in the fragment
+     */
+    public int length()
+    {
+        return contents.length();
+    }
 }
@@ -0,0 +1,110 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot;
+
+import galoot.AccessorCache.Accessor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class AccessorCacheTest extends TestCase
+{
+    public static class Bean
+    {
+        public String field = "field";
+
+        public static String constant = "constant";
+
+        public String getName()
+        {
+            return "name";
+        }
+
+        public String fails()
+        {
+            throw new IllegalStateException();
+        }
+
+        public String getFails()
+        {
+            return "getter";
+        }
+
+        public String getRecursive()
+        {
+            return getRecursive();
+        }
+    }
+
+    public void testMembers() throws Exception
+    {
+        Bean bean = new Bean();
+        assertEquals("field", AccessorCache.getAccessor(Bean.class, "field")
+                .get(bean));
+        assertEquals("constant", AccessorCache.getAccessor(Bean.class,
+                "constant").get(bean));
+        assertEquals("name", AccessorCache.getAccessor(Bean.class, "name").get(
+                bean));
+        assertEquals("name", AccessorCache.getAccessor(Bean.class, "getName")
+                .get(bean));
+        // a method that throws falls back to the getter
+        assertEquals("getter", AccessorCache.getAccessor(Bean.class, "fails")
+                .get(bean));
+        assertEquals(4, AccessorCache.getAccessor(String.class, "length").get(
+                "four"));
+    }
+
+    public void testMissing() throws Exception
+    {
+        Accessor accessor = AccessorCache.getAccessor(Bean.class, "missing");
+        assertTrue(accessor.isEmpty());
+        assertSame(Accessor.NOT_FOUND, accessor.get(new Bean()));
+        // negative results are cached too
+        assertSame(accessor, AccessorCache.getAccessor(Bean.class, "missing"));
+    }
+
+    public void testErrorsRethrown() throws Exception
+    {
+        try
+        {
+            AccessorCache.getAccessor(Bean.class, "recursive").get(new Bean());
+            fail();
+        }
+        catch (StackOverflowError e)
+        {
+            // expected, rather than NOT_FOUND
+        }
+    }
+
+    public void testEvaluateObject() throws Exception
+    {
+        ContextStack context = new ContextStack();
+        List<String> list = new ArrayList<String>(Arrays.asList("a", "bc"));
+        assertEquals(2, TemplateUtils.evaluateObject(list, Arrays.asList(
+                "size"), context));
+        assertEquals(2, TemplateUtils.evaluateObject(list, Arrays.asList("1",
+                "length"), context));
+        assertNull(TemplateUtils.evaluateObject(new Bean(), Arrays
+                .asList("missing"), context));
+    }
+}
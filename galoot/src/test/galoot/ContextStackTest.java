@@ -0,0 +1,288 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import junit.framework.TestCase;
+
+public class ContextStackTest extends TestCase
+{
+    public void testShadowing() throws Exception
+    {
+        int slot = VariableSlots.getSlot("slotted");
+        Context base = new Context();
+        base.putVariable("slotted", "base");
+        base.putVariable("unslotted-name", "base");
+        ContextStack stack = new ContextStack(base);
+
+        stack.push();
+        stack.putVariable(slot, "slotted", "inner");
+        stack.putVariable("unslotted-name", "inner");
+        assertEquals("inner", stack.getVariable("slotted"));
+        assertEquals("inner", stack.getVariable(slot, "slotted"));
+        assertEquals("inner", stack.getVariable("unslotted-name"));
+
+        // null shadows too
+        stack.push();
+        stack.putVariable("slotted", null);
+        assertNull(stack.getVariable("slotted"));
+        stack.pop();
+
+        stack.pop();
+        assertEquals("base", stack.getVariable(slot, "slotted"));
+        assertEquals("base", stack.getVariable("unslotted-name"));
+    }
+
+    public void testGlobalPut() throws Exception
+    {
+        Context base = new Context();
+        ContextStack stack = new ContextStack(base);
+        stack.putVariable("x", 1);
+        stack.push();
+        stack.push();
+        stack.putVariable("x", 2, true);
+        stack.pop();
+        stack.pop();
+        assertEquals(2, base.getVariable("x"));
+    }
+
+    public void testFrameReuse() throws Exception
+    {
+        ContextStack stack = new ContextStack();
+        stack.push();
+        Context frame = stack.frames[1];
+        stack.putVariable(VariableSlots.getSlot("a.b"), "a.b", "dotted");
+        assertTrue(stack.hasDottedNames());
+        stack.popFrame();
+        assertFalse(stack.hasDottedNames());
+
+        stack.push();
+        assertSame(frame, stack.frames[1]);
+        assertNull(stack.getVariable("a.b"));
+        assertFalse(stack.hasDottedNames());
+        stack.popFrame();
+    }
+
+    public void testPoppedFrameKept() throws Exception
+    {
+        ContextStack stack = new ContextStack();
+        stack.push();
+        stack.putVariable("kept", "value");
+        Context popped = stack.pop();
+
+        // not cleared by being reused
+        stack.push();
+        stack.putVariable("other", 1);
+        assertEquals("value", popped.getVariable("kept"));
+        assertNull(popped.getVariable("other"));
+        stack.popFrame();
+    }
+
+    public void testSlotAssignedAfterPut() throws Exception
+    {
+        String name = "late" + System.nanoTime();
+        ContextStack stack = new ContextStack();
+        stack.push();
+        stack.putVariable(name, "map");
+
+        // a template refers to the name, so later puts use its slot
+        int slot = VariableSlots.getSlot(name);
+        stack.putVariable(slot, name, "slot");
+        assertEquals("slot", stack.getVariable(name));
+        assertEquals("slot", stack.removeVariable(name));
+        assertNull(stack.getVariable(name));
+        stack.popFrame();
+    }
+
+    public void testDottedPathsNotSlotted() throws Exception
+    {
+        String path = "x" + System.nanoTime() + ".member";
+        new Template("{{ " + path + " }}{{ s|default:1234567 }}");
+        assertEquals(-1, VariableSlots.findSlot(path));
+        assertEquals(-1, VariableSlots.findSlot("1234567"));
+    }
+
+    public void testRemove() throws Exception
+    {
+        ContextStack stack = new ContextStack();
+        stack.putVariable("x", 1);
+        stack.push();
+        stack.putVariable(VariableSlots.getSlot("x"), "x", 2);
+        assertEquals(2, stack.removeVariable("x"));
+        assertEquals(1, stack.getVariable("x"));
+        // can't remove from a lower frame
+        assertNull(stack.removeVariable("x"));
+        stack.pop();
+    }
+    public void testLazyValues() throws Exception
+    {
+        final AtomicInteger calls = new AtomicInteger();
+        Supplier<String> used = new Supplier<String>()
+        {
+            public String get()
+            {
+                calls.incrementAndGet();
+                return "computed";
+            }
+        };
+        Supplier<String> unused = new Supplier<String>()
+        {
+            public String get()
+            {
+                throw new AssertionError("should not be computed");
+            }
+        };
+        ContextStack stack = new ContextStack();
+        stack.putVariable("used", used);
+        stack.putVariable("unused", unused);
+        stack.putVariable("future", CompletableFuture.completedFuture("done"));
+
+        Template t = new Template("{{ used }} {{ used|upper }} {{ future }}");
+        assertEquals("computed COMPUTED done", t.render(stack));
+        assertEquals(1, calls.get());
+        assertSame(used, stack.getVariableContext("used").getVariable("used"));
+        // forks share the computed values
+        assertEquals("computed", stack.fork().getVariable("used"));
+        assertEquals(1, calls.get());
+
+        // prefetching computes the value on the executor
+        final Thread caller = Thread.currentThread();
+        final Thread[] computedOn = new Thread[1];
+        stack = new ContextStack();
+        stack.putVariable("used", new Supplier<String>()
+        {
+            public String get()
+            {
+                computedOn[0] = Thread.currentThread();
+                return "prefetched";
+            }
+        });
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try
+        {
+            stack.prefetch(new String[] { "used", "missing" }, executor);
+            assertEquals("prefetched", stack.getVariable("used"));
+            assertNotNull(computedOn[0]);
+            assertNotSame(caller, computedOn[0]);
+
+            // templates prefetch on their executor, without rendering in
+            // parallel
+            computedOn[0] = null;
+            stack = new ContextStack();
+            stack.putVariable("used", new Supplier<String>()
+            {
+                public String get()
+                {
+                    computedOn[0] = Thread.currentThread();
+                    return "prefetched";
+                }
+            });
+            Template prefetching = new Template("head {{ used }}");
+            prefetching.setPrefetchExecutor(executor);
+            assertNull(prefetching.getParallelRendering());
+            assertEquals("head prefetched", prefetching.render(stack));
+            assertNotSame(caller, computedOn[0]);
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    public void testLazyFailures() throws Exception
+    {
+        final ContextStack stack = new ContextStack();
+        stack.putVariable("inner", new Supplier<String>()
+        {
+            public String get()
+            {
+                return "inner";
+            }
+        });
+        // a Supplier may look up other Suppliers
+        stack.putVariable("outer", new Supplier<String>()
+        {
+            public String get()
+            {
+                return "outer " + stack.getVariable("inner");
+            }
+        });
+        stack.putVariable("failing", new Supplier<String>()
+        {
+            public String get()
+            {
+                throw new UnsupportedOperationException("down");
+            }
+        });
+        stack.putVariable("self", new Supplier<String>()
+        {
+            public String get()
+            {
+                return String.valueOf(stack.getVariable("self"));
+            }
+        });
+        stack.putVariable("future", CompletableFuture
+                .supplyAsync(new Supplier<String>()
+                {
+                    public String get()
+                    {
+                        throw new UnsupportedOperationException("async");
+                    }
+                }));
+
+        assertEquals("outer inner", stack.getVariable("outer"));
+        // failures aren't rendered as null
+        for (String name : new String[] { "failing", "future" })
+        {
+            try
+            {
+                stack.getVariable(name);
+                fail(name);
+            }
+            catch (UnsupportedOperationException e)
+            {
+                // expected, and again on the next lookup
+            }
+        }
+        try
+        {
+            stack.getVariable("failing");
+            fail();
+        }
+        catch (UnsupportedOperationException e)
+        {
+            assertEquals("down", e.getMessage());
+        }
+        try
+        {
+            stack.getVariable("self");
+            fail();
+        }
+        catch (IllegalStateException e)
+        {
+            // expected
+        }
+    }
+}
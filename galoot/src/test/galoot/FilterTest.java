@@ -92,6 +92,53 @@ public class FilterTest extends TestCase
         assertEquals(4, ((Integer) result).intValue());
     }
 
+    public void testRebinding() throws Exception
+    {
+        Filter numbered = new Filter()
+        {
+            public Object filter(Object object, ContextStack context,
+                                 String... args)
+            {
+                return object + "1";
+            }
+
+            public String getName()
+            {
+                return "numbered";
+            }
+        };
+        long version = filters.getVersion();
+        filters.addFilter(numbered, "upper");
+        assertTrue(filters.getVersion() > version);
+
+        Template t = new Template("{{ name|upper }}");
+        Context context = new Context();
+        context.putVariable("name", "tom");
+        assertEquals("TOM", t.render(context));
+
+        // a context's own filters are picked up, and override the defaults
+        ContextStack stack = new ContextStack(context);
+        stack.getFilterMap().addFilter(numbered, "upper");
+        assertEquals("tom1", t.render(stack));
+        stack.getFilterMap().removeFilter("upper");
+        assertEquals("TOM", t.render(stack));
+
+        // loaded filters are looked up again when the registry changes
+        PluginRegistry registry = PluginRegistry.getInstance();
+        registry.registerFilter(numbered);
+        try
+        {
+            t = new Template("{% load \"numbered\" as n %}{{ name|n }}");
+            assertEquals("tom1", t.render(context));
+            registry.unregisterFilter("numbered");
+            assertEquals("", t.render(context));
+        }
+        finally
+        {
+            registry.unregisterFilter("numbered");
+        }
+    }
+
     public void testTitle()
     {
         Object result = PluginRegistry.getInstance().getFilter("title").filter(
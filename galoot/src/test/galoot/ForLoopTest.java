@@ -0,0 +1,115 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.stream.Stream;
+
+import junit.framework.TestCase;
+
+public class ForLoopTest extends TestCase
+{
+    protected String render(String text, Object items) throws Exception
+    {
+        Context context = new Context();
+        context.putVariable("items", items);
+        return new Template(text).render(context);
+    }
+
+    public void testSources() throws Exception
+    {
+        String text = "{% for i in items %}{{ i }}{% if not forloop.last %},{% endif %}{% endfor %}";
+        assertEquals("1,2,3", render(text, new int[] { 1, 2, 3 }));
+        assertEquals("a,b", render(text, new String[] { "a", "b" }));
+        assertEquals("a,b", render(text, Arrays.asList("a", "b")));
+        assertEquals("a,b", render(text, new LinkedHashSet<String>(Arrays
+                .asList("a", "b"))));
+        assertEquals("x,y", render(text, Stream.of("x", "y")));
+        assertEquals("x,y", render(text, Arrays.asList("x", "y").iterator()));
+        assertEquals("", render(text, null));
+        // maps and strings are not iterated
+        assertEquals("", render(text, "abc"));
+    }
+
+    public void testCounters() throws Exception
+    {
+        String text = "{% for i in items %}{{ forloop.counter1 }}{{ forloop.revcounter0 }}{{ forloop.first }} {% endfor %}";
+        assertEquals("12true 21false 30false ", render(text, new long[] { 7,
+                8, 9 }));
+
+        // an Iterable is counted only when a revcounter is used
+        final int[] iterations = new int[1];
+        Iterable<String> iterable = new Iterable<String>()
+        {
+            public Iterator<String> iterator()
+            {
+                ++iterations[0];
+                return Arrays.asList("a", "b").iterator();
+            }
+        };
+        assertEquals("a0b1", render(
+                "{% for i in items %}{{ i }}{{ forloop.counter0 }}{% endfor %}",
+                iterable));
+        assertEquals(1, iterations[0]);
+        assertEquals("2", render(
+                "{% for i in items %}{% if forloop.first %}{{ forloop.revcounter }}{% endif %}{% endfor %}",
+                iterable));
+        assertEquals(3, iterations[0]);
+    }
+
+    public void testNested() throws Exception
+    {
+        assertEquals("1.1 1.2 2.1 2.2 ", render("{% for i in items %}"
+                + "{% for j in items %}{{ forloop.parent.counter1 }}."
+                + "{{ forloop.counter1 }} {% endfor %}{% endfor %}",
+                Arrays.asList("a", "b")));
+    }
+
+    public void testOneShot() throws Exception
+    {
+        // a large, lazily generated sequence is never materialized
+        final int n = 1000000;
+        Iterator<Integer> it = new Iterator<Integer>()
+        {
+            int i = 0;
+
+            public boolean hasNext()
+            {
+                return i < n;
+            }
+
+            public Integer next()
+            {
+                return i++;
+            }
+
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+        assertEquals(String.valueOf(n - 1), render(
+                "{% for i in items %}{% if forloop.last %}{{ i }}"
+                        + "{{ forloop.revcounter }}{% endif %}{% endfor %}",
+                it));
+    }
+}
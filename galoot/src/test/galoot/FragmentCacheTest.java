@@ -0,0 +1,217 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import junit.framework.TestCase;
+
+public class FragmentCacheTest extends TestCase
+{
+    protected FragmentCache cache;
+
+    protected AtomicInteger renders;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        cache = PluginRegistry.getInstance().getFragmentCache();
+        cache.clear();
+        renders = new AtomicInteger();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        cache.setMaxSize(FragmentCache.DEFAULT_MAX_SIZE);
+        cache.clear();
+        super.tearDown();
+    }
+
+    protected Context createContext(String key)
+    {
+        Context context = new Context();
+        context.putVariable("key", key);
+        context.putVariable("count", new Supplier<Integer>()
+        {
+            public Integer get()
+            {
+                return renders.incrementAndGet();
+            }
+        });
+        return context;
+    }
+
+    public void testCacheTag() throws Exception
+    {
+        Template t = new Template(
+                "<{% cache 60 key \"x\" %}{{ key }}{{ count }}{% endcache %}>");
+        assertEquals("<a1>", t.render(createContext("a")));
+        assertEquals("<a1>", t.render(createContext("a")));
+        assertEquals("<b2>", t.render(createContext("b")));
+        assertEquals("<b2>", t.renderDocument(createContext("b"))
+                .evaluateAsString());
+
+        // the interpreter caches the tag apart from the compiled template
+        assertEquals("<a3>", t.interpretDocument(
+                new ContextStack(createContext("a"))).evaluateAsString());
+        assertEquals("<a3>", t.interpretDocument(
+                new ContextStack(createContext("a"))).evaluateAsString());
+
+        // another template has its own fragments
+        Template other = new Template(
+                "<{% cache 60 key \"x\" %}{{ key }}{{ count }}{% endcache %}>");
+        assertEquals("<a4>", other.render(createContext("a")));
+        assertEquals(3, cache.getHits());
+    }
+
+    public void testNoTimeout() throws Exception
+    {
+        Template t = new Template("{% cache 0 %}{{ count }}{% endcache %}");
+        assertEquals("1", t.render(createContext("a")));
+        assertEquals("2", t.render(createContext("a")));
+        assertEquals(0, cache.size());
+    }
+
+    public void testExpiry() throws Exception
+    {
+        List<Object> key = Arrays.<Object> asList("key");
+        assertEquals("1", cache.get(key, 1, counter()));
+        Thread.sleep(10);
+        assertEquals("2", cache.get(key, 1, counter()));
+        assertEquals("3", cache.get(Arrays.<Object> asList("other"), 60000,
+                counter()));
+        assertEquals("2", cache.get(key, 60000, counter()));
+    }
+
+    public void testEviction() throws Exception
+    {
+        cache.setMaxSize(2);
+        cache.get(Arrays.<Object> asList(1), 60000, counter());
+        cache.get(Arrays.<Object> asList(2), 60000, counter());
+        cache.get(Arrays.<Object> asList(1), 60000, counter());
+        cache.get(Arrays.<Object> asList(3), 60000, counter());
+        assertEquals(2, cache.size());
+        // 2 was the least recently used
+        assertEquals("1", cache.get(Arrays.<Object> asList(1), 60000,
+                counter()));
+        assertEquals("4", cache.get(Arrays.<Object> asList(2), 60000,
+                counter()));
+    }
+
+    public void testSingleFlight() throws Exception
+    {
+        final List<Object> key = Arrays.<Object> asList("key");
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Supplier<String> slow = new Supplier<String>()
+        {
+            public String get()
+            {
+                started.countDown();
+                try
+                {
+                    release.await();
+                }
+                catch (InterruptedException e)
+                {
+                    throw new RuntimeException(e);
+                }
+                return "fragment" + renders.incrementAndGet();
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try
+        {
+            Future<?>[] results = new Future<?>[8];
+            results[0] = executor.submit(new Callable<String>()
+            {
+                public String call()
+                {
+                    return cache.get(key, 60000, slow);
+                }
+            });
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            for (int i = 1; i < results.length; ++i)
+                results[i] = executor.submit(new Callable<String>()
+                {
+                    public String call()
+                    {
+                        return cache.get(key, 60000, slow);
+                    }
+                });
+            // give the waiting threads time to miss
+            Thread.sleep(50);
+            release.countDown();
+            for (Future<?> result : results)
+                assertEquals("fragment1", result.get(10, TimeUnit.SECONDS));
+            assertEquals(1, renders.get());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testFailure() throws Exception
+    {
+        List<Object> key = Arrays.<Object> asList("key");
+        try
+        {
+            cache.get(key, 60000, new Supplier<String>()
+            {
+                public String get()
+                {
+                    throw new IllegalStateException("failed");
+                }
+            });
+            fail();
+        }
+        catch (IllegalStateException e)
+        {
+            // expected
+        }
+        assertEquals(0, cache.size());
+        assertEquals("1", cache.get(key, 60000, counter()));
+    }
+
+    protected Supplier<String> counter()
+    {
+        return new Supplier<String>()
+        {
+            public String get()
+            {
+                return String.valueOf(renders.incrementAndGet());
+            }
+        };
+    }
+
+}
@@ -0,0 +1,116 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+
+import junit.framework.TestCase;
+
+public class RenderMetricsTest extends TestCase
+{
+    public void testTemplateAndFilterMetrics() throws Exception
+    {
+        RenderMetrics registry = RenderMetrics.getInstance();
+        Template t = new Template(new StringReader(
+                "{{ name|upper }}{{ name|metrictest }}"), "metrics-test");
+        assertSame(registry.getTemplateMetrics("metrics-test"), t.getMetrics());
+
+        ContextStack context = new ContextStack();
+        context.putVariable("name", "Tom");
+        for (int i = 0; i < 3; ++i)
+            assertEquals("TOM", t.render(context));
+
+        RenderMetrics.Snapshot snapshot = registry.snapshot();
+        TemplateMetrics.Snapshot template = snapshot.getTemplates().get(
+                "metrics-test");
+        assertEquals(3, template.getRenderCount());
+        assertEquals(9, template.getOutputChars());
+        assertEquals(0, template.getErrorCount());
+        assertTrue(template.getPercentileNanos(0.99) >= template
+                .getPercentileNanos(0.5));
+        // a missing filter is not invoked, so not counted
+        assertEquals(0, snapshot.getFilters().get("metrictest")
+                .getInvocationCount());
+        assertTrue(snapshot.getFilters().get("upper").getInvocationCount() >= 3);
+
+        // nothing is recorded while disabled
+        registry.setEnabled(false);
+        try
+        {
+            t.render(context);
+        }
+        finally
+        {
+            registry.setEnabled(true);
+        }
+        assertEquals(3, t.getMetrics().getRenderCount());
+
+        t.getMetrics().reset();
+        assertEquals(0, t.getMetrics().getRenderCount());
+    }
+
+    public void testHistogram() throws Exception
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentileNanos(0.5));
+        for (int i = 0; i < 99; ++i)
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(3));
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(5));
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(5), histogram.getMaxNanos());
+        // 3us falls in the bucket from 2 to 4us
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(4), histogram
+                .getPercentileNanos(0.99));
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(8192), histogram
+                .getPercentileNanos(1.0));
+    }
+
+    public void testMBeans() throws Exception
+    {
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        RenderMetrics registry = RenderMetrics.getInstance();
+        registry.registerMBeans(server);
+        try
+        {
+            Template t = new Template(new StringReader("{{ 1 }}"),
+                    "mbean-test");
+            t.render(new ContextStack());
+            assertEquals(1L, server.getAttribute(RenderMetrics.getObjectName(
+                    "Template", "mbean-test"), "RenderCount"));
+            assertTrue(server.isRegistered(RenderMetrics.getObjectName(
+                    "RenderMetrics", null)));
+            assertEquals(registry.getTemplateResolverMisses(), server
+                    .getAttribute(RenderMetrics.getObjectName("RenderMetrics",
+                            null), "TemplateResolverMisses"));
+        }
+        finally
+        {
+            registry.unregisterMBeans();
+        }
+        assertTrue(server.queryNames(null, null).size() > 0);
+        assertFalse(server.isRegistered(RenderMetrics.getObjectName(
+                "RenderMetrics", null)));
+    }
+}
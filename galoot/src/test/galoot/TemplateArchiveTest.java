@@ -0,0 +1,147 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+public class TemplateArchiveTest extends TestCase
+{
+    protected File directory;
+
+    protected File archiveFile;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        directory = File.createTempFile("templates", "");
+        directory.delete();
+        directory.mkdir();
+        archiveFile = File.createTempFile("templates", ".gar");
+        FileUtils.writeStringToFile(new File(directory, "page.txt"),
+                "{% for i in items %}{{ i|upper }}{% endfor %}");
+        FileUtils.writeStringToFile(new File(directory, "mail/header.txt"),
+                "Dear {{ name }},");
+        FileUtils.writeStringToFile(new File(directory, "broken.txt"),
+                "{% if %}");
+        PluginRegistry.getInstance().addTemplateIncludePath(
+                directory.getPath());
+        TemplateCache.getInstance().clear();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        PluginRegistry.getInstance().removeTemplateIncludePath(
+                directory.getPath());
+        TemplateCache.getInstance().clear();
+        FileUtils.forceDelete(directory);
+        FileUtils.forceDelete(archiveFile);
+        super.tearDown();
+    }
+
+    protected List<File> directories()
+    {
+        return Collections.singletonList(directory);
+    }
+
+    public void testBuildAndLoad() throws Exception
+    {
+        TemplateArchive archive = new TemplateArchive();
+        List<String> failures = archive.update(directories());
+        assertEquals(1, failures.size());
+        assertTrue(failures.get(0).endsWith("broken.txt"));
+        archive.save(archiveFile);
+
+        TemplateArchive loaded = TemplateArchive.load(archiveFile);
+        assertEquals(2, loaded.size());
+        assertTrue(loaded.getNames().contains("mail/header.txt"));
+
+        Context context = new Context();
+        context.putVariable("name", "Tom");
+        Template header = loaded.getTemplate("mail/header.txt", "header");
+        assertEquals("Dear Tom,", header.render(context));
+        try
+        {
+            header.interpretDocument(new ContextStack(context));
+            fail();
+        }
+        catch (IllegalStateException e)
+        {
+            // expected
+        }
+    }
+
+    public void testPreload() throws Exception
+    {
+        TemplateArchive archive = new TemplateArchive();
+        archive.update(directories());
+
+        TemplateCache cache = TemplateCache.getInstance();
+        assertEquals(2, cache.preload(archive));
+        long misses = cache.getMisses();
+        Template page = cache.loadTemplate("page.txt");
+        assertEquals(misses, cache.getMisses());
+
+        Context context = new Context();
+        context.putVariable("items", Arrays.asList("a", "b"));
+        assertEquals("AB", page.render(context));
+
+        // interpreted templates can include and extend preloaded ones
+        assertFalse(page.isInterpretable());
+        context.putVariable("name", "Tom");
+        assertEquals("[AB]", new Template("[{% include \"page.txt\" %}]")
+                .interpretDocument(new ContextStack(context))
+                .evaluateAsString());
+        assertEquals("Dear Tom,", new Template(
+                "{% extends \"mail/header.txt\" %}").interpretDocument(
+                new ContextStack(context)).evaluateAsString());
+    }
+
+    public void testStale() throws Exception
+    {
+        TemplateArchive archive = new TemplateArchive();
+        archive.update(directories());
+        File page = new File(directory, "page.txt");
+        assertFalse(archive.isStale("page.txt", page));
+
+        FileUtils.writeStringToFile(page, "changed");
+        page.setLastModified(page.lastModified() + 2000);
+        assertTrue(archive.isStale("page.txt", page));
+        assertEquals(1, TemplateCache.getInstance().preload(archive));
+        assertEquals("changed", TemplateCache.getInstance().loadTemplate(
+                "page.txt").render(new Context()));
+
+        // only the changed template is compiled again
+        new File(directory, "mail/header.txt").delete();
+        archive.update(directories());
+        assertEquals(Collections.singleton("page.txt"), archive.getNames());
+        assertEquals("changed", archive.getTemplate("page.txt", null).render(
+                new Context()));
+    }
+
+}
@@ -0,0 +1,316 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ForkJoinPool;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+public class TemplateCacheTest extends TestCase
+{
+    protected TemplateCache cache;
+
+    protected File dir;
+
+    protected File file;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        cache = TemplateCache.getInstance();
+        cache.clear();
+        // a directory of its own, as the whole include path tree is watched
+        dir = File.createTempFile("cached", "");
+        FileUtils.forceDelete(dir);
+        file = new File(dir, "cached.txt");
+        FileUtils.writeStringToFile(file, "first {{ name }}");
+        PluginRegistry.getInstance().addTemplateIncludePath(dir.getPath());
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        PluginRegistry.getInstance().removeTemplateIncludePath(dir.getPath());
+        FileUtils.deleteDirectory(dir);
+        cache.setMaxSize(TemplateCache.DEFAULT_MAX_SIZE);
+        cache.clear();
+        super.tearDown();
+    }
+
+    public void testReuse() throws Exception
+    {
+        Template t1 = cache.loadTemplate(file.getName());
+        Template t2 = cache.loadTemplate(file.getName());
+        assertSame(t1, t2);
+        assertEquals(1, cache.size());
+    }
+
+    public void testModified() throws Exception
+    {
+        Context context = new Context();
+        context.putVariable("name", "Tom");
+
+        // with a watch service, changes are noticed without reading the
+        // modification time on every load
+        assertEquals(!cache.getResolver().startWatching(), cache
+                .isCheckModified());
+
+        Template t1 = cache.loadTemplate(file.getName());
+        assertEquals("first Tom", t1.render(context));
+
+        FileUtils.writeStringToFile(file, "second {{ name }}");
+        // make sure the change is visible, regardless of fs time granularity
+        file.setLastModified(file.lastModified() + 2000);
+
+        Template t2 = cache.loadTemplate(file.getName());
+        for (int i = 0; i < 200 && t2 == t1; ++i)
+        {
+            Thread.sleep(50);
+            t2 = cache.loadTemplate(file.getName());
+        }
+        assertNotSame(t1, t2);
+        assertEquals("second Tom", t2.render(context));
+
+        // checking the modification time notices it straight away
+        cache.setCheckModified(true);
+        try
+        {
+            FileUtils.writeStringToFile(file, "third {{ name }}");
+            file.setLastModified(file.lastModified() + 2000);
+            assertEquals("third Tom", cache.loadTemplate(file.getName())
+                    .render(context));
+        }
+        finally
+        {
+            cache.setCheckModified(!cache.getResolver().startWatching());
+        }
+    }
+
+    public void testPrecompile() throws Exception
+    {
+        File dir = File.createTempFile("precompile", "");
+        FileUtils.forceDelete(dir);
+        File other = File.createTempFile("precompile", "");
+        FileUtils.forceDelete(other);
+        try
+        {
+            FileUtils.writeStringToFile(new File(dir, "a.txt"), "a {{ x }}");
+            FileUtils.writeStringToFile(new File(dir, "sub/b.txt"), "b");
+            FileUtils.writeStringToFile(new File(dir, "broken.txt"), "{% if %}");
+            // shadowed by the first directory's a.txt
+            FileUtils.writeStringToFile(new File(other, "a.txt"), "other");
+
+            ForkJoinPool pool = new ForkJoinPool(2);
+            PrecompileReport report = cache.precompile(Arrays.asList(dir,
+                    other), pool);
+            pool.shutdown();
+
+            assertEquals(3, report.getEntries().size());
+            assertEquals(2, report.getCompiledCount());
+            assertEquals(1, report.getFailures().size());
+            assertEquals("broken.txt", report.getFailures().get(0).getName());
+            assertEquals(2, cache.size());
+
+            long misses = cache.getMisses();
+            Template a = cache.getTemplate(new File(dir, "a.txt"));
+            assertEquals(misses, cache.getMisses());
+            assertEquals("a 1", a.render(new ContextStack(Collections
+                    .singletonMap("x", (Object) 1))));
+
+            // an interrupted caller gets no partial report
+            cache.clear();
+            pool = new ForkJoinPool(2);
+            Thread.currentThread().interrupt();
+            try
+            {
+                cache.precompile(Arrays.asList(dir, other), pool);
+                fail();
+            }
+            catch (InterruptedException e)
+            {
+                // expected
+            }
+            finally
+            {
+                pool.shutdown();
+            }
+        }
+        finally
+        {
+            FileUtils.deleteDirectory(dir);
+            FileUtils.deleteDirectory(other);
+        }
+    }
+
+    public void testResolution() throws Exception
+    {
+        // a directory of its own, so only this test creates files there
+        File dir = File.createTempFile("resolve", "");
+        FileUtils.forceDelete(dir);
+        FileUtils.writeStringToFile(new File(dir, "resolved.txt"), "resolved");
+        PluginRegistry.getInstance().addTemplateIncludePath(dir.getPath());
+        try
+        {
+            String missing = "missing-" + System.nanoTime() + ".txt";
+            assertTrue(isCached("resolved.txt"));
+            // misses are cached too
+            assertTrue(isCached(missing));
+            // and known not to be URLs, so loading them just returns null
+            assertNull(cache.loadTemplate(missing));
+
+            // until a file is created where it was looked for
+            FileUtils.writeStringToFile(new File(dir, missing), "created");
+            Template template = load(missing);
+            for (int i = 0; i < 200 && template == null; ++i)
+            {
+                Thread.sleep(50);
+                template = load(missing);
+            }
+            assertNotNull(template);
+            assertEquals("created", template.render(new Context()));
+
+            // only the names under the change were dropped
+            TemplateResolver resolver = cache.getResolver();
+            long hits = resolver.getHits(), misses = resolver.getMisses();
+            load("resolved.txt");
+            assertEquals(hits + 1, resolver.getHits());
+            assertEquals(misses, resolver.getMisses());
+
+            // a new subdirectory is watched too
+            String nested = "sub/nested.txt";
+            assertTrue(isCached(nested));
+            FileUtils.writeStringToFile(new File(dir, nested), "nested");
+            template = load(nested);
+            for (int i = 0; i < 200 && template == null; ++i)
+            {
+                Thread.sleep(50);
+                template = load(nested);
+            }
+            assertNotNull(template);
+            assertEquals("nested", template.render(new Context()));
+
+            // absolute names outside the include paths are watched too
+            File outside = File.createTempFile("outside", "");
+            FileUtils.forceDelete(outside);
+            try
+            {
+                String absolute = new File(outside, "abs.txt").getPath();
+                assertTrue(isCached(absolute));
+                FileUtils.writeStringToFile(new File(absolute), "absolute");
+                template = load(absolute);
+                for (int i = 0; i < 200 && template == null; ++i)
+                {
+                    Thread.sleep(50);
+                    template = load(absolute);
+                }
+                assertNotNull(template);
+                assertEquals("absolute", template.render(new Context()));
+                assertTrue(isCached(absolute));
+            }
+            finally
+            {
+                FileUtils.deleteDirectory(outside);
+            }
+        }
+        finally
+        {
+            PluginRegistry.getInstance().removeTemplateIncludePath(
+                    dir.getPath());
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    public void testRelativeResource() throws Exception
+    {
+        // relative names are resolved against galoot.interpret, not galoot
+        TemplateResolver.Location location = cache.getResolver().resolve(
+                "Interpreter.class");
+        assertNotNull(location);
+        assertNull(location.file);
+        assertTrue(location.key, location.key
+                .endsWith("galoot/interpret/Interpreter.class"));
+        assertNull(cache.getResolver().resolve("TemplateCache.class"));
+
+        // cached, so the file system isn't searched again
+        long hits = cache.getResolver().getHits();
+        assertSame(location, cache.getResolver().resolve("Interpreter.class"));
+        assertEquals(hits + 1, cache.getResolver().getHits());
+    }
+
+    /**
+     * @return true if loading the name again is answered by the resolver's
+     *         cache; retried, as events from earlier changes may still drop it
+     */
+    private boolean isCached(String name) throws Exception
+    {
+        TemplateResolver resolver = cache.getResolver();
+        for (int i = 0; i < 20; ++i)
+        {
+            load(name);
+            long hits = resolver.getHits(), misses = resolver.getMisses();
+            load(name);
+            if (resolver.getMisses() == misses
+                    && resolver.getHits() == hits + 1)
+                return true;
+        }
+        return false;
+    }
+
+    private Template load(String name)
+    {
+        try
+        {
+            return cache.loadTemplate(name);
+        }
+        catch (IOException e)
+        {
+            // missing, and not a URL either
+            return null;
+        }
+    }
+
+    public void testEviction() throws Exception
+    {
+        File other = File.createTempFile("cached", "txt");
+        try
+        {
+            FileUtils.writeStringToFile(other, "other");
+            cache.setMaxSize(1);
+
+            Template t1 = cache.getTemplate(file);
+            cache.getTemplate(other);
+            assertEquals(1, cache.size());
+
+            // the first one was evicted, so we get a new instance
+            assertNotSame(t1, cache.getTemplate(file));
+        }
+        finally
+        {
+            FileUtils.forceDelete(other);
+        }
+    }
+}
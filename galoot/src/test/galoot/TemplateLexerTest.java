@@ -0,0 +1,114 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot;
+
+import galoot.lexer.Lexer;
+import galoot.lexer.LexerException;
+import galoot.node.EOF;
+import galoot.node.Token;
+
+import java.io.File;
+import java.io.PushbackReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+public class TemplateLexerTest extends TestCase
+{
+    private static final String[] TEMPLATES = {
+            "",
+            "plain text, no tags",
+            "{",
+            "a { b {{ c }} {d} }",
+            "<h1>{{ title|upper }}</h1>\n{% if user %}Hi {{ user.name }}"
+                    + "{% else %}Bye{% endif %}",
+            "line one\r\nline two\rline three\n{{ x }}\r\n\r\n{{ y }}",
+            "{# short comment #}text{% comment %} long {{ not }} a { tag\n"
+                    + "{% endcomment %}after",
+            "{% for i in items %}{% cache 60 i \"k\" %}[{{ i }}]{% endcache %}"
+                    + "{% endfor %}",
+            "{% macro m(a, b) %}{{ a }}-{{ b }}{% endmacro %}{{ m(1, \"x\") }}",
+            "trailing {" };
+
+    public void testSameTokens() throws Exception
+    {
+        for (String text : TEMPLATES)
+            assertEquals(text, tokens(new Lexer(new PushbackReader(
+                    new StringReader(text), 1024))), tokens(new TemplateLexer(
+                    text)));
+    }
+
+    public void testSameTokensForSamples() throws Exception
+    {
+        File[] samples = new File("samples").listFiles();
+        assertNotNull(samples);
+        for (File sample : samples)
+        {
+            if (!sample.isFile())
+                continue;
+            String text = FileUtils.readFileToString(sample);
+            assertEquals(sample.getName(), tokens(new Lexer(new PushbackReader(
+                    new StringReader(text), 1024))), tokens(new TemplateLexer(
+                    text)));
+        }
+    }
+
+    public void testErrorPosition() throws Exception
+    {
+        String text = "text\n  more {% if \"unterminated %}";
+        String expected = null, actual = null;
+        try
+        {
+            tokens(new Lexer(new PushbackReader(new StringReader(text), 1024)));
+        }
+        catch (LexerException e)
+        {
+            expected = e.getMessage();
+        }
+        try
+        {
+            tokens(new TemplateLexer(text));
+        }
+        catch (LexerException e)
+        {
+            actual = e.getMessage();
+        }
+        assertNotNull(expected);
+        assertEquals(expected, actual);
+    }
+
+    private static List<String> tokens(Lexer lexer) throws Exception
+    {
+        List<String> tokens = new ArrayList<String>();
+        Token token;
+        do
+        {
+            token = lexer.next();
+            tokens.add(token.getClass().getSimpleName() + "[" + token.getLine()
+                    + "," + token.getPos() + "]" + token.getText());
+        }
+        while (!(token instanceof EOF));
+        return tokens;
+    }
+}
@@ -107,6 +107,23 @@ public class TemplateTest extends TestCase
         }
     }
 
+    public void testLiteralText()
+    {
+        try
+        {
+            // lone braces stay literal text, next to real tags
+            Template t = new Template(
+                    "a { b } { {{ name }}}{x {%comment%}{ c {%endcomment%}");
+            assertEquals("a { b } { Tom}{x ", t.render(context));
+            assertEquals("a { b } { Tom}{x ", t.interpretDocument(context)
+                    .evaluateAsString());
+        }
+        catch (IOException e)
+        {
+            fail(ExceptionUtils.getStackTrace(e));
+        }
+    }
+
     public void testIfStatement()
     {
         try
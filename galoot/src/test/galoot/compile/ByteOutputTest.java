@@ -0,0 +1,132 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import galoot.Template;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.Charset;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Makes sure rendering to bytes gives the same output as rendering to a
+ * String, whether or not static text is pre-encoded.
+ */
+public class ByteOutputTest extends TestCase
+{
+    private static final String[] CHARSETS = { "UTF-8", "ISO-8859-1",
+            "UTF-16" };
+
+    public void testMatchesString() throws Exception
+    {
+        for (String name : CHARSETS)
+        {
+            Charset charset = Charset.forName(name);
+            for (String text : TemplateCompilerTest.TEMPLATES)
+            {
+                Template template = new Template(text);
+                String expected = template.render(TemplateCompilerTest
+                        .newContext());
+
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                template.render(TemplateCompilerTest.newContext(), out,
+                        charset);
+                assertEquals(name + ": " + text, expected, new String(out
+                        .toByteArray(), charset));
+            }
+        }
+    }
+
+    public void testGatheringWrites() throws Exception
+    {
+        // long enough to be queued rather than copied, with a surrogate pair
+        String text = StringUtils.repeat("été ",
+                ByteOutput.MIN_GATHER_LENGTH)
+                + "𝄞";
+        Template template = new Template(text + "{{ name }}" + text
+                + "{{ name }}");
+        String expected = template.render(TemplateCompilerTest.newContext());
+
+        RecordingChannel channel = new RecordingChannel();
+        Charset utf8 = Charset.forName("UTF-8");
+        template.render(TemplateCompilerTest.newContext(), channel, utf8);
+        assertEquals(expected, new String(channel.out.toByteArray(), utf8));
+        assertTrue(channel.gatheringWrites > 0);
+    }
+
+    public void testEncodingIsCached() throws Exception
+    {
+        StaticText text = new StaticText("café");
+        Charset utf8 = Charset.forName("UTF-8");
+        assertSame(text.encode(utf8), text.encode(utf8));
+        assertEquals(5, text.getBytes(utf8).remaining());
+        assertTrue(text.getBytes(utf8).isReadOnly());
+
+        assertTrue(ByteOutput.isPreEncodable(utf8));
+        assertFalse(ByteOutput.isPreEncodable(Charset.forName("UTF-16")));
+    }
+
+    private static class RecordingChannel implements GatheringByteChannel
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        int gatheringWrites;
+
+        public long write(ByteBuffer[] srcs, int offset, int length)
+                throws IOException
+        {
+            ++gatheringWrites;
+            long written = 0;
+            for (int i = offset; i < offset + length; ++i)
+                written += write(srcs[i]);
+            return written;
+        }
+
+        public long write(ByteBuffer[] srcs) throws IOException
+        {
+            return write(srcs, 0, srcs.length);
+        }
+
+        public int write(ByteBuffer src) throws IOException
+        {
+            int n = src.remaining();
+            byte[] bytes = new byte[n];
+            src.get(bytes);
+            out.write(bytes);
+            return n;
+        }
+
+        public boolean isOpen()
+        {
+            return true;
+        }
+
+        public void close() throws IOException
+        {
+        }
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import galoot.Template;
+
+import junit.framework.TestCase;
+
+/**
+ * Makes sure the generated renderers produce the same output as the render
+ * tree they were compiled from.
+ */
+public class BytecodeCompilerTest extends TestCase
+{
+    @Override
+    protected void tearDown() throws Exception
+    {
+        BytecodeCompiler.getInstance().setThreshold(0);
+        super.tearDown();
+    }
+
+    protected String render(RenderNode node)
+    {
+        RenderContext context = new RenderContext(TemplateCompilerTest
+                .newContext());
+        node.render(context);
+        return context.getDocument().evaluateAsString();
+    }
+
+    public void testMatchesTree() throws Exception
+    {
+        String[] templates = new String[TemplateCompilerTest.TEMPLATES.length + 1];
+        System.arraycopy(TemplateCompilerTest.TEMPLATES, 0, templates, 0,
+                templates.length - 1);
+        templates[templates.length - 1] = "quotes \" back\\slash\n"
+                + "tab\t é {{ name }}\r\n";
+
+        for (String text : templates)
+        {
+            RenderNode root = new Template(text).getCompiledTemplate()
+                    .getRoot();
+            RenderNode generated = BytecodeCompiler.getInstance().compile(
+                    root);
+            assertTrue(generated instanceof GeneratedRenderer);
+            assertEquals(text, render(root), render(generated));
+        }
+    }
+
+    public void testTiered() throws Exception
+    {
+        BytecodeCompiler.getInstance().setThreshold(2);
+        Template t = new Template("{% for i in items %}{{ i }}{% endfor %}");
+        CompiledTemplate compiled = t.getCompiledTemplate();
+
+        assertEquals("abc", t.render(TemplateCompilerTest.newContext()));
+        assertFalse(compiled.isBytecodeCompiled());
+        assertEquals("abc", t.render(TemplateCompilerTest.newContext()));
+
+        // compilation happens in the background
+        for (int i = 0; i < 300 && !compiled.isBytecodeCompiled(); ++i)
+            Thread.sleep(100);
+        assertTrue(compiled.isBytecodeCompiled());
+        assertTrue(compiled.getRoot() instanceof GeneratedRenderer);
+        assertEquals("abc", t.render(TemplateCompilerTest.newContext()));
+    }
+
+    public void testLoweredThreshold() throws Exception
+    {
+        BytecodeCompiler.getInstance().setThreshold(5);
+        Template t = new Template("{{ name }}");
+        CompiledTemplate compiled = t.getCompiledTemplate();
+        for (int i = 0; i < 3; ++i)
+            t.render(TemplateCompilerTest.newContext());
+
+        // already past the new threshold
+        BytecodeCompiler.getInstance().setThreshold(2);
+        t.render(TemplateCompilerTest.newContext());
+        for (int i = 0; i < 300 && !compiled.isBytecodeCompiled(); ++i)
+            Thread.sleep(100);
+        assertTrue(compiled.isBytecodeCompiled());
+        BytecodeCompiler.getInstance().shutdown();
+    }
+}
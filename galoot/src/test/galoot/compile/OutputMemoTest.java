@@ -0,0 +1,169 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import galoot.Context;
+import galoot.ContextStack;
+import galoot.Template;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class OutputMemoTest extends TestCase
+{
+    public void testMatchesUnmemoized() throws Exception
+    {
+        for (String text : TemplateCompilerTest.TEMPLATES)
+        {
+            Template t = new Template(text);
+            if (!t.isMemoizable())
+                continue;
+            String expected = t.render(TemplateCompilerTest.newContext());
+            t.setOutputMemo(new OutputMemo());
+            ContextStack context = TemplateCompilerTest.newContext();
+            assertEquals(text, expected, t.render(context));
+            assertEquals(text, expected, t.render(context));
+            assertEquals(text, 1, t.getOutputMemo().getHits());
+        }
+    }
+
+    public void testDependencies() throws Exception
+    {
+        Template t = new Template("{{ user.name|upper }}:{% for i in items %}"
+                + "{{ i }}{% endfor %}");
+        OutputMemo memo = new OutputMemo();
+        t.setOutputMemo(memo);
+
+        assertEquals("TOM:ab", t.render(newContext("Tom", "a", "b")));
+        assertEquals("TOM:ab", t.render(newContext("Tom", "a", "b")));
+        assertEquals("ANN:ab", t.render(newContext("Ann", "a", "b")));
+        assertEquals("TOM:abc", t.render(newContext("Tom", "a", "b", "c")));
+        assertEquals(1, memo.getHits());
+        assertEquals(3, memo.getMisses());
+        assertEquals(3, memo.size());
+        // the loop variable follows from items, so isn't a dependency
+        assertEquals(Arrays.asList(Arrays.asList("user.name", "items")), memo
+                .getDependencies());
+    }
+
+    public void testBranches() throws Exception
+    {
+        Template t = new Template(
+                "{% if flag %}{{ a }}{% else %}{{ b }}{% endif %}");
+        OutputMemo memo = new OutputMemo();
+        t.setOutputMemo(memo);
+
+        Context context = new Context();
+        context.putVariable("flag", true);
+        context.putVariable("a", 1);
+        context.putVariable("b", 2);
+        assertEquals("1", t.render(context));
+
+        context.putVariable("flag", false);
+        assertEquals("2", t.render(context));
+
+        // b isn't read when flag is true
+        context.putVariable("flag", true);
+        context.putVariable("b", 3);
+        assertEquals("1", t.render(context));
+        assertEquals(1, memo.getHits());
+        assertEquals(2, memo.getDependencies().size());
+        assertEquals(1.0 / 3, memo.getHitRatio(), 1e-9);
+    }
+
+    public void testEviction() throws Exception
+    {
+        Template t = new Template("{{ n }}");
+        OutputMemo memo = new OutputMemo(2);
+        t.setOutputMemo(memo);
+        for (int i = 0; i < 5; ++i)
+        {
+            Context context = new Context();
+            context.putVariable("n", i);
+            assertEquals(String.valueOf(i), t.render(context));
+        }
+        assertEquals(2, memo.size());
+        assertEquals(0, memo.getHits());
+    }
+
+    public void testNotMemoizable() throws Exception
+    {
+        String[] texts = { "{% now \"yyyy\" %}", "{% set 1 as x %}{{ x }}",
+                "{% include \"missing.txt\" %}", "{{ m(1) }}",
+                "{% extends \"missing.txt\" %}", "{{ items|random }}",
+                "{% cache 60 %}x{% endcache %}" };
+        for (String text : texts)
+        {
+            Template t = new Template(text);
+            assertFalse(text, t.isMemoizable());
+            try
+            {
+                t.setOutputMemo(new OutputMemo());
+                fail(text);
+            }
+            catch (IllegalStateException e)
+            {
+                // expected
+            }
+        }
+        assertTrue(new Template("{% macro m(a) %}{{ a }}{% endmacro %}"
+                + "{{ m(1) }}").isMemoizable());
+    }
+
+    public void testBoundNameReadOutsideScope() throws Exception
+    {
+        Template t = new Template(
+                "{% for item in items %}[{{ item }}]{% endfor %} last={{ item }}");
+        assertFalse(t.isMemoizable());
+        Context context = new Context();
+        context.putVariable("items", Arrays.asList("a"));
+        context.putVariable("item", "ONE");
+        assertEquals("[a] last=ONE", t.render(context));
+        context.putVariable("item", "TWO");
+        assertEquals("[a] last=TWO", t.render(context));
+
+        t = new Template("{% with a as b %}{{ b }}{% endwith %}{{ b }}");
+        assertFalse(t.isMemoizable());
+        context = new Context();
+        context.putVariable("a", "A");
+        context.putVariable("b", "B1");
+        assertEquals("AB1", t.render(context));
+        context.putVariable("b", "B2");
+        assertEquals("AB2", t.render(context));
+
+        // reads inside the binding tag are still fine
+        assertTrue(new Template("{% with a as b %}{{ b|default:b }}"
+                + "{% endwith %}{{ a }}").isMemoizable());
+    }
+
+    static Context newContext(String name, String... items)
+    {
+        Map<String, Object> user = new HashMap<String, Object>();
+        user.put("name", name);
+        Context context = new Context();
+        context.putVariable("user", user);
+        context.putVariable("items", Arrays.asList(items));
+        return context;
+    }
+
+}
@@ -0,0 +1,233 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import galoot.AbstractFilter;
+import galoot.ContextStack;
+import galoot.PluginRegistry;
+import galoot.Template;
+
+import java.io.File;
+import java.io.InterruptedIOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+public class ParallelRenderingTest extends TestCase
+{
+    private ExecutorService executor;
+
+    private ParallelRendering parallel;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        executor = Executors.newFixedThreadPool(4);
+        parallel = new ParallelRendering(executor, 100, 16);
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        executor.shutdownNow();
+        super.tearDown();
+    }
+
+    private ContextStack newContext(Set<Thread> threads)
+    {
+        List<Item> items = new ArrayList<Item>();
+        for (int i = 0; i < 500; ++i)
+            items.add(new Item("item" + i, threads));
+        ContextStack context = TemplateCompilerTest.newContext();
+        context.putVariable("rows", items);
+        return context;
+    }
+
+    public void testLoop() throws Exception
+    {
+        Template t = new Template("{% for row in rows %}{{ forloop.counter1 }}"
+                + "{{ row.name|upper }}{% if forloop.last %}.{% endif %}"
+                + "{% for i in items %}{{ forloop.parent.revcounter }}{% endfor %}"
+                + "{% endfor %}");
+        Set<Thread> threads = newThreadSet();
+        String expected = t.render(newContext(threads));
+        assertEquals(1, threads.size());
+
+        t.setParallelRendering(parallel);
+        threads.clear();
+        assertEquals(expected, t.render(newContext(threads)));
+        assertEquals(expected, t.renderDocument(newContext(threads))
+                .evaluateAsString());
+        assertTrue(threads.size() > 1);
+    }
+
+    public void testInterrupted() throws Exception
+    {
+        Template t = new Template("{% for row in rows %}{{ row.name }}"
+                + "{% endfor %}");
+        t.setParallelRendering(parallel);
+        CountDownLatch latch = new CountDownLatch(1);
+        List<Item> items = new ArrayList<Item>();
+        for (int i = 0; i < 500; ++i)
+            items.add(new BlockingItem("item" + i, Thread.currentThread(),
+                    latch));
+        ContextStack context = new ContextStack();
+        context.putVariable("rows", items);
+
+        Thread.currentThread().interrupt();
+        try
+        {
+            t.render(context, new StringWriter());
+            fail();
+        }
+        catch (InterruptedIOException e)
+        {
+            // expected
+        }
+        finally
+        {
+            latch.countDown();
+        }
+        assertTrue(Thread.interrupted());
+    }
+
+    public void testUnsafeLoops() throws Exception
+    {
+        Template t = new Template("{% for row in rows %}{% set row.name as n %}"
+                + "{{ n }}{% endfor %}{% for row in rows %}{{ row.name|mine }}"
+                + "{% endfor %}");
+        t.setParallelRendering(parallel);
+        Set<Thread> threads = newThreadSet();
+        ContextStack context = newContext(threads);
+        context.getFilterMap().addFilter(new Mine());
+        t.render(context);
+        assertEquals(1, threads.size());
+        assertTrue(threads.contains(Thread.currentThread()));
+    }
+
+    public void testIncludes() throws Exception
+    {
+        File first = File.createTempFile("first", "txt");
+        File second = File.createTempFile("second", "txt");
+        PluginRegistry.getInstance()
+                .addTemplateIncludePath(first.getParent());
+        try
+        {
+            FileUtils.writeStringToFile(first,
+                    "{% for row in rows %}{{ row.name }}{% endfor %}");
+            FileUtils.writeStringToFile(second,
+                    "{% for row in rows %}{{ forloop.counter0 }}{% endfor %}");
+            Template t = new Template("<{% include \"" + first.getName()
+                    + "\" %}|{{ name }}|{% include \"" + second.getName()
+                    + "\" %}>");
+            Set<Thread> threads = newThreadSet();
+            String expected = t.render(newContext(threads));
+
+            t.setParallelRendering(parallel);
+            threads.clear();
+            assertEquals(expected, t.render(newContext(threads)));
+            assertFalse(threads.contains(Thread.currentThread()));
+        }
+        finally
+        {
+            PluginRegistry.getInstance().removeTemplateIncludePath(
+                    first.getParent());
+            FileUtils.forceDelete(first);
+            FileUtils.forceDelete(second);
+        }
+    }
+
+    private static Set<Thread> newThreadSet()
+    {
+        return ConcurrentHashMap.newKeySet();
+    }
+
+    public static class Item
+    {
+        private final String name;
+
+        private final Set<Thread> threads;
+
+        Item(String name, Set<Thread> threads)
+        {
+            this.name = name;
+            this.threads = threads;
+        }
+
+        public String getName()
+        {
+            threads.add(Thread.currentThread());
+            return name;
+        }
+    }
+
+    // ! blocks on other threads until the latch is released
+    public static class BlockingItem extends Item
+    {
+        private final Thread caller;
+
+        private final CountDownLatch latch;
+
+        BlockingItem(String name, Thread caller, CountDownLatch latch)
+        {
+            super(name, newThreadSet());
+            this.caller = caller;
+            this.latch = latch;
+        }
+
+        @Override
+        public String getName()
+        {
+            if (Thread.currentThread() != caller)
+            {
+                try
+                {
+                    latch.await();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.getName();
+        }
+    }
+
+    // ! not a ThreadSafeFilter
+    public static class Mine extends AbstractFilter
+    {
+        public Object filter(Object object, ContextStack contextStack,
+                String... args)
+        {
+            return object;
+        }
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import galoot.Context;
+import galoot.ContextStack;
+import galoot.Template;
+
+import java.io.StringReader;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class SpecializerTest extends TestCase
+{
+    static Context newStaticContext()
+    {
+        Context context = new Context();
+        context.putVariable("name", "Tom");
+        context.putVariable("number", 42);
+        context.putVariable("sep", "-");
+        return context;
+    }
+
+    public void testMatchesUnspecialized() throws Exception
+    {
+        for (String text : TemplateCompilerTest.TEMPLATES)
+        {
+            Template t = new Template(text);
+            Template specialized = t.specialize(newStaticContext());
+            assertEquals(text, t.render(TemplateCompilerTest.newContext()),
+                    specialized.render(TemplateCompilerTest.newContext()));
+        }
+    }
+
+    public void testFolding() throws Exception
+    {
+        Context site = new Context();
+        site.putVariable("brand", "acme");
+        site.putVariable("locale", "en");
+        Template t = new Template("{% if brand == \"acme\" %}<h1>{{ brand|upper }}"
+                + "</h1>{% else %}other{% endif %}{% if locale == \"fr\" %}"
+                + "bonjour{% elseif user %}{{ user }}{% endif %}"
+                + "{% filter upper %}{{ locale }}{% endfilter %}");
+        Template specialized = t.specialize(site);
+
+        RenderNode[] nodes = ((NodeList) specialized.getCompiledTemplate()
+                .getRoot()).getNodes();
+        assertEquals(3, nodes.length);
+        assertEquals("<h1>ACME</h1>", ((TextNode) nodes[0]).getText());
+        // the static condition is dropped, the dynamic one kept
+        assertEquals(1, ((IfNode) nodes[1]).getConditions().length);
+        assertEquals("EN", ((TextNode) nodes[2]).getText());
+
+        ContextStack context = new ContextStack(site);
+        context.push();
+        context.putVariable("user", "bob");
+        assertEquals("<h1>ACME</h1>bobEN", specialized.render(context));
+    }
+
+    public void testSettingsCarriedOver() throws Exception
+    {
+        Template t = new Template(new StringReader(
+                "{{ name }} {{ user }}"), "specializer-test");
+        t.setOutputMemo(new OutputMemo(7));
+        Template specialized = t.specialize(newStaticContext());
+        assertEquals("specializer-test", specialized.getName());
+        assertSame(t.getMetrics(), specialized.getMetrics());
+        OutputMemo memo = specialized.getOutputMemo();
+        assertNotNull(memo);
+        assertNotSame(t.getOutputMemo(), memo);
+        assertEquals(7, memo.getMaxSize());
+
+        long renders = t.getMetrics().getRenderCount();
+        ContextStack context = new ContextStack();
+        context.putVariable("user", "bob");
+        assertEquals("Tom bob", specialized.render(context));
+        assertEquals("Tom bob", specialized.render(context));
+        assertEquals(1, memo.getHits());
+        assertEquals(renders + 2, t.getMetrics().getRenderCount());
+    }
+
+    public void testBoundNamesAreDynamic() throws Exception
+    {
+        Context site = new Context();
+        site.putVariable("brand", "acme");
+        Template t = new Template("{{ brand }}{% for brand in brands %}"
+                + "{{ brand }}{% endfor %}{{ brand|random }}");
+        Template specialized = t.specialize(site);
+        RenderNode root = specialized.getCompiledTemplate().getRoot();
+        assertTrue(((NodeList) root).getNodes()[0] instanceof VariableNode);
+
+        ContextStack context = new ContextStack(site);
+        context.push();
+        context.putVariable("brands", Arrays.asList("x", "y"));
+        assertTrue(specialized.render(context).startsWith("acmexy"));
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import galoot.ContextStack;
+import galoot.PluginRegistry;
+import galoot.Template;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Makes sure the compiled render tree produces the same output as the
+ * Interpreter.
+ */
+public class TemplateCompilerTest extends TestCase
+{
+    static final String[] TEMPLATES = {
+            "plain text only",
+            "{{ name }} and {{ name.length }} and {{ missing }}",
+            "{{ name|upper|lower }} {{ \"quoted\"|upper }} {{ 42 }}",
+            "{{ items.1 }} {{ items.size }} {{ map.key }}",
+            "{% if name %}yes{% else %}no{% endif %}",
+            "{% if not name %}yes{% elseif number > 40 %}big{% else %}no{% endif %}",
+            "{% if number >= 42 and name == \"Tom\" %}both{% endif %}",
+            "{% if number < 0 or name != \"Tom\" %}either{% endif %}",
+            "{% ifequal name \"Tom\" %}tom{% else %}other{% endifequal %}",
+            "{% for i in items %}{{ forloop.counter0 }}{{ i }}{% if forloop.last %}.{% endif %}{% endfor %}",
+            "{% for i in items %}{% for j in items %}[{{ forloop.parent.counter1 }}{{ j }}]{% endfor %}{% endfor %}",
+            "{% for i in ints %}{{ i }}{{ forloop.revcounter }} {% endfor %}",
+            "{% with name|upper as up %}{{ up }}{% endwith %}{{ up }}",
+            "{% set name|upper as up %}{{ up }}",
+            "{% filter upper %}some {{ name }} text{% endfilter %}",
+            "{% firstof missing \"\" name \"default\" %}",
+            "{% templatetag openblock %} {% templatetag closevariable %}",
+            "{% macro m(a, b) %}<{{ a }}|{{ b|upper }}>{% endmacro %}{{ m(name, \"x\") }}{{ m(1, 2) }}",
+            "{{ m(0) }}{% macro m(a) %}1{{ a }}{% endmacro %}{{ m(1) }}{% for i in items %}{% macro m(a) %}2{{ a }}{% endmacro %}{{ m(i) }}{% endfor %}{{ m(3) }}",
+            "{% macro m(a, b) %}{{ b }}{{ a }}{% endmacro %}{% macro n(b, a) %}{{ m(a, b) }}{% endmacro %}{% for i in items %}{{ n(i, name) }}{% endfor %}",
+            "{% for i in items %}{% cache 60 i \"k\" %}[{{ i|upper }}]{% endcache %}{% endfor %}{% cache 0 %}{{ name }}{% endcache %}",
+            "{% block outer %}o{% block inner %}i{% endblock %}{% endblock %}",
+            "{% comment %}ignored{% endcomment %}{# also ignored #}text",
+            "{{ name|cut:\"o\" }} {{ items|join:sep }}" };
+
+    static ContextStack newContext()
+    {
+        ContextStack context = new ContextStack();
+        List<String> items = new ArrayList<String>();
+        items.add("a");
+        items.add("b");
+        items.add("c");
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("key", "value");
+
+        context.putVariable("name", "Tom");
+        context.putVariable("number", 42);
+        context.putVariable("items", items);
+        context.putVariable("ints", new int[] { 3, 2, 1 });
+        context.putVariable("map", map);
+        context.putVariable("sep", "-");
+        return context;
+    }
+
+    public void testMatchesInterpreter() throws Exception
+    {
+        for (String text : TEMPLATES)
+        {
+            Template t = new Template(text);
+            String interpreted = t.interpretDocument(newContext())
+                    .evaluateAsString();
+            String compiled = t.renderDocument(newContext())
+                    .evaluateAsString();
+            assertEquals(text, interpreted, compiled);
+        }
+    }
+
+    public void testStreamingMatchesDocument() throws Exception
+    {
+        for (String text : TEMPLATES)
+        {
+            Template t = new Template(text);
+            String document = t.renderDocument(newContext())
+                    .evaluateAsString();
+            assertEquals(text, document, t.render(newContext()));
+        }
+    }
+
+    public void testStreamingFlushes() throws Exception
+    {
+        final int[] flushes = new int[1];
+        StringWriter writer = new StringWriter()
+        {
+            @Override
+            public void flush()
+            {
+                ++flushes[0];
+            }
+        };
+        Template t = new Template(
+                "{% for i in ints %}{% for j in ints %}{{ big }}{% endfor %}{% endfor %}");
+        ContextStack context = newContext();
+        context.putVariable("big", StringUtils.repeat("x",
+                RenderContext.FLUSH_INTERVAL));
+        t.render(context, writer);
+        assertEquals(9 * RenderContext.FLUSH_INTERVAL, writer.toString()
+                .length());
+        // once per interval, and once at the end
+        assertEquals(10, flushes[0]);
+    }
+
+    public void testInlineCaches() throws Exception
+    {
+        Template t = new Template("{% for i in items %}{{ i.length }}{% endfor %}");
+        assertEquals("111", t.render(newContext()));
+
+        InlineCacheStatistics statistics = t.getCompiledTemplate()
+                .getInlineCacheStatistics();
+        assertEquals(1, statistics.getMisses());
+        assertEquals(2, statistics.getHits());
+        assertEquals(3, statistics.getFullDotSkips());
+        assertEquals(0, statistics.getFullDotLookups());
+
+        // a variable with a dot in its name shadows the member
+        t = new Template("{{ name.length }}");
+        ContextStack context = newContext();
+        context.putVariable("name.length", "dotted");
+        assertEquals("dotted", t.render(context));
+        statistics = t.getCompiledTemplate().getInlineCacheStatistics();
+        assertEquals(1, statistics.getFullDotHits());
+        assertEquals(0, statistics.getMisses());
+    }
+
+    public void testTextIsMerged() throws Exception
+    {
+        Template t = new Template("some text {% templatetag openbrace %}");
+        RenderNode root = t.getCompiledTemplate().getRoot();
+        assertTrue(root instanceof TextNode);
+        assertEquals("some text {", ((TextNode) root).getText());
+    }
+
+    public void testBoundMacroCalls() throws Exception
+    {
+        Template t = new Template("{{ m(1) }}{% macro m(a) %}<{{ a }}>"
+                + "{% endmacro %}{% for i in items %}{{ m(i) }}{% endfor %}");
+        assertEquals("<a><b><c>", t.render(newContext()));
+
+        RenderNode[] nodes = ((NodeList) t.getCompiledTemplate().getRoot())
+                .getNodes();
+        // the call before the definition is looked up, and finds nothing
+        assertNull(((MacroCallNode) nodes[0]).getMacro());
+        ForNode loop = (ForNode) nodes[2];
+        assertSame(((MacroNode) nodes[1]).getMacro(), ((MacroCallNode) loop
+                .getBody()).getMacro());
+
+        // a macro defined twice is always looked up
+        t = new Template("{% macro m(a) %}{% endmacro %}{% macro m(a) %}"
+                + "{% endmacro %}{{ m(1) }}");
+        nodes = ((NodeList) t.getCompiledTemplate().getRoot()).getNodes();
+        assertNull(((MacroCallNode) nodes[2]).getMacro());
+    }
+
+    public void testLazyBlockSuper() throws Exception
+    {
+        File parent = File.createTempFile("parent", "txt");
+        File child = File.createTempFile("child", "txt");
+        File grandchild = File.createTempFile("grandchild", "txt");
+        PluginRegistry.getInstance().addTemplateIncludePath(
+                parent.getParent());
+        try
+        {
+            FileUtils.writeStringToFile(parent,
+                    "<{% block a %}{{ counter.next }}{% endblock %}>");
+            FileUtils.writeStringToFile(child, "{% extends \""
+                    + parent.getName() + "\" %}{% block a %}child{% endblock %}");
+            FileUtils.writeStringToFile(grandchild, "{% extends \""
+                    + child.getName() + "\" %}{% block a %}"
+                    + "{{ block.super }}|{{ block.super }}{% endblock %}");
+
+            // the overridden parent block is never rendered
+            Counter counter = new Counter();
+            ContextStack context = newContext();
+            context.putVariable("counter", counter);
+            Template t = new Template(child);
+            assertEquals("<child>", t.render(context));
+            assertEquals("<child>", t.render(context));
+            assertEquals(0, counter.count);
+            assertTrue(t.getCompiledTemplate().hasOnlyTopLevelBlocks());
+
+            // block.super is rendered once, however often it is referenced
+            FileUtils.writeStringToFile(child, "{% extends \""
+                    + parent.getName() + "\" %}{% block a %}"
+                    + "{{ block.super }}{% endblock %}");
+            child.setLastModified(child.lastModified() + 2000);
+            t = new Template(grandchild);
+            assertEquals("<1|1>", t.render(context));
+            assertEquals(1, counter.count);
+        }
+        finally
+        {
+            PluginRegistry.getInstance().removeTemplateIncludePath(
+                    parent.getParent());
+            FileUtils.forceDelete(parent);
+            FileUtils.forceDelete(child);
+            FileUtils.forceDelete(grandchild);
+        }
+    }
+
+    public void testNestedOverride() throws Exception
+    {
+        File parent = File.createTempFile("parent", "txt");
+        File child = File.createTempFile("child", "txt");
+        File grandchild = File.createTempFile("grandchild", "txt");
+        PluginRegistry.getInstance().addTemplateIncludePath(
+                parent.getParent());
+        try
+        {
+            FileUtils.writeStringToFile(parent,
+                    "P{% block outer %}O{% endblock %}");
+            // the child's override of outer has a block of its own
+            FileUtils.writeStringToFile(child, "{% extends \""
+                    + parent.getName() + "\" %}{% block outer %}CO("
+                    + "{% block inner %}ci{% endblock %}){% endblock %}");
+            FileUtils.writeStringToFile(grandchild, "{% extends \""
+                    + child.getName() + "\" %}{% block inner %}GGI "
+                    + "{{ block.super }}{% endblock %}");
+
+            Template t = new Template(grandchild);
+            assertEquals("PCO(GGI ci)", t.render(newContext()));
+            assertEquals("PCO(GGI ci)", t.renderDocument(newContext())
+                    .evaluateAsString());
+            assertEquals("PCO(GGI ci)", t.interpretDocument(newContext())
+                    .evaluateAsString());
+        }
+        finally
+        {
+            PluginRegistry.getInstance().removeTemplateIncludePath(
+                    parent.getParent());
+            FileUtils.forceDelete(parent);
+            FileUtils.forceDelete(child);
+            FileUtils.forceDelete(grandchild);
+        }
+    }
+
+    public static class Counter
+    {
+        int count;
+
+        public int getNext()
+        {
+            return ++count;
+        }
+    }
+}
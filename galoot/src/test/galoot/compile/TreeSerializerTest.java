@@ -0,0 +1,86 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.compile;
+
+import galoot.Context;
+import galoot.Template;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+public class TreeSerializerTest extends TestCase
+{
+    static CompiledTemplate roundTrip(CompiledTemplate template)
+            throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TreeSerializer.write(template, new DataOutputStream(bytes));
+        return TreeSerializer.read(new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    public void testRoundTrip() throws Exception
+    {
+        for (String text : TemplateCompilerTest.TEMPLATES)
+        {
+            CompiledTemplate compiled = new Template(text)
+                    .getCompiledTemplate();
+            CompiledTemplate read = roundTrip(compiled);
+            assertEquals(text, compiled.getParentName(), read.getParentName());
+            assertEquals(text, compiled.render(
+                    TemplateCompilerTest.newContext()).evaluateAsString(),
+                    read.render(TemplateCompilerTest.newContext())
+                            .evaluateAsString());
+        }
+    }
+
+    public void testBoundMacros() throws Exception
+    {
+        CompiledTemplate read = roundTrip(new Template(
+                "{% macro m(a) %}<{{ a }}>{% endmacro %}{{ m(1) }}")
+                .getCompiledTemplate());
+        NodeList nodes = (NodeList) read.getTree();
+        MacroNode macro = (MacroNode) nodes.getNodes()[0];
+        MacroCallNode call = (MacroCallNode) nodes.getNodes()[1];
+        assertSame(macro.getMacro(), call.getMacro());
+    }
+
+    public void testSpecialized() throws Exception
+    {
+        Context context = new Context();
+        context.putVariable("name", new Object());
+        try
+        {
+            roundTrip(new Template("{% with name as x %}{{ x }}{% endwith %}")
+                    .specialize(context).getCompiledTemplate());
+            fail();
+        }
+        catch (IOException e)
+        {
+            // expected
+        }
+    }
+
+}
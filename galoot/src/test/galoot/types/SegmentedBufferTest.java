@@ -0,0 +1,120 @@
+/*
+ * =============================================================================
+ * This file is part of Galoot
+ * =============================================================================
+ * (C) Copyright 2009, Tom Zellman, tzellman@gmail.com
+ *
+ * Galoot is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package galoot.types;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.lang.StringUtils;
+
+public class SegmentedBufferTest extends TestCase
+{
+
+    public void testAppendAcrossChunks() throws Exception
+    {
+        String text = StringUtils.repeat("0123456789",
+                SegmentedBuffer.CHUNK_SIZE / 3);
+        SegmentedBuffer buf = new SegmentedBuffer();
+        buf.append(text).append('!').append(text, 0, 5);
+        String expected = text + "!" + text.substring(0, 5);
+        assertEquals(expected.length(), buf.length());
+        assertEquals(expected, buf.toString());
+
+        StringWriter writer = new StringWriter();
+        buf.writeTo(writer);
+        assertEquals(expected, writer.toString());
+        buf.release();
+        assertTrue(buf.isEmpty());
+        assertEquals("", buf.toString());
+    }
+
+    public void testSplice() throws Exception
+    {
+        SegmentedBuffer first = new SegmentedBuffer().append("head ");
+        SegmentedBuffer second = new SegmentedBuffer().append("block");
+        first.splice(second).append(" tail");
+        assertEquals("head block tail", first.toString());
+        assertTrue(second.isEmpty());
+        first.release();
+    }
+
+    public void testEncoding() throws Exception
+    {
+        // put a surrogate pair right on a chunk boundary
+        StringBuilder text = new StringBuilder(StringUtils.repeat("a",
+                SegmentedBuffer.CHUNK_SIZE - 1));
+        text.appendCodePoint(0x1D11E).append("é");
+        SegmentedBuffer buf = new SegmentedBuffer().append(text);
+
+        Charset utf8 = Charset.forName("UTF-8");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        buf.writeTo(out, utf8);
+        assertEquals(text.toString(), new String(out.toByteArray(), utf8));
+        buf.release();
+    }
+
+    public void testDocumentWriteTo() throws Exception
+    {
+        Document doc = new Document();
+        doc.addContent("before ");
+        doc.addContent(new BlockFragment("block"));
+        doc.addContent("inside");
+        doc.popBlock();
+        doc.addContent(" after");
+
+        StringWriter writer = new StringWriter();
+        doc.writeTo(writer);
+        assertEquals("before inside after", writer.toString());
+        assertEquals(writer.toString(), doc.evaluateAsString());
+    }
+
+    public void testDocumentKeepsPool() throws Exception
+    {
+        SegmentedBuffer buf = new SegmentedBuffer();
+        buf.append(StringUtils.repeat("x", SegmentedBuffer.CHUNK_SIZE * 8));
+        buf.release();
+        int pooled = SegmentedBuffer.getPooledChunkCount();
+
+        // documents are never released, so their fragments mustn't take
+        // chunks from the pool
+        Document doc = new Document();
+        for (int i = 0; i < 50; ++i)
+        {
+            doc.addContent(new BlockFragment("b" + i));
+            doc.addContent("x");
+            doc.popBlock();
+        }
+        assertEquals(StringUtils.repeat("x", 50), doc.evaluateAsString());
+        assertEquals(pooled, SegmentedBuffer.getPooledChunkCount());
+    }
+
+    public void testAppendStringBuilder() throws Exception
+    {
+        String text = StringUtils.repeat("0123456789",
+                SegmentedBuffer.CHUNK_SIZE / 4);
+        SegmentedBuffer buf = new SegmentedBuffer();
+        buf.append(new StringBuilder(text), 5, text.length());
+        assertEquals(text.substring(5), buf.toString());
+        buf.release();
+    }
+}